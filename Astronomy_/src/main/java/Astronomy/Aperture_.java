@@ -232,6 +232,7 @@ public class Aperture_ implements PlugInFilter {
     boolean temporary = false;
     boolean isFITS = false;
     boolean debug = false;
+    PhotometrySettings photometrySettings;
     double[] raDec = null;
 
     /**
@@ -415,7 +416,8 @@ public class Aperture_ implements PlugInFilter {
 
         measurePhotometry();
 
-        String[] hdr = FitsJ.getHeader(imp);
+        FitsHeader header = FitsHeader.of(imp);
+        String[] hdr = header == null ? null : header.getCards();
         // GET MJD
         mjd = 0.0;
         if (hdr != null && isFITS && showTimes) {
@@ -432,7 +434,7 @@ public class Aperture_ implements PlugInFilter {
                 fitsVals = new double[sarr.length];
                 for (int l = 0; l < sarr.length; l++) {
                     try {
-                        fitsVals[l] = FitsJ.findDoubleValue(sarr[l], hdr);
+                        fitsVals[l] = header.findDoubleValue(sarr[l]);
                     } catch (NumberFormatException e) {
                     }
                 }
@@ -475,17 +477,18 @@ public class Aperture_ implements PlugInFilter {
     }
 
     protected Photometer measurePhotometry(ImagePlus imp, double x, double y, double r, double r2, double r3) {
-        String[] hdr = FitsJ.getHeader(imp);
+        FitsHeader header = FitsHeader.of(imp);
         double darkPerPix = ccdDark;
-        if (hdr != null) {
+        if (header != null) {
+            String[] hdr = header.getCards();
             isFITS = true;
-            wcs = new WCS(hdr);
+            wcs = new WCS(header);
             double exptime = FitsJ.getExposureTime(hdr);
             if (Double.isNaN(exptime)) exptime = 1.0;
             darkPerPix *= exptime;
             if (!darkKeyword.trim().equals("")) {
                 try {
-                    darkPerPix = FitsJ.findDoubleValue(darkKeyword, hdr);
+                    darkPerPix = header.findDoubleValue(darkKeyword);
                 } catch (NumberFormatException e) {
                     darkPerPix = ccdDark * exptime;
                 }
@@ -498,6 +501,7 @@ public class Aperture_ implements PlugInFilter {
         localPhotom.setRemoveBackStars(removeBackStars);
         localPhotom.setMarkRemovedPixels(showRemovedPixels);
         localPhotom.setUsePlane(backIsPlane);
+        localPhotom.setSettings(photometrySettings);
 
         localPhotom.measure(imp, exact, x, y, r, r2, r3);
 
@@ -554,6 +558,7 @@ public class Aperture_ implements PlugInFilter {
 
     protected AdjustedAperture adjustAperture(ImagePlus imp, double x, double y, double r, double r2, double r3, boolean centroid) {
         var center = new Centroid();
+        center.setSettings(photometrySettings);
         boolean returnVal = center.measure(imp, x, y, r, r2, r3, centroid, backIsPlane, removeBackStars);
 
         return new AdjustedAperture(returnVal, center);
@@ -879,7 +884,8 @@ public class Aperture_ implements PlugInFilter {
      * Gets all the aperture measurement parameters needed from the preferences.
      */
     protected void getMeasurementPrefs() {
-        debug = Prefs.get("astroj.debug", false);
+        photometrySettings = PhotometrySettings.current();
+        debug = photometrySettings.debug();
 
         radius = Prefs.get(AP_PREFS_RADIUS, radius);
         fradius = radius;
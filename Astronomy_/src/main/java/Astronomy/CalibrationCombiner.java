@@ -0,0 +1,261 @@
+package Astronomy;
+
+import ij.IJ;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Combines calibration frames into a master frame without keeping all frames in memory.
+ * <p>
+ * Each frame passed to {@link #addFrame(ImageProcessor)} is spilled to a temporary raw float file, so only
+ * one frame has to be held by the caller at a time. {@link #combine(Method, IntConsumer)} then reads the
+ * spill files one strip of rows at a time, sized so that a strip across all frames stays within the configured
+ * working set, combines the rows of each strip in parallel, and deletes the spill files.
+ */
+public class CalibrationCombiner implements Closeable {
+    public static final long DEFAULT_WORKING_SET = 256L * 1024 * 1024;
+    private final int width;
+    private final int height;
+    private final long maxWorkingSet;
+    private final List<Path> frames = new ArrayList<>();
+    private Path spillDirectory;
+    private ByteBuffer rowBuffer;
+    private double sigma = 3.0;
+    private int maxClipIterations = 5;
+    private int frameCount;
+    private long bytesWritten;
+    private long bytesRead;
+    private long nanosSpent;
+
+    public CalibrationCombiner(int width, int height) {
+        this(width, height, DEFAULT_WORKING_SET);
+    }
+
+    /**
+     * @param maxWorkingSet the maximum number of bytes of frame data held at once while combining.
+     */
+    public CalibrationCombiner(int width, int height, long maxWorkingSet) {
+        this.width = width;
+        this.height = height;
+        this.maxWorkingSet = Math.max(maxWorkingSet, (long) width * Float.BYTES);
+    }
+
+    /**
+     * Sets the rejection threshold, in standard deviations, and iteration limit used by
+     * {@link Method#SIGMA_CLIPPED_MEAN}.
+     */
+    public void setSigmaClipping(double sigma, int maxIterations) {
+        this.sigma = sigma;
+        this.maxClipIterations = maxIterations;
+    }
+
+    /**
+     * Spills a frame to disk. Non-float processors are converted with their calibration table applied,
+     * matching {@link ImageProcessor#getPixelValue(int, int)}.
+     */
+    public void addFrame(ImageProcessor ip) throws IOException {
+        if (ip.getWidth() != width || ip.getHeight() != height) {
+            throw new IllegalArgumentException("Frame size " + ip.getWidth() + "x" + ip.getHeight() +
+                    " does not match " + width + "x" + height);
+        }
+        var start = System.nanoTime();
+        if (spillDirectory == null) {
+            spillDirectory = Files.createTempDirectory("aij-combine");
+        }
+        if (rowBuffer == null) {
+            rowBuffer = ByteBuffer.allocateDirect(width * Float.BYTES).order(ByteOrder.nativeOrder());
+        }
+        var pixels = (float[]) (ip instanceof FloatProcessor ? ip : ip.convertToFloat()).getPixels();
+        var frame = spillDirectory.resolve("frame" + frames.size() + ".raw");
+        try (var channel = FileChannel.open(frame, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            var floats = rowBuffer.clear().asFloatBuffer();
+            for (int y = 0; y < height; y++) {
+                floats.clear();
+                floats.put(pixels, y * width, width);
+                rowBuffer.clear();
+                while (rowBuffer.hasRemaining()) {
+                    channel.write(rowBuffer);
+                }
+            }
+        }
+        frames.add(frame);
+        frameCount++;
+        bytesWritten += (long) width * height * Float.BYTES;
+        nanosSpent += System.nanoTime() - start;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Combines all added frames pixel by pixel, then deletes their spill files.
+     *
+     * @param progress receives the number of rows completed after each strip, may be null.
+     */
+    public FloatProcessor combine(Method method, IntConsumer progress) throws IOException {
+        if (frames.isEmpty()) {
+            throw new IllegalStateException("No frames to combine");
+        }
+        var start = System.nanoTime();
+        var n = frames.size();
+        var master = new FloatProcessor(width, height);
+        var out = (float[]) master.getPixels();
+        var rowBytes = (long) width * Float.BYTES;
+        var stripRows = (int) Math.max(1, Math.min(Math.min(height, Integer.MAX_VALUE / rowBytes),
+                maxWorkingSet / (rowBytes * n)));
+
+        var channels = new FileChannel[n];
+        try {
+            var buffers = new ByteBuffer[n];
+            for (int i = 0; i < n; i++) {
+                channels[i] = FileChannel.open(frames.get(i), StandardOpenOption.READ);
+                buffers[i] = ByteBuffer.allocateDirect((int) (stripRows * rowBytes)).order(ByteOrder.nativeOrder());
+            }
+            var strip = new FloatBuffer[n];
+            for (int y0 = 0; y0 < height; y0 += stripRows) {
+                var rows = Math.min(stripRows, height - y0);
+                for (int i = 0; i < n; i++) {
+                    var buffer = buffers[i].clear().limit((int) (rows * rowBytes));
+                    readFully(channels[i], buffer, y0 * rowBytes);
+                    strip[i] = buffer.flip().asFloatBuffer();
+                }
+                var offset = y0 * width;
+                IntStream.range(0, rows).parallel().forEach(r -> {
+                    var values = new float[n];
+                    var base = r * width;
+                    for (int x = 0; x < width; x++) {
+                        for (int i = 0; i < n; i++) {
+                            values[i] = strip[i].get(base + x);
+                        }
+                        out[offset + base + x] = combinePixel(method, values);
+                    }
+                });
+                bytesRead += rows * rowBytes * n;
+                if (progress != null) {
+                    progress.accept(y0 + rows);
+                }
+            }
+        } finally {
+            for (FileChannel channel : channels) {
+                if (channel != null) channel.close();
+            }
+            close();
+        }
+        nanosSpent += System.nanoTime() - start;
+        return master;
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            var read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of spill file");
+            }
+            position += read;
+        }
+    }
+
+    private float combinePixel(Method method, float[] values) {
+        var n = values.length;
+        switch (method) {
+            case MEDIAN -> {
+                Arrays.sort(values);
+                if ((n % 2) == 0) {
+                    return (float) ((values[n / 2] + values[n / 2 - 1]) / 2.0);
+                } else {
+                    return values[n / 2];
+                }
+            }
+            case MEAN -> {
+                var sum = 0.0;
+                for (float v : values) {
+                    sum += v;
+                }
+                return (float) (sum / (double) n);
+            }
+            case SIGMA_CLIPPED_MEAN -> {
+                var lower = Double.NEGATIVE_INFINITY;
+                var upper = Double.POSITIVE_INFINITY;
+                var mean = Double.NaN;
+                var kept = -1;
+                for (int iteration = 0; iteration <= maxClipIterations; iteration++) {
+                    var sum = 0.0;
+                    var sum2 = 0.0;
+                    var count = 0;
+                    for (float v : values) {
+                        if (v >= lower && v <= upper) {
+                            sum += v;
+                            sum2 += (double) v * v;
+                            count++;
+                        }
+                    }
+                    if (count == 0) break;
+                    mean = sum / count;
+                    if (count == kept) break;
+                    kept = count;
+                    var stdev = Math.sqrt(Math.max(0, sum2 / count - mean * mean));
+                    lower = mean - sigma * stdev;
+                    upper = mean + sigma * stdev;
+                }
+                return (float) mean;
+            }
+        }
+        throw new IllegalArgumentException("Unknown combine method " + method);
+    }
+
+    public double getFramesPerSecond() {
+        return nanosSpent == 0 ? 0 : frameCount / (nanosSpent / 1e9);
+    }
+
+    /**
+     * @return the spill plus combine throughput, counting every byte written to and read from the spill files.
+     */
+    public double getMegabytesPerSecond() {
+        return nanosSpent == 0 ? 0 : (bytesWritten + bytesRead) / (1024.0 * 1024.0) / (nanosSpent / 1e9);
+    }
+
+    /**
+     * Deletes the spill files, if {@link #combine(Method, IntConsumer)} has not already done so.
+     */
+    @Override
+    public void close() {
+        for (Path frame : frames) {
+            delete(frame);
+        }
+        frames.clear();
+        if (spillDirectory != null) {
+            delete(spillDirectory);
+            spillDirectory = null;
+        }
+    }
+
+    static void delete(Path path) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            IJ.log("Could not delete temporary file " + path + ": " + e.getMessage());
+        }
+    }
+
+    public enum Method {
+        MEDIAN,
+        MEAN,
+        SIGMA_CLIPPED_MEAN
+    }
+}
@@ -9,6 +9,9 @@ import ij.IJ;
 import ij.Prefs;
 import ij.astro.logging.AIJLogger;
 import ij.measure.ResultsTable;
+import org.hipparchus.exception.MathIllegalArgumentException;
+import org.hipparchus.linear.CholeskyDecomposition;
+import org.hipparchus.linear.DecompositionSolver;
 import org.hipparchus.linear.MatrixUtils;
 
 import java.math.BigDecimal;
@@ -25,13 +28,18 @@ import static Astronomy.MultiPlot_.*;
  * Extracted version of {@link MultiPlot_#updatePlot(boolean[], boolean)} for the multithreaded optimizer.
  */
 public class CurveFitter {
-    private static CurveFitter INSTANCE;
+    private static volatile CurveFitter INSTANCE;
     private final int curve;
     private final int targetStar;
     double[][] source;
     double[][] srcvar;
     //private final Minimization minimization = new Minimization();
     ThreadLocal<Minimization> minimizationThreadLocal = ThreadLocal.withInitial(Minimization::new);
+    /**
+     * Per-thread buffers for the unbinned relative flux, error, SNR and comp star counts built in
+     * {@link #conditionData(int, boolean[], int)}.
+     */
+    private final ThreadLocal<double[][]> fluxScratchThreadLocal = ThreadLocal.withInitial(() -> new double[5][source[0].length]);
     private int initAvgCount;
     private boolean initAtLeastOne;
     private int initDetrendCount;
@@ -43,7 +51,10 @@ public class CurveFitter {
     private double[] initDetrendYE;
     private double[][] initDetrendYD;
     private double[] initDetrendX;
-    private boolean doInstancedDetrendCalculation = false;
+    private int initExcludedHeadSamples;
+    private FitWindow initFitWindow;
+    private volatile boolean doInstancedDetrendCalculation = false;
+    private volatile boolean priorStepsReset = false;
     public static int[] detrendIndex;
     public static String[] detrendlabel;
 
@@ -60,10 +71,19 @@ public class CurveFitter {
         //      extract star and filter from this "rel_flux_Txx"
     }
 
-    public synchronized static CurveFitter getInstance(int curve, int targetStar) {
-        if (INSTANCE == null || INSTANCE.curve != curve || INSTANCE.targetStar != targetStar)
-            INSTANCE = new CurveFitter(curve, targetStar);
-        return INSTANCE;
+    /**
+     * The instance is only read while fitting, so once it has been created it is handed out without locking.
+     */
+    public static CurveFitter getInstance(int curve, int targetStar) {
+        var instance = INSTANCE;
+        if (instance != null && instance.curve == curve && instance.targetStar == targetStar) {
+            return instance;
+        }
+        synchronized (CurveFitter.class) {
+            if (INSTANCE == null || INSTANCE.curve != curve || INSTANCE.targetStar != targetStar)
+                INSTANCE = new CurveFitter(curve, targetStar);
+            return INSTANCE;
+        }
     }
 
     public synchronized static void invalidateInstance() {
@@ -168,6 +188,7 @@ public class CurveFitter {
             excludedTailSamples = n - excludedHeadSamples - 1;
         }
         excluded = excludedHeadSamples + excludedTailSamples;
+        initExcludedHeadSamples = excludedHeadSamples;
 
         netT0 = (twoxPeriod && oddNotEven) ? T0 - period : T0;
         netPeriod = twoxPeriod ? 2 * period : period;
@@ -607,6 +628,7 @@ public class CurveFitter {
                     detrendFitIndex[curve] = 0;
                     break;
             }
+            initFitWindow = new FitWindow(fitMin[curve], fitMax[curve], fitLeft[curve], fitRight[curve]);
 
             boolean atLeastOne = false;
             boolean detrendYNotConstant = false;
@@ -828,13 +850,19 @@ public class CurveFitter {
     }
 
     private FluxData conditionData(int ap2reference, boolean[] localIsRefStar, int totCcntAP) {
-        var rel_flux = new double[source[0].length];
-        var rel_flux_err = new double[source[0].length];
-        var tot_C_cnts = new double[source[0].length];
-        var tot_C_err = new double[source[0].length];
-        var rel_flux_snr = new double[source[0].length];
+        var scratch = fluxScratchThreadLocal.get();
+        var rel_flux = scratch[0];
+        var rel_flux_err = scratch[1];
+        var tot_C_cnts = scratch[2];
+        var tot_C_err = scratch[3];
+        var rel_flux_snr = scratch[4];
 
         for (int i = 0; i < source[0].length; i++) {
+            rel_flux[i] = 0;
+            rel_flux_err[i] = 0;
+            tot_C_cnts[i] = 0;
+            tot_C_err[i] = 0;
+            rel_flux_snr[i] = 0;
             var compSum = 0.0;
             var compVar = 0.0;
             for (int ap = 0; ap < localIsRefStar.length; ap++) {
@@ -900,10 +928,7 @@ public class CurveFitter {
     private double[] averageAndTrimData(double[] allData, boolean sumOfSquares) {
         int bucketSize = 0;
         var workingSource = new double[nn[curve]];
-        if (excludedHeadSamples + excludedTailSamples >= n) { //Handle case for more samples excluded than in dataset
-            excludedHeadSamples = excludedHeadSamples < n ? excludedHeadSamples : n - 1;
-            excludedTailSamples = n - excludedHeadSamples - 1;
-        }
+        var excludedHeadSamples = initExcludedHeadSamples;
         for (int j = 0; j < nn[curve]; j++) {
             if (nnr[curve] > 0 && j == nn[curve] - 1) {
                 bucketSize = nnr[curve];
@@ -923,38 +948,14 @@ public class CurveFitter {
         return workingSource;
     }
 
+    /**
+     * Keeps the points inside the fit window found by {@link #setupData()}.
+     */
     private double[] markersTrimData(double[] workingSource) {
-        fitMin[curve] = (useDMarker1 ? dMarker1Value : Double.NEGATIVE_INFINITY) + xOffset;
-        fitMax[curve] = (useDMarker4 ? dMarker4Value : Double.POSITIVE_INFINITY) + xOffset;
-        fitLeft[curve] = dMarker2Value + xOffset;
-        fitRight[curve] = dMarker3Value + xOffset;
-        switch (detrendFitIndex[curve]) {
-            case 2: // left of D2
-                fitMax[curve] = fitLeft[curve];
-                break;
-            case 3: // right of D3
-                fitMin[curve] = fitRight[curve];
-                break;
-            case 4: // outside D2 and D3
-                break;
-            case 5: // inside D2 and D3
-                fitMin[curve] = fitLeft[curve];
-                fitMax[curve] = fitRight[curve];
-                break;
-            case 6: // left of D3
-                fitMax[curve] = fitRight[curve];
-                break;
-            case 7: // right of D2
-                fitMin[curve] = fitLeft[curve];
-                break;
-            case 8: // use all data
-                break;
-            case 9: // use all data to fit transit with simultaneaous detrend
-                break;
-            default: // use all data
-                detrendFitIndex[curve] = 0;
-                break;
-        }
+        var fitMin = initFitWindow.min();
+        var fitMax = initFitWindow.max();
+        var fitLeft = initFitWindow.left();
+        var fitRight = initFitWindow.right();
 
         var workingSource2 = new double[nn[curve]];
 
@@ -963,12 +964,12 @@ public class CurveFitter {
             workingSource2[j] = Double.NaN;
             if (detrendFitIndex[curve] != 1) {
                 if (detrendFitIndex[curve] == 4) {
-                    if ((x[curve][j] > fitMin[curve] && x[curve][j] < fitLeft[curve]) || (x[curve][j] > fitRight[curve] && x[curve][j] < fitMax[curve])) {
+                    if ((x[curve][j] > fitMin && x[curve][j] < fitLeft) || (x[curve][j] > fitRight && x[curve][j] < fitMax)) {
                         workingSource2[j] = workingSource[j];
                     }
                 } else {
-                    if (x[curve][j] > fitMin[curve]) {
-                        if (x[curve][j] < fitMax[curve]) {
+                    if (x[curve][j] > fitMin) {
+                        if (x[curve][j] < fitMax) {
                             workingSource2[j] = workingSource[j];
                         }
                     }
@@ -1014,7 +1015,65 @@ public class CurveFitter {
         return new CurveData(targetFlux.flux, targetFlux.err, instancedParamData);
     }
 
-    private synchronized OptimizerResults updateCurve(boolean[] isRefStar, int[] detrendIndex) {
+    /**
+     * @return the solver for the fitted detrend coefficients, or {@code null} if they must be left to the simplex,
+     * because a prior width constrains one of them or they cannot be solved for.
+     */
+    private LinearDetrendSolver createDetrendSolver(boolean[] isFitted, int maxFittedVars, int[] detrendIndex, double[][] detrendVars, double[] detrendYE) {
+        var fittedVars = new double[detrendVars.length][];
+        int dp = 0;
+        int fitted = 0;
+        for (int p = 7; p < maxFittedVars; p++) {
+            if (isFitted[p]) {
+                if (usePriorWidth[curve][p]) return null;
+                fittedVars[fitted++] = detrendVars[dp++];
+            } else if (detrendIndex[p - 7] != 0 && detrendYDNotConstant[p - 7] && lockToCenter[curve][p]) {
+                dp++;
+            }
+        }
+        return LinearDetrendSolver.create(Arrays.copyOf(fittedVars, fitted), detrendYE);
+    }
+
+    /**
+     * Restores the default spinner steps of the priors, done once per instance rather than for each fit.
+     */
+    private static void resetPriorSteps(int maxFittedVars) {
+        priorCenterStep[0] = 0.001;
+        priorWidthStep[0] = 0.001;
+        fitStepStep[0] = 0.1;
+
+        priorCenterStep[1] = 0.001;
+        priorWidthStep[1] = 0.001;
+        fitStepStep[1] = 0.1;
+
+        priorCenterStep[2] = 1.0;
+        priorWidthStep[2] = 1.0;
+        fitStepStep[2] = 0.1;
+
+        priorCenterStep[3] = 0.001;
+        priorWidthStep[3] = 0.001;
+        fitStepStep[3] = 0.01;
+
+        priorCenterStep[4] = 1.0;
+        priorWidthStep[4] = 1;
+        fitStepStep[4] = 1.0;
+
+        priorCenterStep[5] = 0.1;
+        priorWidthStep[5] = 0.1;
+        fitStepStep[5] = 0.1;
+
+        priorCenterStep[6] = 0.1;
+        priorWidthStep[6] = 0.1;
+        fitStepStep[6] = 0.1;
+
+        for (int j = 7; j < maxFittedVars; j++) { //detrend1, detrend2, ...
+            priorCenterStep[j] = 0.000001;
+            priorWidthStep[j] = 0.01;
+            fitStepStep[j] = 0.1;
+        }
+    }
+
+    private OptimizerResults updateCurve(boolean[] isRefStar, int[] detrendIndex) {
         var minimization = minimizationThreadLocal.get();
         var avgCount = initAvgCount;
         var atLeastOne = initAtLeastOne;
@@ -1231,55 +1290,35 @@ public class CurveFitter {
                     // Update prior centers/widths
                     var priorCenter = new double[maxFittedVars];
                     var priorWidth = new double[maxFittedVars];
+                    if (!priorStepsReset) {
+                        priorStepsReset = true;
+                        resetPriorSteps(maxFittedVars);
+                    }
                     priorCenter[0] = 1.0;  //f0 = baseline flux
-                    priorCenterStep[0] = 0.001;
                     priorWidth[0] = 0.005;
-                    priorWidthStep[0] = 0.001;
-                    fitStepStep[0] = 0.1;
 
                     priorCenter[1] = 0.010;    // depth = (r_p/r_*)^2
-                    priorCenterStep[1] = 0.001;
                     priorWidth[1] = 0.010;
-                    priorWidthStep[1] = 0.001;
-                    fitStepStep[1] = 0.1;
 
                     priorCenter[2] = 10.0;   // a/r_*
-                    priorCenterStep[2] = 1.0;
                     priorWidth[2] = 7;
-                    priorWidthStep[2] = 1.0;
-                    fitStepStep[2] = 0.1;
 
                     priorCenter[3] = 2456500;  // tc = transit center time
-                    priorCenterStep[3] = 0.001;
                     priorWidth[3] = 0.015;
-                    priorWidthStep[3] = 0.001;
-                    fitStepStep[3] = 0.01;
 
                     priorCenter[4] = 88.0;  // inclination
-                    priorCenterStep[4] = 1.0;
                     priorWidth[4] = 15;
-                    priorWidthStep[4] = 1;
-                    fitStepStep[4] = 1.0;
 
                     priorCenter[5] = 0.3;  // u1
-                    priorCenterStep[5] = 0.1;
                     priorWidth[5] = 1.0;
-                    priorWidthStep[5] = 0.1;
-                    fitStepStep[5] = 0.1;
 
                     priorCenter[6] = 0.3;  // u2
-                    priorCenterStep[6] = 0.1;
                     priorWidth[6] = 1.0;
-                    priorWidthStep[6] = 0.1;
-                    fitStepStep[6] = 0.1;
 
                     if (priorCenter.length > 7) {
                         for (int j = 7; j < priorCenter.length; j++) { //detrend1, detrend2, ...
                             priorCenter[j] = 0.0;
-                            priorCenterStep[j] = 0.000001;
                             priorWidth[j] = 1.0;
-                            priorWidthStep[j] = 0.01;
-                            fitStepStep[j] = 0.1;
                         }
                     }
 
@@ -1409,10 +1448,25 @@ public class CurveFitter {
                                 }
                             }
 
+                            var chi2Function = new FitLightCurveChi2(detrendY, dof, bp, detrendX, detrendYE, isFitted, detrendYAverage, priorCenter, detrendIndex, maxFittedVars, detrendVars);
+                            var detrendSolver = solveDetrendLinearly && fittedDetrendParStart > 0 && nFitted > fittedDetrendParStart ?
+                                    createDetrendSolver(isFitted, maxFittedVars, detrendIndex, detrendVars, detrendYE) : null;
+                            if (detrendSolver != null) {
+                                chi2Function.setDetrendSolver(detrendSolver);
+                                start = Arrays.copyOf(start, fittedDetrendParStart);
+                                step = Arrays.copyOf(step, fittedDetrendParStart);
+                            }
+
                             minimization.setNrestartsMax(1);
-                            minimization.nelderMead(new FitLightCurveChi2(detrendY, dof, bp, detrendX, detrendYE, isFitted, detrendYAverage, priorCenter, detrendIndex, maxFittedVars, detrendVars),
-                                    start, step, tolerance[curve], maxFitSteps[curve]);
+                            minimization.nelderMead(chi2Function, start, step, tolerance[curve], maxFitSteps[curve]);
                             coeffs = minimization.getParamValues();
+                            if (detrendSolver != null) {
+                                // Recover the detrend coefficients belonging to the best transit parameters
+                                chi2Function.function(coeffs);
+                                var detrendCoeffs = detrendSolver.getCoefficients();
+                                coeffs = Arrays.copyOf(coeffs, nFitted);
+                                System.arraycopy(detrendCoeffs, 0, coeffs, fittedDetrendParStart, detrendCoeffs.length);
+                            }
                             nTries = minimization.getNiter() - 1;
                             converged = minimization.getConvStatus();
                             fp = 0;
@@ -1827,6 +1881,12 @@ public class CurveFitter {
         }
     }
 
+    /**
+     * The fit region from the detrend markers, see {@link MultiPlot_#fitMin}.
+     */
+    private record FitWindow(double min, double max, double left, double right) {
+    }
+
     private record FluxData(double[] flux, double[] err, double[] snr, double[] totalCCounts, double[] totalCCountErr) {
     }
 
@@ -1882,6 +1942,8 @@ public class CurveFitter {
         int[] detrendIndex;
         int maxFittedVars;
         double[][] detrendVars;
+        LinearDetrendSolver detrendSolver;
+        double[] detrendTarget;
 
         public FitLightCurveChi2(double[] detrendY, double dof, double bp, double[] detrendX, double[] detrendYE, boolean[] isFitted, double detrendYAverage, double[] priorCenter, int[] detrendIndex, int maxFittedVars, double[][] detrendVars) {
             this.detrendY = detrendY;
@@ -1935,13 +1997,14 @@ public class CurveFitter {
                 u1 = lockToCenter[curve][5] ? priorCenter[5] : param[fp < nPars ? fp++ : nPars - 1];  //quadratic limb darkening parameter 1
                 u2 = lockToCenter[curve][6] ? priorCenter[6] : param[fp < nPars ? fp++ : nPars - 1];  //quadratic limb darkening parameter 2
 
-                lcModel = IJU.transitModel(detrendX, f0, incl, p0, ar, tc, orbitalPeriod[curve], e, ohm, u1, u2, useLonAscNode[curve], lonAscNode[curve], true);
+                lcModel = IJU.transitModel(detrendX, f0, incl, p0, ar, tc, orbitalPeriod[curve], e, ohm, u1, u2, useLonAscNode[curve], lonAscNode[curve], true, lcModel);
             }
 
             int dp = 0;
             for (int p = 7; p < maxFittedVars; p++) {
                 if (isFitted[p]) {
-                    dPars[dp++] = param[fp++];
+                    // Solved detrend coefficients are left at 0 here and found below
+                    dPars[dp++] = detrendSolver == null ? param[fp++] : 0;
                 } else if (detrendIndex[p - 7] != 0 && detrendYDNotConstant[p - 7] && lockToCenter[curve][p]) {
                     dPars[dp++] = priorCenter[p];
                 }
@@ -1960,6 +2023,15 @@ public class CurveFitter {
                     chi2 = Double.POSITIVE_INFINITY; //boundary check that planet passes in front of star
                 } else if ((!lockToCenter[curve][5] || !lockToCenter[curve][6]) && (((u1 + u2) > 1.0) || ((u1 + u2) < 0.0) || (u1 > 1.0) || (u1 < 0.0) || (u2 < -1.0) || (u2 > 1.0))) {
                     chi2 = Double.POSITIVE_INFINITY;
+                } else if (detrendSolver != null) {
+                    for (int j = 0; j < numData; j++) {
+                        residual = detrendY[j];
+                        for (int i = 0; i < numDetrendVars; i++) {
+                            residual -= detrendVars[i][j] * dPars[i];
+                        }
+                        detrendTarget[j] = residual - (lcModel[j] - detrendYAverage);
+                    }
+                    chi2 = detrendSolver.solve(detrendTarget);
                 } else {
                     for (int j = 0; j < numData; j++) {
                         residual = detrendY[j];// - param[0];
@@ -1981,6 +2053,102 @@ public class CurveFitter {
             }
             return chi2 / dof;
         }
+
+        /**
+         * Solve the fitted detrend coefficients by weighted linear least squares in each evaluation, so that only
+         * the transit parameters are left to the simplex. The parameters passed to {@link #function(double[])} are
+         * then the fitted transit parameters only.
+         */
+        void setDetrendSolver(LinearDetrendSolver detrendSolver) {
+            this.detrendSolver = detrendSolver;
+            detrendTarget = new double[detrendY.length];
+        }
+    }
+
+    /**
+     * Weighted linear least squares for the detrend coefficients that are fitted rather than locked. The residual of
+     * the light curve fit is linear in these, so for given transit parameters their best values follow from the
+     * normal equations, whose matrix depends only on the detrend data and is factored once.
+     */
+    static final class LinearDetrendSolver {
+        private final double[][] vars;
+        private final double[] weights;
+        private final DecompositionSolver normalSolver;
+        private final double[] coefficients;
+
+        private LinearDetrendSolver(double[][] vars, double[] weights, DecompositionSolver normalSolver) {
+            this.vars = vars;
+            this.weights = weights;
+            this.normalSolver = normalSolver;
+            coefficients = new double[vars.length];
+        }
+
+        /**
+         * @param vars the detrend data of the fitted coefficients.
+         * @param err  the uncertainty of each data point.
+         * @return {@code null} if the coefficients cannot be solved for, such as when the detrend data are degenerate.
+         */
+        static LinearDetrendSolver create(double[][] vars, double[] err) {
+            var weights = new double[err.length];
+            for (int j = 0; j < err.length; j++) {
+                weights[j] = 1 / (err[j] * err[j]);
+                if (!Double.isFinite(weights[j])) return null;
+            }
+
+            var normal = new double[vars.length][vars.length];
+            for (int k = 0; k < vars.length; k++) {
+                for (int l = 0; l <= k; l++) {
+                    var sum = 0D;
+                    for (int j = 0; j < weights.length; j++) {
+                        sum += weights[j] * vars[k][j] * vars[l][j];
+                    }
+                    if (!Double.isFinite(sum)) return null;
+                    normal[k][l] = normal[l][k] = sum;
+                }
+            }
+
+            try {
+                var cholesky = new CholeskyDecomposition(MatrixUtils.createRealMatrix(normal),
+                        CholeskyDecomposition.DEFAULT_RELATIVE_SYMMETRY_THRESHOLD, 1e-12);
+                return new LinearDetrendSolver(vars, weights, cholesky.getSolver());
+            } catch (MathIllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        /**
+         * Finds the coefficients that best fit {@code target}, available from {@link #getCoefficients()}.
+         *
+         * @return the chi-squared of the fit.
+         */
+        double solve(double[] target) {
+            var rhs = new double[vars.length];
+            for (int k = 0; k < vars.length; k++) {
+                var sum = 0D;
+                for (int j = 0; j < target.length; j++) {
+                    sum += weights[j] * vars[k][j] * target[j];
+                }
+                rhs[k] = sum;
+            }
+
+            var solution = normalSolver.solve(MatrixUtils.createRealVector(rhs));
+            var chi2 = 0D;
+            for (int j = 0; j < target.length; j++) {
+                var residual = target[j];
+                for (int k = 0; k < vars.length; k++) {
+                    residual -= vars[k][j] * solution.getEntry(k);
+                }
+                chi2 += weights[j] * residual * residual;
+            }
+            for (int k = 0; k < vars.length; k++) {
+                coefficients[k] = solution.getEntry(k);
+            }
+            return chi2;
+        }
+
+        double[] getCoefficients() {
+            return coefficients.clone();
+        }
     }
 
     public class FitDetrendOnly implements MinimizationFunction {
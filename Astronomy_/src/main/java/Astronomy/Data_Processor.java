@@ -13,7 +13,9 @@ import ij.io.FileInfo;
 import ij.io.OpenDialog;
 import ij.plugin.Macro_Runner;
 import ij.plugin.PlugIn;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import util.DirectoryWatcher;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
@@ -36,6 +38,13 @@ import java.text.DecimalFormat;
 import java.text.SimpleDateFormat;
 import java.util.Timer;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 
 
 /**
@@ -63,6 +72,18 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
     int pollingInterval = 0;        // IN SECONDS
     TimerTask task = null;
     Timer timer = null;
+    final HashMap<String, DirectoryWatcher> directoryWatchers = new HashMap<>();
+    final HashMap<String, Pattern> wildCardPatterns = new HashMap<>();
+    final AtomicBoolean wakeScheduled = new AtomicBoolean();
+    static final int READ_AHEAD = 2;
+    final ExecutorService readAheadExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Data Processor Read Ahead");
+        t.setDaemon(true);
+        return t;
+    });
+    final LinkedHashMap<String, Future<ImagePlus>> readAheadImages = new LinkedHashMap<>();
+    final Object openLock = new Object();
+    final StageTimes stageTimes = new StageTimes();
     boolean blocked = false;
     boolean onlyNew = false; // VERSION 1.1
     boolean firstRun = true;
@@ -116,7 +137,6 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
     Class<?> imageWindowClass;
     boolean running = false;
     boolean autoRunAndClose = false;
-    long flen, newflen;
     JFrame dialogFrame;
     JScrollPane mainScrollPane, fitsHeaderScrollPane;
     Frame openFrame;
@@ -124,10 +144,10 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
     JMenu fileMenu, prefsMenu, viewMenu;
     JMenuItem exitMenuItem;
     JCheckBoxMenuItem useBeepCB, useShowLogCB, showLogDateTimeCB, showScienceCB, showRawCalsCB, showMasterImagesCB;
-    JCheckBoxMenuItem autoRunAndCloseCB;
+    JCheckBoxMenuItem autoRunAndCloseCB, sigmaClipCalsCB, coaddScienceCB;
     JCheckBoxMenuItem onlyNewCB, usepreMacro1AutoLevelCB, showToolTipsCB, autoWildcardCB;
     JCheckBoxMenuItem rawCalCommonDirCB, masterCalCommonDirCB, postMacro1AutoLevelCB, postMacro2AutoLevelCB;
-    JMenuItem setFileSizeChangeWaitTimeMenuItem;
+    JMenuItem setFileSizeChangeWaitTimeMenuItem, setCoaddOptionsMenuItem;
     JTextField dirText, filenamePatternText;
     JLabel remainingNumLabel, processedNumLabel, pollingIntervalLabel, minFileNumberLabel, maxFileNumberLabel;
     JLabel validTextFilteredFilesLabel, validNumFilteredFilesLabel;
@@ -171,6 +191,24 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
     boolean useBias, useDark = true, useFlat = true, useNLC = false, calcHeaders = true;
     boolean createBias, createDark, createFlat, saveProcessedData = true;
     boolean biasMedian = true, darkMedian = true, flatMedian = true, saveFloatingPoint, scaleExpTime;
+    boolean sigmaClipCals = false;
+    boolean coaddScience = false;
+    CalibrationCombiner.Method coaddMethod = CalibrationCombiner.Method.SIGMA_CLIPPED_MEAN;
+    double coaddSigma = 3.0;
+    int coaddFramesInMemory = ImageCoadder.DEFAULT_FRAMES_IN_MEMORY;
+    // Guards the co-add, which is finished from the EDT by saveAndClose() as well as by the processing thread
+    final Object coaddLock = new Object();
+    final ExecutorService coaddExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "Data Processor Co-add");
+        t.setDaemon(true);
+        return t;
+    });
+    boolean coaddFinishing;
+    ImageCoadder coadder;
+    AsterismAligner coaddAligner;
+    String[] coaddHeader;
+    String coaddDirPath, coaddFileName;
+    ArrayList<String> coaddFileNames = new ArrayList<>();
     boolean showRawCals = false, showMasters = false, showScience = true, showLog = true, showLogDateTime = true;
     boolean useGradientRemoval = true, useCosmicRemoval = false;
     boolean runMultiAperture = false;
@@ -1040,6 +1078,26 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
 
         prefsMenu.addSeparator();
 
+        sigmaClipCalsCB = new JCheckBoxMenuItem("Reject outliers (3-sigma clipping) when averaging raw calibration files", sigmaClipCals);
+        sigmaClipCalsCB.addItemListener(this);
+        prefsMenu.add(sigmaClipCalsCB);
+
+        prefsMenu.addSeparator();
+
+        coaddScienceCB = new JCheckBoxMenuItem("Co-add processed science images, aligned to the first by star patterns", coaddScience);
+        coaddScienceCB.addItemListener(this);
+        prefsMenu.add(coaddScienceCB);
+
+        setCoaddOptionsMenuItem = new JMenuItem("Set co-add options...");
+        setCoaddOptionsMenuItem.addActionListener(new ActionListener() {
+            public void actionPerformed(ActionEvent e) {
+                setCoaddOptions();
+            }
+        });
+        prefsMenu.add(setCoaddOptionsMenuItem);
+
+        prefsMenu.addSeparator();
+
         setFileSizeChangeWaitTimeMenuItem = new JMenuItem("Set time to wait for new file writes to complete...");
         setFileSizeChangeWaitTimeMenuItem.addActionListener(new ActionListener() {
             public void actionPerformed(ActionEvent e) {
@@ -2754,6 +2812,13 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
         Prefs.set("multiaperture.canceled", true);
         if (timer != null) timer.cancel();
         if (task != null) task.cancel();
+        synchronized (directoryWatchers) {
+            directoryWatchers.values().forEach(DirectoryWatcher::close);
+            directoryWatchers.clear();
+        }
+        clearReadAhead();
+        readAheadExecutor.shutdownNow();
+        finishCoadd();
         running = false;
         active = false;
         savePrefs();
@@ -2858,6 +2923,10 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
             if (savePlot) saveStaticPlot();
         } else if (source == useBeepCB)
             useBeep = selectedState;
+        else if (source == sigmaClipCalsCB)
+            sigmaClipCals = selectedState;
+        else if (source == coaddScienceCB)
+            coaddScience = selectedState;
         else if (source == autoRunAndCloseCB) {
             autoRunAndClose = selectedState;
             Prefs.set("dataproc.autoRunAndClose", autoRunAndClose);
@@ -3965,10 +4034,9 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
         ImageStack stack = null;
         ImagePlus imp = null, imp2 = null;
         ImageProcessor mbiasIp;
-        ImageProcessor[] slices = null;
+        CalibrationCombiner combiner = null;
         try {
             String bias;
-//            double min = 0, max = 0;
             int count = 0;
             biasMasterPath = getPath(biasMasterDirField, false);
             mbiasPath = biasMasterPath + biasMaster.trim();
@@ -4003,22 +4071,24 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
                     }
                     biasFilePath = biasPath + bias;
                     log("Loading raw bias file \"" + biasFilePath + "\" (" + count + " of " + validBiasFiles + ")");
-                    imp = IJ.openImage(biasFilePath);
+                    imp = openImage(biasFilePath);
                     if (imp == null) {
                         error("ERROR: Unable to open image \"" + biasFilePath + "\".");
                         return false;
                     } else {
                         imp.setProcessor(getAdjustedIp(imp, biasFilePath, removePedestal, !CONVERTTOFLOAT));
                         if (count == 1) mbiasHeader = FitsJ.getHeader(imp);
-                        if (stack == null) stack = imp.createEmptyStack();
 
                         ImageProcessor ip = imp.getProcessor();
-//                        if (ip.getMin()<min) min = ip.getMin();
-//                        if (ip.getMax()>max) max = ip.getMax();
-                        stack.addSlice(bias, ip);
-                        FitsJ.putHeader(stack, FitsJ.getHeader(imp), count);
+                        if (combiner == null) combiner = new CalibrationCombiner(ip.getWidth(), ip.getHeight());
+                        combiner.addFrame(ip);
+                        if (showRawCals) {
+                            if (stack == null) stack = imp.createEmptyStack();
+                            stack.addSlice(bias, ip);
+                            FitsJ.putHeader(stack, FitsJ.getHeader(imp), count);
+                        }
 
-                        IJ.showStatus((stack.getSize() + 1) + ": " + bias);
+                        IJ.showStatus(count + ": " + bias);
                     }
                     validFilenames[count - 1] = filenames[i];
                 }
@@ -4027,79 +4097,30 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
                 error("ERROR: No raw bias image matching \"" + biasPath + biasBase.trim() + "\".");
                 return false;
             }
-            if (stack != null) {
-                imp2 = WindowManager.getImage("Bias Stack");
-                if (imp2 != null) imp2.close();
-                imp2 = new ImagePlus("Bias Stack", stack);
-                imp2.setCalibration(imp.getCalibration());
-//                if (imp2.getBitDepth()==16 || imp.getBitDepth()==32)
-//                    imp2.getProcessor().setMinAndMax(min, max);
-                if (showRawCals) imp2.show();
-
-
-                //            stack = imp2.getStack();
-                int sliceCount = stack.getSize();
-                slices = new ImageProcessor[sliceCount];
-                for (int i = 0; i < sliceCount; i++)
-                    slices[i] = stack.getProcessor(i + 1);
-                mbiasIp = slices[0].duplicate();
-                mbiasIp = mbiasIp.convertToFloat();
-
-                int width = mbiasIp.getWidth();
-                int height = mbiasIp.getHeight();
-                int inc = Math.max(height / 30, 1);
+            if (combiner != null) {
+                if (stack != null) {
+                    imp2 = WindowManager.getImage("Bias Stack");
+                    if (imp2 != null) imp2.close();
+                    imp2 = new ImagePlus("Bias Stack", stack);
+                    imp2.setCalibration(imp.getCalibration());
+                    imp2.show();
+                }
                 if (requestStop) {
                     return false;
                 }
-                if (biasMedian) {
-                    IJ.showStatus("Calculating median...");
-                    mbiasHeader = FitsJ.addHistory("Median master bias created from " + count + " images", mbiasHeader);
-                    log("Calculating median master bias image \"" + mbiasPath + "\".");
-                    float[] values = new float[sliceCount];
-                    for (int y = 0; y < height; y++) {
-                        if (y % inc == 0) {
-                            IJ.showProgress(y, height - 1);
-                        }
-                        for (int x = 0; x < width; x++) {
-                            for (int i = 0; i < sliceCount; i++) {
-                                values[i] = slices[i].getPixelValue(x, y);
-                            }
-                            java.util.Arrays.sort(values);
-                            if ((sliceCount % 2) == 0)      // even
-                            {
-                                mbiasIp.putPixelValue(x, y, (values[sliceCount / 2] + values[sliceCount / 2 - 1]) / 2.0);
-                            } else                        //odd
-                            {
-                                mbiasIp.putPixelValue(x, y, values[sliceCount / 2]);
-                            }
-                        }
 
-                    }
-                } else {
-
-                    IJ.showStatus("Calculating average...");
-                    mbiasHeader = FitsJ.addHistory("Average master bias created from " + count + " images", mbiasHeader);
-                    log("Calculating average master bias image \"" + mbiasPath + "\".");
-                    double value;
-                    for (int y = 0; y < height; y++) {
-                        if (y % inc == 0) IJ.showProgress(y, height - 1);
-                        for (int x = 0; x < width; x++) {
-                            value = 0.0;
-                            for (int i = 0; i < sliceCount; i++)
-                                value += slices[i].getPixelValue(x, y);
-                            mbiasIp.putPixelValue(x, y, (float) (value / (double) sliceCount));
-                        }
-                    }
-                }
+                CalibrationCombiner.Method method = combineMethod(biasMedian);
+                IJ.showStatus("Calculating " + combineMethodName(method).toLowerCase() + "...");
+                mbiasHeader = FitsJ.addHistory(combineMethodName(method) + " master bias created from " + count + " images", mbiasHeader);
+                log("Calculating " + combineMethodName(method).toLowerCase() + " master bias image \"" + mbiasPath + "\".");
+                final int height = imp.getHeight();
+                mbiasIp = combiner.combine(method, y -> IJ.showProgress(y, height));
+                logCombineThroughput(combiner);
 
-//                mbiasImp = WindowManager.getImage(biasMaster.trim());
-//                if (mbiasImp != null) mbiasImp.close();
                 mbiasImp = new ImagePlus(biasMaster.trim(), mbiasIp);
                 mbiasHeader = FitsJ.addHistory("on " + f.format(new java.util.Date()) + " (YYYY-MM-DD hh:mm:ss UT)", mbiasHeader);
                 for (int i = 0; i < count; i++)
                     mbiasHeader = FitsJ.addHistory("Image " + (i + 1) + " = " + biasPath + validFilenames[i], mbiasHeader);
-                //            mbiasHeader = FitsJ.removeCards("DATE", mbiasHeader);
-                //            mbiasHeader = FitsJ.setCard("DATE", f.format(new java.util.Date()), "file creation date (YYYY-MM-DD hh:mm:ss UT)", mbiasHeader);
 
                 FitsJ.putHeader(mbiasImp, mbiasHeader);
                 if (showMasters) IJU.replaceImageInWindow(mbiasImp.duplicate(), "DUP_" + biasMaster.trim());
@@ -4116,6 +4137,11 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
             IJ.outOfMemory("Bias Stack");
             log("ERROR: Out of memory");
             return false;
+        } catch (IOException | IllegalArgumentException e) {
+            error("ERROR: Unable to build master bias: " + e.getMessage());
+            return false;
+        } finally {
+            if (combiner != null) combiner.close();
         }
         return true;
     }
@@ -4125,10 +4151,9 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
         ImagePlus imp = null, imp2 = null;
         ImageProcessor mdarkIp;
         ImageProcessor mbiasIp = null;
-        ImageProcessor[] slices = null;
+        CalibrationCombiner combiner = null;
         try {
             String dark;
-//            double min = 0, max = 0;
             int count = 0;
             darkMasterPath = getPath(darkMasterDirField, false);
             mdarkPath = darkMasterPath + darkMaster.trim();
@@ -4163,21 +4188,23 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
                     if (useBeep) IJ.beep();
                     darkFilePath = darkPath + dark;
                     log("Loading dark file \"" + darkFilePath + "\" (" + count + " of " + validDarkFiles + ")");
-                    imp = IJ.openImage(darkFilePath);
+                    imp = openImage(darkFilePath);
                     if (imp == null) {
                         error("ERROR: Unable to open image \"" + darkFilePath + "\".");
                         return false;
                     } else {
                         imp.setProcessor(getAdjustedIp(imp, darkFilePath, removePedestal, !CONVERTTOFLOAT));
                         if (count == 1) mdarkHeader = FitsJ.getHeader(imp);
-                        if (stack == null) stack = imp.createEmptyStack();
                         ImageProcessor ip = imp.getProcessor();
-//                        if (ip.getMin()<min) min = ip.getMin();
-//                        if (ip.getMax()>max) max = ip.getMax();
-                        stack.addSlice(dark, ip);
-                        FitsJ.putHeader(stack, FitsJ.getHeader(imp), count);
+                        if (combiner == null) combiner = new CalibrationCombiner(ip.getWidth(), ip.getHeight());
+                        combiner.addFrame(useBias ? biasCorrectDark(ip, mbiasIp) : ip);
+                        if (showRawCals) {
+                            if (stack == null) stack = imp.createEmptyStack();
+                            stack.addSlice(dark, ip);
+                            FitsJ.putHeader(stack, FitsJ.getHeader(imp), count);
+                        }
 
-                        IJ.showStatus((stack.getSize() + 1) + ": " + dark);
+                        IJ.showStatus(count + ": " + dark);
 
                     }
                     validFilenames[count - 1] = filenames[i];
@@ -4187,99 +4214,26 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
                 error("ERROR: No raw dark image matching \"" + darkPath + darkBase.trim() + "\".");
                 return false;
             }
-            if (stack != null) {
-                imp2 = WindowManager.getImage("Dark Stack");
-                if (imp2 != null) imp2.close();
-                imp2 = new ImagePlus("Dark Stack", stack);
-                imp2.setCalibration(imp.getCalibration());
-//                if (imp2.getBitDepth()==16 || imp.getBitDepth()==32)
-//                    imp2.getProcessor().setMinAndMax(min, max);
-                if (showRawCals) imp2.show();
-
-
-                //            stack = imp2.getStack();
-                int sliceCount = stack.getSize();
-                slices = new ImageProcessor[sliceCount];
-                for (int i = 0; i < sliceCount; i++)
-                    slices[i] = stack.getProcessor(i + 1);
-                mdarkIp = slices[0].duplicate();
-                mdarkIp = mdarkIp.convertToFloat();
-
-                int width = mdarkIp.getWidth();
-                int height = mdarkIp.getHeight();
-                int inc = Math.max(height / 30, 1);
+            if (combiner != null) {
+                if (stack != null) {
+                    imp2 = WindowManager.getImage("Dark Stack");
+                    if (imp2 != null) imp2.close();
+                    imp2 = new ImagePlus("Dark Stack", stack);
+                    imp2.setCalibration(imp.getCalibration());
+                    imp2.show();
+                }
                 if (requestStop) {
                     return false;
                 }
-                if (darkMedian) {
-                    IJ.showStatus("Calculating median...");
-                    mdarkHeader = FitsJ.addHistory("Median master dark created from " + count + " images", mdarkHeader);
-                    log("Calculating median master dark image \"" + mdarkPath + "\".");
-                    double[] values = new double[sliceCount];
-                    double v2 = 0;
-                    for (int y = 0; y < height; y++) {
-                        if (y % inc == 0) IJ.showProgress(y, height - 1);
-                        for (int x = 0; x < width; x++) {
-                            for (int i = 0; i < sliceCount; i++) {
-                                if (!useBias) {
-                                    values[i] = slices[i].getPixelValue(x, y);
-                                } else if (useBias && useNLC) {
-                                    values[i] = (double) slices[i].getPixelValue(x, y) - (double) mbiasIp.getPixelValue(x, y);
-                                    if (values[i] > 0.0) {
-                                        v2 = values[i] * values[i];
-                                        values[i] = coeffA + values[i] * coeffB + v2 * coeffC + v2 * values[i] * coeffD;
-                                    }
-                                    if (!deBiasMasterDark) values[i] += mbiasIp.getPixelValue(x, y);
-                                } else //useBias && !useNLC
-                                {
-                                    if (deBiasMasterDark)
-                                        values[i] = (double) slices[i].getPixelValue(x, y) - (double) mbiasIp.getPixelValue(x, y);
-                                    else
-                                        values[i] = slices[i].getPixelValue(x, y);
-                                }
-                            }
-                            java.util.Arrays.sort(values);
-                            if ((sliceCount % 2) == 0)      // even
-                                mdarkIp.putPixelValue(x, y, (float) ((values[sliceCount / 2] + values[sliceCount / 2 - 1]) / 2.0));
-                            else                        //odd
-                                mdarkIp.putPixelValue(x, y, (float) values[sliceCount / 2]);
-                        }
 
-                    }
-                } else {
-                    IJ.showStatus("Calculating average...");
-                    mdarkHeader = FitsJ.addHistory("Average master dark created from " + count + " images", mdarkHeader);
-                    log("Calculating average master dark image \"" + mdarkPath + "\".");
-                    double value, pixel, p2;
-                    for (int y = 0; y < height; y++) {
-                        if (y % inc == 0) IJ.showProgress(y, height - 1);
-                        for (int x = 0; x < width; x++) {
-                            value = 0.0;
-                            for (int i = 0; i < sliceCount; i++) {
-                                if (!useBias) {
-                                    value += slices[i].getPixelValue(x, y);
-                                } else if (useBias && useNLC) {
-                                    pixel = (double) slices[i].getPixelValue(x, y) - (double) mbiasIp.getPixelValue(x, y);
-                                    if (pixel > 0.0) {
-                                        p2 = pixel * pixel;
-                                        value += coeffA + pixel * coeffB + p2 * coeffC + p2 * pixel * coeffD;
-                                    }
-                                    if (!deBiasMasterDark) value += mbiasIp.getPixelValue(x, y);
-                                } else //useBias && !useNLC
-                                {
-                                    if (deBiasMasterDark)
-                                        value += (double) slices[i].getPixelValue(x, y) - (double) mbiasIp.getPixelValue(x, y);
-                                    else
-                                        value += slices[i].getPixelValue(x, y);
-                                }
-                            }
-                            mdarkIp.putPixelValue(x, y, (float) (value / (double) sliceCount));
-                        }
-                    }
-                }
+                CalibrationCombiner.Method method = combineMethod(darkMedian);
+                IJ.showStatus("Calculating " + combineMethodName(method).toLowerCase() + "...");
+                mdarkHeader = FitsJ.addHistory(combineMethodName(method) + " master dark created from " + count + " images", mdarkHeader);
+                log("Calculating " + combineMethodName(method).toLowerCase() + " master dark image \"" + mdarkPath + "\".");
+                final int height = imp.getHeight();
+                mdarkIp = combiner.combine(method, y -> IJ.showProgress(y, height));
+                logCombineThroughput(combiner);
 
-//                mdarkImp = WindowManager.getImage(darkMaster.trim());
-//                if (mdarkImp != null) mdarkImp.close();
                 mdarkImp = new ImagePlus(darkMaster.trim(), mdarkIp);
                 mdarkHeader = FitsJ.addHistory("on " + f.format(new java.util.Date()) + " (YYYY-MM-DD hh:mm:ss UT)", mdarkHeader);
                 if (useBias && deBiasMasterDark) {
@@ -4299,8 +4253,6 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
                 }
                 for (int i = 0; i < count; i++)
                     mdarkHeader = FitsJ.addHistory("Image " + (i + 1) + " = " + darkPath + validFilenames[i], mdarkHeader);
-                //            mdarkHeader = FitsJ.removeCards("DATE", mdarkHeader);
-                //            mdarkHeader = FitsJ.setCard("DATE", f.format(new java.util.Date()), "file creation date (YYYY-MM-DD hh:mm:ss UT)", mdarkHeader);
                 FitsJ.putHeader(mdarkImp, mdarkHeader);
 
                 if (showMasters) IJU.replaceImageInWindow(mdarkImp.duplicate(), "DUP_" + darkMaster.trim());
@@ -4317,20 +4269,55 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
             IJ.outOfMemory("Dark Stack");
             log("ERROR: Out of memory");
             return false;
+        } catch (IOException | IllegalArgumentException e) {
+            error("ERROR: Unable to build master dark: " + e.getMessage());
+            return false;
+        } finally {
+            if (combiner != null) combiner.close();
         }
         return true;
     }
 
+    /**
+     * Applies the master bias, and the non-linearity correction if enabled, to a raw dark frame.
+     */
+    ImageProcessor biasCorrectDark(ImageProcessor ip, ImageProcessor mbiasIp) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        FloatProcessor corrected = new FloatProcessor(width, height);
+        float[] pixels = (float[]) corrected.getPixels();
+        double value, bias, v2;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                value = ip.getPixelValue(x, y);
+                bias = mbiasIp.getPixelValue(x, y);
+                if (useNLC) {
+                    value -= bias;
+                    if (value > 0.0) {
+                        v2 = value * value;
+                        value = coeffA + value * coeffB + v2 * coeffC + v2 * value * coeffD;
+                    } else if (!darkMedian) {
+                        value = 0.0; // the average has always skipped non-positive de-biased pixels
+                    }
+                    if (!deBiasMasterDark) value += bias;
+                } else if (deBiasMasterDark) {
+                    value -= bias;
+                }
+                pixels[y * width + x] = (float) value;
+            }
+        }
+        return corrected;
+    }
+
     boolean createMasterFlat() {
         ImageStack stack = null;
         ImagePlus imp = null, imp2 = null;
-        ImageProcessor[] slices = null;
         ImageProcessor mbiasIp = null;
         ImageProcessor mdarkIp = null;
         ImageProcessor mflatIp = null;
+        CalibrationCombiner combiner = null;
         try {
             String flat;
-//            double min = 0, max = 0;
             int count = 0;
             flatMasterPath = getPath(flatMasterDirField, false);
             mflatPath = flatMasterPath + flatMaster.trim();
@@ -4383,6 +4370,21 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
 
             if (sortNumerically) filenames = sortFileList(filenames);
 
+            if (useBias || useDark) {
+                String operations = "";
+                if (useBias) operations = "Bias";
+                if (useBias && useNLC) {
+                    if (useDark) operations += ", Nonlinearity,";
+                    else operations += " and Nonlinearity ";
+                }
+                if (useBias && useDark) operations += " and ";
+                if (useBias && !useNLC && !useDark) operations += " ";
+                if (useDark) operations += "Dark ";
+                operations += "Correction on:";
+                IJ.showStatus("" + operations);
+                log("Performing " + operations);
+            }
+
             for (int i = 0; i < files.length; i++) {
                 flat = filenames[i];
                 expTimeFactor[i] = 1;
@@ -4394,7 +4396,7 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
                     if (useBeep) IJ.beep();
                     flatFilePath = flatPath + flat;
                     log("Loading flat file \"" + flatFilePath + "\" (" + count + " of " + validFlatFiles + ")");
-                    imp = IJ.openImage(flatFilePath);
+                    imp = openImage(flatFilePath);
                     if (imp == null) {
                         error("ERROR: Unable to open image \"" + flatFilePath + "\".");
                         return false;
@@ -4415,16 +4417,32 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
                             expTimeFactor[count - 1] = fExpTime / dExpTime;
                         }
 
-                        if (stack == null) stack = imp.createEmptyStack();
-
                         ImageProcessor ip = imp.getProcessor();
                         ip = ip.convertToFloat();
-//                        if (ip.getMin()<min) min = ip.getMin();
-//                        if (ip.getMax()>max) max = ip.getMax();
-                        stack.addSlice(flat, ip);
-                        FitsJ.putHeader(stack, FitsJ.getHeader(imp), count);
+                        if (useBias || useDark) {
+                            log("    " + flat + " using dark exposure scaling factor = "
+                                    + uptoFourPlaces.format(expTimeFactor[count - 1]));
+                            calibrateFlat(ip, mbiasIp, mdarkIp, expTimeFactor[count - 1]);
+                        }
+                        if (useGradientRemoval) {
+                            log("Removing gradient from calibrated flat " + flat + ".");
+                            ip = removeGradient(ip);
+                        }
+                        ip = normalizeImage(ip, flat);
+                        if (ip == null) {
+                            error("ERROR: image mean value = 0 for " + flat + ". Divide Error. Normalize Failed.");
+                            return false;
+                        }
+
+                        if (combiner == null) combiner = new CalibrationCombiner(ip.getWidth(), ip.getHeight());
+                        combiner.addFrame(ip);
+                        if (showRawCals) {
+                            if (stack == null) stack = imp.createEmptyStack();
+                            stack.addSlice(flat, ip);
+                            FitsJ.putHeader(stack, FitsJ.getHeader(imp), count);
+                        }
 
-                        IJ.showStatus((stack.getSize() + 1) + ": " + flat);
+                        IJ.showStatus(count + ": " + flat);
 
                     }
                     validFilenames[count - 1] = filenames[i];
@@ -4434,123 +4452,25 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
                 error("ERROR: No raw flat image matching \"" + flatPath + flatBase.trim() + "\".");
                 return false;
             }
-            if (stack != null) {
-                imp2 = WindowManager.getImage("Flat Stack");
-                if (imp2 != null) imp2.close();
-                imp2 = new ImagePlus("Flat Stack", stack);
-                imp2.setCalibration(imp.getCalibration());
-//                if (imp2.getBitDepth()==16 || imp.getBitDepth()==32)
-//                    imp2.getProcessor().setMinAndMax(min, max);
-                if (showRawCals) imp2.show();
-
-
-                //            stack = imp2.getStack();
-                int sliceCount = stack.getSize();
-                slices = new ImageProcessor[sliceCount];
-                for (int i = 0; i < sliceCount; i++)
-                    slices[i] = stack.getProcessor(i + 1);
-                mflatIp = slices[0].duplicate();
-                mflatIp = mflatIp.convertToFloat();
-
-                int width = mflatIp.getWidth();
-                int height = mflatIp.getHeight();
-                int inc = Math.max(height / 30, 1);
-
-                if (useBias || useDark) {
-                    String operations = "";
-                    if (useBias) operations = "Bias";
-                    if (useBias && useNLC) {
-                        if (useDark) operations += ", Nonlinearity,";
-                        else operations += " and Nonlinearity ";
-                    }
-                    if (useBias && useDark) operations += " and ";
-                    if (useBias && !useNLC && !useDark) operations += " ";
-                    if (useDark) operations += "Dark ";
-                    operations += "Correction on:";
-                    IJ.showStatus("" + operations);
-                    log("Performing " + operations);
-                    double value, v2;
-                    for (int i = 0; i < sliceCount; i++) {
-                        log("    " + validFilenames[i] + " using dark exposure scaling factor = "
-                                + uptoFourPlaces.format(expTimeFactor[i]));
-                        IJ.showProgress(i, sliceCount - 1);
-                        for (int y = 0; y < height; y++) {
-                            for (int x = 0; x < width; x++) {
-                                value = slices[i].getPixelValue(x, y);
-                                if (useBias) value -= mbiasIp.getPixelValue(x, y);
-                                if (useBias && useNLC) {
-                                    v2 = value * value;
-                                    value = coeffA + value * coeffB + v2 * coeffC + v2 * value * coeffD;
-                                }
-                                if (useDark) value -= (double) mdarkIp.getPixelValue(x, y) * expTimeFactor[i];
-                                slices[i].putPixelValue(x, y, value);
-                            }
-
-                        }
-                    }
-                }
-                if (showRawCals) imp2.updateAndDraw();
-                if (requestStop) {
-                    return false;
-                }
-                if (useGradientRemoval) {
-                    IJ.showStatus("Removing gradients ...");
-                    for (int i = 0; i < sliceCount; i++) {
-                        log("Removing gradient from calibrated flat " + validFilenames[i] + ".");
-                        IJ.showProgress(i, sliceCount - 1);
-                        slices[i] = removeGradient(slices[i]);
-                    }
+            if (combiner != null) {
+                if (stack != null) {
+                    imp2 = WindowManager.getImage("Flat Stack");
+                    if (imp2 != null) imp2.close();
+                    imp2 = new ImagePlus("Flat Stack", stack);
+                    imp2.setCalibration(imp.getCalibration());
+                    imp2.show();
                 }
-                if (showRawCals) imp2.updateAndDraw();
                 if (requestStop) {
                     return false;
                 }
-                IJ.showStatus("Normalizing images ...");
-                for (int i = 0; i < sliceCount; i++) {
-                    IJ.showProgress(i, sliceCount - 1);
-                    slices[i] = normalizeImage(slices[i], validFilenames[i]);
-                    if (slices[i] == null) {
-                        error("ERROR: image mean value = 0 for " + validFilenames[i] + ". Divide Error. Normalize Failed.");
-                        return false;
-                    }
-                }
-                if (showRawCals) imp2.updateAndDraw();
-                if (requestStop) {
-                    return false;
-                }
-                if (flatMedian) {
-                    IJ.showStatus("Calculating median...");
-                    mflatHeader = FitsJ.addHistory("Median master flat created from " + count + " images", mflatHeader);
-                    log("Calculating median master flat image \"" + mflatPath + "\".");
-                    double[] values = new double[sliceCount];
-                    for (int y = 0; y < height; y++) {
-                        if (y % inc == 0) IJ.showProgress(y, height - 1);
-                        for (int x = 0; x < width; x++) {
-                            for (int i = 0; i < sliceCount; i++)
-                                values[i] = slices[i].getPixelValue(x, y);
-                            java.util.Arrays.sort(values);
-                            if ((sliceCount % 2) == 0)      // even
-                                mflatIp.putPixelValue(x, y, (float) ((values[sliceCount / 2] + values[sliceCount / 2 - 1]) / 2.0));
-                            else                        //odd
-                                mflatIp.putPixelValue(x, y, (float) values[sliceCount / 2]);
-                        }
 
-                    }
-                } else {
-                    IJ.showStatus("Calculating average...");
-                    mflatHeader = FitsJ.addHistory("Average master flat created from " + count + " images", mflatHeader);
-                    log("Calculating average master flat image \"" + mflatPath + "\".");
-                    double value;
-                    for (int y = 0; y < height; y++) {
-                        if (y % inc == 0) IJ.showProgress(y, height - 1);
-                        for (int x = 0; x < width; x++) {
-                            value = 0.0;
-                            for (int i = 0; i < sliceCount; i++)
-                                value += slices[i].getPixelValue(x, y);
-                            mflatIp.putPixelValue(x, y, (float) (value / (double) sliceCount));
-                        }
-                    }
-                }
+                CalibrationCombiner.Method method = combineMethod(flatMedian);
+                IJ.showStatus("Calculating " + combineMethodName(method).toLowerCase() + "...");
+                mflatHeader = FitsJ.addHistory(combineMethodName(method) + " master flat created from " + count + " images", mflatHeader);
+                log("Calculating " + combineMethodName(method).toLowerCase() + " master flat image \"" + mflatPath + "\".");
+                final int height = imp.getHeight();
+                mflatIp = combiner.combine(method, y -> IJ.showProgress(y, height));
+                logCombineThroughput(combiner);
 
                 mflatImp = WindowManager.getImage(flatMaster.trim());
                 if (mflatImp != null) mflatImp.close();
@@ -4587,8 +4507,6 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
 
                 for (int i = 0; i < count; i++)
                     mflatHeader = FitsJ.addHistory("Image " + (i + 1) + " = " + flatPath + validFilenames[i], mflatHeader);
-                //            mflatHeader = FitsJ.removeCards("DATE", mflatHeader);
-                //            mflatHeader = FitsJ.setCard("DATE", f.format(new java.util.Date()), "file creation date (YYYY-MM-DD hh:mm:ss UT)", mflatHeader);
                 FitsJ.putHeader(mflatImp, mflatHeader);
                 IJ.showProgress(1.0);
                 if (showMasters) IJU.replaceImageInWindow(mflatImp.duplicate(), "DUP_" + flatMaster.trim());
@@ -4605,10 +4523,188 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
             IJ.outOfMemory("Flat Stack");
             log("ERROR: Out of memory");
             return false;
+        } catch (IOException | IllegalArgumentException e) {
+            error("ERROR: Unable to build master flat: " + e.getMessage());
+            return false;
+        } finally {
+            if (combiner != null) combiner.close();
         }
         return true;
     }
 
+    /**
+     * Applies the master bias, non-linearity correction and scaled master dark to a raw flat, in place.
+     */
+    void calibrateFlat(ImageProcessor ip, ImageProcessor mbiasIp, ImageProcessor mdarkIp, double expTimeFactor) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        double value, v2;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                value = ip.getPixelValue(x, y);
+                if (useBias) value -= mbiasIp.getPixelValue(x, y);
+                if (useBias && useNLC) {
+                    v2 = value * value;
+                    value = coeffA + value * coeffB + v2 * coeffC + v2 * value * coeffD;
+                }
+                if (useDark) value -= (double) mdarkIp.getPixelValue(x, y) * expTimeFactor;
+                ip.putPixelValue(x, y, value);
+            }
+        }
+    }
+
+    CalibrationCombiner.Method combineMethod(boolean median) {
+        if (median) return CalibrationCombiner.Method.MEDIAN;
+        return sigmaClipCals ? CalibrationCombiner.Method.SIGMA_CLIPPED_MEAN : CalibrationCombiner.Method.MEAN;
+    }
+
+    String combineMethodName(CalibrationCombiner.Method method) {
+        return switch (method) {
+            case MEDIAN -> "Median";
+            case MEAN -> "Average";
+            case SIGMA_CLIPPED_MEAN -> "Sigma-clipped average";
+        };
+    }
+
+    void logCombineThroughput(CalibrationCombiner combiner) {
+        log("    Combined " + combiner.getFrameCount() + " images at " + twoPlaces.format(combiner.getFramesPerSecond()) +
+                " images/s (" + twoPlaces.format(combiner.getMegabytesPerSecond()) + " MB/s)");
+    }
+
+    /**
+     * Aligns a processed science image to the first one of the run and adds it to the co-add. Images in which the
+     * star pattern of the first cannot be found are left out.
+     */
+    void addToCoadd(ImagePlus imp, String fileName) {
+        synchronized (coaddLock) {
+            // saveAndClose() may have combined the co-add while this image was being processed
+            if (coaddFinishing) return;
+            if (imp == null) return;
+            if (imp.getType() == ImagePlus.COLOR_RGB) {
+                log("    Co-add skipped, RGB images are not supported");
+                return;
+            }
+            ImageProcessor ip = imp.getProcessor();
+            AsterismAligner.Transform transform = null;
+            if (coadder == null) {
+                coaddAligner = AsterismAligner.forReference(ip);
+                if (coaddAligner == null) {
+                    log("    Co-add skipped, too few stars to align to");
+                    return;
+                }
+                coadder = new ImageCoadder(ip.getWidth(), ip.getHeight(), coaddMethod, coaddFramesInMemory);
+                coadder.setSigmaClipping(coaddSigma, 5);
+                coaddHeader = FitsJ.getHeader(imp);
+                coaddDirPath = saveDirPath;
+                coaddFileName = "Coadd_" + baseName(fileName) + ".fits";
+                coaddFileNames.clear();
+            } else {
+                if (ip.getWidth() != coadder.getWidth() || ip.getHeight() != coadder.getHeight()) {
+                    log("    Co-add skipped, image size differs from the first co-added image");
+                    return;
+                }
+                transform = coaddAligner.match(ip);
+                if (transform == null) {
+                    log("    Co-add skipped, no match to the star pattern of the first co-added image");
+                    return;
+                }
+            }
+            String[] header = FitsJ.getHeader(imp);
+            double exposure = header == null ? Double.NaN : FitsJ.getExposureTime(header);
+            try {
+                coadder.addFrame(ip, transform, ImageCoadder.noiseWeight(ip), exposure);
+            } catch (IOException | IllegalArgumentException e) {
+                log("    Co-add skipped: " + e.getMessage());
+                return;
+            }
+            coaddFileNames.add(fileName);
+            if (transform == null) {
+                log("    Co-add started with this image as the reference");
+            } else {
+                log("    Co-added with shift (" + twoPlaces.format(transform.tx()) + ", " + twoPlaces.format(transform.ty()) +
+                        "), rotation " + uptoFourPlaces.format(transform.rotation()) + " deg, scale " +
+                        uptoFourPlaces.format(transform.scale()) + " (" + coadder.getFrameCount() + " images)");
+            }
+        }
+    }
+
+    /**
+     * Ends the co-add of the run and combines and saves it with its weight and exposure maps in the background,
+     * so that neither the EDT nor the processing thread waits for the spill files to be read back.
+     */
+    void finishCoadd() {
+        ImageCoadder finished;
+        CalibrationCombiner.Method method;
+        String[] header;
+        String dirPath, path;
+        ArrayList<String> fileNames;
+        String date = f.format(new java.util.Date());
+        synchronized (coaddLock) {
+            coaddFinishing = true;
+            if (coadder == null) return;
+            finished = coadder;
+            method = coaddMethod;
+            header = coaddHeader;
+            dirPath = coaddDirPath;
+            path = coaddDirPath + coaddFileName;
+            fileNames = new ArrayList<>(coaddFileNames);
+            coadder = null;
+            coaddAligner = null;
+            coaddHeader = null;
+            coaddFileNames.clear();
+        }
+        coaddExecutor.execute(() -> saveCoadd(finished, method, header, dirPath, path, fileNames, date));
+    }
+
+    void saveCoadd(ImageCoadder coadder, CalibrationCombiner.Method method, String[] header, String dirPath,
+                   String path, ArrayList<String> fileNames, String date) {
+        try {
+            int count = coadder.getFrameCount();
+            IJ.showStatus("Calculating co-add...");
+            log("Calculating " + combineMethodName(method).toLowerCase() + " co-add of " + count + " images.");
+            final int height = coadder.getHeight();
+            ImageCoadder.Result result = coadder.combine(y -> IJ.showProgress(y, height));
+            log("    Co-added " + count + " images at " + IJ.d2s(coadder.getFramesPerSecond(), 2) +
+                    " images/s (" + IJ.d2s(coadder.getMegabytesPerSecond(), 2) + " MB/s)");
+
+            if (header != null) {
+                header = FitsJ.setCard("NCOMBINE", count, "number of images co-added", header);
+                // The co-add is a mean, so EXPTIME stays that of the reference image
+                header = FitsJ.setCard("TOTEXP", coadder.getTotalExposure(), "total exposure time of co-added images (s)", header);
+                header = FitsJ.addHistory(combineMethodName(method) + " co-add of " + count + " images aligned to the first", header);
+                header = FitsJ.addHistory("on " + date + " (YYYY-MM-DD hh:mm:ss UT)", header);
+                for (int i = 0; i < fileNames.size(); i++)
+                    header = FitsJ.addHistory("Image " + (i + 1) + " = " + fileNames.get(i), header);
+            }
+            saveCoaddImage(result.image(), header, null, dirPath, path, "co-added science");
+            saveCoaddImage(result.weight(), header, "Weight map of the co-add", dirPath, updateExtension(path, "_weight.fits"), "co-add weight map");
+            saveCoaddImage(result.exposure(), header, "Exposure map of the co-add (s)", dirPath, updateExtension(path, "_exposure.fits"), "co-add exposure map");
+        } catch (IOException | IllegalStateException e) {
+            error("ERROR: Unable to build co-add: " + e.getMessage());
+        } finally {
+            coadder.close();
+        }
+    }
+
+    void saveCoaddImage(ImageProcessor ip, String[] header, String history, String dirPath, String path, String type) {
+        ImagePlus imp = new ImagePlus(new File(path).getName(), ip);
+        if (header != null) {
+            FitsJ.putHeader(imp, history == null ? header : FitsJ.addHistory(history, header.clone()));
+        }
+        saveProcessedFile(imp, dirPath, path, type, "");
+    }
+
+    /**
+     * @return the file name without its directory, compression suffix and extension.
+     */
+    static String baseName(String fileName) {
+        String name = new File(fileName).getName();
+        if (name.endsWith(".gz") || name.endsWith(".fz") || name.endsWith(".zip"))
+            name = name.substring(0, name.lastIndexOf("."));
+        int dotIndex = name.lastIndexOf(".");
+        return dotIndex > 0 ? name.substring(0, dotIndex) : name;
+    }
+
 
     boolean loadMasterBiasFile() {
         if (requestStop) return false;
@@ -4620,7 +4716,7 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
         biasMasterPath = getPath(biasMasterDirField, false);
         mbiasPath = biasMasterPath + biasMaster.trim();
         log("Loading master bias file \"" + mbiasPath + "\"");
-        mbiasImp = IJ.openImage(mbiasPath);
+        mbiasImp = openImage(mbiasPath);
         if (mbiasImp == null) {
             error("ERROR: Master bias file \"" + mbiasPath + "\" open failed.");
             return false;
@@ -4638,7 +4734,7 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
         darkMasterPath = getPath(darkMasterDirField, false);
         mdarkPath = darkMasterPath + darkMaster.trim();
         log("Loading master dark file \"" + mdarkPath + "\"");
-        mdarkImp = IJ.openImage(mdarkPath);
+        mdarkImp = openImage(mdarkPath);
         if (mdarkImp == null) {
             error("ERROR: Master dark file \"" + mdarkPath + "\" open failed.");
             return false;
@@ -4672,7 +4768,7 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
         if (!flatPath.endsWith(slash)) flatPath += slash;
         mflatPath = flatMasterPath + flatMaster.trim();
         log("Loading master flat file \"" + mflatPath + "\"");
-        mflatImp = IJ.openImage(mflatPath);
+        mflatImp = openImage(mflatPath);
         if (mflatImp == null) {
             error("ERROR: Master flat file \"" + mflatPath + "\" open failed.");
             return false;
@@ -4731,9 +4827,10 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
 
 
     boolean processData() {
-        double pixel = 0.0;
         double expTimeFactor = 1.0;
+        long calibrateStart = System.nanoTime();
         ImageProcessor scienceIp = getAdjustedIp(scienceImp, sciencePath, removePedestal, CONVERTTOFLOAT);
+        if (!(scienceIp instanceof FloatProcessor)) scienceIp = scienceIp.convertToFloat();
 
         ImageProcessor mbiasIp = null;
         if (useBias) {
@@ -5097,41 +5194,9 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
             expTimeFactor = scienceExpTime / darkExpTime;
         }
 
-        double pixel2;
-        float flatValue;
-        for (int y = 0; y < scienceHeight; y++) {
-            for (int x = 0; x < scienceWidth; x++) {
-                pixel = scienceIp.getPixelValue(x, y);
-                if (useBias) {
-                    pixel -= mbiasIp.getPixelValue(x, y);
-                    if (useNLC) {
-                        pixel2 = pixel * pixel;
-                        pixel = coeffA + pixel * coeffB + pixel2 * coeffC + pixel * pixel2 * coeffD;
-                    }
-                }
-                if (useDark) {
-                    pixel -= (double) mdarkIp.getPixelValue(x, y) * expTimeFactor;
-                }
-                if (useFlat) {
-                    flatValue = mflatIp.getPixelValue(x, y);
-                    if (flatValue == 0.0f) {
-                        pixel = 65535.0;
-                        pixel2 = pixel * pixel;
-                        if (useNLC && useBias) {
-                            pixel = coeffA + pixel * coeffB + pixel2 * coeffC + pixel * pixel2 * coeffD;
-                        }
-                    } else {
-                        pixel /= flatValue;
-                    }
-                }
-                if (!useBias && !useDark && !useFlat && useNLC)  //do NLC for previously calibrated images
-                {
-                    pixel2 = pixel * pixel;
-                    pixel = coeffA + pixel * coeffB + pixel2 * coeffC + pixel * pixel2 * coeffD;
-                }
-                scienceIp.putPixelValue(x, y, (float) pixel);
-            }
-        }
+        calibrate((float[]) scienceIp.getPixels(), useBias ? floatPixels(mbiasIp) : null,
+                useDark ? floatPixels(mdarkIp) : null, expTimeFactor, useFlat ? floatPixels(mflatIp) : null,
+                useNLC, coeffA, coeffB, coeffC, coeffD);
 
 //        if (!saveFloatingPoint)
 //            {
@@ -5191,11 +5256,71 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
 
             FitsJ.putHeader(scienceImp, scienceHeader);
         }
+        stageTimes.record(StageTimes.CALIBRATE, calibrateStart);
 
         IJ.wait(100);      //attempt to work around crash problem
         return true;
     }
 
+    /**
+     * Calibrates {@code science} in place in one pass over the pixels, split into rows across threads. Each pixel is
+     * calculated as the per-pixel steps did: bias, non-linearity, scaled dark and flat, with flat pixels of 0 replaced
+     * by the corrected saturation value.
+     *
+     * @param bias      the master bias, or {@code null} to skip
+     * @param dark      the master dark, or {@code null} to skip
+     * @param darkScale the exposure time scaling of the dark
+     * @param flat      the master flat, or {@code null} to skip
+     */
+    static void calibrate(float[] science, float[] bias, float[] dark, double darkScale, float[] flat,
+                          boolean useNLC, double a, double b, double c, double d) {
+        final boolean nlcOnly = useNLC && bias == null && dark == null && flat == null;
+        final int blockLength = 4096;
+        IntStream.range(0, (science.length + blockLength - 1) / blockLength).parallel().forEach(block -> {
+            int end = Math.min(science.length, (block + 1) * blockLength);
+            for (int i = block * blockLength; i < end; i++) {
+                double pixel = science[i];
+                double pixel2;
+                if (bias != null) {
+                    pixel -= bias[i];
+                    if (useNLC) {
+                        pixel2 = pixel * pixel;
+                        pixel = a + pixel * b + pixel2 * c + pixel * pixel2 * d;
+                    }
+                }
+                if (dark != null) {
+                    pixel -= (double) dark[i] * darkScale;
+                }
+                if (flat != null) {
+                    float flatValue = flat[i];
+                    if (flatValue == 0.0f) {
+                        pixel = 65535.0;
+                        pixel2 = pixel * pixel;
+                        if (useNLC && bias != null) {
+                            pixel = a + pixel * b + pixel2 * c + pixel * pixel2 * d;
+                        }
+                    } else {
+                        pixel /= flatValue;
+                    }
+                }
+                if (nlcOnly)  //do NLC for previously calibrated images
+                {
+                    pixel2 = pixel * pixel;
+                    pixel = a + pixel * b + pixel2 * c + pixel * pixel2 * d;
+                }
+                science[i] = (float) pixel;
+            }
+        });
+    }
+
+    /**
+     * @return the calibrated values of {@code ip}, as {@link ImageProcessor#getPixelValue(int, int)} returns them.
+     */
+    static float[] floatPixels(ImageProcessor ip) {
+        if (ip instanceof FloatProcessor) return (float[]) ip.getPixels();
+        return (float[]) ip.convertToFloat().getPixels();
+    }
+
     boolean saveProcessedFile(ImagePlus impLocal, String dirPath, String filePath, String type, String format) {
         boolean isScienceImage = "processed science".equals(type);
         if (filePath.endsWith(".zip")) {
@@ -5248,8 +5373,11 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
     void log(String message) {
         if (showLog) {
             if (showLogDateTime) {
-                cal = Calendar.getInstance();
-                IJ.log("[" + sdf.format(cal.getTime()) + "]  " + message);
+                // The co-add is saved from its own thread
+                synchronized (sdf) {
+                    cal = Calendar.getInstance();
+                    IJ.log("[" + sdf.format(cal.getTime()) + "]  " + message);
+                }
             } else {
                 IJ.log(message);
             }
@@ -5261,6 +5389,7 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
         requestStop = true;
         if (timer != null) timer.cancel();
         if (task != null) task.cancel();
+        clearReadAhead();
         if (running) {
             startButton.setText("CONTINUE");
             startButton.setForeground(Color.orange);
@@ -5277,6 +5406,12 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
         requestStop = true;
         if (timer != null) timer.cancel();
         if (task != null) task.cancel();
+        clearReadAhead();
+        finishCoadd();
+        if (!stageTimes.isEmpty()) {
+            log(stageTimes.summary());
+            stageTimes.clear();
+        }
         running = false;
         active = false;
         images.clear();
@@ -5303,19 +5438,23 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
         if (!mainDir.endsWith(slash))
             mainDir += slash;
 
+        // The watch service misses files written by other hosts to network shares, list the directories once a poll
+        synchronized (directoryWatchers) {
+            directoryWatchers.values().forEach(DirectoryWatcher::rescan);
+        }
+
+        // The directories still in use, the watchers of any others are closed once they have been counted
+        HashSet<String> watchedDirs = new HashSet<>();
         File sDir = new File(mainDir);
+        if (useScienceProcessing) watchedDirs.add(sDir.getAbsolutePath());
         if (useScienceProcessing && !onlyNew && sDir.isDirectory()) {
-            String fileName;
-            File[] files = sDir.listFiles();
-            if (files != null) {
-                if (files.length > 0) {
-                    for (int i = 0; i < files.length; i++) {
-                        fileName = files[i].getName();
-                        if (matchWildCard(filenamePattern, fileName)) {
-                            validTextFilteredFiles++;
-                            if (enableFileNumberFiltering && stringLongVal(fileName) >= minFileNumber && stringLongVal(fileName) <= maxFileNumber) {
-                                validNumFilteredFiles++;
-                            }
+            for (String fileName : directoryWatcher(sDir).fileNames()) {
+                if (matchWildCard(filenamePattern, fileName)) {
+                    validTextFilteredFiles++;
+                    if (enableFileNumberFiltering) {
+                        long fileNumber = stringLongVal(fileName);
+                        if (fileNumber >= minFileNumber && fileNumber <= maxFileNumber) {
+                            validNumFilteredFiles++;
                         }
                     }
                 }
@@ -5343,30 +5482,32 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
         }
 
 
-        validBiasFiles = createBias ? cntFiles(getPath(biasRawDirField, false), biasBase) : 0;
+        validBiasFiles = createBias ? cntFiles(getPath(biasRawDirField, false), biasBase, watchedDirs) : 0;
         validBiasFilesLabel.setText("" + validBiasFiles);
         validBiasFilesLabel.repaint();
 
-        validMasterBiasFiles = useBias ? cntFiles(getPath(biasMasterDirField, false), biasMaster) : 0;
+        validMasterBiasFiles = useBias ? cntFiles(getPath(biasMasterDirField, false), biasMaster, watchedDirs) : 0;
         validMasterBiasFilesLabel.setText("" + validMasterBiasFiles);
         validMasterBiasFilesLabel.repaint();
 
-        validDarkFiles = createDark ? cntFiles(getPath(darkRawDirField, false), darkBase) : 0;
+        validDarkFiles = createDark ? cntFiles(getPath(darkRawDirField, false), darkBase, watchedDirs) : 0;
         validDarkFilesLabel.setText("" + validDarkFiles);
         validDarkFilesLabel.repaint();
 
-        validMasterDarkFiles = useDark ? cntFiles(getPath(darkMasterDirField, false), darkMaster) : 0;
+        validMasterDarkFiles = useDark ? cntFiles(getPath(darkMasterDirField, false), darkMaster, watchedDirs) : 0;
         validMasterDarkFilesLabel.setText("" + validMasterDarkFiles);
         validMasterDarkFilesLabel.repaint();
 
-        validFlatFiles = createFlat ? cntFiles(getPath(flatRawDirField, false), flatBase) : 0;
+        validFlatFiles = createFlat ? cntFiles(getPath(flatRawDirField, false), flatBase, watchedDirs) : 0;
         validFlatFilesLabel.setText("" + validFlatFiles);
         validFlatFilesLabel.repaint();
 
-        validMasterFlatFiles = useFlat ? cntFiles(getPath(flatMasterDirField, false), flatMaster) : 0;
+        validMasterFlatFiles = useFlat ? cntFiles(getPath(flatMasterDirField, false), flatMaster, watchedDirs) : 0;
         validMasterFlatFilesLabel.setText("" + validMasterFlatFiles);
         validMasterFlatFilesLabel.repaint();
 
+        closeUnusedDirectoryWatchers(watchedDirs);
+
         if (runPreMacro) {
             File preMacroFile = new File(preMacroText.getText().trim());
             validMacro1FilesLabel.setText(preMacroFile.isFile() ? "1" : "0");
@@ -5381,19 +5522,16 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
 
     }
 
-    int cntFiles(String calPath, String calBase) {
+    int cntFiles(String calPath, String calBase, HashSet<String> watchedDirs) {
         if (calPath == null || calBase == null) return 0;
         String fileBase = calBase.trim();
         int cnt = 0;
         File calDir = new File(calPath.trim());
+        watchedDirs.add(calDir.getAbsolutePath());
         if (calDir.isDirectory()) {
-            File[] files = calDir.listFiles();
-            if (files == null) return 0;
-            if (files.length > 0) {
-                for (int i = 0; i < files.length; i++) {
-                    if (matchWildCard(fileBase, files[i].getName())) {
-                        cnt++;
-                    }
+            for (String fileName : directoryWatcher(calDir).fileNames()) {
+                if (matchWildCard(fileBase, fileName)) {
+                    cnt++;
                 }
             }
         }
@@ -5412,6 +5550,9 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
      * Starts timer which polls the target directory, looking for new images.
      */
     protected void startTimer() {
+        synchronized (coaddLock) {
+            coaddFinishing = false;
+        }
         try {
             task = new TimerTask() {
                 public void run() {
@@ -5471,16 +5612,13 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
                     {
                         countValidFiles();
                         // GET CURRENT LIST OF FILES IN DIRECTORY
-                        File[] files = scienceDir.listFiles();
-                        totalNumFilesInDir = files.length;
-                        String[] filenames = new String[files.length];
-                        for (int i = 0; i < files.length; i++) {
-                            filenames[i] = files[i].getName();
-                        }
+                        DirectoryWatcher scienceWatcher = directoryWatcher(scienceDir);
+                        String[] filenames = scienceWatcher.fileNames();
+                        totalNumFilesInDir = filenames.length;
 
                         if (sortNumerically) filenames = sortFileList(filenames);
 
-                        for (int i = 0; i < files.length; i++) {
+                        for (int i = 0; i < filenames.length; i++) {
                             s = filenames[i];
                             sOriginal = s;
 
@@ -5499,18 +5637,12 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
                                         foundImages++;
 
                                         /* IF POLLING:
-                                         * CHECK THAT FILESIZE IS CONSTANT TO VERIFY THAT FILE WRITING HAS FINISHED.
-                                         * IF FILESIZE IS NOT CONSTANT, THE TIMER IS EXITED
-                                         * AND A NEW TIMER IS SET UP TO TRY AGAIN */
-                                        if (pollingInterval > 0) {
-                                            File file = new File(mainDir + slash + s);
-
-                                            flen = file.length();
-                                            IJ.wait(fileSizeChangeWaitTime);
-                                            newflen = file.length();
-                                            if (newflen != flen) {
-                                                reloadFilenames = true;
-                                            }
+                                         * CHECK THAT THE FILE HAS NOT CHANGED FOR THE WAIT TIME TO VERIFY THAT FILE WRITING HAS FINISHED.
+                                         * IF IT HAS NOT, A RUN IS SCHEDULED FOR WHEN THE WAIT TIME HAS PASSED
+                                         * SO THE FILE IS TRIED AGAIN WITHOUT WAITING FOR THE NEXT POLL (SEE wakeTimer) */
+                                        if (pollingInterval > 0 && !scienceWatcher.isSettled(s, fileSizeChangeWaitTime)) {
+                                            reloadFilenames = true;
+                                            wakeTimer();
                                         }
                                         if (reloadFilenames) {
                                             images.remove(s);
@@ -5537,7 +5669,8 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
                                             }
                                             sciencePath = mainDir + s;
                                             log("Loading science file \"" + sciencePath + "\" (" + foundImages + " of " + (onlyNew ? foundImages : validNumFilteredFiles) + ")");
-                                            scienceImp = IJ.openImage(sciencePath);
+                                            scienceImp = openScience(sciencePath);
+                                            readAhead(filenames, i, scienceWatcher);
                                             if (Prefs.get("astrometry.DPSaveRawWithWCS", false)) {
                                                 rawScienceImp = scienceImp.duplicate();
                                             } else {
@@ -5744,6 +5877,12 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
                                                     astrometryCanceledByUser = false;
                                                 }
 
+                                                if (coaddScience) {
+                                                    long coaddStart = System.nanoTime();
+                                                    addToCoadd(showScience ? openImage : scienceImp, s);
+                                                    stageTimes.record(StageTimes.COADD, coaddStart);
+                                                }
+
                                                 if (saveProcessedData) {
                                                     ImagePlus saveImp;
 
@@ -5762,10 +5901,12 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
                                                             saveImp.setProcessor(saveImp.getProcessor().convertToShort(false));
                                                         }
                                                     }
+                                                    long saveStart = System.nanoTime();
                                                     if (!saveProcessedFile(saveImp, saveDirPath, savePath, "processed science", saveFormat)) {
                                                         pause();
                                                         lastImageName = s;
                                                     }
+                                                    stageTimes.record(StageTimes.SAVE, saveStart);
                                                 }
 
                                                 if (showScience && runMultiAperture) {
@@ -5833,7 +5974,7 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
                                 }
                             }
                             countValidFiles();
-                            if (!useScienceProcessing || requestStop) i = files.length - 1;
+                            if (!useScienceProcessing || requestStop) i = filenames.length - 1;
                         }
                         firstRun = false;
                         unlock();
@@ -6093,6 +6234,29 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
         Prefs.set("dataproc.fileSizeChangeWaitTime", fileSizeChangeWaitTime);
     }
 
+    void setCoaddOptions() {
+        GenericDialog gd = new GenericDialog("Set co-add options");
+
+        gd.addMessage("Processed science images are aligned to the first by star patterns and co-added.");
+        gd.addMessage("The co-add is saved with weight and exposure maps when processing finishes.");
+        CalibrationCombiner.Method[] methods = CalibrationCombiner.Method.values();
+        String[] methodNames = new String[methods.length];
+        for (int i = 0; i < methods.length; i++) methodNames[i] = combineMethodName(methods[i]);
+        gd.addChoice("Combine method: ", methodNames, combineMethodName(coaddMethod));
+        gd.addNumericField("Clipping threshold: ", coaddSigma, 1, 10, "(sigma)");
+        gd.addNumericField("Images held in memory: ", coaddFramesInMemory, 0, 10, "(while combining)");
+        gd.addMessage("");
+
+        gd.showDialog();
+        if (gd.wasCanceled()) return;
+        coaddMethod = methods[gd.getNextChoiceIndex()];
+        coaddSigma = gd.getNextNumber();
+        coaddFramesInMemory = Math.max(1, (int) gd.getNextNumber());
+        Prefs.set("dataproc.coaddMethod", coaddMethod.name());
+        Prefs.set("dataproc.coaddSigma", coaddSigma);
+        Prefs.set("dataproc.coaddFramesInMemory", coaddFramesInMemory);
+    }
+
     //extract the integer number within a string
     long stringLongVal(String s) {
         long svalue = 0;
@@ -6142,8 +6306,171 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
     }
 
     boolean matchWildCard(String pattern, String text) {
-        String regex = pattern.replace("?", "[\\w\\-]").replace("*", ".*").replace("-", "\\-");
-        return text.matches(regex);
+        Pattern regex;
+        synchronized (wildCardPatterns) {
+            regex = wildCardPatterns.computeIfAbsent(pattern, p ->
+                    Pattern.compile(p.replace("?", "[\\w\\-]").replace("*", ".*").replace("-", "\\-")));
+        }
+        return regex.matcher(text).matches();
+    }
+
+    /**
+     * Returns the index of the files in {@code dir}, which is kept up to date as files are written and is only
+     * listed again once a poll by {@link #countValidFiles()}. New science files wake the timer so they are processed
+     * without waiting for the next poll.
+     */
+    DirectoryWatcher directoryWatcher(File dir) {
+        synchronized (directoryWatchers) {
+            return directoryWatchers.computeIfAbsent(dir.getAbsolutePath(), $ -> {
+                DirectoryWatcher watcher = new DirectoryWatcher(dir);
+                watcher.setListener(name -> {
+                    if (scienceDir != null && dir.getAbsolutePath().equals(scienceDir.getAbsolutePath()) &&
+                            matchWildCard(filenamePattern, name)) {
+                        wakeTimer();
+                    }
+                });
+                return watcher;
+            });
+        }
+    }
+
+    /**
+     * Closes the watchers of directories that are no longer used, so changing a directory field does not leave
+     * the watching thread of the previous directory running.
+     */
+    void closeUnusedDirectoryWatchers(Set<String> watchedDirs) {
+        synchronized (directoryWatchers) {
+            directoryWatchers.entrySet().removeIf(e -> {
+                if (watchedDirs.contains(e.getKey())) return false;
+                e.getValue().close();
+                return true;
+            });
+        }
+    }
+
+    /**
+     * Returns the science image at {@code path}, opened in the background by {@link #readAhead} if it was queued.
+     */
+    ImagePlus openScience(String path) {
+        long start = System.nanoTime();
+        Future<ImagePlus> future;
+        synchronized (readAheadImages) {
+            future = readAheadImages.remove(path);
+        }
+        ImagePlus imp = null;
+        if (future != null) {
+            try {
+                imp = future.get();
+            } catch (InterruptedException | ExecutionException e) {
+                imp = null;
+            }
+        }
+        if (imp == null) imp = openImage(path);
+        stageTimes.record(StageTimes.READ, start);
+        return imp;
+    }
+
+    /**
+     * Opens an image on the processing or the read ahead thread. {@link IJ#openImage(String)} sets and clears
+     * the process-wide flag behind {@link IJ#isMacro()}, which decides whether the openers show dialogs, so the two
+     * threads take turns opening and only overlap reading with the rest of processing.
+     */
+    ImagePlus openImage(String path) {
+        synchronized (openLock) {
+            return IJ.openImage(path);
+        }
+    }
+
+    /**
+     * Starts opening the next science files after {@code filenames[current]} that will be processed, so that reading
+     * them overlaps with calibrating, measuring and saving the current one.
+     */
+    void readAhead(String[] filenames, int current, DirectoryWatcher watcher) {
+        if (onlyNew && firstRun) return;
+        java.util.List<String> next = new ArrayList<>(READ_AHEAD);
+        for (int j = current + 1; j < filenames.length && next.size() < READ_AHEAD; j++) {
+            String name = filenames[j];
+            if (images.containsKey(name) || !matchWildCard(filenamePattern, name)) continue;
+            if (enableFileNumberFiltering) {
+                long fileNumber = stringLongVal(name);
+                if (fileNumber < minFileNumber || fileNumber > maxFileNumber) continue;
+            }
+            // Files still being written are left for the run scheduled once they settle
+            if (pollingInterval > 0 && !watcher.isSettled(name, fileSizeChangeWaitTime)) break;
+            next.add(mainDir + name);
+        }
+        synchronized (readAheadImages) {
+            readAheadImages.entrySet().removeIf(e -> {
+                if (next.contains(e.getKey())) return false;
+                e.getValue().cancel(false);
+                return true;
+            });
+            for (String path : next) {
+                if (!readAheadImages.containsKey(path)) {
+                    readAheadImages.put(path, readAheadExecutor.submit(() -> openImage(path)));
+                }
+            }
+        }
+    }
+
+    void clearReadAhead() {
+        synchronized (readAheadImages) {
+            readAheadImages.values().forEach(f -> f.cancel(false));
+            readAheadImages.clear();
+        }
+    }
+
+    /**
+     * Time spent on each step of processing science images, to show which one limits the rate of processing.
+     */
+    static class StageTimes {
+        static final int READ = 0, CALIBRATE = 1, SAVE = 2, COADD = 3;
+        private static final String[] NAMES = {"read", "calibrate", "save", "co-add"};
+        private final long[] nanos = new long[NAMES.length];
+        private final int[] counts = new int[NAMES.length];
+
+        synchronized void record(int stage, long startNanos) {
+            nanos[stage] += System.nanoTime() - startNanos;
+            counts[stage]++;
+        }
+
+        synchronized String summary() {
+            StringBuilder sb = new StringBuilder("Science image time per frame:");
+            for (int i = 0; i < NAMES.length; i++) {
+                if (counts[i] == 0) continue;
+                sb.append(" ").append(NAMES[i]).append(" = ")
+                        .append(new DecimalFormat("0.0").format(nanos[i] / 1e6 / counts[i])).append(" ms");
+            }
+            return sb.toString();
+        }
+
+        synchronized boolean isEmpty() {
+            return Arrays.stream(counts).allMatch(c -> c == 0);
+        }
+
+        synchronized void clear() {
+            Arrays.fill(nanos, 0);
+            Arrays.fill(counts, 0);
+        }
+    }
+
+    /**
+     * Runs the polling task once the file size wait time has passed, instead of at the next polling interval.
+     */
+    void wakeTimer() {
+        if (!running || pollingInterval <= 0 || timer == null || wakeScheduled.getAndSet(true)) return;
+        final Timer t = timer;
+        try {
+            t.schedule(new TimerTask() {
+                public void run() {
+                    wakeScheduled.set(false);
+                    // Runs on the timer's thread, so never at the same time as a scheduled poll
+                    if (running && task != null && timer == t) task.run();
+                }
+            }, fileSizeChangeWaitTime + 50L);
+        } catch (IllegalStateException e) {
+            wakeScheduled.set(false); // The timer was cancelled
+        }
     }
 
     void getPrefs() {
@@ -6162,6 +6489,15 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
         useBeep = Prefs.get("dataproc.useBeep", useBeep);
         showMasters = Prefs.get("dataproc.showMasters", showMasters);
         showRawCals = Prefs.get("dataproc.showRawCals", showRawCals);
+        sigmaClipCals = Prefs.get("dataproc.sigmaClipCals", sigmaClipCals);
+        coaddScience = Prefs.get("dataproc.coaddScience", coaddScience);
+        try {
+            coaddMethod = CalibrationCombiner.Method.valueOf(Prefs.get("dataproc.coaddMethod", coaddMethod.name()));
+        } catch (IllegalArgumentException e) {
+            coaddMethod = CalibrationCombiner.Method.SIGMA_CLIPPED_MEAN;
+        }
+        coaddSigma = Prefs.get("dataproc.coaddSigma", coaddSigma);
+        coaddFramesInMemory = (int) Prefs.get("dataproc.coaddFramesInMemory", coaddFramesInMemory);
         showScience = Prefs.get("dataproc.showScience", showScience);
         autoRunAndClose = Prefs.get("dataproc.autoRunAndClose", autoRunAndClose);
         enableFileNumberFiltering = Prefs.get("dataproc.enableFileNumberFiltering", enableFileNumberFiltering);
@@ -6296,6 +6632,11 @@ public class Data_Processor implements PlugIn, ActionListener, ChangeListener, /
         Prefs.set("dataproc.useBeep", useBeep);
         Prefs.set("dataproc.showMasters", showMasters);
         Prefs.set("dataproc.showRawCals", showRawCals);
+        Prefs.set("dataproc.sigmaClipCals", sigmaClipCals);
+        Prefs.set("dataproc.coaddScience", coaddScience);
+        Prefs.set("dataproc.coaddMethod", coaddMethod.name());
+        Prefs.set("dataproc.coaddSigma", coaddSigma);
+        Prefs.set("dataproc.coaddFramesInMemory", coaddFramesInMemory);
         Prefs.set("dataproc.showScience", showScience);
         Prefs.set("dataproc.autoRunAndClose", autoRunAndClose);
         Prefs.set("dataproc.useGradientRemoval", useGradientRemoval);
@@ -75,7 +75,7 @@ public class Find_Focused_Slices_ implements PlugInFilter, Measurements {
             cnt++;
             IJ.showProgress(cnt, size);
             IJ.showStatus(" " + slice + "/" + size);
-            varA[slice - 1] = calVar(imp.getStack().getProcessor(slice));
+            varA[slice - 1] = calVar(imp.getStack().getReadOnlyProcessor(slice));
             if (verbose) {
                 IJ.log("Slice: " + slice + "\t\t Variance: " + varA[slice - 1]);
             }
@@ -98,7 +98,7 @@ public class Find_Focused_Slices_ implements PlugInFilter, Measurements {
 		boolean con = true;             
         for (int slice = fS; slice <= size; slice++) {
             if (varA[slice - 1] / vMax >= percent / 100 && varA[slice - 1] > vThr && con == true) {
-                ImageProcessor ipp = imp.getStack().getProcessor(slice);
+                ImageProcessor ipp = imp.getStack().getReadOnlyProcessor(slice);
                 ImageProcessor ipp2 = ipp.duplicate();
                 String label = stack.getShortSliceLabel(slice);
                 if (label == null) label = "OriginalSlice_"+slice;
@@ -115,7 +115,7 @@ public class Find_Focused_Slices_ implements PlugInFilter, Measurements {
         con = true;
         for (int slice = fS-1; slice >0; slice--) {
             if (varA[slice - 1] / vMax >= percent / 100 && varA[slice - 1] > vThr && con == true) {
-                ImageProcessor ipp = imp.getStack().getProcessor(slice);
+                ImageProcessor ipp = imp.getStack().getReadOnlyProcessor(slice);
                 ImageProcessor ipp2 = ipp.duplicate();
                 String label = stack.getShortSliceLabel(slice);
                 if (label == null) label = "OriginalSlice_"+slice;
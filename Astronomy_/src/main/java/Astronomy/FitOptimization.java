@@ -2,6 +2,7 @@ package Astronomy;
 
 import Astronomy.multiplot.optimization.BicFitting;
 import Astronomy.multiplot.optimization.CompStarFitting;
+import Astronomy.multiplot.optimization.CompStarSearch;
 import Astronomy.multiplot.optimization.Optimizer;
 import astroj.MeasurementTable;
 import astroj.SpringUtil;
@@ -24,6 +25,7 @@ import java.math.RoundingMode;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.BiFunction;
+import java.util.function.ToDoubleFunction;
 import java.util.regex.Pattern;
 
 import static Astronomy.MultiPlot_.*;
@@ -226,8 +228,12 @@ public class FitOptimization implements AutoCloseable {
         compOptimizationSelection.setEditable(false);
         compOptimizationSelection.setRenderer(new ToolTipRenderer());
         var compBruteForce = new ToolTipWrapper("Exhaustive Optimize", "Exhaustive search of comparison star combinations for minimize RMS of the fit. Only comparison stars selected at the start of this run are searched.");
+        var compStepwise = new ToolTipWrapper("Stepwise Optimize", "Greedy search for minimum RMS of the fit. Starting from the selected comparison stars, repeatedly adds or removes the single star that most improves the RMS. Use for large numbers of comparison stars.");
+        var compBeam = new ToolTipWrapper("Beam Optimize", "Beam search for minimum RMS of the fit. Builds up sets of comparison stars one star at a time, keeping the " + CompStarSearch.DEFAULT_BEAM_WIDTH + " best sets of each size. Use for large numbers of comparison stars.");
         var compTest = new ToolTipWrapper("Debug", "Debug a single run.");
         compOptimizationSelection.addItem(compBruteForce);
+        compOptimizationSelection.addItem(compStepwise);
+        compOptimizationSelection.addItem(compBeam);
         if (IJ.isAijDev()) compOptimizationSelection.addItem(compTest);
 
         compOptiCards = new JPanel(new CardLayout());
@@ -244,7 +250,11 @@ public class FitOptimization implements AutoCloseable {
                 testCompMin();
                 MultiPlot_.updatePlot(curve);
             } else if (Objects.equals(compOptimizationSelection.getSelectedItem(), compBruteForce)) {
-                Executors.newSingleThreadExecutor().submit(this::minimizeCompStars);
+                Executors.newSingleThreadExecutor().submit(() -> minimizeCompStars(null));
+            } else if (Objects.equals(compOptimizationSelection.getSelectedItem(), compStepwise)) {
+                Executors.newSingleThreadExecutor().submit(() -> minimizeCompStars(CompStarSearch.Mode.STEPWISE));
+            } else if (Objects.equals(compOptimizationSelection.getSelectedItem(), compBeam)) {
+                Executors.newSingleThreadExecutor().submit(() -> minimizeCompStars(CompStarSearch.Mode.BEAM));
             }
         });
 
@@ -522,7 +532,10 @@ public class FitOptimization implements AutoCloseable {
         finishOptimization(compOptiCards);
     }
 
-    private void minimizeCompStars() {
+    /**
+     * @param searchMode the heuristic search to use, or null for an exhaustive search.
+     */
+    private void minimizeCompStars(CompStarSearch.Mode searchMode) {
         selectable = null;
         selectable2PrimaryIndex = null;
         CurveFitter.invalidateInstance();
@@ -545,11 +558,21 @@ public class FitOptimization implements AutoCloseable {
 
         BigInteger initState = createBinaryRepresentation(selectable); //numAps has number of apertures
 
-        compCounter.setBasis(initState.subtract(BigInteger.ONE)); // Subtract 1 as 0-state is skipped
-        scheduleIpsCounter(0);
+        OutPair finalState;
+        if (searchMode == null) {
+            compCounter.setBasis(initState.subtract(BigInteger.ONE)); // Subtract 1 as 0-state is skipped
+            scheduleIpsCounter(0);
 
-        var finalState = divideTasksAndRun(new MinimumState(initState, Double.MAX_VALUE),
-                (start, end) -> new CompStarFitting(start, end, this));
+            finalState = divideTasksAndRun(new MinimumState(initState, Double.MAX_VALUE),
+                    (start, end) -> new CompStarFitting(start, end, this));
+        } else {
+            compCounter.setBasis(searchMode.estimateEvaluations(initState.bitLength(), CompStarSearch.DEFAULT_BEAM_WIDTH));
+            scheduleIpsCounter(0);
+
+            // The search scores its candidates on the pool itself
+            finalState = divideTasksAndRun(new MinimumState(initState, Double.MAX_VALUE),
+                    (start, end) -> new CompStarSearch(searchMode, end, this), false);
+        }
 
         setFinalState("RMS", finalState.stateArray, MultiPlot_.refStarCB);
         compCounter.setBasis(BigInteger.ZERO);
@@ -732,6 +755,44 @@ public class FitOptimization implements AutoCloseable {
         completionService.submit(optimizer);
     }
 
+    /**
+     * Applies the function to each state on the optimizer pool, split into at most one task per thread.
+     * Tasks the pool has no free thread for are run on the calling thread.
+     *
+     * @return the results, in the order of {@code states}, or null if the pool has been shut down.
+     */
+    public double[] evaluateStates(java.util.List<BigInteger> states, ToDoubleFunction<BigInteger> function)
+            throws InterruptedException {
+        var out = new double[states.size()];
+        var chunkSize = Math.max(1, (states.size() + MAX_THREADS - 1) / MAX_THREADS);
+        var futures = new ArrayList<Future<?>>(MAX_THREADS);
+        for (int start = 0; start < states.size(); start += chunkSize) {
+            final var from = start;
+            final var to = Math.min(states.size(), start + chunkSize);
+            Runnable task = () -> {
+                for (int i = from; i < to; i++) {
+                    out[i] = function.applyAsDouble(states.get(i));
+                }
+            };
+            try {
+                futures.add(pool.submit(task));
+            } catch (RejectedExecutionException e) {
+                if (pool.isShutdown()) return null;
+                task.run();
+            }
+        }
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Failed to evaluate state", e.getCause());
+            }
+        }
+
+        return pool.isShutdown() ? null : out;
+    }
+
     private void setupThreadedSpace() {
         if (completionService != null) {
             completionService = null;
@@ -0,0 +1,432 @@
+package Astronomy;
+
+import astroj.AsterismAligner;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * Co-adds science frames onto the pixel grid of a reference frame, keeping a weight and an exposure map.
+ * <p>
+ * Each frame passed to {@link #addFrame(ImageProcessor, AsterismAligner.Transform, double, double)} is resampled
+ * onto the reference in parallel row strips. Pixels that fall outside of a frame, or are NaN in it, do not
+ * contribute. A {@link CalibrationCombiner.Method#MEAN} co-add is accumulated as the frames arrive and keeps only
+ * running sums. The other methods need every value of a pixel at once, so frames are spilled to temporary raw float
+ * files as in {@link CalibrationCombiner} and {@link #combine(IntConsumer)} reads them back one strip of rows at a
+ * time, never holding more than the configured number of frames' worth of pixels, and then deletes them.
+ */
+public class ImageCoadder implements Closeable {
+    public static final int DEFAULT_FRAMES_IN_MEMORY = 8;
+    private final int width;
+    private final int height;
+    private final CalibrationCombiner.Method method;
+    private final int maxFramesInMemory;
+    private final List<Path> frames = new ArrayList<>();
+    private final List<Double> weights = new ArrayList<>();
+    private final List<Double> exposures = new ArrayList<>();
+    private double[] sum;
+    private double[] weightSum;
+    private float[] exposureSum;
+    private Path spillDirectory;
+    private ByteBuffer rowBuffer;
+    private double sigma = 3.0;
+    private int maxClipIterations = 5;
+    private long bytesRead;
+    private long nanosSpent;
+
+    public ImageCoadder(int width, int height, CalibrationCombiner.Method method) {
+        this(width, height, method, DEFAULT_FRAMES_IN_MEMORY);
+    }
+
+    /**
+     * @param maxFramesInMemory the maximum number of frames' worth of pixels held at once while combining.
+     */
+    public ImageCoadder(int width, int height, CalibrationCombiner.Method method, int maxFramesInMemory) {
+        this.width = width;
+        this.height = height;
+        this.method = method;
+        this.maxFramesInMemory = Math.max(1, maxFramesInMemory);
+    }
+
+    /**
+     * Sets the rejection threshold, in standard deviations, and iteration limit used by
+     * {@link CalibrationCombiner.Method#SIGMA_CLIPPED_MEAN}.
+     */
+    public void setSigmaClipping(double sigma, int maxIterations) {
+        this.sigma = sigma;
+        this.maxClipIterations = maxIterations;
+    }
+
+    /**
+     * Resamples a frame onto the reference and accumulates or spills it. Non-float processors are converted with
+     * their calibration table applied.
+     *
+     * @param transform from reference pixel coordinates to those of {@code ip}, null if already aligned.
+     * @param weight    the weight of the frame in the mean, see {@link #noiseWeight(ImageProcessor)}.
+     * @param exposure  the exposure time of the frame, in seconds.
+     */
+    public void addFrame(ImageProcessor ip, AsterismAligner.Transform transform, double weight, double exposure)
+            throws IOException {
+        if (ip.getWidth() != width || ip.getHeight() != height) {
+            throw new IllegalArgumentException("Frame size " + ip.getWidth() + "x" + ip.getHeight() +
+                    " does not match " + width + "x" + height);
+        }
+        if (!(weight > 0) || Double.isInfinite(weight)) {
+            throw new IllegalArgumentException("Frame weight " + weight + " is not positive");
+        }
+        var start = System.nanoTime();
+        var fp = ip instanceof FloatProcessor ? ip : ip.convertToFloat();
+        if (transform != null && !isIdentity(transform)) {
+            fp = AsterismAligner.warp(fp, transform, true);
+            markUncovered((float[]) fp.getPixels(), transform);
+        }
+        var pixels = (float[]) fp.getPixels();
+        var exposureTime = Double.isNaN(exposure) ? 0 : exposure;
+
+        if (method == CalibrationCombiner.Method.MEAN) {
+            accumulate(pixels, weight, exposureTime);
+        } else {
+            spill(pixels);
+        }
+        weights.add(weight);
+        exposures.add(exposureTime);
+        nanosSpent += System.nanoTime() - start;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFrameCount() {
+        return weights.size();
+    }
+
+    /**
+     * @return the summed exposure time of all added frames.
+     */
+    public double getTotalExposure() {
+        var total = 0.0;
+        for (double exposure : exposures) {
+            total += exposure;
+        }
+        return total;
+    }
+
+    /**
+     * Combines all added frames pixel by pixel, then deletes their spill files. Pixels no frame covers are NaN in
+     * the image and 0 in the maps.
+     *
+     * @param progress receives the number of rows completed after each strip, may be null.
+     */
+    public Result combine(IntConsumer progress) throws IOException {
+        if (weights.isEmpty()) {
+            throw new IllegalStateException("No frames to combine");
+        }
+        var start = System.nanoTime();
+        var image = new FloatProcessor(width, height);
+        var weightMap = new FloatProcessor(width, height);
+        var exposureMap = new FloatProcessor(width, height);
+        var out = (float[]) image.getPixels();
+        var outWeight = (float[]) weightMap.getPixels();
+        var outExposure = (float[]) exposureMap.getPixels();
+
+        if (method == CalibrationCombiner.Method.MEAN) {
+            for (int i = 0; i < out.length; i++) {
+                out[i] = weightSum[i] > 0 ? (float) (sum[i] / weightSum[i]) : Float.NaN;
+                outWeight[i] = (float) weightSum[i];
+                outExposure[i] = exposureSum[i];
+            }
+            if (progress != null) {
+                progress.accept(height);
+            }
+            nanosSpent += System.nanoTime() - start;
+            return new Result(image, weightMap, exposureMap);
+        }
+
+        if (frames.size() != weights.size()) {
+            throw new IllegalStateException("The spilled frames have already been combined");
+        }
+        var n = frames.size();
+        var frameWeights = weights.stream().mapToDouble(Double::doubleValue).toArray();
+        var frameExposures = exposures.stream().mapToDouble(Double::doubleValue).toArray();
+        var rowBytes = (long) width * Float.BYTES;
+        var stripRows = (int) Math.max(1, Math.min(Math.min(height, Integer.MAX_VALUE / rowBytes),
+                (long) maxFramesInMemory * height / n));
+
+        var channels = new FileChannel[n];
+        try {
+            var buffers = new ByteBuffer[n];
+            for (int i = 0; i < n; i++) {
+                channels[i] = FileChannel.open(frames.get(i), StandardOpenOption.READ);
+                buffers[i] = ByteBuffer.allocateDirect((int) (stripRows * rowBytes)).order(ByteOrder.nativeOrder());
+            }
+            var strip = new FloatBuffer[n];
+            for (int y0 = 0; y0 < height; y0 += stripRows) {
+                var rows = Math.min(stripRows, height - y0);
+                for (int i = 0; i < n; i++) {
+                    var buffer = buffers[i].clear().limit((int) (rows * rowBytes));
+                    CalibrationCombiner.readFully(channels[i], buffer, y0 * rowBytes);
+                    strip[i] = buffer.flip().asFloatBuffer();
+                }
+                var offset = y0 * width;
+                IntStream.range(0, rows).parallel().forEach(r -> {
+                    var values = new float[n];
+                    var scratch = new float[n];
+                    var valueWeights = new double[n];
+                    var valueExposures = new double[n];
+                    var base = r * width;
+                    for (int x = 0; x < width; x++) {
+                        var count = 0;
+                        for (int i = 0; i < n; i++) {
+                            var v = strip[i].get(base + x);
+                            if (!Float.isNaN(v)) {
+                                values[count] = v;
+                                valueWeights[count] = frameWeights[i];
+                                valueExposures[count] = frameExposures[i];
+                                count++;
+                            }
+                        }
+                        var p = offset + base + x;
+                        if (count == 0) {
+                            out[p] = Float.NaN;
+                            continue;
+                        }
+                        if (method == CalibrationCombiner.Method.MEDIAN) {
+                            out[p] = median(values, count);
+                            var w = 0.0;
+                            var e = 0.0;
+                            for (int i = 0; i < count; i++) {
+                                w += valueWeights[i];
+                                e += valueExposures[i];
+                            }
+                            outWeight[p] = (float) w;
+                            outExposure[p] = (float) e;
+                        } else {
+                            clippedMean(values, valueWeights, valueExposures, count, scratch, out, outWeight, outExposure, p);
+                        }
+                    }
+                });
+                bytesRead += rows * rowBytes * n;
+                if (progress != null) {
+                    progress.accept(y0 + rows);
+                }
+            }
+        } finally {
+            for (FileChannel channel : channels) {
+                if (channel != null) channel.close();
+            }
+            deleteSpillFiles();
+        }
+        nanosSpent += System.nanoTime() - start;
+        return new Result(image, weightMap, exposureMap);
+    }
+
+    /**
+     * @return the inverse variance of the sky in {@code ip}, estimated from the median absolute deviation of a
+     * sample of its pixels, or 1 if the sky is flat.
+     */
+    public static double noiseWeight(ImageProcessor ip) {
+        var count = ip.getPixelCount();
+        var step = Math.max(1, count / 100_000);
+        var sample = new float[(count + step - 1) / step];
+        var n = 0;
+        for (int i = 0; i < count; i += step) {
+            var v = ip.getf(i);
+            if (!Float.isNaN(v)) sample[n++] = v;
+        }
+        if (n < 2) return 1;
+        var median = median(sample, n);
+        for (int i = 0; i < n; i++) {
+            sample[i] = Math.abs(sample[i] - median);
+        }
+        var stdev = 1.4826 * median(sample, n);
+        return stdev > 0 && Double.isFinite(stdev) ? 1 / (stdev * stdev) : 1;
+    }
+
+    private void accumulate(float[] pixels, double weight, double exposure) {
+        if (sum == null) {
+            sum = new double[width * height];
+            weightSum = new double[width * height];
+            exposureSum = new float[width * height];
+        }
+        var strips = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 4, height / 16));
+        IntStream.range(0, strips).parallel().forEach(strip -> {
+            var start = (int) ((long) height * strip / strips) * width;
+            var end = (int) ((long) height * (strip + 1) / strips) * width;
+            for (int i = start; i < end; i++) {
+                var v = pixels[i];
+                if (!Float.isNaN(v)) {
+                    sum[i] += weight * v;
+                    weightSum[i] += weight;
+                    exposureSum[i] += (float) exposure;
+                }
+            }
+        });
+    }
+
+    private void spill(float[] pixels) throws IOException {
+        if (spillDirectory == null) {
+            spillDirectory = Files.createTempDirectory("aij-coadd");
+        }
+        if (rowBuffer == null) {
+            rowBuffer = ByteBuffer.allocateDirect(width * Float.BYTES).order(ByteOrder.nativeOrder());
+        }
+        var frame = spillDirectory.resolve("frame" + frames.size() + ".raw");
+        try (var channel = FileChannel.open(frame, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            var floats = rowBuffer.clear().asFloatBuffer();
+            for (int y = 0; y < height; y++) {
+                floats.clear();
+                floats.put(pixels, y * width, width);
+                rowBuffer.clear();
+                while (rowBuffer.hasRemaining()) {
+                    channel.write(rowBuffer);
+                }
+            }
+        }
+        frames.add(frame);
+    }
+
+    /**
+     * Sets the pixels whose source position falls outside of the frame to NaN, using the same bounds as
+     * {@link AsterismAligner#warp(ImageProcessor, AsterismAligner.Transform, boolean)}.
+     */
+    private void markUncovered(float[] pixels, AsterismAligner.Transform t) {
+        var strips = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 4, height / 16));
+        IntStream.range(0, strips).parallel().forEach(strip -> {
+            var start = (int) ((long) height * strip / strips);
+            var end = (int) ((long) height * (strip + 1) / strips);
+            for (int j = start; j < end; j++) {
+                var x = t.tx() - t.b() * j;
+                var y = t.a() * j + t.ty();
+                var offset = j * width;
+                for (int i = 0; i < width; i++, x += t.a(), y += t.b()) {
+                    if (!(x >= 0 && x < width && y >= 0 && y < height)) {
+                        pixels[offset + i] = Float.NaN;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Rejects values further than the threshold from the median, in standard deviations estimated from the median
+     * absolute deviation, until none are rejected. Unlike the mean and standard deviation, these are not pulled
+     * toward an outlier, so a single cosmic ray or satellite trail is rejected even among a few frames.
+     */
+    private void clippedMean(float[] values, double[] valueWeights, double[] valueExposures, int count, float[] scratch,
+                             float[] out, float[] outWeight, float[] outExposure, int p) {
+        var lower = Double.NEGATIVE_INFINITY;
+        var upper = Double.POSITIVE_INFINITY;
+        var kept = count;
+        for (int iteration = 0; iteration < maxClipIterations; iteration++) {
+            var used = 0;
+            for (int i = 0; i < count; i++) {
+                if (values[i] >= lower && values[i] <= upper) scratch[used++] = values[i];
+            }
+            if (used == 0) {
+                // A small threshold rejected every value, fall back to the unclipped mean
+                lower = Double.NEGATIVE_INFINITY;
+                upper = Double.POSITIVE_INFINITY;
+                break;
+            }
+            if (iteration > 0 && used == kept) break;
+            kept = used;
+            var median = median(scratch, used);
+            for (int i = 0; i < used; i++) {
+                scratch[i] = Math.abs(scratch[i] - median);
+            }
+            var stdev = 1.4826 * median(scratch, used);
+            // More than half the values are equal, nothing to measure the spread by
+            if (stdev == 0) break;
+            lower = median - sigma * stdev;
+            upper = median + sigma * stdev;
+        }
+
+        var w = 0.0;
+        var wv = 0.0;
+        var e = 0.0;
+        for (int i = 0; i < count; i++) {
+            var v = values[i];
+            if (v >= lower && v <= upper) {
+                w += valueWeights[i];
+                wv += valueWeights[i] * v;
+                e += valueExposures[i];
+            }
+        }
+        out[p] = w > 0 ? (float) (wv / w) : Float.NaN;
+        outWeight[p] = (float) w;
+        outExposure[p] = (float) e;
+    }
+
+    private static float median(float[] values, int n) {
+        Arrays.sort(values, 0, n);
+        if ((n % 2) == 0) {
+            return (float) ((values[n / 2] + values[n / 2 - 1]) / 2.0);
+        } else {
+            return values[n / 2];
+        }
+    }
+
+    private static boolean isIdentity(AsterismAligner.Transform t) {
+        return t.a() == 1 && t.b() == 0 && t.tx() == 0 && t.ty() == 0;
+    }
+
+    public double getFramesPerSecond() {
+        return nanosSpent == 0 ? 0 : getFrameCount() / (nanosSpent / 1e9);
+    }
+
+    /**
+     * @return the co-add throughput, counting every pixel added and every byte read back from the spill files.
+     */
+    public double getMegabytesPerSecond() {
+        var bytesAdded = (long) getFrameCount() * width * height * Float.BYTES;
+        return nanosSpent == 0 ? 0 : (bytesAdded + bytesRead) / (1024.0 * 1024.0) / (nanosSpent / 1e9);
+    }
+
+    /**
+     * Deletes the spill files and releases the running sums.
+     */
+    @Override
+    public void close() {
+        deleteSpillFiles();
+        sum = null;
+        weightSum = null;
+        exposureSum = null;
+    }
+
+    private void deleteSpillFiles() {
+        for (Path frame : frames) {
+            CalibrationCombiner.delete(frame);
+        }
+        frames.clear();
+        if (spillDirectory != null) {
+            CalibrationCombiner.delete(spillDirectory);
+            spillDirectory = null;
+        }
+    }
+
+    /**
+     * @param image    the co-added image on the reference grid.
+     * @param weight   the summed weight of the frames contributing to each pixel.
+     * @param exposure the summed exposure time of the frames contributing to each pixel.
+     */
+    public record Result(FloatProcessor image, FloatProcessor weight, FloatProcessor exposure) {}
+}
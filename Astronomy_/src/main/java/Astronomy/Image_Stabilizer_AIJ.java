@@ -147,7 +147,7 @@ public class Image_Stabilizer_AIJ implements PlugInFilter {
             return;
 
         int current = imp.getCurrentSlice();
-        ImageProcessor ipRef = stack.getProcessor(current).duplicate();
+        ImageProcessor ipRef = stack.getReadOnlyProcessor(current).duplicate();
 
         if (outputNewStack)
             stackOut = new ImageStack(ip.getWidth(), ip.getHeight());
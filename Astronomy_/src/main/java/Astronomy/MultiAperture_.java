@@ -23,7 +23,6 @@ import java.text.DecimalFormat;
 import java.text.NumberFormat;
 import java.util.List;
 import java.util.*;
-import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.Executors;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
@@ -119,6 +118,7 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, MouseMot
     protected static String PREFS_SHOWRATIO_ERROR = "multiaperture.showratioerror";
     protected static String PREFS_SHOWRATIO_SNR = "multiaperture.showratiosnr";
     protected static String PREFS_NAPERTURESMAX = "multiaperture.naperturesmax";
+    protected static String PREFS_DISPLAYREFRESHINTERVAL = "multiaperture.displayRefreshInterval";
     protected static String PREFS_XAPERTURES = "multiaperture.xapertures";
     protected static String PREFS_YAPERTURES = "multiaperture.yapertures";
     protected static String PREFS_RAAPERTURES = "multiaperture.raapertures";
@@ -150,6 +150,11 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, MouseMot
     protected int ngot = 0;
     //	protected int aperture=0;
     protected int nAperturesMax = 1000;
+    /**
+     * Minimum time in milliseconds between display refreshes while processing a stack.
+     * Slices processed in between are measured without repainting the image window.
+     */
+    protected int displayRefreshInterval = 250;
     protected int nApertures = 2;
     protected int nAperturesStored = 0;
     protected int startDragScreenX;
@@ -231,6 +236,7 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, MouseMot
     boolean doStack = false;
     boolean mouseDrag = false;
     boolean processingStack = false;
+    boolean refreshDisplay = true;
     boolean apertureClicked = false;
     boolean apertureChanged = false;
     boolean firstClick = true;
@@ -604,6 +610,7 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, MouseMot
             radiusSetting = ApRadius.AUTO_FIXED;
         }
         nAperturesMax = (int) Prefs.get(MultiAperture_.PREFS_NAPERTURESMAX, nAperturesMax);
+        displayRefreshInterval = (int) Prefs.get(MultiAperture_.PREFS_DISPLAYREFRESHINTERVAL, displayRefreshInterval);
         enableDoubleClicks = Prefs.get(MultiAperture_.PREFS_ENABLEDOUBLECLICKS, enableDoubleClicks);
         showHelp = Prefs.get(MultiAperture_.PREFS_SHOWHELP, showHelp);
         alwaysstartatfirstSlice = Prefs.get(MultiAperture_.PREFS_ALWAYSFIRSTSLICE, alwaysstartatfirstSlice);
@@ -970,6 +977,7 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, MouseMot
         processingStack = false;
         processingImage = false;
         Prefs.set(MultiAperture_.PREFS_NAPERTURESMAX, nAperturesMax);
+        Prefs.set(MultiAperture_.PREFS_DISPLAYREFRESHINTERVAL, displayRefreshInterval);
         Prefs.set(MultiAperture_.PREFS_PREVIOUS, previous);
         Prefs.set("plot2.openSimbadForAbsMag", openSimbadForAbsMag);
         Prefs.set(MultiAperture_.PREFS_SINGLESTEP, singleStep);
@@ -1672,21 +1680,22 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, MouseMot
         final var radiusHalf = 0.25 * radius * radius;
         final var reversedSet = (TreeSet<StarFinder.CoordinateMaxima>) initialSet.descendingSet();
         final var toRemove = new HashSet<StarFinder.CoordinateMaxima>();
+        final var maximaGrid = new StarFinder.MaximaGrid(initialSet, 2 * radius);
+        final var byBrightness = reversedSet.comparator();
         for (StarFinder.CoordinateMaxima brighter : reversedSet) {
-            for (StarFinder.CoordinateMaxima fainter : reversedSet.tailSet(brighter, false)) {
-                if (brighter != fainter) {
-                    if (brighter.value() < maxP && fainter.value() < maxP) {
-                        if (toRemove.contains(brighter)) continue;
-                    }
-                    if (toRemove.contains(fainter)) continue;
-                    var d = brighter.squaredDistanceTo(fainter);
-                    if (d <= radius2) {
-                        if (d > radiusHalf) {
-                            if (fainter.value() > 0.1 * brighter.value()) toRemove.add(brighter);
-                        }
-                        toRemove.add(fainter);
-                    }
+            // Only fainter stars within the radius can change toRemove, visit them in the same order as the full set
+            var neighbors = maximaGrid.within(brighter.x(), brighter.y(), radius2);
+            neighbors.removeIf(fainter -> fainter.value() >= brighter.value());
+            neighbors.sort(byBrightness);
+            for (StarFinder.CoordinateMaxima fainter : neighbors) {
+                if (brighter.value() < maxP && fainter.value() < maxP) {
+                    if (toRemove.contains(brighter)) continue;
+                }
+                if (toRemove.contains(fainter)) continue;
+                if (brighter.squaredDistanceTo(fainter) > radiusHalf) {
+                    if (fainter.value() > 0.1 * brighter.value()) toRemove.add(brighter);
                 }
+                toRemove.add(fainter);
             }
         }
 
@@ -1696,13 +1705,16 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, MouseMot
         TreeSet<StarFinder.CoordinateMaxima> n;
         getMeasurementPrefs();
 
+        var placedGrid = new StarFinder.MaximaGrid(List.of(), 2 * radius);
+        for (int i = 0; i < xPos.length; i++) {
+            placedGrid.add(new StarFinder.CoordinateMaxima(0, xPos[i], yPos[i]));
+        }
+
         n = initialSet.parallelStream().map(m -> {
             // Centroid for all stars
             var center = adjustAperture(imp, m.x(), m.y(), radius, rBack1, rBack2, true).center();
 
-            for (int i = 0; i < xPos.length; i++) {
-                if (squaredDistanceTo(xPos[i], yPos[i], center.x(), center.y()) <= (radius2)) return null;
-            }
+            if (placedGrid.anyWithin(center.x(), center.y(), radius2)) return null;
 
             var photom = measurePhotometry(imp, center.x(), center.y(), radius, rBack1, rBack2);
 
@@ -1710,16 +1722,9 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, MouseMot
             return new StarFinder.CoordinateMaxima(s, center.x(), center.y());
         }).filter(Objects::nonNull).collect(Collectors.toCollection(TreeSet::new));
 
-        // Remove elements where the apertures would be identical
-        var m = new ConcurrentLinkedDeque<StarFinder.CoordinateMaxima>();
-        n.parallelStream().forEach(c -> {
-            if (m.contains(c)) return;
-            n.parallelStream().forEach(c2 -> {
-                if (c == c2) return;
-                if (c2.identicalRoi(c)) m.add(c2);
-            });
-        });
-        n.removeAll(m);
+        // Remove elements where the apertures would be identical, keeping the first of each
+        var seenPixels = new HashSet<Long>();
+        n.removeIf(c -> !seenPixels.add(((long) (int) c.x() << 32) | ((int) c.y() & 0xffffffffL)));
 
         initialSet = n;
 
@@ -2604,6 +2609,10 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, MouseMot
 
     /**
      * Perform photometry on each image of selected sub-stack.
+     * <p>
+     * Slices must be measured in order: unless the apertures are placed from WCS, each slice starts
+     * from the positions centroided on the previous one, and the measurement state of this instance
+     * and the "aperture.reposition" preference are shared by all apertures.
      */
     synchronized protected void processStack() {
         verbose = false;
@@ -2614,11 +2623,17 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, MouseMot
         ocanvas = null;
 
         long timeStart = System.currentTimeMillis();
+        long lastRefresh = 0;
 //        IJ.log("firstSlice="+firstSlice+"   lastSlice="+lastSlice);
         for (int i = firstSlice; i <= lastSlice; i++) {
             slice = i;
+            // Only round-trip through the EDT when the display is due for a refresh,
+            // the first and last slices are always shown
+            long now = System.currentTimeMillis();
+            refreshDisplay = i == firstSlice || i == lastSlice || now - lastRefresh >= displayRefreshInterval;
+            if (refreshDisplay) lastRefresh = now;
             imp.setSliceWithoutUpdate(i); //fixes scroll sync issue
-            waitForEventQueue(); // Fixes scrollbar not updating on mac
+            if (refreshDisplay) waitForEventQueue(); // Fixes scrollbar not updating on mac
             if (starOverlay || skyOverlay || valueOverlay || nameOverlay) {
                 ocanvas = OverlayCanvas.getOverlayCanvas(imp);
                 canvas = ocanvas;
@@ -2628,19 +2643,25 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, MouseMot
                 asw = (AstroStackWindow) imp.getWindow();
                 ac = (AstroCanvas) imp.getCanvas();
 
-                // This fixes the counter subtitle of the stack window not updating as the images progress
-                asw.update(asw.getGraphics());
+                if (refreshDisplay) {
+                    // This fixes the counter subtitle of the stack window not updating as the images progress
+                    asw.update(asw.getGraphics());
 
-                // This fixes histogram not updating
-                asw.updatePanelValues(false);
-                asw.updateWCS();
-                asw.updateCalibration();
+                    // This fixes histogram not updating
+                    asw.updatePanelValues(false);
 
-                asw.setAstroProcessor(false);
+                    // Also updates the WCS and calibration for the new slice
+                    asw.setAstroProcessor(false);
 
-                // Fixes apertures not properly being drawn/cleared when autoNupEleft is disabled
-                //KC: but I don't understand why
-                asw.repaintAstroCanvas();
+                    // Fixes apertures not properly being drawn/cleared when autoNupEleft is disabled
+                    //KC: but I don't understand why
+                    asw.repaintAstroCanvas();
+                } else {
+                    // The unscaled RGB copy is read by Stack_Aligner, so it must follow every slice
+                    asw.updateColorProcessor();
+                    asw.updateWCS();
+                    asw.updateCalibration();
+                }
 
                 //waitForEventQueue();
 
@@ -2657,12 +2678,14 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, MouseMot
 
             processImage();
             if (cancelled || IJ.escapePressed()) {
+                refreshDisplay = true;
                 IJ.beep();
                 Prefs.set(MultiAperture_.PREFS_CANCELED, "true");
                 shutDown();
                 return;
             }
         }
+        refreshDisplay = true;
 
         if (sp != null) {
             var sr = stackRadii.stream().mapToDouble(Seeing_Profile.ApRadii::r).toArray();
@@ -2793,6 +2816,14 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, MouseMot
         xFWHM = 0.0;
         yFWHM = 0.0;
 
+        // Place the apertures given by RA and Dec on this image in one pass
+        double[] wcsXPos = null, wcsYPos = null;
+        if ((useMA || useAlign) && useWCS && hasWCS) {
+            wcsXPos = new double[nApertures];
+            wcsYPos = new double[nApertures];
+            wcs.getTransform().wcs2pixels(raPos, decPos, wcsXPos, wcsYPos, nApertures);
+        }
+
         if (useVarSizeAp) {
             setVariableAperture(false);
             for (int ap = 0; ap < nApertures; ap++) {
@@ -2809,11 +2840,10 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, MouseMot
                 }
                 if ((useMA || useAlign) && useWCS) {
                     if (hasWCS && raPos[ap] > -1000000 && decPos[ap] > -1000000) {
-                        double[] xy = wcs.wcs2pixels(new double[]{raPos[ap], decPos[ap]});
-                        xPos[ap] = xy[0];
-                        yPos[ap] = xy[1];
-                        xCenter = xy[0];
-                        yCenter = xy[1];
+                        xPos[ap] = wcsXPos[ap];
+                        yPos[ap] = wcsYPos[ap];
+                        xCenter = wcsXPos[ap];
+                        yCenter = wcsYPos[ap];
                     }
 //                    else if (!hasWCS && autoMode)
 //                        {
@@ -2977,11 +3007,10 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, MouseMot
 
             if ((useMA || useAlign) && useWCS) {
                 if (hasWCS && raPos[ap] > -1000000 && decPos[ap] > -1000000) {
-                    double[] xy = wcs.wcs2pixels(new double[]{raPos[ap], decPos[ap]});
-                    xPos[ap] = xy[0];
-                    yPos[ap] = xy[1];
-                    xCenter = xy[0];
-                    yCenter = xy[1];
+                    xPos[ap] = wcsXPos[ap];
+                    yPos[ap] = wcsYPos[ap];
+                    xCenter = wcsXPos[ap];
+                    yCenter = wcsYPos[ap];
                 }
 //                else if (!hasWCS && autoMode)
 //                    {
@@ -3124,19 +3153,21 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, MouseMot
             noteOtherApertureProperty(ap);
         }
 
-        // Increase chance of aperture actually rendering on mac
-        if (IJ.isMacOSX()) {
-            ocanvas.update(ocanvas.getGraphics());
-            canvas.update(canvas.getGraphics());
-            //ocanvas.repaint();//renders extra apertures?!
-        } else {
-            // This is broken on mac.
-            // Causes apertures to render in wrong location, if they render at all
-            ocanvas.drawOverlayCanvas(ocanvas.getGraphics());
-        }
+        if (refreshDisplay) {
+            // Increase chance of aperture actually rendering on mac
+            if (IJ.isMacOSX()) {
+                ocanvas.update(ocanvas.getGraphics());
+                canvas.update(canvas.getGraphics());
+                //ocanvas.repaint();//renders extra apertures?!
+            } else {
+                // This is broken on mac.
+                // Causes apertures to render in wrong location, if they render at all
+                ocanvas.drawOverlayCanvas(ocanvas.getGraphics());
+            }
 
-        canvas.repaintOverlay();
-        canvas.repaint();
+            canvas.repaintOverlay();
+            canvas.repaint();
+        }
 
         if (!isInstanceOfStackAlign && showMeanWidth && calcRadProFWHM) {
             if (nFWHM > 0) {
@@ -3248,7 +3279,7 @@ public class MultiAperture_ extends Aperture_ implements MouseListener, MouseMot
 
 
         // UPDATE TABLE
-        if (table != null && !isInstanceOfStackAlign && (updatePlot || Data_Processor.active)) {
+        if (table != null && !isInstanceOfStackAlign && (updatePlot || Data_Processor.active) && refreshDisplay) {
             table.show();
             tablePanel = MeasurementTable.getTextPanel(tableName);
             if (tablePanel != null) {
@@ -187,6 +187,7 @@ public class MultiPlot_ implements PlugIn, KeyListener {
     static boolean disableUpdatePlotBox;
     static boolean astroConverterUpdating;
     static boolean useNelderMeadChi2ForDetrend;
+    static boolean solveDetrendLinearly = true;
     static boolean openFitPanels;
     static boolean createDetrendModel;
     static boolean modifyCurvesAbove;
@@ -491,7 +492,7 @@ public class MultiPlot_ implements PlugIn, KeyListener {
     static JMenu yaxismenu;
     static JMenu tablemenu;
     static JCheckBoxMenuItem opendatasetCB, openrefstarCB, openFitPanelsCB;
-    static JCheckBoxMenuItem usewidedataCB, divideNotSubtractCB, useNelderMeadChi2ForDetrendCB;
+    static JCheckBoxMenuItem usewidedataCB, divideNotSubtractCB, useNelderMeadChi2ForDetrendCB, solveDetrendLinearlyCB;
     static JCheckBoxMenuItem rememberwindowlocationsCB, keepSeparateLocationsForFitWindowsCB;
     static JCheckBoxMenuItem showtooltipsCB;
     static JCheckBoxMenuItem usedefaultsettingsCB;
@@ -4308,7 +4309,7 @@ public class MultiPlot_ implements PlugIn, KeyListener {
                 u1 = lockToCenter[curve][5] ? priorCenter[curve][5] : param[fp < nPars ? fp++ : nPars - 1];  //quadratic limb darkening parameter 1
                 u2 = lockToCenter[curve][6] ? priorCenter[curve][6] : param[fp < nPars ? fp++ : nPars - 1];  //quadratic limb darkening parameter 2
 
-                lcModel[curve] = IJU.transitModel(detrendXs[curve], f0, incl, p0, ar, tc, orbitalPeriod[curve], e, ohm, u1, u2, useLonAscNode[curve], lonAscNode[curve], true);
+                lcModel[curve] = IJU.transitModel(detrendXs[curve], f0, incl, p0, ar, tc, orbitalPeriod[curve], e, ohm, u1, u2, useLonAscNode[curve], lonAscNode[curve], true, lcModel[curve]);
             }
 
             int dp = 0;
@@ -4870,37 +4871,39 @@ public class MultiPlot_ implements PlugIn, KeyListener {
             saveAstroPanelPrefs();
             checkAndLockTable();
             int tableLength = table.getCounter();
-            for (int i = 0; i < tableLength; i++) {
-                if (updateMPCC(i)) {
-                    if (addAirmass) table.setValue(airmassName, i, acc.getAirmass());
-                    if (addAltitude) table.setValue(altitudeName, i, acc.getAltitude());
-                    if (addAzimuth) table.setValue(azimuthName, i, acc.getAzimuth());
-                    if (addHourAngle) table.setValue(hourAngleName, i, acc.getHourAngle());
-                    if (addZenithDistance) table.setValue(zenithDistanceName, i, acc.getZenithDistance());
-                    if (addGJD) table.setValue(gjdName, i, acc.getJD());
-                    if (addHJD) table.setValue(hjdName, i, acc.getHJD());
-                    if (addHJDCorr) table.setValue(hjdCorrName, i, acc.getHJDCorrection());
-                    if (addBJD) table.setValue(bjdName, i, acc.getBJD());
-                    if (addBJDCorr) table.setValue(bjdCorrName, i, acc.getBJDCorrection());
-                    if (addRaNow) table.setValue(raNowName, i, acc.getRAEOI());
-                    if (addDecNow) table.setValue(decNowName, i, acc.getDecEOI());
-                    if (addRA2000) table.setValue(ra2000Name, i, acc.getRAJ2000());
-                    if (addDec2000) table.setValue(dec2000Name, i, acc.getDecJ2000());
-                } else {
-                    if (addAirmass) table.setValue(airmassName, i, Double.NaN);
-                    if (addAltitude) table.setValue(altitudeName, i, Double.NaN);
-                    if (addAzimuth) table.setValue(azimuthName, i, Double.NaN);
-                    if (addHourAngle) table.setValue(hourAngleName, i, Double.NaN);
-                    if (addZenithDistance) table.setValue(zenithDistanceName, i, Double.NaN);
-                    if (addGJD) table.setValue(gjdName, i, Double.NaN);
-                    if (addHJD) table.setValue(hjdName, i, Double.NaN);
-                    if (addHJDCorr) table.setValue(hjdCorrName, i, Double.NaN);
-                    if (addBJD) table.setValue(bjdName, i, Double.NaN);
-                    if (addBJDCorr) table.setValue(bjdCorrName, i, Double.NaN);
-                    if (addRaNow) table.setValue(raNowName, i, Double.NaN);
-                    if (addDecNow) table.setValue(decNowName, i, Double.NaN);
-                    if (addRA2000) table.setValue(ra2000Name, i, Double.NaN);
-                    if (addDec2000) table.setValue(dec2000Name, i, Double.NaN);
+            if (!updateAstroDataBatch()) {
+                for (int i = 0; i < tableLength; i++) {
+                    if (updateMPCC(i)) {
+                        if (addAirmass) table.setValue(airmassName, i, acc.getAirmass());
+                        if (addAltitude) table.setValue(altitudeName, i, acc.getAltitude());
+                        if (addAzimuth) table.setValue(azimuthName, i, acc.getAzimuth());
+                        if (addHourAngle) table.setValue(hourAngleName, i, acc.getHourAngle());
+                        if (addZenithDistance) table.setValue(zenithDistanceName, i, acc.getZenithDistance());
+                        if (addGJD) table.setValue(gjdName, i, acc.getJD());
+                        if (addHJD) table.setValue(hjdName, i, acc.getHJD());
+                        if (addHJDCorr) table.setValue(hjdCorrName, i, acc.getHJDCorrection());
+                        if (addBJD) table.setValue(bjdName, i, acc.getBJD());
+                        if (addBJDCorr) table.setValue(bjdCorrName, i, acc.getBJDCorrection());
+                        if (addRaNow) table.setValue(raNowName, i, acc.getRAEOI());
+                        if (addDecNow) table.setValue(decNowName, i, acc.getDecEOI());
+                        if (addRA2000) table.setValue(ra2000Name, i, acc.getRAJ2000());
+                        if (addDec2000) table.setValue(dec2000Name, i, acc.getDecJ2000());
+                    } else {
+                        if (addAirmass) table.setValue(airmassName, i, Double.NaN);
+                        if (addAltitude) table.setValue(altitudeName, i, Double.NaN);
+                        if (addAzimuth) table.setValue(azimuthName, i, Double.NaN);
+                        if (addHourAngle) table.setValue(hourAngleName, i, Double.NaN);
+                        if (addZenithDistance) table.setValue(zenithDistanceName, i, Double.NaN);
+                        if (addGJD) table.setValue(gjdName, i, Double.NaN);
+                        if (addHJD) table.setValue(hjdName, i, Double.NaN);
+                        if (addHJDCorr) table.setValue(hjdCorrName, i, Double.NaN);
+                        if (addBJD) table.setValue(bjdName, i, Double.NaN);
+                        if (addBJDCorr) table.setValue(bjdCorrName, i, Double.NaN);
+                        if (addRaNow) table.setValue(raNowName, i, Double.NaN);
+                        if (addDecNow) table.setValue(decNowName, i, Double.NaN);
+                        if (addRA2000) table.setValue(ra2000Name, i, Double.NaN);
+                        if (addDec2000) table.setValue(dec2000Name, i, Double.NaN);
+                    }
                 }
             }
 
@@ -4955,6 +4958,61 @@ public class MultiPlot_ implements PlugIn, KeyListener {
 
     }
 
+    /**
+     * Fills the selected astronomical data columns for all rows in one pass, without stepping the coordinate
+     * converter through each row.
+     *
+     * @return false if the data needs the row by row update, which also reports missing columns.
+     */
+    static boolean updateAstroDataBatch() {
+        if (table == null || acc == null) return false;
+        var batch = acc.getEphemerisBatch();
+        if (batch == null || !(useTableRaDec || acc.hasFixedJ2000Coordinates())) return false;
+
+        JDColumn = (String) jdcolumnbox.getSelectedItem();
+        jdCol = table.getColumnIndex(JDColumn);
+        if (jdCol == MeasurementTable.COLUMN_NOT_FOUND || table.getCounter() < 1) return false;
+        double[] ra = null, dec = null;
+        if (useTableRaDec) {
+            raColumn = (String) racolumnbox.getSelectedItem();
+            decColumn = (String) deccolumnbox.getSelectedItem();
+            raCol = table.getColumnIndex(raColumn);
+            decCol = table.getColumnIndex(decColumn);
+            if (raCol == MeasurementTable.COLUMN_NOT_FOUND || decCol == MeasurementTable.COLUMN_NOT_FOUND) return false;
+            ra = table.getDoubleColumn(raCol);
+            dec = table.getDoubleColumn(decCol);
+        }
+
+        // Rows without table coordinates use the converter's target
+        if (acc.processManualCoordinates() != 0) return false;
+
+        double[] times = table.getDoubleColumn(jdCol);
+        if (JDColumn.contains("-2400000")) {
+            for (int i = 0; i < times.length; i++) times[i] += 2400000;
+        }
+        var timeScale = useGJD ? EphemerisBatch.TimeScale.JD_UTC :
+                useHJD ? EphemerisBatch.TimeScale.HJD_UTC : EphemerisBatch.TimeScale.BJD_TDB;
+        var r = batch.compute(times, timeScale, ra, dec, acc.getRAJ2000(), acc.getDecJ2000());
+
+        for (int i = 0; i < times.length; i++) {
+            if (addAirmass) table.setValue(airmassName, i, r.airmass[i]);
+            if (addAltitude) table.setValue(altitudeName, i, r.altitude[i]);
+            if (addAzimuth) table.setValue(azimuthName, i, r.azimuth[i]);
+            if (addHourAngle) table.setValue(hourAngleName, i, r.hourAngle[i]);
+            if (addZenithDistance) table.setValue(zenithDistanceName, i, r.zenithDistance[i]);
+            if (addGJD) table.setValue(gjdName, i, r.jd[i]);
+            if (addHJD) table.setValue(hjdName, i, r.hjd[i]);
+            if (addHJDCorr) table.setValue(hjdCorrName, i, r.hjdCorrection[i]);
+            if (addBJD) table.setValue(bjdName, i, r.bjd[i]);
+            if (addBJDCorr) table.setValue(bjdCorrName, i, r.bjdCorrection[i]);
+            if (addRaNow) table.setValue(raNowName, i, r.raEOI[i]);
+            if (addDecNow) table.setValue(decNowName, i, r.decEOI[i]);
+            if (addRA2000) table.setValue(ra2000Name, i, r.ra2000[i]);
+            if (addDec2000) table.setValue(dec2000Name, i, r.dec2000[i]);
+        }
+        return true;
+    }
+
     static boolean updateMPCC(int row)  //set row negative to use first currently selected row
     {
         if (table == null) {
@@ -6112,6 +6170,7 @@ public class MultiPlot_ implements PlugIn, KeyListener {
         showSigmaForAllCurves = false;
         showSigmaForDetrendedCurves = true;
         useNelderMeadChi2ForDetrend = true;
+        solveDetrendLinearly = true;
         openFitPanels = true;
 //        useTwoLineLegend = false;
         useWideDataPanel = true;
@@ -7317,6 +7376,11 @@ public class MultiPlot_ implements PlugIn, KeyListener {
         opendatamenuitem.addActionListener(e -> openData());
         filemenu.add(opendatamenuitem);
 
+        JMenuItem refreshdatamenuitem = new JMenuItem("Refresh table from file");
+        refreshdatamenuitem.setToolTipText("<html>" + "adds the rows appended to the file the current table was opened from" + "<br>" + "since it was last read, and updates the plot" + "</html>");
+        refreshdatamenuitem.addActionListener(e -> refreshData());
+        filemenu.add(refreshdatamenuitem);
+
         JMenuItem appenddatarowsmenuitem = new JMenuItem("Append table from file as new rows...");
         appenddatarowsmenuitem.setToolTipText("<html>" + "default input format = tab delimited, or use" + "<br>" + "filename.csv = comma delimited" + "<br>" + "filename.prn or filename.spc = space delimted" + "<br>" + "---------------------------------------------" + "<br>" + "first line should be column headings delimited as stated above" + "<br>" + "lines starting with # are considered comments and ignored, except" + "<br>" + "the last comment before the first data line can be headings" + "</html>");
         appenddatarowsmenuitem.addActionListener(e -> appendDataAsRows(true, null));
@@ -7571,6 +7635,19 @@ public class MultiPlot_ implements PlugIn, KeyListener {
         });
         preferencesmenu.add(useNelderMeadChi2ForDetrendCB);
 
+        solveDetrendLinearlyCB = new JCheckBoxMenuItem("Solve detrend coefficients by linear least squares in fit optimization", solveDetrendLinearly);
+        solveDetrendLinearlyCB.setToolTipText("<html>Leave only the transit parameters to the Nelder-Mead minimizer when optimizing comparison stars and detrend parameters.<br>" +
+                "Detrend coefficients with a prior width are still minimized.</html>");
+        solveDetrendLinearlyCB.addItemListener(e -> {
+            if (e.getStateChange() == ItemEvent.DESELECTED) {
+                solveDetrendLinearly = false;
+            } else if (e.getStateChange() == ItemEvent.SELECTED) {
+                solveDetrendLinearly = true;
+            }
+            Prefs.set("plot.solveDetrendLinearly", solveDetrendLinearly);
+        });
+        preferencesmenu.add(solveDetrendLinearlyCB);
+
         preferencesmenu.addSeparator();
 
         showtooltipsCB = new JCheckBoxMenuItem("Show tooltips help", showToolTips);
@@ -16023,6 +16100,37 @@ public class MultiPlot_ implements PlugIn, KeyListener {
         }
     }
 
+    /**
+     * Reads the rows appended to the file the current table was opened from, reopening the file
+     * if it was rewritten.
+     */
+    static void refreshData() {
+        if (table == null || table.getFilePath() == null || table.getFilePath().isEmpty()) {
+            IJ.beep();
+            IJ.showMessage("The current table was not opened from a file");
+            return;
+        }
+        try {
+            int rows = table.appendRowsFromFile();
+            if (rows < 0) {
+                MeasurementTable newTable = MeasurementTable.getTableFromFile(table.getFilePath());
+                if (newTable == null) {
+                    IJ.beep();
+                    IJ.showMessage("Unable to open measurement table " + table.getFilePath());
+                    return;
+                }
+                newTable.show();
+                setTable(newTable, true);
+            } else if (rows > 0) {
+                table.show();
+                updatePlot(updateAllFits());
+            }
+        } catch (Exception e) {
+            IJ.beep();
+            IJ.showMessage("Multi-Plot: Error reading or plotting measurements table");
+        }
+    }
+
     static void transposeTable() {
         MeasurementTable newTable = new MeasurementTable(tableName + "_transposed");
         if (table.getLastColumn() < 0 || table.getCounter() < 1) {
@@ -17860,6 +17968,7 @@ public class MultiPlot_ implements PlugIn, KeyListener {
         showYmmagInfo = Prefs.get("plot.showYmmagInfo", showYmmagInfo);
         showLmmagInfo = Prefs.get("plot.showLmmagInfo", showLmmagInfo);
         useNelderMeadChi2ForDetrend = Prefs.get("plot.useNelderMeadChi2ForDetrend", useNelderMeadChi2ForDetrend);
+        solveDetrendLinearly = Prefs.get("plot.solveDetrendLinearly", solveDetrendLinearly);
         showLdetrendInfo = Prefs.get("plot.showLdetrendInfo", showLdetrendInfo);
         showLnormInfo = Prefs.get("plot.showLnormInfo", showLnormInfo);
         showYSymbolInfo = Prefs.get("plot.showYSymbolInfo", showYSymbolInfo);
@@ -18185,6 +18294,7 @@ public class MultiPlot_ implements PlugIn, KeyListener {
         Prefs.set("plot.showYmmagInfo", showYmmagInfo);
         Prefs.set("plot.showLmmagInfo", showLmmagInfo);
         Prefs.set("plot.useNelderMeadChi2ForDetrend", useNelderMeadChi2ForDetrend);
+        Prefs.set("plot.solveDetrendLinearly", solveDetrendLinearly);
         Prefs.set("plot.showLdetrendInfo", showLdetrendInfo);
         Prefs.set("plot.showLnormInfo", showLnormInfo);
         Prefs.set("plot.showYSymbolInfo", showYSymbolInfo);
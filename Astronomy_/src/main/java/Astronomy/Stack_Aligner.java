@@ -1,5 +1,6 @@
 package Astronomy;// Stack_Aligner.java
 
+import astroj.AsterismAligner;
 import astroj.AstroStackWindow;
 import astroj.Centroid;
 import astroj.FitsJ;
@@ -44,6 +45,7 @@ public class Stack_Aligner extends MultiAperture_
     boolean startingUseAMag = false;
     boolean isVirtual = false;
     boolean useWCSOnly = true;
+    boolean useAsterisms = false;
     boolean holdSingleStep = false;
     String label = "Aligned_";
     String imageFilename = "";
@@ -52,6 +54,7 @@ public class Stack_Aligner extends MultiAperture_
 	double[] yRef = null;
 	double firstImageFlux = 0.0;
     double[] radecRef;
+    AsterismAligner asterismAligner;
     String slash = IJ.isWindows() ? "\\": "/";
     DecimalFormat uptoTwoPlaces = new DecimalFormat("0.##", IJU.dfs);
 
@@ -159,8 +162,10 @@ public class Stack_Aligner extends MultiAperture_
 		// NON-REQUIRED FIELDS (mirrored in finishFancyDialog())
 
         useWCSOnly = Prefs.get ("stackAligner.useWCSOnly", useWCSOnly);
+        useAsterisms = Prefs.get ("stackAligner.useAsterisms", useAsterisms);
         normalize = Prefs.get ("stackAligner.normalize", normalize);
         whole = Prefs.get ("stackAligner.whole", whole);
+        gd.addCheckbox ("Align by matching star patterns to the first image (no apertures or WCS required)", useAsterisms, b -> useAsterisms = b);
         if (hasWCS) gd.addCheckbox ("Use only WCS headers for alignment (no apertures required)", useWCSOnly, b -> useWCSOnly = b);
 		gd.addCheckbox ("Remove background and scale to common level", normalize, b -> normalize = b);
 		gd.addCheckbox ("Align only to whole pixels (no interpolation)",whole, b -> whole = b);
@@ -173,7 +178,7 @@ public class Stack_Aligner extends MultiAperture_
 
             }
 		gd.addMessage ("Click \"OK\" and select image alignment stars with left clicks.\nThen right click or press <Enter> to begin alignment process.\n"+
-                       (hasWCS?"If 'use only WCS headers for alignment' mode is selected, processing will start when \"OK\" is clicked.\n":"")+
+                       "If 'match star patterns' "+(hasWCS?"or 'use only WCS headers for alignment' ":"")+"mode is selected, processing will start when \"OK\" is clicked.\n"+
 		               "To abort alignment star selection or processing, press <ESC>.");
 		return gd;
 		}
@@ -188,8 +193,13 @@ public class Stack_Aligner extends MultiAperture_
             {
             runningWCSOnlyAlignment = useWCSOnly;
             }
+        if (useAsterisms)       // LIKE WCS ONLY MODE, NO APERTURES ARE PLACED
+            {
+            runningWCSOnlyAlignment = true;
+            }
         
         Prefs.set ("stackAligner.useWCSOnly", useWCSOnly);
+        Prefs.set ("stackAligner.useAsterisms", useAsterisms);
         Prefs.set ("stackAligner.normalize", normalize);
         Prefs.set ("stackAligner.whole", whole);   
         Prefs.set (MultiAperture_.PREFS_SHOWHELP, showHelp);
@@ -216,7 +226,11 @@ public class Stack_Aligner extends MultiAperture_
 		// GET MEAN APERTURE BRIGHTNESS
         if (firstImage)
             {
-            if (runningWCSOnlyAlignment)
+            if (useAsterisms)
+                {
+                asterismAligner = null;     // THE REFERENCE IS TAKEN FROM THE FIRST IMAGE PROCESSED
+                }
+            else if (runningWCSOnlyAlignment)
                 { 
                 if (!hasWCS)
                     {
@@ -275,7 +289,36 @@ public class Stack_Aligner extends MultiAperture_
         double[] xy;
         int numCentroids = 0;
         int numNoCentroids = 0;
-        if (runningWCSOnlyAlignment)
+        AsterismAligner.Transform transform = null;
+        if (useAsterisms)
+            {
+            if (firstImage)
+                {
+                asterismAligner = AsterismAligner.forReference(imp.getType()==ImagePlus.COLOR_RGB ? sourceColorProcessor() : ip);
+                if (asterismAligner == null)
+                    {
+                    IJ.beep();
+                    IJ.showMessage("Too few stars found in image "+IJU.getSliceFilename(imp, slice)+" to match star patterns. Aborting alignment.");
+                    shutDown();
+                    return;
+                    }
+                transform = AsterismAligner.Transform.translation(0.0, 0.0);
+                }
+            else
+                {
+                transform = asterismAligner.match(imp.getType()==ImagePlus.COLOR_RGB ? sourceColorProcessor() : ip);
+                if (transform == null)
+                    {
+                    IJ.log("Stack Aligner: the stars in "+IJU.getSliceFilename(imp, slice)+" could not be matched to the first image. The image was left unaligned.");
+                    transform = AsterismAligner.Transform.translation(0.0, 0.0);
+                    }
+                }
+            // SHIFT OF THE IMAGE CENTER, FOR THE APERTURES
+            xy = transform.apply(imp.getWidth()/2.0, imp.getHeight()/2.0);
+            dx = xy[0] - imp.getWidth()/2.0;
+            dy = xy[1] - imp.getHeight()/2.0;
+            }
+        else if (runningWCSOnlyAlignment)
             {
             if (!hasWCS)
                 {
@@ -346,6 +389,7 @@ public class Stack_Aligner extends MultiAperture_
                 dy /= numCentroids;                
                 }
             }
+        if (transform == null) transform = AsterismAligner.Transform.translation(dx, dy);
         
         imageFilename = IJU.getSliceFilename(imp, slice);
         if (isVirtual)
@@ -356,22 +400,22 @@ public class Stack_Aligner extends MultiAperture_
             ImagePlus imp2 = new ImagePlus(imp.getStack().getSliceLabel(slice), imp.getStack().getProcessor(slice)); 
             imp2.setCalibration(imp.getCalibration());  
             imp2.setFileInfo(imp.getFileInfo());
-            imp2.setProcessor ("Aligned_"+imageFilename, imp.getType()==ImagePlus.COLOR_RGB ? shiftedRGBImage(dx,dy) : shiftedImage(dx,dy));
+            imp2.setProcessor ("Aligned_"+imageFilename, alignedImage(transform));
             String[] scienceHeader = FitsJ.getHeader(imp);
             if (scienceHeader != null)
                 {
-                scienceHeader = updateHeaders(scienceHeader, dx, dy);
+                scienceHeader = updateHeaders(scienceHeader, transform);
                 FitsJ.putHeader(imp2, scienceHeader);
                 }
             IJU.saveFile(imp2, imageDirname+slash+"aligned_"+imageFilename);
             }
         else
             {
-            imp.setProcessor ("Aligned_"+imageFilename, imp.getType()==ImagePlus.COLOR_RGB ? shiftedRGBImage(dx,dy) : shiftedImage(dx,dy));
+            imp.setProcessor ("Aligned_"+imageFilename, alignedImage(transform));
             String[] scienceHeader = FitsJ.getHeader(imp);
             if (scienceHeader != null)
                 {
-                scienceHeader = updateHeaders(scienceHeader, dx, dy);
+                scienceHeader = updateHeaders(scienceHeader, transform);
                 FitsJ.putHeader(imp, scienceHeader);  
                 if (imp.getWindow() instanceof astroj.AstroStackWindow)
                     {
@@ -402,6 +446,193 @@ public class Stack_Aligner extends MultiAperture_
         return header;
         }
     
+    /**
+     * Records the alignment in the header. A shift is recorded as before; a rotation or change of scale is also
+     * applied to the WCS and annotations.
+     */
+    protected String[] updateHeaders(String[] header, AsterismAligner.Transform transform)
+        {
+        if (transform.a() == 1.0 && transform.b() == 0.0)
+            return updateHeaders(header, transform.tx(), transform.ty());
+
+        double[] center = transform.apply(ip.getWidth()/2.0, ip.getHeight()/2.0);
+        header = FitsJ.setCard("X_SHIFT", -(center[0]-ip.getWidth()/2.0), "AIJ stack align X-shift value at image center", header);
+        header = FitsJ.setCard("Y_SHIFT", -(center[1]-ip.getHeight()/2.0), "AIJ stack align Y-shift value at image center", header);
+        header = FitsJ.setCard("ALGN_ROT", -transform.rotation(), "AIJ stack align rotation (degrees)", header);
+        header = FitsJ.setCard("ALGN_SCL", 1.0/transform.scale(), "AIJ stack align scale factor", header);
+        return updateWCS(header, transform);
+        }
+
+    /**
+     * Applies a transform from aligned to original pixel coordinates to the WCS and annotations. In FITS pixel
+     * coordinates, which count rows up from the bottom, it takes p to M p + t.
+     */
+    protected String[] updateWCS(String[] header, AsterismAligner.Transform transform)
+        {
+        int h = ip.getHeight();
+        double a = transform.a();
+        double b = transform.b();
+        double[] m = {a, b, -b, a};
+        double[] origin = transform.apply(-1.0, h);
+        double[] t = {origin[0]+1.0, h-origin[1]};
+        double det = a*a+b*b;
+
+        int index1 = FitsJ.findCardWithKey("CRPIX1", header);
+        int index2 = FitsJ.findCardWithKey("CRPIX2", header);
+        if (index1 >= 0 && index2 >= 0)
+            {
+            double x = FitsJ.getCardDoubleValue(header[index1])-t[0];
+            double y = FitsJ.getCardDoubleValue(header[index2])-t[1];
+            header = FitsJ.setCard("CRPIX1", (a*x-b*y)/det, "Adjusted by AIJ Stack_Aligner", header);
+            header = FitsJ.setCard("CRPIX2", (b*x+a*y)/det, "Adjusted by AIJ Stack_Aligner", header);
+            }
+
+        // THE LINEAR TRANSFORMATION MATRIX IS MULTIPLIED BY M ON THE RIGHT
+        String matrix = FitsJ.findCardWithKey("CD1_1", header) >= 0 ? "CD" : "PC";
+        if (matrix.equals("PC") && FitsJ.findCardWithKey("PC1_1", header) < 0)
+            {
+            int index = FitsJ.findCardWithKey("CROTA2", header);
+            index1 = FitsJ.findCardWithKey("CDELT1", header);
+            index2 = FitsJ.findCardWithKey("CDELT2", header);
+            if (index1 < 0 || index2 < 0) return header;
+            double rho = index >= 0 ? Math.toRadians(FitsJ.getCardDoubleValue(header[index])) : 0.0;
+            double ratio = FitsJ.getCardDoubleValue(header[index2])/FitsJ.getCardDoubleValue(header[index1]);
+            header = FitsJ.setCard("PC1_1", Math.cos(rho), "Converted from CROTA2 by AIJ Stack_Aligner", header);
+            header = FitsJ.setCard("PC1_2", -Math.sin(rho)*ratio, "Converted from CROTA2 by AIJ Stack_Aligner", header);
+            header = FitsJ.setCard("PC2_1", Math.sin(rho)/ratio, "Converted from CROTA2 by AIJ Stack_Aligner", header);
+            header = FitsJ.setCard("PC2_2", Math.cos(rho), "Converted from CROTA2 by AIJ Stack_Aligner", header);
+            header = FitsJ.removeCards("CROTA1", header);
+            header = FitsJ.removeCards("CROTA2", header);
+            }
+        for (int i=1; i <= 2; i++)
+            {
+            index1 = FitsJ.findCardWithKey(matrix+i+"_1", header);
+            index2 = FitsJ.findCardWithKey(matrix+i+"_2", header);
+            double c1 = index1 >= 0 ? FitsJ.getCardDoubleValue(header[index1]) : (i == 1 ? 1.0 : 0.0);
+            double c2 = index2 >= 0 ? FitsJ.getCardDoubleValue(header[index2]) : (i == 2 ? 1.0 : 0.0);
+            header = FitsJ.setCard(matrix+i+"_1", c1*m[0]+c2*m[2], "Adjusted by AIJ Stack_Aligner", header);
+            header = FitsJ.setCard(matrix+i+"_2", c1*m[1]+c2*m[3], "Adjusted by AIJ Stack_Aligner", header);
+            }
+        if (a != 1.0 || b != 0.0)
+            {
+            header = updateSIP(header, "A", "B", m);
+            header = updateSIP(header, "AP", "BP", m);
+            }
+
+        //UPDATE ANNOTATIONS
+        for (int i=0; i<header.length; i++)
+            {
+            String key = FitsJ.getCardKey(header[i]);
+            if (key != null && key.equals("ANNOTATE")) 
+                {
+                String[] pieces = FitsJ.getCardStringValue(header[i]).split(",");
+                if (pieces.length > 1)
+                    {
+                    String label = FitsJ.getCardComment(header[i]);
+                    double x = Tools.parseDouble(pieces[0], 0)-t[0];
+                    double y = Tools.parseDouble(pieces[1], 0)-t[1];
+                    String value = "'"+uptoTwoPlaces.format((a*x-b*y)/det)+","+uptoTwoPlaces.format((b*x+a*y)/det);
+                    for (int j=2; j<pieces.length; j++)
+                        {
+                        value += ","+pieces[j];
+                        }
+                    value += "'";
+                    header[i] = FitsJ.createCard("ANNOTATE", value, label);
+                    }
+                }
+            }
+        return header;
+        }
+    
+    /**
+     * Rewrites a pair of SIP distortion polynomials for pixel offsets from CRPIX that have been taken to M times the
+     * new offsets. With the linear matrix multiplied by M on the right, the distortion (f, g) becomes M^-1 (f, g)
+     * evaluated at M u, which is a polynomial of the same order.
+     */
+    protected String[] updateSIP(String[] header, String xName, String yName, double[] m)
+        {
+        int xIndex = FitsJ.findCardWithKey(xName+"_ORDER", header);
+        int yIndex = FitsJ.findCardWithKey(yName+"_ORDER", header);
+        if (xIndex < 0 && yIndex < 0) return header;
+        int order = 0;
+        try
+            {
+            if (xIndex >= 0) order = FitsJ.getCardIntValue(header[xIndex]);
+            if (yIndex >= 0) order = Math.max(order, FitsJ.getCardIntValue(header[yIndex]));
+            }
+        catch (NumberFormatException e)
+            {
+            return header;
+            }
+
+        double[][] f = new double[order+1][order+1];
+        double[][] g = new double[order+1][order+1];
+        for (int p=0; p <= order; p++)
+            {
+            for (int q=0; p+q <= order; q++)
+                {
+                double[] term = composeSIPTerm(p, q, m, order);
+                double cf = sipCoefficient(header, xName+"_"+p+"_"+q);
+                double cg = sipCoefficient(header, yName+"_"+p+"_"+q);
+                for (int i=0; i <= p+q; i++)
+                    {
+                    f[i][p+q-i] += cf*term[i];
+                    g[i][p+q-i] += cg*term[i];
+                    }
+                header = FitsJ.removeCards(xName+"_"+p+"_"+q, header);
+                header = FitsJ.removeCards(yName+"_"+p+"_"+q, header);
+                }
+            }
+
+        double det = m[0]*m[3]-m[1]*m[2];
+        header = FitsJ.setCard(xName+"_ORDER", order, "Adjusted by AIJ Stack_Aligner", header);
+        header = FitsJ.setCard(yName+"_ORDER", order, "Adjusted by AIJ Stack_Aligner", header);
+        for (int p=0; p <= order; p++)
+            {
+            for (int q=0; p+q <= order; q++)
+                {
+                double x = (m[3]*f[p][q]-m[1]*g[p][q])/det;
+                double y = (m[0]*g[p][q]-m[2]*f[p][q])/det;
+                if (x != 0.0) header = FitsJ.setCard(xName+"_"+p+"_"+q, x, "Adjusted by AIJ Stack_Aligner", header);
+                if (y != 0.0) header = FitsJ.setCard(yName+"_"+p+"_"+q, y, "Adjusted by AIJ Stack_Aligner", header);
+                }
+            }
+        return header;
+        }
+
+    /**
+     * Expands u^p v^q with u and v replaced by the rows of M, returning the coefficient of u^i v^(p+q-i) at index i.
+     */
+    private static double[] composeSIPTerm(int p, int q, double[] m, int order)
+        {
+        double[] term = new double[order+1];
+        for (int i=0; i <= p; i++)
+            {
+            double ci = binomial(p, i)*Math.pow(m[0], i)*Math.pow(m[1], p-i);
+            for (int j=0; j <= q; j++)
+                {
+                term[i+j] += ci*binomial(q, j)*Math.pow(m[2], j)*Math.pow(m[3], q-j);
+                }
+            }
+        return term;
+        }
+
+    private static double binomial(int n, int k)
+        {
+        double c = 1.0;
+        for (int i=1; i <= k; i++)
+            {
+            c = c*(n-k+i)/i;
+            }
+        return c;
+        }
+
+    private static double sipCoefficient(String[] header, String key)
+        {
+        int index = FitsJ.findCardWithKey(key, header);
+        return index >= 0 ? FitsJ.getCardDoubleValue(header[index]) : 0.0;
+        }
+
     protected String[] updateCRPIX(String[] header, double dx, double dy)
         {
         double crpix1, crpix2;
@@ -452,46 +683,22 @@ public class Stack_Aligner extends MultiAperture_
         return header;
         }
 
+	/**
+	 * Resamples the image onto the first one, in parallel over the pixel array.
+	 *
+	 * @param transform from the pixel coordinates of the first image to those of this one.
+	 */
+	protected ImageProcessor alignedImage (AsterismAligner.Transform transform)
+		{
+		return AsterismAligner.warp(imp.getType()==ImagePlus.COLOR_RGB ? sourceColorProcessor() : ip, transform, !whole);
+		}
+
 	/**
 	 * Shifts image linearly by an amount (dx,dy).
 	 */
 	protected ImageProcessor shiftedImage (double dx, double dy)
 		{
-        double d = 0.0;
-		int h = ip.getHeight();
-		int w = ip.getWidth();
-        ImageProcessor ips = ip.duplicate();
-
-		for (int j=0; j < h; j++)
-			{
-			double y = (double)j+dy;
-			int iy = (int)(y+Centroid.PIXELCENTER);
-			if (whole)
-				{
-				for (int i=0; i < w; i++)
-					{
-					double x = (double)i+dx;
-					int ix = (int)(x+Centroid.PIXELCENTER);
-                    if (ix >= 0 && ix < w && iy >=0 && iy < h)
-                        d = (double)ip.getPixelValue(ix, iy);
-                    else
-                        d = 0.0;
-					ips.putPixelValue (i,j,d);
-					}
-				}
-			else	{
-				for (int i=0; i < w; i++)
-					{
-					double x = (double)i+dx;
-                    if (x >= 0 && x < w && y >=0 && y < h)
-					    d = ip.getInterpolatedPixel(x, y);
-                    else
-                        d = 0.0;
-					ips.putPixelValue (i,j,d);
-					}
-				}
-			}
-		return ips;
+		return AsterismAligner.warp(ip, AsterismAligner.Transform.translation(dx, dy), !whole);
 		}
     
 	/**
@@ -499,8 +706,14 @@ public class Stack_Aligner extends MultiAperture_
 	 */
 	protected ColorProcessor shiftedRGBImage (double dx, double dy)
 		{
-		int h = ip.getHeight();
-		int w = ip.getWidth();
+		return (ColorProcessor)AsterismAligner.warp(sourceColorProcessor(), AsterismAligner.Transform.translation(dx, dy), !whole);
+		}
+
+	/**
+	 * The unscaled RGB image, which the stack window keeps when it displays a processed one.
+	 */
+	protected ColorProcessor sourceColorProcessor ()
+		{
         ColorProcessor cp;
         Frame openFrame = imp.getWindow();
         if (openFrame instanceof astroj.AstroStackWindow)
@@ -518,32 +731,7 @@ public class Stack_Aligner extends MultiAperture_
             ip.reset();;
             cp = (ColorProcessor)ip;
             }
-    
-        ColorProcessor cps = (ColorProcessor)(cp.duplicate());
-
-		for (int j=0; j < h; j++)
-			{
-			double y = (double)j+dy;
-			int iy = (int)(y+Centroid.PIXELCENTER);
-			if (whole)
-				{
-				for (int i=0; i < w; i++)
-					{
-					double x = (double)i+dx;
-					int ix = (int)(x+Centroid.PIXELCENTER);
-					cps.putPixel(i,j,cp.getPixel(ix, iy));
-					}
-				}
-			else	{
-				for (int i=0; i < w; i++)
-					{
-					double x = (double)i+dx;
-					int d = cp.getInterpolatedRGBPixel(x, y);
-					cps.putPixel(i,j,cp.getInterpolatedRGBPixel(x, y));
-					}
-				}
-			}
-		return cps;
-		}    
+		return cp;
+		}
 
 	}
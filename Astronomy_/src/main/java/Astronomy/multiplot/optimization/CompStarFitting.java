@@ -27,17 +27,27 @@ public class CompStarFitting extends Optimizer {
             if (Thread.interrupted()) break;
             fitOptimization.compCounter.dynamicSet(counter);
 
-            var x = fitOptimization.setArrayToState(state);
-            var r = CurveFitter.getInstance(curve, fitOptimization.getTargetStar()).fitCurveAndGetResults(x);
-
-            if (Double.isNaN(r.rms()) || r.rms() <= 0 || Double.isNaN(r.bic())) continue;
+            var rms = rms(fitOptimization, curve, state);
+            if (Double.isNaN(rms)) continue;
 
             //AIJLogger.log(state.toString(2));
-            //AIJLogger.log(r);
-            var newState = new FitOptimization.MinimumState(state, r.rms());
+            var newState = new FitOptimization.MinimumState(state, rms);
             if (newState.lessThan(minimumState)) minimumState = newState;
             counter = counter.add(BigInteger.ONE);
         }
         return minimumState;
     }
+
+    /**
+     * Fit the curve with the comparison stars of {@code state}.
+     *
+     * @return the RMS of the fit, or NaN if the fit is not valid.
+     */
+    static double rms(FitOptimization fitOptimization, int curve, BigInteger state) {
+        var x = fitOptimization.setArrayToState(state);
+        var r = CurveFitter.getInstance(curve, fitOptimization.getTargetStar()).fitCurveAndGetResults(x);
+
+        if (Double.isNaN(r.rms()) || r.rms() <= 0 || Double.isNaN(r.bic())) return Double.NaN;
+        return r.rms();
+    }
 }
@@ -0,0 +1,149 @@
+package Astronomy.multiplot.optimization;
+
+import Astronomy.FitOptimization;
+import ij.astro.logging.Translation;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Heuristic searches of comparison star combinations, for ensembles too large for the exhaustive search of
+ * {@link CompStarFitting}, which needs 2^n fits for n stars.
+ * <p>
+ * Candidate states are scored in parallel on the {@link FitOptimization} pool, and the RMS of every state is
+ * memoized so that states reached more than once are only fit once.
+ */
+@Translation(value = "Comparison Star Search", trackThread = true)
+public class CompStarSearch extends Optimizer {
+    public static final int DEFAULT_BEAM_WIDTH = 8;
+    private final Mode mode;
+    private final int starCount;
+    private final int beamWidth;
+    private final HashMap<BigInteger, Double> rmsCache = new HashMap<>();
+    private long evaluated;
+
+    /**
+     * @param initialState the comparison stars to start from, the search only considers the stars in this state.
+     */
+    public CompStarSearch(Mode mode, BigInteger initialState, FitOptimization fitOptimization) {
+        this(mode, initialState, DEFAULT_BEAM_WIDTH, fitOptimization);
+    }
+
+    public CompStarSearch(Mode mode, BigInteger initialState, int beamWidth, FitOptimization fitOptimization) {
+        super(initialState, initialState, fitOptimization);
+        this.mode = mode;
+        this.starCount = initialState.bitLength();
+        this.beamWidth = Math.max(1, beamWidth);
+    }
+
+    @Override
+    public FitOptimization.MinimumState call() throws Exception {
+        return switch (mode) {
+            case STEPWISE -> stepwise();
+            case BEAM -> beam();
+        };
+    }
+
+    /**
+     * Starting from the initial state, repeatedly moves to the best state that adds or removes a single star,
+     * until no such move improves the RMS.
+     */
+    private FitOptimization.MinimumState stepwise() throws InterruptedException {
+        var minimumState = rank(List.of(endState)).stream().findFirst()
+                .orElse(new FitOptimization.MinimumState(endState, Double.MAX_VALUE));
+
+        while (!Thread.currentThread().isInterrupted()) {
+            var current = minimumState.state();
+            var neighbours = IntStream.range(0, starCount)
+                    .mapToObj(current::flipBit)
+                    .filter(state -> state.signum() > 0)
+                    .toList();
+
+            var ranked = rank(neighbours);
+            if (ranked.isEmpty() || !ranked.get(0).lessThan(minimumState)) break;
+            minimumState = ranked.get(0);
+        }
+
+        return minimumState;
+    }
+
+    /**
+     * Builds up ensembles one star at a time, keeping only the {@link CompStarSearch#beamWidth} best states of
+     * each size.
+     */
+    private FitOptimization.MinimumState beam() throws InterruptedException {
+        var minimumState = new FitOptimization.MinimumState();
+        List<BigInteger> level = IntStream.range(0, starCount).mapToObj(BigInteger.ONE::shiftLeft).toList();
+
+        while (!level.isEmpty() && !Thread.currentThread().isInterrupted()) {
+            var ranked = rank(level);
+            if (ranked.isEmpty()) break;
+            if (ranked.get(0).lessThan(minimumState)) minimumState = ranked.get(0);
+
+            level = ranked.subList(0, Math.min(beamWidth, ranked.size())).stream()
+                    .map(FitOptimization.MinimumState::state)
+                    .flatMap(state -> IntStream.range(0, starCount)
+                            .filter(i -> !state.testBit(i))
+                            .mapToObj(state::setBit))
+                    .distinct()
+                    .toList();
+        }
+
+        return minimumState;
+    }
+
+    /**
+     * Scores the states, fitting those not already in the cache in parallel.
+     *
+     * @return the states with a valid fit, ordered by increasing RMS.
+     */
+    private List<FitOptimization.MinimumState> rank(List<BigInteger> states) throws InterruptedException {
+        var unscored = states.stream().filter(state -> !rmsCache.containsKey(state)).toList();
+        var rms = fitOptimization.evaluateStates(unscored, state -> CompStarFitting.rms(fitOptimization, curve, state));
+        if (rms == null) {
+            Thread.currentThread().interrupt();
+            return List.of();
+        }
+        for (int i = 0; i < unscored.size(); i++) {
+            rmsCache.put(unscored.get(i), rms[i]);
+        }
+
+        evaluated += unscored.size();
+        fitOptimization.compCounter.dynamicSet(BigInteger.valueOf(evaluated));
+
+        var ranked = new ArrayList<FitOptimization.MinimumState>(states.size());
+        for (BigInteger state : states) {
+            var r = rmsCache.get(state);
+            if (!Double.isNaN(r)) ranked.add(new FitOptimization.MinimumState(state, r));
+        }
+        ranked.sort(Comparator.comparingDouble(FitOptimization.MinimumState::comparator));
+        return ranked;
+    }
+
+    public enum Mode {
+        /**
+         * Greedy forward/backward selection from the currently enabled stars.
+         */
+        STEPWISE,
+        /**
+         * Beam search over ensembles of increasing size.
+         */
+        BEAM;
+
+        /**
+         * @return an estimate of the number of fits the search needs for {@code n} stars, used for the progress
+         * display.
+         */
+        public BigInteger estimateEvaluations(int n, int beamWidth) {
+            var count = switch (this) {
+                case STEPWISE -> 1L + (long) n * n;
+                case BEAM -> n + (long) Math.max(1, beamWidth) * n * (n - 1) / 2;
+            };
+            return BigInteger.valueOf(count);
+        }
+    }
+}
@@ -0,0 +1,492 @@
+package astroj;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Aligns images of the same star field without apertures or WCS headers.
+ * <p>
+ * Stars are detected in each image and triangles of the brightest ones are compared to those of a reference image by
+ * their shape, which does not change with a shift, rotation or change of scale. Each pair of similar triangles votes
+ * for the pairing of their corners, and the best supported star pairs are fit with a {@link Transform}. The images can
+ * then be resampled onto the reference with {@link #warp(ImageProcessor, Transform, boolean)}.
+ * <p>
+ * An instance holds only the reference, so one can match images from several threads.
+ */
+public class AsterismAligner {
+    /**
+     * The number of the brightest stars to detect and keep in each image.
+     */
+    private static final int MAX_STARS = 60;
+    /**
+     * The number of the brightest stars that triangles are formed from.
+     */
+    private static final int TRIANGLE_STARS = 25;
+    /**
+     * Triangles with a shorter side are too imprecise to compare.
+     */
+    private static final double MIN_SIDE = 10;
+    /**
+     * The tolerance on the side ratios for triangles to be considered similar.
+     */
+    private static final double RATIO_TOLERANCE = 0.005;
+    /**
+     * The largest distance, in pixels, from a transformed reference star for a star to be paired with it.
+     */
+    private static final double MATCH_RADIUS = 3;
+    private static final int CENTROID_RADIUS = 3;
+
+    private final List<Star> referenceStars;
+    private final HashMap<Long, ArrayList<Triangle>> referenceTriangles;
+
+    private AsterismAligner(List<Star> referenceStars) {
+        this.referenceStars = referenceStars;
+        referenceTriangles = new HashMap<>();
+        for (Triangle triangle : triangles(referenceStars)) {
+            referenceTriangles.computeIfAbsent(key(cell(triangle.r0), cell(triangle.r1)), $ -> new ArrayList<>()).add(triangle);
+        }
+    }
+
+    /**
+     * @return the aligner for {@code reference}, or {@code null} if too few stars were found in it.
+     */
+    public static AsterismAligner forReference(ImageProcessor reference) {
+        var stars = detectStars(reference, MAX_STARS);
+        return stars.size() < 3 ? null : new AsterismAligner(stars);
+    }
+
+    public int referenceStarCount() {
+        return referenceStars.size();
+    }
+
+    /**
+     * @return the transform from reference pixel coordinates to those of {@code ip}, or {@code null} if its stars could
+     * not be matched to the reference.
+     */
+    public Transform match(ImageProcessor ip) {
+        var stars = detectStars(ip, MAX_STARS);
+        if (stars.size() < 3) return null;
+
+        // Vote for star pairings with the corners of similar triangles
+        var votes = new int[stars.size()][referenceStars.size()];
+        for (Triangle triangle : triangles(stars)) {
+            var c0 = cell(triangle.r0);
+            var c1 = cell(triangle.r1);
+            for (int i = c0 - 1; i <= c0 + 1; i++) {
+                for (int j = c1 - 1; j <= c1 + 1; j++) {
+                    var candidates = referenceTriangles.get(key(i, j));
+                    if (candidates == null) continue;
+                    for (Triangle reference : candidates) {
+                        if (reference.clockwise != triangle.clockwise ||
+                                Math.abs(reference.r0 - triangle.r0) > RATIO_TOLERANCE ||
+                                Math.abs(reference.r1 - triangle.r1) > RATIO_TOLERANCE) {
+                            continue;
+                        }
+                        for (int k = 0; k < 3; k++) {
+                            votes[triangle.corners[k]][reference.corners[k]]++;
+                        }
+                    }
+                }
+            }
+        }
+
+        // Take the best supported pairings, each star at most once
+        var pairs = new ArrayList<int[]>();
+        for (int i = 0; i < stars.size(); i++) {
+            for (int j = 0; j < referenceStars.size(); j++) {
+                if (votes[i][j] > 1) pairs.add(new int[]{i, j, votes[i][j]});
+            }
+        }
+        pairs.sort(Comparator.comparingInt((int[] p) -> p[2]).reversed());
+        var usedStar = new boolean[stars.size()];
+        var usedReference = new boolean[referenceStars.size()];
+        var matched = new ArrayList<int[]>();
+        var minVotes = pairs.isEmpty() ? 0 : Math.max(2, pairs.get(0)[2] / 4);
+        for (int[] pair : pairs) {
+            if (pair[2] < minVotes) break;
+            if (usedStar[pair[0]] || usedReference[pair[1]]) continue;
+            usedStar[pair[0]] = true;
+            usedReference[pair[1]] = true;
+            matched.add(pair);
+        }
+
+        var transform = fitRejectingOutliers(stars, matched);
+        if (transform == null) return null;
+
+        // Pair every reference star that lands near a detected star, for a fit over the whole field
+        var all = new ArrayList<int[]>();
+        for (int j = 0; j < referenceStars.size(); j++) {
+            var predicted = transform.apply(referenceStars.get(j).x, referenceStars.get(j).y);
+            var best = -1;
+            var bestDistance = MATCH_RADIUS * MATCH_RADIUS;
+            for (int i = 0; i < stars.size(); i++) {
+                var dx = stars.get(i).x - predicted[0];
+                var dy = stars.get(i).y - predicted[1];
+                var d = dx * dx + dy * dy;
+                if (d <= bestDistance) {
+                    bestDistance = d;
+                    best = i;
+                }
+            }
+            if (best >= 0) all.add(new int[]{best, j});
+        }
+        var refined = fitRejectingOutliers(stars, all);
+        return refined != null ? refined : transform;
+    }
+
+    /**
+     * Fits the pairs, dropping the worst fitting one while it is off by more than {@link #MATCH_RADIUS}.
+     *
+     * @return {@code null} if fewer than 3 pairs are left or the fit is implausible.
+     */
+    private Transform fitRejectingOutliers(List<Star> stars, List<int[]> pairs) {
+        var kept = new ArrayList<>(pairs);
+        while (kept.size() >= 3) {
+            var transform = fit(stars, kept);
+            var worst = -1;
+            var worstDistance = MATCH_RADIUS * MATCH_RADIUS;
+            for (int k = 0; k < kept.size(); k++) {
+                var star = stars.get(kept.get(k)[0]);
+                var reference = referenceStars.get(kept.get(k)[1]);
+                var predicted = transform.apply(reference.x, reference.y);
+                var dx = star.x - predicted[0];
+                var dy = star.y - predicted[1];
+                if (dx * dx + dy * dy > worstDistance) {
+                    worstDistance = dx * dx + dy * dy;
+                    worst = k;
+                }
+            }
+            if (worst < 0) {
+                var scale = transform.scale();
+                return scale > 0.5 && scale < 2 ? transform : null;
+            }
+            kept.remove(worst);
+        }
+        return null;
+    }
+
+    /**
+     * Least squares fit of the similarity transform taking the reference stars to the paired stars.
+     */
+    private Transform fit(List<Star> stars, List<int[]> pairs) {
+        double mu = 0, mv = 0, mx = 0, my = 0;
+        for (int[] pair : pairs) {
+            mu += referenceStars.get(pair[1]).x;
+            mv += referenceStars.get(pair[1]).y;
+            mx += stars.get(pair[0]).x;
+            my += stars.get(pair[0]).y;
+        }
+        mu /= pairs.size();
+        mv /= pairs.size();
+        mx /= pairs.size();
+        my /= pairs.size();
+
+        double sa = 0, sb = 0, norm = 0;
+        for (int[] pair : pairs) {
+            var u = referenceStars.get(pair[1]).x - mu;
+            var v = referenceStars.get(pair[1]).y - mv;
+            var x = stars.get(pair[0]).x - mx;
+            var y = stars.get(pair[0]).y - my;
+            sa += u * x + v * y;
+            sb += u * y - v * x;
+            norm += u * u + v * v;
+        }
+        var a = sa / norm;
+        var b = sb / norm;
+        return new Transform(a, b, mx - (a * mu - b * mv), my - (b * mu + a * mv));
+    }
+
+    /**
+     * Finds the stars in an image: local maxima well above the background that are not single hot pixels, located by
+     * their background subtracted centroid.
+     *
+     * @return at most {@code maxStars} stars, brightest first.
+     */
+    public static List<Star> detectStars(ImageProcessor ip, int maxStars) {
+        var width = ip.getWidth();
+        var height = ip.getHeight();
+
+        // Robust background level and noise from a sample of the pixels
+        var step = Math.max(1, (int) Math.sqrt((double) width * height / 40000));
+        var sample = new double[((width + step - 1) / step) * ((height + step - 1) / step)];
+        var n = 0;
+        for (int y = 0; y < height; y += step) {
+            for (int x = 0; x < width; x += step) {
+                var v = ip.getPixelValue(x, y);
+                if (!Float.isNaN(v)) sample[n++] = v;
+            }
+        }
+        if (n == 0) return List.of();
+        Arrays.sort(sample, 0, n);
+        var median = sample[n / 2];
+        for (int i = 0; i < n; i++) {
+            sample[i] = Math.abs(sample[i] - median);
+        }
+        Arrays.sort(sample, 0, n);
+        var sigma = Math.max(1.4826 * sample[n / 2], Double.MIN_NORMAL);
+
+        var border = CENTROID_RADIUS + 1;
+        var maxima = StarFinder.findLocalMaxima(new ImagePlus("", ip), median + 5 * sigma, Double.MAX_VALUE, border,
+                1, 4 * maxStars).coordinateMaximas().descendingSet();
+
+        var stars = new ArrayList<Star>();
+        var placed = new StarFinder.MaximaGrid(List.of(), 2 * CENTROID_RADIUS);
+        var wing = median + 2 * sigma;
+        for (StarFinder.CoordinateMaxima peak : maxima) {
+            var px = (int) peak.x();
+            var py = (int) peak.y();
+            if (placed.anyWithin(px, py, 4.0 * CENTROID_RADIUS * CENTROID_RADIUS)) continue;
+
+            var brightNeighbors = 0;
+            for (int d = 0; d < 8; d++) {
+                if (ip.getPixelValue(px + StarFinder.DIR_X_OFFSET[d], py + StarFinder.DIR_Y_OFFSET[d]) > wing) {
+                    brightNeighbors++;
+                }
+            }
+            if (brightNeighbors < 2) continue;
+
+            double sum = 0, sx = 0, sy = 0;
+            for (int y = py - CENTROID_RADIUS; y <= py + CENTROID_RADIUS; y++) {
+                for (int x = px - CENTROID_RADIUS; x <= px + CENTROID_RADIUS; x++) {
+                    var v = ip.getPixelValue(x, y) - median;
+                    if (v > 0) {
+                        sum += v;
+                        sx += v * x;
+                        sy += v * y;
+                    }
+                }
+            }
+            if (sum <= 0) continue;
+
+            stars.add(new Star(sx / sum, sy / sum, sum));
+            placed.add(peak);
+            if (stars.size() == maxStars) break;
+        }
+        stars.sort(Comparator.comparingDouble(Star::flux).reversed());
+        return stars;
+    }
+
+    /**
+     * Resamples {@code ip} onto the reference, in parallel row strips over the pixel array. Pixels that fall outside
+     * of {@code ip} are 0.
+     *
+     * @param transform   from reference pixel coordinates to those of {@code ip}.
+     * @param interpolate whether to interpolate bilinearly, otherwise the nearest pixel is taken.
+     * @return a processor of the same type and size as {@code ip}.
+     */
+    public static ImageProcessor warp(ImageProcessor ip, Transform transform, boolean interpolate) {
+        var width = ip.getWidth();
+        var height = ip.getHeight();
+        var out = ip.duplicate();
+        var src = ip.getPixels();
+        var dst = out.getPixels();
+
+        var strips = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 4, height / 16));
+        IntStream.range(0, strips).parallel().forEach(strip -> {
+            var start = (int) ((long) height * strip / strips);
+            var end = (int) ((long) height * (strip + 1) / strips);
+            for (int j = start; j < end; j++) {
+                var x = transform.tx - transform.b * j;
+                var y = transform.a * j + transform.ty;
+                var offset = j * width;
+                for (int i = 0; i < width; i++, x += transform.a, y += transform.b) {
+                    if (interpolate) {
+                        if (x >= 0 && x < width && y >= 0 && y < height) {
+                            interpolate(src, dst, offset + i, x, y, width, height);
+                        } else {
+                            clear(dst, offset + i);
+                        }
+                    } else {
+                        var ix = (int) Math.floor(x + Centroid.PIXELCENTER);
+                        var iy = (int) Math.floor(y + Centroid.PIXELCENTER);
+                        if (ix >= 0 && ix < width && iy >= 0 && iy < height) {
+                            copy(src, dst, iy * width + ix, offset + i);
+                        } else {
+                            clear(dst, offset + i);
+                        }
+                    }
+                }
+            }
+        });
+        return out;
+    }
+
+    private static void copy(Object src, Object dst, int from, int to) {
+        if (src instanceof float[] p) {
+            ((float[]) dst)[to] = p[from];
+        } else if (src instanceof short[] p) {
+            ((short[]) dst)[to] = p[from];
+        } else if (src instanceof byte[] p) {
+            ((byte[]) dst)[to] = p[from];
+        } else if (src instanceof int[] p) {
+            ((int[]) dst)[to] = p[from];
+        }
+    }
+
+    private static void clear(Object pixels, int i) {
+        if (pixels instanceof float[] p) {
+            p[i] = 0;
+        } else if (pixels instanceof short[] p) {
+            p[i] = 0;
+        } else if (pixels instanceof byte[] p) {
+            p[i] = 0;
+        } else if (pixels instanceof int[] p) {
+            p[i] = 0;
+        }
+    }
+
+    /**
+     * Bilinear interpolation as {@link ImageProcessor#getInterpolatedPixel(double, double)} does it, on raw values
+     * and per channel for RGB.
+     */
+    private static void interpolate(Object src, Object dst, int i, double x, double y, int width, int height) {
+        if (x >= width - 1.0) x = width - 1.001;
+        if (y >= height - 1.0) y = height - 1.001;
+        if (x < 0) x = 0;
+        if (y < 0) y = 0;
+        var xBase = (int) x;
+        var yBase = (int) y;
+        var xFraction = x - xBase;
+        var yFraction = y - yBase;
+        var offset = yBase * width + xBase;
+
+        if (src instanceof float[] p) {
+            ((float[]) dst)[i] = (float) bilinear(p[offset], p[offset + 1], p[offset + width], p[offset + width + 1], xFraction, yFraction);
+        } else if (src instanceof short[] p) {
+            var v = bilinear(p[offset] & 0xffff, p[offset + 1] & 0xffff, p[offset + width] & 0xffff,
+                    p[offset + width + 1] & 0xffff, xFraction, yFraction);
+            ((short[]) dst)[i] = (short) (v + 0.5);
+        } else if (src instanceof byte[] p) {
+            var v = bilinear(p[offset] & 0xff, p[offset + 1] & 0xff, p[offset + width] & 0xff,
+                    p[offset + width + 1] & 0xff, xFraction, yFraction);
+            ((byte[]) dst)[i] = (byte) (v + 0.5);
+        } else if (src instanceof int[] p) {
+            var rgb = 0;
+            for (int shift = 16; shift >= 0; shift -= 8) {
+                var v = bilinear((p[offset] >> shift) & 0xff, (p[offset + 1] >> shift) & 0xff,
+                        (p[offset + width] >> shift) & 0xff, (p[offset + width + 1] >> shift) & 0xff, xFraction, yFraction);
+                rgb |= ((int) (v + 0.5) & 0xff) << shift;
+            }
+            ((int[]) dst)[i] = 0xff000000 | rgb;
+        }
+    }
+
+    /**
+     * A NaN corner is replaced by its neighbor on the near side, as in {@code FloatProcessor}.
+     */
+    private static double bilinear(double lowerLeft, double lowerRight, double upperLeft, double upperRight,
+                                   double xFraction, double yFraction) {
+        double upperAverage;
+        if (Double.isNaN(upperLeft) && xFraction >= 0.5) {
+            upperAverage = upperRight;
+        } else if (Double.isNaN(upperRight) && xFraction < 0.5) {
+            upperAverage = upperLeft;
+        } else {
+            upperAverage = upperLeft + xFraction * (upperRight - upperLeft);
+        }
+        double lowerAverage;
+        if (Double.isNaN(lowerLeft) && xFraction >= 0.5) {
+            lowerAverage = lowerRight;
+        } else if (Double.isNaN(lowerRight) && xFraction < 0.5) {
+            lowerAverage = lowerLeft;
+        } else {
+            lowerAverage = lowerLeft + xFraction * (lowerRight - lowerLeft);
+        }
+        if (Double.isNaN(lowerAverage) && yFraction >= 0.5) {
+            return upperAverage;
+        } else if (Double.isNaN(upperAverage) && yFraction < 0.5) {
+            return lowerAverage;
+        }
+        return lowerAverage + yFraction * (upperAverage - lowerAverage);
+    }
+
+    /**
+     * All triangles of the brightest stars with sides long enough to be measured well.
+     */
+    private static List<Triangle> triangles(List<Star> stars) {
+        var count = Math.min(stars.size(), TRIANGLE_STARS);
+        var triangles = new ArrayList<Triangle>();
+        for (int i = 0; i < count; i++) {
+            for (int j = i + 1; j < count; j++) {
+                for (int k = j + 1; k < count; k++) {
+                    var triangle = Triangle.of(stars, i, j, k);
+                    if (triangle != null) triangles.add(triangle);
+                }
+            }
+        }
+        return triangles;
+    }
+
+    private static int cell(double ratio) {
+        return (int) Math.floor(ratio / RATIO_TOLERANCE);
+    }
+
+    private static long key(int c0, int c1) {
+        return ((long) c0 << 32) | (c1 & 0xffffffffL);
+    }
+
+    /**
+     * @param x    centroid in pixel coordinates.
+     * @param y    centroid in pixel coordinates.
+     * @param flux background subtracted counts within the centroid box.
+     */
+    public record Star(double x, double y, double flux) {}
+
+    /**
+     * A shift, rotation and change of scale, taking {@code (u, v)} to
+     * {@code (a * u - b * v + tx, b * u + a * v + ty)}.
+     */
+    public record Transform(double a, double b, double tx, double ty) {
+        public static Transform translation(double dx, double dy) {
+            return new Transform(1, 0, dx, dy);
+        }
+
+        public double[] apply(double u, double v) {
+            return new double[]{a * u - b * v + tx, b * u + a * v + ty};
+        }
+
+        public double scale() {
+            return Math.hypot(a, b);
+        }
+
+        /**
+         * @return the rotation in degrees, counterclockwise in pixel coordinates.
+         */
+        public double rotation() {
+            return Math.toDegrees(Math.atan2(b, a));
+        }
+    }
+
+    /**
+     * A triangle described by the ratios of its shorter sides to its longest. The corners are ordered by the length
+     * of the side opposite them, so that those of similar triangles correspond.
+     */
+    private record Triangle(double r0, double r1, boolean clockwise, int[] corners) {
+        static Triangle of(List<Star> stars, int i, int j, int k) {
+            var p = new Star[]{stars.get(i), stars.get(j), stars.get(k)};
+            var index = new int[]{i, j, k};
+            // Side c is opposite corner c
+            var sides = new double[]{
+                    Math.hypot(p[1].x - p[2].x, p[1].y - p[2].y),
+                    Math.hypot(p[0].x - p[2].x, p[0].y - p[2].y),
+                    Math.hypot(p[0].x - p[1].x, p[0].y - p[1].y)};
+            var order = new Integer[]{0, 1, 2};
+            Arrays.sort(order, Comparator.comparingDouble(c -> sides[c]));
+            if (sides[order[0]] < MIN_SIDE) return null;
+
+            var corners = new int[]{index[order[0]], index[order[1]], index[order[2]]};
+            var a = p[order[0]];
+            var b = p[order[1]];
+            var c = p[order[2]];
+            var cross = (b.x - a.x) * (c.y - a.y) - (b.y - a.y) * (c.x - a.x);
+            return new Triangle(sides[order[0]] / sides[order[2]], sides[order[1]] / sides[order[2]], cross < 0, corners);
+        }
+    }
+}
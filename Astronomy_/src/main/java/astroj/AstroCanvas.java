@@ -51,6 +51,8 @@ public class AstroCanvas extends OverlayCanvas {
         private double radius, rBack1, rBack2;
 
         private boolean isTransformed;
+        private final TiledImageRenderer tiledRenderer = new TiledImageRenderer(this);
+        private boolean imageStale; // imp.getImage() is outdated because the tiled renderer drew the last update
         public AffineTransform canvTrans = new AffineTransform(); //default identity transform
         public AffineTransform invCanvTrans = new AffineTransform(); //default identity transform
 
@@ -570,16 +572,44 @@ public class AstroCanvas extends OverlayCanvas {
 		}
 		Roi roi = imp.getRoi();
 		try {
+            // Large 16 and 32-bit frames are converted to 8-bit per tile in view, rather than whole by updateImage()
+            boolean tiled = !netRotate && TiledImageRenderer.canRender(imp);
 			if (imageUpdated) 
                 {
 				imageUpdated = false;
-				imp.updateImage();
+                if (tiled)
+                    {
+                    tiledRenderer.invalidate();
+                    imageStale = true;
+                    }
+                else
+                    {
+                    imp.updateImage();
+                    imageStale = false;
+                    }
+                }
+            else if (imageStale && !tiled)
+                {
+                imp.updateImage();
+                imageStale = false;
                 }
 			Graphics offScreenGraphics = offScreenImage.getGraphics();
 			setInterpolation(offScreenGraphics, Prefs.interpolateScaledImages);
-			Image img = imp.getImage();
+			Image img = tiled ? null : imp.getImage();
             flipAndRotateCanvas(offScreenGraphics);
-            if (!netRotate)
+            if (tiled)
+                {
+                tiledRenderer.draw(offScreenGraphics, imp.getProcessor(),
+                        srcRect.x<0?(int)(-srcRect.x*magnification):0,
+                        srcRect.y<0?(int)(-srcRect.y*magnification):0,
+                        srcRect.x+srcRect.width<imp.getWidth()?offScrnWidth:(int)((imp.getWidth()-srcRect.x)*magnification),
+                        srcRect.y+srcRect.height<imp.getHeight()?offScrnHeight:(int)((imp.getHeight()-srcRect.y)*magnification),
+                        srcRect.x<0?0:srcRect.x,
+                        srcRect.y<0?0:srcRect.y,
+                        srcRect.x+srcRect.width<imp.getWidth()?srcRect.x+clipWidth:imp.getWidth(),
+                        srcRect.y+srcRect.height<imp.getHeight()?srcRect.y+clipHeight:imp.getHeight());
+                }
+            else if (!netRotate)
                 {
                 if (img!=null)
                     {
@@ -656,8 +686,9 @@ public class AstroCanvas extends OverlayCanvas {
 
 		Roi roi = imp.getRoi();
 
-        if (imageUpdated) {
+        if (imageUpdated || imageStale) {
             imageUpdated = false;
+            imageStale = false;
             imp.updateImage();
         }
         Graphics imageGraphics = image.getGraphics();
@@ -767,7 +798,6 @@ public class AstroCanvas extends OverlayCanvas {
 
     public void flipAndRotateCanvas(Graphics g) {
         invCanvTrans = ((Graphics2D)g).getTransform();
-        Image img = imp.getImage();
         double aspectDelta = (getWidth() - getHeight())/2.0;
         double transX = (getWidth()/2.0);
         double transY = (getHeight()/2.0);
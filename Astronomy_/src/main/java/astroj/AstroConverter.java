@@ -99,14 +99,7 @@ public class AstroConverter extends LeapSeconds implements ItemListener, ActionL
     double[] moonxyz = new double[3];
     double barytcor = 0.0;
     double baryvcor = 0.0;
-    double jd_el = 0.0;
-    double [] incl = {0.,0.,0.,0.,0.,0.,0.,0.,0.};  // inclination
-    double [] Omega = {0.,0.,0.,0.,0.,0.,0.,0.,0.}; // longit of asc node
-    double [] omega = {0.,0.,0.,0.,0.,0.,0.,0.,0.}; // longit of perihelion
-    double [] a = {0.,0.,0.,0.,0.,0.,0.,0.,0.};     // semimajor axis
-    double [] daily = {0.,0.,0.,0.,0.,0.,0.,0.,0.}; // mean daily motion, degr.
-    double [] ecc = {0.,0.,0.,0.,0.,0.,0.,0.,0.};   // eccentricity
-    double [] L_0 = {0.,0.,0.,0.,0.,0.,0.,0.,0.};   // starting longitude (?)
+    final SolarSystem solarSystem = new SolarSystem();
 
 
     double[] utDateNow = {0.0, 0.0, 0.0, 0.0};
@@ -4105,10 +4098,10 @@ void processObservatories(String line, BufferedReader in)
         double [] planetcel = {0.0, 0.0, 0.0};
         double [] topcel = {0.0, 0.0, 0.0};
         double [] radec = {0.0, 0.0};
-        eclipt = planetxyz(2, jd);   // earth
-        earthxyz = eclrot(jd,eclipt[0],eclipt[1],eclipt[2]);
-        eclipt = planetxyz(planet, jd);  //other planet
-        planetxyz = eclrot(jd,eclipt[0],eclipt[1],eclipt[2]);
+        eclipt = solarSystem.planetxyz(2, jd);   // earth
+        earthxyz = SolarSystem.eclrot(jd,eclipt[0],eclipt[1],eclipt[2]);
+        eclipt = solarSystem.planetxyz(planet, jd);  //other planet
+        planetxyz = SolarSystem.eclrot(jd,eclipt[0],eclipt[1],eclipt[2]);
         planetcel = earthview(earthxyz,planetxyz,jd);
         radec[0] = planetcel[0];
         radec[1] = planetcel[1];
@@ -4225,30 +4218,30 @@ void processObservatories(String line, BufferedReader in)
   //        s.xyzvel[1] * Const.KMS_AUDAY,
    //       s.xyzvel[2] * Const.KMS_AUDAY, when.jd);
 
-        comp_el(jd);
+        solarSystem.comp_el(jd);
 
-        eclipt = planetxyz(2,jd);   // earth  ... do separately
-        earthxyz = eclrot(jd,eclipt[0],eclipt[1],eclipt[2]);
+        eclipt = solarSystem.planetxyz(2,jd);   // earth  ... do separately
+        earthxyz = SolarSystem.eclrot(jd,eclipt[0],eclipt[1],eclipt[2]);
         planetxyz[2][0] = earthxyz[0];
         planetxyz[2][1] = earthxyz[1];
         planetxyz[2][2] = earthxyz[2];
-        ecliptvel = planetvel(2,jd);
-        equatvel = eclrot(jd,ecliptvel[0],ecliptvel[1], ecliptvel[2]);
+        ecliptvel = solarSystem.planetvel(2,jd);
+        equatvel = SolarSystem.eclrot(jd,ecliptvel[0],ecliptvel[1], ecliptvel[2]);
         planetvelxyz[2][0] = equatvel[0];
         planetvelxyz[2][1] = equatvel[1];
         planetvelxyz[2][2] = equatvel[2];
 
         for(i = 0; i < 9; i++) {
           if(i != 2)  {  // skip earth
-             eclipt = planetxyz(i,jd);
-             equat = eclrot(jd,eclipt[0],eclipt[1],eclipt[2]);
+             eclipt = solarSystem.planetxyz(i,jd);
+             equat = SolarSystem.eclrot(jd,eclipt[0],eclipt[1],eclipt[2]);
              // save xyz position of planet for barycentric correction.
              planetxyz[i][0] = equat[0];
              planetxyz[i][1] = equat[1];
              planetxyz[i][2] = equat[2];
              // and the velocities, too
-             ecliptvel = planetvel(i,jd);
-             equatvel = eclrot(jd,ecliptvel[0],ecliptvel[1], ecliptvel[2]);
+             ecliptvel = solarSystem.planetvel(i,jd);
+             equatvel = SolarSystem.eclrot(jd,ecliptvel[0],ecliptvel[1], ecliptvel[2]);
              planetvelxyz[i][0] = equatvel[0];
              planetvelxyz[i][1] = equatvel[1];
              planetvelxyz[i][2] = equatvel[2];
@@ -4348,297 +4341,6 @@ void processObservatories(String line, BufferedReader in)
       return retval;
   }
 
-   void comp_el(double jd_in) {
-      /* Compute and load mean elements for the planets. */
-      double T, Tsq, Tcb, d;
-      double ups, P, Q, S, V, W, G, H, zeta, psi;  // Meeus p. 110 ff.
-      double sinQ, sinZeta, cosQ, cosZeta, sinV, cosV, sin2Zeta, cos2Zeta;
-      double sin2Q, cos2Q, sinH, sin2H, cosH, cos2H;
-
-      jd_el = jd_in;
-      d = jd_el - 2415020.;    // 1900
-      T = d / 36525.;
-      Tsq = T * T;
-      Tcb = Tsq * T;
-
-      // Mercury, Venus, and Mars from Explanatory Suppl. p. 113
-
-      // Mercury = 0
-      incl[0] = 7.002880 + 1.8608e-3 * T - 1.83e-5 * Tsq;
-      Omega[0] = 47.14594 + 1.185208 * T + 1.74e-4 * Tsq;
-      omega[0] = 75.899697 + 1.55549 * T + 2.95e-4 * Tsq;
-      a[0] = 0.3870986;
-      daily[0] = 4.0923388;
-      ecc[0] = 0.20561421 + 0.00002046 * T;
-      L_0[0] = 178.179078 + 4.0923770233 * d  +
-	 0.0000226 * Math.pow((3.6525 * T),2.);
-
-      // Venus = 1
-      incl[1] = 3.39363 + 1.00583e-03 * T - 9.722e-7 * Tsq;
-      Omega[1] = 75.7796472 + 0.89985 * T + 4.1e-4 * Tsq;
-      omega[1] = 130.16383 + 1.4080 * T + 9.764e-4 * Tsq;
-      a[1] = 0.723325;
-      daily[1] = 1.60213049;
-      ecc[1] = 0.00682069 - 0.00004774 * T;
-      L_0[1] = 342.767053 + 1.6021687039 * 36525 * T +
-	 0.000023212 * Math.pow((3.6525 * T),2.);
-
-      // Earth = 2  ... elements from old Nautical Almanac
-      ecc[2] = 0.01675104 - 0.00004180*T + 0.000000126*Tsq;
-      incl[2] = 0.0;
-      Omega[2] = 0.0;
-      omega[2] = 101.22083 + 0.0000470684*d + 0.000453*Tsq + 0.000003*Tcb;
-      a[2] = 1.0000007;;
-      daily[2] = 0.985599;
-      L_0[2] = 358.47583 + 0.9856002670*d - 0.000150*Tsq - 0.000003*Tcb +
-	    omega[2];
-
-      // Mars = 3
-      incl[3] = 1.85033 - 6.75e-04 * T - 1.833e-5 * Tsq;
-      Omega[3] = 48.786442 + .770992 * T + 1.39e-6 * Tsq;
-      omega[3] = 334.218203 + 1.840758 * T + 1.299e-4 * Tsq;
-      a[3] = 1.5236915;
-      daily[3] = 0.5240329502 + 1.285e-9 * T;
-      ecc[3] = 0.09331290 - 0.000092064 * T - 0.000000077 * Tsq;
-      L_0[3] = 293.747628 + 0.5240711638 * d  +
-	 0.000023287 * Math.pow((3.6525 * T),2.);
-
-      // Outer planets from Jean Meeus, Astronomical Formulae for
-      // Calculators, 3rd Edn, Willman-Bell; p. 100
-      // Mutual interactions get pretty big; I'm including some of the
-      // larger perturbation terms from Meeus' book.
-
-      // Jupiter = 4
-
-     incl[4] = 1.308736 - 0.0056961 * T + 0.0000039 * Tsq;
-     Omega[4] = 99.443414 + 1.0105300 * T + 0.0003522 * Tsq
-  		- 0.00000851 * Tcb;
-     omega[4] = 12.720972 + 1.6099617 * T + 1.05627e-3 * Tsq
-  	- 3.43e-6 * Tcb;
-     a[4] = 5.202561;
-     daily[4] = 0.08312941782;
-     ecc[4] = .04833475  + 1.64180e-4 * T - 4.676e-7*Tsq -
-  	1.7e-9 * Tcb;
-     L_0[4] = 238.049257 + 3036.301986 * T + 0.0003347 * Tsq -
-  	1.65e-6 * Tcb;
-
-     ups = 0.2*T + 0.1;
-     P = (237.47555 + 3034.9061 * T) / DEG_IN_RADIAN;
-     Q = (265.91650 + 1222.1139 * T) / DEG_IN_RADIAN;
-     S = (243.51721 + 428.4677 * T) / DEG_IN_RADIAN;
-     V = 5*Q - 2*P;
-     W = 2*P - 6*Q + 3*S;
-     zeta = Q - P;
-     psi = S - Q;
-     sinQ = Math.sin(Q);  // compute some of the more popular ones ...
-     cosQ = Math.cos(Q);
-     sin2Q = Math.sin(2.*Q);
-     cos2Q = Math.cos(2.*Q);
-     sinV = Math.sin(V);
-     cosV = Math.cos(V);
-     sinZeta = Math.sin(zeta);
-     cosZeta = Math.cos(zeta);
-     sin2Zeta = Math.sin(2*zeta);
-     cos2Zeta = Math.cos(2*zeta);
-
-     L_0[4] = L_0[4]
-	+ (0.331364 - 0.010281*ups - 0.004692*ups*ups)*sinV
-	+ (0.003228 - 0.064436*ups + 0.002075*ups*ups)*cosV
-	- (0.003083 + 0.000275*ups - 0.000489*ups*ups)*Math.sin(2*V)
-	+ 0.002472 * Math.sin(W) + 0.013619 * sinZeta + 0.018472 * sin2Zeta
-	+ 0.006717 * Math.sin(3*zeta)
-	+ (0.007275  - 0.001253*ups) * sinZeta * sinQ
-	+ 0.006417 * sin2Zeta * sinQ
-	- (0.033839 + 0.001253 * ups) * cosZeta * sinQ
-	- (0.035681 + 0.001208 * ups) * sinZeta * sinQ;
-	/* only part of the terms, the ones first on the list and
-	   selected larger-amplitude terms from farther down. */
-
-     ecc[4] = ecc[4] + 1e-7 * (
-	  (3606 + 130 * ups - 43 * ups*ups) * sinV
-	+ (1289 - 580 * ups) * cosV - 6764 * sinZeta * sinQ
-	- 1110 * sin2Zeta * sinQ
-	+ (1284 + 116 * ups) * cosZeta * sinQ
-	+ (1460 + 130 * ups) * sinZeta * cosQ
-	+ 6074 * cosZeta * cosQ);
-
-     omega[4] = omega[4]
-	+ (0.007192 - 0.003147 * ups) * sinV
-	+ ( 0.000197*ups*ups - 0.00675*ups - 0.020428) * cosV
-	+ 0.034036 * cosZeta * sinQ + 0.037761 * sinZeta * cosQ;
-
-     a[4] = a[4] + 1.0e-6 * (
-	205 * cosZeta - 263 * cosV + 693 * cos2Zeta + 312 * Math.sin(3*zeta)
-	+ 147 * Math.cos(4*zeta) + 299 * sinZeta * sinQ
-	+ 181 * cos2Zeta * sinQ + 181 * cos2Zeta * sinQ
-	+ 204 * sin2Zeta * cosQ + 111 * Math.sin(3*zeta) * cosQ
-	- 337 * cosZeta * cosQ - 111 * cos2Zeta * cosQ
-	);
-
-     // Saturn = 5
-      incl[5] = 2.492519 - 0.00034550*T - 7.28e-7*Tsq;
-      Omega[5] = 112.790414 + 0.8731951*T - 0.00015218*Tsq - 5.31e-6*Tcb ;
-      omega[5] = 91.098214 + 1.9584158*T + 8.2636e-4*Tsq;
-      a[5] = 9.554747;
-      daily[5] = 0.0334978749897;
-      ecc[5] = 0.05589232 - 3.4550e-4 * T - 7.28e-7*Tsq;
-      L_0[5] = 266.564377 + 1223.509884*T + 0.0003245*Tsq - 5.8e-6*Tcb
-	+ (0.018150*ups - 0.814181 + 0.016714 * ups*ups) * sinV
-	+ (0.160906*ups - 0.010497 - 0.004100 * ups*ups) * cosV
-	+ 0.007581 * Math.sin(2*V) - 0.007986 * Math.sin(W)
-	- 0.148811 * sinZeta - 0.040786*sin2Zeta
-	- 0.015208 * Math.sin(3*zeta) - 0.006339 * Math.sin(4*zeta)
-	- 0.006244 * sinQ
-	+ (0.008931 + 0.002728 * ups) * sinZeta * sinQ
-	- 0.016500 * sin2Zeta * sinQ
-	- 0.005775 * Math.sin(3*zeta) * sinQ
-	+ (0.081344 + 0.003206 * ups) * cosZeta * sinQ
-	+ 0.015019 * cos2Zeta * sinQ
-	+ (0.085581 + 0.002494 * ups) * sinZeta * cosQ
-	+ (0.025328 - 0.003117 * ups) * cosZeta * cosQ
-	+ 0.014394 * cos2Zeta * cosQ;   /* truncated here -- no
-		      terms larger than 0.01 degrees, but errors may
-		      accumulate beyond this.... */
-      ecc[5] = ecc[5] + 1.0e-7 * (
-	  (2458. * ups - 7927.) * sinV + (13381. + 1226. * ups) * cosV
-	+ 12415. * sinQ + 26599. * cosZeta * sinQ
-	- 4687. * cos2Zeta * sinQ - 12696. * sinZeta * cosQ
-	- 4200. * sin2Zeta * cosQ +(2211. - 286*ups) * sinZeta*sin2Q
-	- 2208. * sin2Zeta * sin2Q
-	- 2780. * cosZeta * sin2Q + 2022. * cos2Zeta*sin2Q
-	- 2842. * sinZeta * cos2Q - 1594. * cosZeta * cos2Q
-	+ 2162. * cos2Zeta*cos2Q );  /* terms with amplitudes
-	    > 2000e-7;  some secular variation ignored. */
-      omega[5] = omega[5]
-	+ (0.077108 + 0.007186 * ups - 0.001533 * ups*ups) * sinV
-	+ (0.045803 - 0.014766 * ups - 0.000536 * ups*ups) * cosV
-	- 0.075825 * sinZeta * sinQ - 0.024839 * sin2Zeta*sinQ
-	- 0.072582 * cosQ - 0.150383 * cosZeta * cosQ +
-	0.026897 * cos2Zeta * cosQ;  /* all terms with amplitudes
-	    greater than 0.02 degrees -- lots of others! */
-      a[5] = a[5] + 1.0e-6 * (
-	2933. * cosV + 33629. * cosZeta - 3081. * cos2Zeta
-	- 1423. * Math.cos(3*zeta) + 1098. * sinQ - 2812. * sinZeta * sinQ
-	+ 2138. * cosZeta * sinQ  + 2206. * sinZeta * cosQ
-	- 1590. * sin2Zeta*cosQ + 2885. * cosZeta * cosQ
-	+ 2172. * cos2Zeta * cosQ);  /* terms with amplitudes greater
-	   than 1000 x 1e-6 */
-
-      // Uranus = 6
-      incl[6] = 0.772464 + 0.0006253*T + 0.0000395*Tsq;
-      Omega[6] = 73.477111 + 0.4986678*T + 0.0013117*Tsq;
-      omega[6] = 171.548692 + 1.4844328*T + 2.37e-4*Tsq - 6.1e-7*Tcb;
-      a[6] = 19.21814;
-      daily[6] = 1.1769022484e-2;
-      ecc[6] = 0.0463444 - 2.658e-5 * T;
-      L_0[6] = 244.197470 + 429.863546*T + 0.000316*Tsq - 6e-7*Tcb;
-      /* stick in a little bit of perturbation -- this one really gets
-         yanked around.... after Meeus p. 116*/
-      G = (83.76922 + 218.4901 * T)/DEG_IN_RADIAN;
-      H = 2*G - S;
-
-      sinH = Math.sin(H); sin2H = Math.sin(2.*H);
-      cosH = Math.cos(H); cos2H = Math.cos(2.*H);
-
-      L_0[6] = L_0[6] + (0.864319 - 0.001583 * ups) * sinH
-   	+ (0.082222 - 0.006833 * ups) * cosH
-   	+ 0.036017 * sin2H;
-      omega[6] = omega[6] + 0.120303 * sinH
-   	+ (0.019472 - 0.000947 * ups) * cosH
-   	+ 0.006197 * sin2H;
-      ecc[6] = ecc[6] + 1.0e-7 * (
-   	20981. * cosH - 3349. * sinH + 1311. * cos2H);
-      a[6] = a[6] - 0.003825 * cosH;
-
-      /* other corrections to "true longitude" are ignored. */
-
-      // Neptune = 7
-      incl[7] = 1.779242 - 9.5436e-3 * T - 9.1e-6*Tsq;
-      Omega[7] = 130.681389 + 1.0989350 * T + 2.4987e-4*Tsq - 4.718e-6*Tcb;
-      omega[7] = 46.727364 + 1.4245744*T + 3.9082e-3*Tsq - 6.05e-7*Tcb;
-      a[7] = 30.10957;
-      daily[7] = 6.020148227e-3;
-      ecc[7] = 0.00899704 + 6.33e-6 * T;
-      L_0[7] = 84.457994 + 219.885914*T + 0.0003205*Tsq - 6e-7*Tcb;
-      L_0[7] = L_0[7]
-	- (0.589833 - 0.001089 * ups) * sinH
-	- (0.056094 - 0.004658 * ups) * cosH
-	- 0.024286 * sin2H;
-      omega[7] = omega[7] + 0.024039 * sinH
-	- 0.025303 * cosH;
-      ecc[7] = ecc[7] + 1.0e-7 * (
-	4389. * sinH + 1129. * sin2H
-	+ 4262. * cosH + 1089. * cos2H);
-      a[7] = a[7] + 8.189e-3 * cosH;
-
-      // Pluto = 8; very approx elements, osculating for Sep 15 1992.
-      d = jd_el - 2448880.5;  /* 1992 Sep 15 */
-      T = d / 36525.;
-      incl[8] = 17.1426;
-      Omega[8] = 110.180;
-      omega[8] = 223.782;
-      a[8] = 39.7465;
-      daily[8] = 0.00393329;
-      ecc[8] = 0.253834;
-      L_0[8] = 228.1027 + 0.00393329 * d;
-  }
-
-  double [] planetxyz(int p, double jd) {
-  /** produces ecliptic X,Y,Z coords for planet number 'p' at date jd. */
-
-     double M, omnotil, nu, r;
-     double e, LL, Om, om, nuu, ii;
-     double [] retvals = {0.,0.,0.};
-
-  // 1992 Astronomical Almanac p. E4 has these formulae.
-
-     ii = incl[p] / DEG_IN_RADIAN;
-     e = ecc[p];
-
-     LL = (daily[p] * (jd - jd_el) + L_0[p]) / DEG_IN_RADIAN;
-     Om = Omega[p] / DEG_IN_RADIAN;
-     om = omega[p] / DEG_IN_RADIAN;
-
-     M = LL - om;
-     omnotil = om - Om;
-     // approximate formula for Kepler equation solution ...
-     nu = M + (2.*e - 0.25 * Math.pow(e,3.)) * Math.sin(M) +
-	     1.25 * e * e * Math.sin(2 * M) +
-	     1.08333333 * Math.pow(e,3.) * Math.sin(3 * M);
-     r = a[p] * (1. - e*e) / (1 + e * Math.cos(nu));
-
-     retvals[0] = r *
-         (Math.cos(nu + omnotil) * Math.cos(Om) - Math.sin(nu +  omnotil) *
-               Math.cos(ii) * Math.sin(Om));
-     retvals[1] = r *
-         (Math.cos(nu +  omnotil) * Math.sin(Om) + Math.sin(nu +  omnotil) *
-		Math.cos(ii) * Math.cos(Om));
-     retvals[2] = r * Math.sin(nu +  omnotil) * Math.sin(ii);
-
-     return retvals;
-
-  }
-
-
-  double [] planetvel(int p, double jd)  {
-
-      /* numerically evaluates planet velocity by brute-force
-      numerical differentiation. Very unsophisticated algorithm. */
-
-        double dt; /* timestep */
-        double x1,y1,z1,x2,y2,z2,r1,d1,r2,d2,ep1;
-        double [] pos1 = {0.,0.,0.};
-        double [] pos2 = {0.,0.,0.};
-        double [] retval = {0.,0.,0.};
-        int i;
-
-        dt = 0.1 / daily[p]; /* time for mean motion of 0.1 degree */
-        pos1 = planetxyz(p, (jd - dt));
-        pos2 = planetxyz(p, (jd + dt));
-        for (i = 0; i < 3; i ++) retval[i] = 0.5 * (pos2[i] - pos1[i]) / dt;
-        return retval;
-        /* answer should be in ecliptic coordinates, in AU per day.*/
-   }
 
 
 
@@ -4723,84 +4425,8 @@ void processObservatories(String line, BufferedReader in)
 
 
 
-/* Implements Jean Meeus' solar ephemer is, from Astronomical
-   Formulae for Calculators, pp. 79 ff.  Position is wrt *mean* equinox of
-   date. */
-
    double [] computesun(double jd, double dT) {
-       double xecl, yecl, zecl;
-       double [] equatorial = {0.,0.,0.};
-       double e, L, T, Tsq, Tcb;
-       double M, Cent, nu, sunlong;
-       double Lrad, Mrad, nurad, R;
-       double A, B, C, D, E, H;
-       double [] retvals = {0.,0.,0.,0.,0.,0.};
-            // will be geora, geodec, geodist, x, y, z (geo)
-
-       // correct jd to ephemeris time once we have that done ...
-
-       jd += (dT) / 86400.0;
-       T = (jd - 2415020.) / 36525.;  // Julian centuries since 1900
-       Tsq = T*T;   Tcb = T*Tsq;
-
-       L = 279.69668 + 36000.76892*T + 0.0003025*Tsq;
-       M = 358.47583 + 35999.04975*T - 0.000150*Tsq - 0.0000033*Tcb;
-       e = 0.01675104 - 0.0000418*T - 0.000000126*Tsq;
-
-       A = (153.23 + 22518.7541 * T) / DEG_IN_RADIAN;  /* A, B due to Venus */
-       B = (216.57 + 45037.5082 * T) / DEG_IN_RADIAN;
-       C = (312.69 + 32964.3577 * T) / DEG_IN_RADIAN;  /* C due to Jupiter */
-                /* D -- rough correction from earth-moon
-                        barycenter to center of earth. */
-       D = (350.74 + 445267.1142*T - 0.00144*Tsq) / DEG_IN_RADIAN;
-       E = (231.19 + 20.20*T) / DEG_IN_RADIAN;
-                       /* "inequality of long period .. */
-       H = (353.40 + 65928.7155*T) / DEG_IN_RADIAN;  /* Jupiter. */
-
-       L = L + 0.00134 * Math.cos(A)
-             + 0.00154 * Math.cos(B)
-	     + 0.00200 * Math.cos(C)
-	     + 0.00179 * Math.sin(D)
-	     + 0.00178 * Math.sin(E);
-
-       Lrad = L/DEG_IN_RADIAN;
-       Mrad = M/DEG_IN_RADIAN;
-
-       Cent = (1.919460 - 0.004789*T -0.000014*Tsq)*Math.sin(Mrad)
-	     + (0.020094 - 0.000100*T) * Math.sin(2.0*Mrad)
-	     + 0.000293 * Math.sin(3.0*Mrad);
-       sunlong = L + Cent;
-
-
-       nu = M + Cent;
-       nurad = nu / DEG_IN_RADIAN;
-
-       R = (1.0000002 * (1 - e*e)) / (1. + e * Math.cos(nurad));
-       R = R + 0.00000543 * Math.sin(A)
-	      + 0.00001575 * Math.sin(B)
-	      + 0.00001627 * Math.sin(C)
-	      + 0.00003076 * Math.cos(D)
-	      + 0.00000927 * Math.sin(H);
-/*      printf("solar longitude: %10.5f  Radius vector %10.7f\n",sunlong,R);
-	printf("eccentricity %10.7f  eqn of center %10.5f\n",e,Cent);   */
-
-       sunlong = sunlong/DEG_IN_RADIAN;
-
-       retvals[2] = R; // distance
-       xecl = Math.cos(sunlong);  /* geocentric */
-       yecl = Math.sin(sunlong);
-       zecl = 0.;
-       equatorial = eclrot(jd, xecl, yecl, zecl);
-
-       retvals[0] = Math.atan2(equatorial[1],equatorial[0]) * HRS_IN_RADIAN;
-       while(retvals[0] < 0.) retvals[0] = retvals[0] + 24.;
-       retvals[1] = Math.asin(equatorial[2]) * DEG_IN_RADIAN;
-
-       retvals[3] = equatorial[0] * R;  // xyz
-       retvals[4] = equatorial[1] * R;
-       retvals[5] = equatorial[2] * R;
-//       System.out.printf("computesun XYZ %f %f %f  %f\n",
-//          retvals[3],retvals[4],retvals[5],jd);
+       double [] retvals = SolarSystem.computesun(jd, dT);
        sunxyz[0] = retvals[3]; sunxyz[1] = retvals[4]; sunxyz[2] = retvals[5];
        return(retvals);
     }
@@ -4817,24 +4443,6 @@ void processObservatories(String line, BufferedReader in)
        }
     }
 
-  double [] eclrot(double jd, double x, double y, double z) {
-  /** rotates x,y,z coordinates to equatorial x,y,z; all are
-      in equinox of date. Returns [0] = x, [1] = y, [2] = z */
-     double incl;
-     double T;
-     double [] retval = {0.,0.,0.};
-
-     T = (jd - J2000) / 36525;
-     incl = (23.439291 + T * (-0.0130042 - 0.00000016 * T))/DEG_IN_RADIAN;
-             /* 1992 Astron Almanac, p. B18, dropping the
-               cubic term, which is 2 milli-arcsec! */
-     // System.out.printf("T incl %f %f\n",T,incl);
-     retval[1] = Math.cos(incl) * y - Math.sin(incl) * z;
-     retval[2] = Math.sin(incl) * y + Math.cos(incl) * z;
-     retval[0] = x;
-     return(retval);
-  }
-
    double[] computeMoonRaDec(double jd, double dT, double latitude, double altitude, double lst) {
  /* Rather accurate lunar
    ephemeris, from Jean Meeus' *Astronomical Formulae For Calculators*,
@@ -5048,7 +4656,7 @@ void processObservatories(String line, BufferedReader in)
       l = Math.cos(lambda) * Math.cos(beta);
       m = Math.sin(lambda) * Math.cos(beta);
       n = Math.sin(beta);
-      equatorial = eclrot(jd,l,m,n);
+      equatorial = SolarSystem.eclrot(jd,l,m,n);
       moonxyz[0] = equatorial[0];
       moonxyz[1] = equatorial[1];
       moonxyz[2] = equatorial[2];
@@ -5777,6 +5385,31 @@ public class HTMLDialog extends JDialog implements ActionListener {
         return radecJ2000[0];
         }
 
+    /**
+     * Returns a calculator for whole columns of times using the observatory, proper motion, corrections and leap
+     * seconds of this converter, or null if BJD(TDB) is retrieved from the Ohio State server one time at a time.
+     */
+    public EphemerisBatch getEphemerisBatch()
+        {
+        if (useOhioState) return null;
+        getLatLonAlt();
+        getProperMotion();
+        final double fixedLeapSec = leapSec;
+        EphemerisBatch batch = new EphemerisBatch(lat, lon, autoLeapSec ? this::leapSecondsAt : jd -> fixedLeapSec);
+        batch.setProperMotion(pmRA, pmDec);
+        batch.setCorrections(usePM, usePrec, useNut, useAber, useRefr);
+        return batch;
+        }
+
+    /**
+     * @return false if the target was entered at the epoch of interest or as altitude and azimuth, so that its J2000
+     * coordinates change with the time of interest.
+     */
+    public boolean hasFixedJ2000Coordinates()
+        {
+        return !newradecEOI && !newelonlatEOI && !newaltazEOI;
+        }
+
     public double getDecJ2000()
         {
         return radecJ2000[1];
@@ -4791,11 +4791,7 @@ public class AstroStackWindow extends StackWindow implements LayoutManager, Acti
             if (usewcs && wcs != null && wcs.hasWCS() && raaps.length == xaps.length && decaps.length == xaps.length) {
                 double[] raap = extractDoubles(raaps);
                 double[] decap = extractDoubles(decaps);
-                for (int i = 0; i < xaps.length; i++) {
-                    double[] xy = wcs.wcs2pixels(new double[]{raap[i], decap[i]});
-                    xap[i] = xy[0];
-                    yap[i] = xy[1];
-                }
+                wcs.getTransform().wcs2pixels(raap, decap, xap, yap, xaps.length);
             }
 
 
@@ -5333,6 +5329,19 @@ public class AstroStackWindow extends StackWindow implements LayoutManager, Acti
         return cp;
     }
 
+    /**
+     * Refreshes the unscaled copy of an RGB image returned by {@link #getcp()} from the current slice, without the
+     * display updates of {@link #setAstroProcessor(boolean)}.
+     */
+    public void updateColorProcessor() {
+        if (imp.getType() == ImagePlus.COLOR_RGB) {
+            ImageProcessor ip = imp.getProcessor();
+            ip.reset();
+            ip.snapshot();
+            cp = (ColorProcessor) (ip.duplicate());
+        }
+    }
+
     /**
      * Updates the image pixel scale calibration sliders and display if auto update is enabled.
      * (Histogram sliders at bottom of stack window).
@@ -5391,11 +5400,7 @@ public class AstroStackWindow extends StackWindow implements LayoutManager, Acti
         ImageProcessor ip = imp.getProcessor();
         slice = imp.getCurrentSlice();
         cal = imp.getCalibration();
-        if (imp.getType() == ImagePlus.COLOR_RGB) {
-            ip.reset();
-            ip.snapshot();
-            cp = (ColorProcessor) (ip.duplicate());
-        }
+        updateColorProcessor();
         impTitle = imp.getTitle();
         this.setTitle(impTitle);
         stackSize = imp.getStackSize();
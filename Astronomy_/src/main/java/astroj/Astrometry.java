@@ -268,7 +268,7 @@ public class Astrometry { //implements KeyListener
                 }
             }
 //            imp = new ImagePlus(impOriginal.getStack().getSliceLabel(slice), impOriginal.getStack().getProcessor(slice) ); 
-            imp = new ImagePlus("Working_" + IJU.getSliceFilename(impOriginal, slice), impOriginal.getStack().getProcessor(slice).duplicate());
+            imp = new ImagePlus("Working_" + IJU.getSliceFilename(impOriginal, slice), impOriginal.getStack().getReadOnlyProcessor(slice).duplicate());
             imp.setCalibration(impOriginal.getCalibration());
             imp.setFileInfo(impOriginal.getFileInfo());
 
@@ -880,7 +880,7 @@ public class Astrometry { //implements KeyListener
 
                 if (impOriginal.getStack().isVirtual()) {
 //                    imp2 = new ImagePlus(impOriginal.getStack().getSliceLabel(slice), impOriginal.getStack().getProcessor(slice) ); 
-                    imp2 = new ImagePlus("WCS_" + imageFilename, impOriginal.getStack().getProcessor(slice).duplicate());
+                    imp2 = new ImagePlus("WCS_" + imageFilename, impOriginal.getStack().getReadOnlyProcessor(slice).duplicate());
                     imp2.setCalibration(impOriginal.getCalibration());
                     imp2.setFileInfo(impOriginal.getFileInfo());
                     FitsJ.putHeader(imp2, header);
@@ -84,6 +84,7 @@ public class Centroid
 
 //	public boolean forgiving = false;
 	protected boolean debug;
+	private PhotometrySettings settings;
 
 	/**
 	 * Default instantiation with constant background.
@@ -92,7 +93,7 @@ public class Centroid
 		{
 		usePlane = false;
         usePlaneLocal = usePlane;
-		debug = Prefs.get ("astroj.debug",false);
+		debug = PhotometrySettings.current().debug();
 		}
 
 	/** 
@@ -102,7 +103,7 @@ public class Centroid
 		{
 		usePlane = withPlane;
         usePlaneLocal = usePlane;
-		debug = Prefs.get ("astroj.debug",false);
+		debug = PhotometrySettings.current().debug();
 		}
 
 	/**
@@ -113,6 +114,15 @@ public class Centroid
 		reposition = flag;
 		}
 
+	/**
+	 * Uses the given preferences instead of the current ones, or the current ones again if {@code null}.
+	 */
+	public void setSettings (PhotometrySettings settings)
+		{
+		this.settings = settings;
+		if (settings != null) debug = settings.debug();
+		}
+
 	/**
 	 * Set the current position of the aperture.
 	 */
@@ -344,7 +354,7 @@ public class Centroid
 		angle = 0.0;
 		ecc = 0.0;
 		variance = 0.0;
-        useHowellCentroidMethod = Prefs.get ("aperture.useHowellCentroidMethod", useHowellCentroidMethod);
+        useHowellCentroidMethod = (settings != null ? settings : PhotometrySettings.current()).useHowellCentroidMethod();
 
 		boolean stillMoving = true;
 		int iteration = 100;
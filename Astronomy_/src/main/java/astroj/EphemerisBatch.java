@@ -0,0 +1,330 @@
+package astroj;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.DoubleUnaryOperator;
+import java.util.stream.IntStream;
+
+/**
+ * Computes the time corrections and sky positions of a target for a whole column of times, without the
+ * {@link AstroConverter} window.
+ * <p>
+ * The values are those {@link AstroConverter} shows for each time, computed for all rows in parallel. For long
+ * series the solar system positions, and the apparent place of a target with fixed J2000 coordinates, are computed on
+ * a grid of {@link EphemerisBatch#GRID_STEP} days and interpolated, as they only change over days. The equation of
+ * the equinoxes used for the sidereal time is computed once per date.
+ * <p>
+ * The observatory altitude only enters the velocity corrections, so it is not needed for the times.
+ */
+public class EphemerisBatch {
+    /**
+     * Spacing in days of the interpolated solar system positions and apparent places. Cubic interpolation at this
+     * spacing is accurate to well below a millisecond and a milli-arcsecond.
+     */
+    static final double GRID_STEP = 0.25;
+    /**
+     * Margin in days around the input times covered by the grid, allowing for the HJD and BJD corrections.
+     */
+    private static final double GRID_MARGIN = 0.05;
+
+    private final double latitude, longitude;
+    private final DoubleUnaryOperator leapSeconds;
+    private double pmRA, pmDec;
+    private boolean usePM = true, usePrec = true, useNut = true, useAber = true, useRefr = true;
+    private final ConcurrentHashMap<Double, double[]> dayTerms = new ConcurrentHashMap<>();
+
+    /**
+     * @param latitude    observatory latitude in degrees, north positive.
+     * @param longitude   observatory longitude in degrees, east positive.
+     * @param leapSeconds the leap seconds (TAI - UTC) at a JD(UTC), called from several threads.
+     */
+    public EphemerisBatch(double latitude, double longitude, DoubleUnaryOperator leapSeconds) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.leapSeconds = leapSeconds;
+    }
+
+    /**
+     * @param pmRA  proper motion in RA in milli-arcseconds per year.
+     * @param pmDec proper motion in Dec in milli-arcseconds per year.
+     */
+    public void setProperMotion(double pmRA, double pmDec) {
+        this.pmRA = pmRA;
+        this.pmDec = pmDec;
+    }
+
+    /**
+     * Selects the corrections applied to the J2000 coordinates, see {@link SkyAlgorithms#Convert}, and whether
+     * refraction is included in the altitude.
+     */
+    public void setCorrections(boolean usePM, boolean usePrec, boolean useNut, boolean useAber, boolean useRefr) {
+        this.usePM = usePM;
+        this.usePrec = usePrec;
+        this.useNut = useNut;
+        this.useAber = useAber;
+        this.useRefr = useRefr;
+    }
+
+    /**
+     * Computes the ephemeris of a target with fixed J2000 coordinates.
+     *
+     * @see EphemerisBatch#compute(double[], TimeScale, double[], double[], double, double)
+     */
+    public Result compute(double[] times, TimeScale timeScale, double ra2000, double dec2000) {
+        return compute(times, timeScale, null, null, ra2000, dec2000);
+    }
+
+    /**
+     * Computes the ephemeris for each time.
+     *
+     * @param times      the times in {@code timeScale}. Rows with a NaN time are NaN in all results.
+     * @param ra2000     per row J2000 RA in hours, or null to use {@code raDefault} for all rows.
+     * @param dec2000    per row J2000 Dec in degrees, or null to use {@code decDefault} for all rows.
+     * @param raDefault  J2000 RA in hours for rows without coordinates of their own.
+     * @param decDefault J2000 Dec in degrees for rows without coordinates of their own.
+     */
+    public Result compute(double[] times, TimeScale timeScale, double[] ra2000, double[] dec2000,
+                          double raDefault, double decDefault) {
+        var result = new Result(times.length);
+
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for (double t : times) {
+            if (Double.isNaN(t)) continue;
+            min = Math.min(min, t);
+            max = Math.max(max, t);
+        }
+
+        Grid grid = null;
+        if (min <= max) {
+            int nodes = (int) Math.ceil((max - min + 2 * GRID_MARGIN) / GRID_STEP) + 4;
+            // With only a few rows per node computing each row directly is cheaper
+            if (nodes * 4L < times.length) {
+                grid = new Grid(min - GRID_MARGIN - GRID_STEP, nodes, raDefault, decDefault);
+            }
+        }
+
+        var solarGrid = grid;
+        boolean perRowTarget = ra2000 != null && dec2000 != null;
+        IntStream.range(0, times.length).parallel().forEach(i -> {
+            double ra = raDefault, dec = decDefault;
+            if (perRowTarget && !Double.isNaN(ra2000[i]) && !Double.isNaN(dec2000[i])) {
+                ra = ra2000[i];
+                dec = dec2000[i];
+            }
+            // The interpolated apparent place is that of the default target
+            var placeGrid = ra == raDefault && dec == decDefault ? solarGrid : null;
+            computeRow(result, i, times[i], timeScale, ra, dec, placeGrid, solarGrid);
+        });
+
+        return result;
+    }
+
+    private void computeRow(Result r, int i, double time, TimeScale timeScale, double ra, double dec,
+                            Grid placeGrid, Grid solarGrid) {
+        if (Double.isNaN(time)) {
+            r.setNaN(i);
+            return;
+        }
+
+        // Solves for the JD(UTC) as AstroConverter does for HJD and BJD entries
+        var eph = new double[9];
+        double jd = time;
+        if (timeScale == TimeScale.HJD_UTC) {
+            ephemeris(time, ra, dec, placeGrid, solarGrid, eph);
+            jd = time - dot(eph, 0, 3) / 86400.0;
+        } else if (timeScale == TimeScale.BJD_TDB) {
+            ephemeris(time, ra, dec, placeGrid, solarGrid, eph);
+            double jdTest = time - (tdbOffset(time) + dot(eph, 0, 6) / 86400.0);
+            ephemeris(jdTest, ra, dec, placeGrid, solarGrid, eph);
+            double bjdTest = jdTest + tdbOffset(jdTest) + dot(eph, 0, 6) / 86400.0;
+            jd = jdTest + (time - bjdTest);
+        }
+
+        double leapSec = leapSeconds.applyAsDouble(jd);
+        double[] radec = ephemeris(jd, ra, dec, placeGrid, solarGrid, eph);
+
+        double lst = localSiderealTime(SkyAlgorithms.UTDateFromJD(jd), leapSec);
+        double[] altaz = SkyAlgorithms.EquatorialToHorizontal(SkyAlgorithms.Map12(lst - radec[0]), radec[1], latitude);
+        if (useRefr) altaz[0] = SkyAlgorithms.Map180(SkyAlgorithms.Refraction(altaz[0], 1));
+        double ha = (lst - radec[0]) % 24;
+        ha = ha > 0 ? (ha > 12 ? -24 + ha : ha) : (ha < -12 ? 24 + ha : ha);
+
+        double hjdCorr = dot(eph, 0, 3) / 86400.0;
+        double bjd = jd + tdbOffset(jd) + dot(eph, 0, 6) / 86400.0;
+
+        r.jd[i] = jd;
+        r.hjd[i] = jd + hjdCorr;
+        r.hjdCorrection[i] = hjdCorr;
+        r.bjd[i] = bjd;
+        r.bjdCorrection[i] = bjd - jd;
+        r.raEOI[i] = radec[0];
+        r.decEOI[i] = radec[1];
+        r.ra2000[i] = ra;
+        r.dec2000[i] = dec;
+        r.altitude[i] = altaz[0];
+        r.azimuth[i] = altaz[1];
+        r.hourAngle[i] = ha;
+        r.zenithDistance[i] = 90 - altaz[0];
+        r.airmass[i] = AstroConverter.getAirmass(altaz[0]);
+    }
+
+    /**
+     * Fills {@code eph} with the unit vector of the apparent place at 0-2, and the position of the Earth relative to
+     * the sun at 3-5 and to the solar system barycenter at 6-8, in light seconds.
+     *
+     * @return the apparent place as {ra, dec}.
+     */
+    private double[] ephemeris(double jd, double ra, double dec, Grid placeGrid, Grid solarGrid, double[] eph) {
+        if (solarGrid != null) {
+            solarGrid.interpolate(jd, placeGrid != null, eph);
+        } else {
+            earthOffsets(jd, new SolarSystem(), eph);
+        }
+
+        if (placeGrid != null) return toRaDec(eph);
+
+        double[] radec = apparentPlace(jd, ra, dec);
+        toUnit(radec[0], radec[1], eph);
+        return radec;
+    }
+
+    private double[] apparentPlace(double jd, double ra, double dec) {
+        return SkyAlgorithms.Convert(2000.0, jd, ra, dec, pmRA, pmDec, leapSeconds.applyAsDouble(jd),
+                AstroConverter.FORWARD, usePM, usePrec, useNut, useAber);
+    }
+
+    /**
+     * The heliocentric and barycentric offsets of the Earth at 3-8 of {@code eph}, as used by
+     * {@link AstroConverter#calculateHJDCorrection} and {@link AstroConverter#calculateBJDCorrection}.
+     */
+    private void earthOffsets(double jd, SolarSystem solarSystem, double[] eph) {
+        double dT = leapSeconds.applyAsDouble(jd) + 32.184;
+        System.arraycopy(solarSystem.earthOffset(jd, dT, false), 0, eph, 3, 3);
+        System.arraycopy(solarSystem.earthOffset(jd, dT, true), 0, eph, 6, 3);
+    }
+
+    /**
+     * @return TDB - UTC in days.
+     */
+    private double tdbOffset(double jd) {
+        double dT = leapSeconds.applyAsDouble(jd) + 32.184;
+        double g = (357.53 + 0.9856003 * (jd - 2451545.0)) / AstroConverter.DEG_IN_RADIAN;
+        return (dT + 0.001658 * Math.sin(g) + 0.000014 * Math.sin(2 * g)) / 86400.0;
+    }
+
+    /**
+     * {@link SkyAlgorithms#CalcLST(int, int, int, double, double, double)}, with the terms that only depend on the
+     * date computed once per date.
+     */
+    private double localSiderealTime(double[] utDate, double leapSecs) {
+        double jdEOD = SkyAlgorithms.CalcJD((int) utDate[0], (int) utDate[1], (int) utDate[2], 0.0);
+        double[] terms = dayTerms.get(jdEOD);
+        if (terms == null || terms[0] != leapSecs) {
+            double TU = (jdEOD - 2451545.0) / 36525.0;
+            double TU2 = TU * TU;
+            double TU3 = TU2 * TU;
+            double T0 = 6.697374558 + 2400.0513369072 * TU + 2.58622E-5 * TU2 - 1.7222078704899681391543959355894E-9 * TU3;
+            double eqEquinox = SkyAlgorithms.NLongitude(jdEOD, leapSecs) *
+                    Math.cos(SkyAlgorithms.TrueObliquity(jdEOD, leapSecs) * SkyAlgorithms.PI / 180.0) / 15;
+            terms = new double[]{leapSecs, SkyAlgorithms.Map24(T0), eqEquinox};
+            dayTerms.put(jdEOD, terms);
+        }
+        double gmst = SkyAlgorithms.Map24(terms[1] + utDate[3] * 1.00273790935 + terms[2]);
+        return 24.0 * SkyAlgorithms.frac((gmst + longitude / 15.0) / 24.0);
+    }
+
+    private static double dot(double[] v, int a, int b) {
+        return v[a] * v[b] + v[a + 1] * v[b + 1] + v[a + 2] * v[b + 2];
+    }
+
+    private static void toUnit(double ra, double dec, double[] out) {
+        double cosdec = Math.cos(dec / AstroConverter.DEG_IN_RADIAN);
+        out[0] = Math.cos(ra / AstroConverter.HRS_IN_RADIAN) * cosdec;
+        out[1] = Math.sin(ra / AstroConverter.HRS_IN_RADIAN) * cosdec;
+        out[2] = Math.sin(dec / AstroConverter.DEG_IN_RADIAN);
+    }
+
+    private static double[] toRaDec(double[] unit) {
+        double ra = Math.atan2(unit[1], unit[0]) * AstroConverter.HRS_IN_RADIAN;
+        if (ra < 0) ra += 24.0;
+        double dec = Math.atan2(unit[2], Math.hypot(unit[0], unit[1])) * AstroConverter.DEG_IN_RADIAN;
+        return new double[]{ra, dec};
+    }
+
+    /**
+     * The time scale of the input times.
+     */
+    public enum TimeScale {
+        JD_UTC,
+        HJD_UTC,
+        BJD_TDB
+    }
+
+    /**
+     * The ephemeris columns, in the units of the {@link AstroConverter} getters.
+     */
+    public static class Result {
+        public final double[] jd, hjd, hjdCorrection, bjd, bjdCorrection, raEOI, decEOI, ra2000, dec2000;
+        public final double[] altitude, azimuth, hourAngle, zenithDistance, airmass;
+
+        Result(int n) {
+            jd = new double[n];
+            hjd = new double[n];
+            hjdCorrection = new double[n];
+            bjd = new double[n];
+            bjdCorrection = new double[n];
+            raEOI = new double[n];
+            decEOI = new double[n];
+            ra2000 = new double[n];
+            dec2000 = new double[n];
+            altitude = new double[n];
+            azimuth = new double[n];
+            hourAngle = new double[n];
+            zenithDistance = new double[n];
+            airmass = new double[n];
+        }
+
+        private void setNaN(int i) {
+            for (double[] column : new double[][]{jd, hjd, hjdCorrection, bjd, bjdCorrection, raEOI, decEOI, ra2000,
+                    dec2000, altitude, azimuth, hourAngle, zenithDistance, airmass}) {
+                column[i] = Double.NaN;
+            }
+        }
+    }
+
+    /**
+     * Apparent place of the default target and offsets of the Earth tabulated at {@link EphemerisBatch#GRID_STEP},
+     * interpolated with four point Lagrange polynomials.
+     */
+    private class Grid {
+        private final double t0;
+        private final double[][] values;
+
+        Grid(double t0, int nodes, double ra, double dec) {
+            this.t0 = t0;
+            values = new double[nodes][9];
+            IntStream.range(0, nodes).parallel().forEach(k -> {
+                double jd = t0 + k * GRID_STEP;
+                earthOffsets(jd, new SolarSystem(), values[k]);
+                double[] radec = apparentPlace(jd, ra, dec);
+                toUnit(radec[0], radec[1], values[k]);
+            });
+        }
+
+        /**
+         * @param place whether to interpolate the apparent place at 0-2 of {@code out}, as well as the offsets.
+         */
+        void interpolate(double jd, boolean place, double[] out) {
+            double x = (jd - t0) / GRID_STEP;
+            int k = Math.max(1, Math.min(values.length - 3, (int) Math.floor(x)));
+            double u = x - k;
+            double w0 = -u * (u - 1) * (u - 2) / 6;
+            double w1 = (u + 1) * (u - 1) * (u - 2) / 2;
+            double w2 = -(u + 1) * u * (u - 2) / 2;
+            double w3 = (u + 1) * u * (u - 1) / 6;
+            double[] a = values[k - 1], b = values[k], c = values[k + 1], d = values[k + 2];
+            for (int j = place ? 0 : 3; j < 9; j++) {
+                out[j] = w0 * a[j] + w1 * b[j] + w2 * c[j] + w3 * d[j];
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+package astroj;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.*;
+
+/**
+ * An immutable FITS header, split into cards once and indexed by keyword.
+ * <p>
+ * Headers read from an image with {@link FitsHeader#of(ImagePlus, int)} are cached per stack, so repeated lookups
+ * of the same slice, such as when changing slices or measuring many apertures, do not parse the header again.
+ * A cached header is only returned while the slice label or "Info" property it was parsed from is unchanged.
+ */
+public final class FitsHeader {
+    /**
+     * Number of parsed slice headers kept per stack.
+     */
+    private static final int MAX_CACHED_SLICES = 64;
+    private static final Map<Object, LinkedHashMap<Integer, Entry>> CACHE = new WeakHashMap<>();
+    final String[] cards;
+    private final HashMap<String, Integer> index;
+
+    /**
+     * @param cards the cards of the header, copied.
+     */
+    public FitsHeader(String[] cards) {
+        this.cards = cards.clone();
+        index = new HashMap<>(cards.length * 2);
+        for (int i = 0; i < cards.length; i++) {
+            if (cards[i] != null) index.putIfAbsent(keyOf(cards[i]), i);
+        }
+    }
+
+    /**
+     * Parses the header stored in a slice label or "Info" property, from the SIMPLE card to the END card.
+     *
+     * @return the header, or null if there is no complete header in {@code content}.
+     */
+    public static FitsHeader parse(String content) {
+        if (content == null) return null;
+        String[] lines = content.split("\n");
+
+        int istart = 0;
+        for (; istart < lines.length; istart++) {
+            if (lines[istart].trim().startsWith("SIMPLE")) break;
+        }
+        if (istart == lines.length) return null;
+
+        int iend = istart + 1;
+        for (; iend < lines.length; iend++) {
+            String s = lines[iend].trim();
+            if (s.equals("END") || s.startsWith("END ")) break;
+        }
+        if (iend >= lines.length) return null;
+
+        return new FitsHeader(Arrays.copyOfRange(lines, istart, iend + 1));
+    }
+
+    /**
+     * @return the header of the current slice of {@code img}, see {@link FitsHeader#of(ImagePlus, int)}.
+     */
+    public static FitsHeader of(ImagePlus img) {
+        return of(img, img.getCurrentSlice());
+    }
+
+    /**
+     * Returns the header of a slice, stored in the slice label of a stack or the "Info" property of a single image.
+     *
+     * @return the header, or null if the slice has none.
+     */
+    public static FitsHeader of(ImagePlus img, int slice) {
+        int depth = img.getStackSize();
+        if (depth < 1) return null;
+
+        Object owner = img;
+        int key = 0;
+        String content = null;
+        if (depth > 1) {
+            ImageStack stack = img.getStack();
+            content = stack.getSliceLabel(slice);
+            if (content != null) {
+                owner = stack;
+                key = slice;
+            }
+        }
+        if (content == null) {
+            Properties props = img.getProperties();
+            if (props == null) return null;
+            content = props.getProperty("Info");
+            if (content == null) return null;
+        }
+
+        synchronized (CACHE) {
+            var slices = CACHE.get(owner);
+            var entry = slices == null ? null : slices.get(key);
+            if (entry != null && (entry.source == content || entry.source.equals(content))) {
+                return entry.header;
+            }
+        }
+
+        var header = parse(content);
+        synchronized (CACHE) {
+            CACHE.computeIfAbsent(owner, o -> new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, Entry> eldest) {
+                    return size() > MAX_CACHED_SLICES;
+                }
+            }).put(key, new Entry(content, header));
+        }
+        return header;
+    }
+
+    /**
+     * Drops the cached header of a single image.
+     */
+    public static void invalidate(ImagePlus img) {
+        synchronized (CACHE) {
+            CACHE.remove(img);
+        }
+    }
+
+    /**
+     * Drops the cached header of a stack slice.
+     */
+    public static void invalidate(ImageStack stack, int slice) {
+        synchronized (CACHE) {
+            var slices = CACHE.get(stack);
+            if (slices != null) slices.remove(slice);
+        }
+    }
+
+    /**
+     * The keyword matched by {@link FitsJ#findCardWithKey(String, String[])}: the trimmed text before the first '='.
+     */
+    private static String keyOf(String card) {
+        String s = card.trim();
+        int equals = s.indexOf('=');
+        return equals < 0 ? s : s.substring(0, equals).trim();
+    }
+
+    public int size() {
+        return cards.length;
+    }
+
+    public String getCard(int i) {
+        return cards[i];
+    }
+
+    /**
+     * @return a copy of the cards, which the caller may modify.
+     */
+    public String[] getCards() {
+        return cards.clone();
+    }
+
+    /**
+     * @return the position of the first card with the keyword {@code key}, or -1 if there is none.
+     */
+    public int indexOf(String key) {
+        if (key == null) return -1;
+        Integer i = index.get(key.trim());
+        return i == null ? -1 : i;
+    }
+
+    /**
+     * @return the first card with the keyword {@code key}, or null if there is none.
+     */
+    public String findCard(String key) {
+        int i = indexOf(key);
+        return i < 0 ? null : cards[i];
+    }
+
+    /**
+     * @return the double value of the card with the keyword {@code key}, or NaN if there is none.
+     */
+    public double findDoubleValue(String key) throws NumberFormatException {
+        int i = indexOf(key);
+        return i < 0 ? Double.NaN : FitsJ.getCardDoubleValue(cards[i]);
+    }
+
+    private record Entry(String source, FitsHeader header) {}
+}
@@ -101,33 +101,8 @@ public class FitsJ
 	 */
 	public static String[] getHeader(ImagePlus img, int slice)
 		{
-		String content = getHeaderString(img, slice);
-		if (content == null) return null;
-		// PARSE INTO LINES
-
-		String[] lines = content.split("\n");
-
-		// FIND "SIMPLE" AND "END" KEYWORDS
-
-		int istart = 0;
-		for (; istart < lines.length; istart++)
-			{
-			if (lines[istart].trim().startsWith("SIMPLE") ) break;
-			}
-		if (istart == lines.length) return null;
-
-		int iend = istart+1;
-		for (; iend < lines.length; iend++)
-			{
-			String s = lines[iend].trim();
-			if ( s.equals("END") || s.startsWith ("END ") ) break;
-			}
-		if (iend >= lines.length) return null;
-		int l = iend-istart+1;
-		String header = "";
-		for (int i=0; i < l; i++)
-			header += lines[istart+i]+"\n";
-		return header.split("\n");
+		FitsHeader header = FitsHeader.of(img, slice);
+		return header == null ? null : header.getCards();
 		}
 
 	/**
@@ -551,7 +526,10 @@ public class FitsJ
 		
 		int depth = img.getStackSize();
 		if (depth == 1)
+			{
 			img.setProperty ("Info", s);
+			FitsHeader.invalidate(img);
+			}
 		else if (depth > 1)
 			{
 			int slice = img.getCurrentSlice();
@@ -560,6 +538,7 @@ public class FitsJ
             if (label == null)
                 {
                 img.setProperty ("Info", s);
+                FitsHeader.invalidate(img);
                 }
             else
                 {
@@ -567,6 +546,7 @@ public class FitsJ
                 if (newline != -1) label = label.substring(0, newline); 
                 label = label.trim();
                 stack.setSliceLabel(label+"\n"+s, slice);
+                FitsHeader.invalidate(stack, slice);
                 }
 			}
 		}
@@ -589,6 +569,7 @@ public class FitsJ
             if (newline != -1) label = label.substring(0, newline); 
             label = label.trim();        
             stack.setSliceLabel(label+"\n"+s, slice);
+            FitsHeader.invalidate(stack, slice);
             }
 		}
 
@@ -685,6 +666,18 @@ public class FitsJ
 		return -1;
 		}
 
+	/**
+	 * Finds the location of a FITS card in a parsed FITS header having the FITS keyword "key".
+	 *
+	 * @param header	A parsed FITS header.
+	 * @param key		A String containing the FITS keyword to be searched for.
+	 */
+	public static int findCardWithKey (String key, FitsHeader header)
+		{
+		if (header == null) return -1;
+		return header.indexOf(key);
+		}
+
 	/**
 	 * Adds a comment to the image's FITS header.  The resulting modified header is returned.
 	 *
@@ -1447,10 +1440,7 @@ public class FitsJ
 	public static String unsplit (String[] arr, String sep)
 		{
         if (arr==null) return "";
-		String s = arr[0];
-		for (int i=1; i < arr.length; i++)
-			s += sep+arr[i];
-		return s;
+		return String.join(sep, arr);
 		}
 
 
@@ -43,6 +43,22 @@ public class FittedPlane
 		npts = x.length;
 		}
 			
+	/**
+	 * Discards all data points and the fitted coefficients so the instance can be reused for
+	 * up to n new points. The internal arrays are only reallocated if they are too small.
+	 */
+	public void reset (int n)
+		{
+		coefs = null;
+		npts = 0;
+		if (xData == null || xData.length < n)
+			{
+			xData = new double[n];
+			yData = new double[n];
+			zData = new double[n];
+			}
+		}
+
 	/**
 	 * Adds a data point to the internal arrays which can be used later for fitting the plane coefficients.
 	 */
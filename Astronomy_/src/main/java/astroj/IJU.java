@@ -1437,14 +1437,30 @@ public class IJU {
 
     public static double[] transitModel(double[] bjd, double f0, double inclination, double p0, double ar, double tc, double P,
                                         double e, double omega, double u1, double u2, boolean useLonAscNode, double lonAscNode, boolean fitPrimary) {
-        return transitModelV1(bjd, f0, inclination, p0, ar, tc, P, e, omega, u1, u2, useLonAscNode, lonAscNode, fitPrimary);
+        return transitModel(bjd, f0, inclination, p0, ar, tc, P, e, omega, u1, u2, useLonAscNode, lonAscNode, fitPrimary, null);
+    }
+
+    /**
+     * Computes the transit model into {@code out}, so that fits can reuse one buffer across evaluations.
+     * The model keeps no state outside of the call and may be evaluated concurrently.
+     *
+     * @param out the buffer to fill, a new one is allocated if it is {@code null} or its length differs from {@code bjd}.
+     * @return the model flux at each time.
+     */
+    public static double[] transitModel(double[] bjd, double f0, double inclination, double p0, double ar, double tc, double P,
+                                        double e, double omega, double u1, double u2, boolean useLonAscNode, double lonAscNode,
+                                        boolean fitPrimary, double[] out) {
+        if (out == null || out.length != bjd.length) out = new double[bjd.length];
+        transitModelV1(bjd, f0, inclination, p0, ar, tc, P, e, omega, u1, u2, useLonAscNode, lonAscNode, fitPrimary, out);
+        return out;
     }
 
     /**
      * Based on EXOFASTv1.
      */
-    private static double[] transitModelV1(double[] bjd, double f0, double inclination, double p0, double ar, double tc, double P,
-                                                double e, double omega, double u1, double u2, boolean useLonAscNode, double lonAscNode, boolean fitPrimary) {
+    private static void transitModelV1(double[] bjd, double f0, double inclination, double p0, double ar, double tc, double P,
+                                       double e, double omega, double u1, double u2, boolean useLonAscNode, double lonAscNode,
+                                       boolean fitPrimary, double[] muo1) {
         // This routine computes the lightcurve for occultation of a
         // quadratically limb-darkened source and was derived from the EXOFAST
         // procedure exofast_occultquad (Mandel & Agol (2002); Eastman et al., (2013))
@@ -1484,68 +1500,65 @@ public class IJU {
         //           limb darkening parameters (see Eastman et al, 2013). For
         //           backward compatibility, u1 and u2 are required, but not
         //           necessary if d is used.        
-
-        double[] muo1 = new double[bjd.length];
-//        double[] mu0 = new double[bjd.length];
         double tp = tc - P * getTcPhase(e, omega);
 //        IJ.log("tc="+tc);
 //        IJ.log("P="+P);
 //        IJ.log("TcPhase="+getTcPhase(e,omega));
 //        IJ.log("tp="+tp);
 
-        double[][] bzArray = impactParameter(bjd, inclination, ar, tp, P, e, omega, useLonAscNode, lonAscNode); // impact parameter in units of rs
-
-        int nz = bjd.length;
-
-        double[] lambdad = new double[nz];
-        double[] etad = new double[nz];
-        double[] lambdae = new double[nz];
-
-        double z;
+        double[] bz = new double[2]; // impact parameter in units of rs and distance toward the observer
         double p = abs(p0);
         double p2 = p * p;
 
-        // tolerance for double precision equalities
-        // special case integrations
-        double tol = 1.0e-14;
-        double kap1, kap0, kapArg1, kapArg0, lambdaeArg, z2, x1, x2, x3, q, n;
-
-        for (int i = 0; i < nz; i++) {
-            if (fitPrimary && bzArray[i][1] <= 0.0 || !fitPrimary && bzArray[i][1] > 0) {
+        for (int i = 0; i < bjd.length; i++) {
+            skyPosition(bjd[i], inclination, ar, tp, P, e, omega, useLonAscNode, lonAscNode, bz);
+            if (fitPrimary && bz[1] <= 0.0 || !fitPrimary && bz[1] > 0) {
                 // Only consider the part of the orbit where a primary or secondary could occur, depending on which is being modeled.
                 //(When z > 0, the planet is closer to the observer than the star.)
                 // Otherwise, the overall model returned will include identical transits at both the primary and secondary times of transit,
                 // which would cause a problem when fitting full-phase data, such as TESS or Kepler space-based data.
                 // To calculate both a primary and secondary transit model for full phase data, the model must be calculated twice using the different set
                 // of transit and eclipse shape parameters and combined separately from this function.
+                muo1[i] = f0;
                 continue;
             }
-            if (abs(p - bzArray[i][0]) < tol) bzArray[i][0] = p;
-            else if (abs((p - 1.0) - bzArray[i][0]) < tol) bzArray[i][0] = p - 1.0;
-            else if (abs((1.0 - p) - bzArray[i][0]) < tol) bzArray[i][0] = 1.0 - p;
-            else if (bzArray[i][0] < tol) bzArray[i][0] = 0.0;
-            z = bzArray[i][0];
-            z2 = z * z;
-            x1 = (p - z) * (p - z);
-            x2 = (p + z) * (p + z);
-            x3 = p2 - z2;
-
-            // Case 1 - the star is unocculted or there is no planet (p <= 0)
-            if (z >= (1.0 + p) || p <= 0.0) {
-                etad[i] = 0.0;
-                lambdae[i] = 0.0;
-                lambdad[i] = 0.0;
-                continue;
-            }
+            muo1[i] = occultQuad(bz[0], p0, p, p2, f0, u1, u2);
+        }
+    }
 
+    /**
+     * @param z the impact parameter in units of rs.
+     * @param p the absolute value of {@code p0}, {@code p2} its square.
+     * @return the limb darkened flux at impact parameter {@code z}.
+     */
+    private static double occultQuad(double z, double p0, double p, double p2, double f0, double u1, double u2) {
+        // tolerance for double precision equalities
+        // special case integrations
+        double tol = 1.0e-14;
+        if (abs(p - z) < tol) z = p;
+        else if (abs((p - 1.0) - z) < tol) z = p - 1.0;
+        else if (abs((1.0 - p) - z) < tol) z = 1.0 - p;
+        else if (z < tol) z = 0.0;
+
+        // Case 1 - the star is unocculted or there is no planet (p <= 0)
+        if (z >= (1.0 + p) || p <= 0.0) {
+            return f0;
+        }
+
+        double lambdad = 0.0;
+        double etad = 0.0;
+        double lambdae = 0.0;
+        double kap1, kap0, kapArg1, kapArg0, lambdaeArg, q, n, m1, logm1;
+        double z2 = z * z;
+        double x1 = (p - z) * (p - z);
+        double x2 = (p + z) * (p + z);
+        double x3 = p2 - z2;
+
+        if (p >= 1.0 && z <= p - 1.0) {
             // Case 11 - the  source is completely occulted:
-            if (p >= 1.0 && z <= p - 1.0) {
-                etad[i] = 0.5; // corrected typo in paper
-                lambdae[i] = 1.0;
-                lambdad[i] = 0.0;
-                continue;
-            }
-
+            etad = 0.5; // corrected typo in paper
+            lambdae = 1.0;
+        } else {
             // Case 2, 7, 8 - ingress/egress (uniform disk only)
             if (z >= abs(1.0 - p) && (z < 1.0 + p)) {
                 kapArg1 = (1.0 - p2 + z2) / 2.0 / z;
@@ -1560,123 +1573,100 @@ public class IJU {
                 lambdaeArg *= lambdaeArg;
                 lambdaeArg = 4.0 * z2 - lambdaeArg;
                 if (lambdaeArg < 0.0) lambdaeArg = 0.0;
-                lambdae[i] = (p2 * kap0 + kap1 - 0.5 * sqrt(lambdaeArg)) / PI;
+                lambdae = (p2 * kap0 + kap1 - 0.5 * sqrt(lambdaeArg)) / PI;
                 // eta_1
-                etad[i] = 1.0 / 2.0 / PI * (kap1 + p2 * (p2 + 2.0 * z2) * kap0 - (1.0 + 5.0 * p2 + z2) / 4.0 * sqrt((1.0 - x1) * (x2 - 1.0)));
+                etad = 1.0 / 2.0 / PI * (kap1 + p2 * (p2 + 2.0 * z2) * kap0 - (1.0 + 5.0 * p2 + z2) / 4.0 * sqrt((1.0 - x1) * (x2 - 1.0)));
             }
 
-            // Case 5, 6, 7 - the edge of planet lies at origin of star
             if (z == p) {
+                // Case 5, 6, 7 - the edge of planet lies at origin of star
                 if (p < 0.5) {
                     // Case 5
                     q = 2.0 * p; //corrected typo in paper (2k -> 2p)
-                    ellke(q);
-                    lambdad[i] = 1.0 / 3.0 + 2.0 / 9.0 / PI * (4.0 * (2.0 * p2 - 1.0) * ek + (1.0 - 4.0 * p2) * kk);
-                    etad[i] = 3.0 * p2 * p2 / 2.0;
-                    lambdae[i] = p2;// uniform disk
+                    m1 = 1.0 - q * q;
+                    logm1 = Math.log(m1);
+                    lambdad = 1.0 / 3.0 + 2.0 / 9.0 / PI * (4.0 * (2.0 * p2 - 1.0) * ellkeE(m1, logm1) + (1.0 - 4.0 * p2) * ellkeK(m1, logm1));
+                    etad = 3.0 * p2 * p2 / 2.0;
+                    lambdae = p2;// uniform disk
                 } else if (p > 0.5) {
                     // Case 7
                     q = 0.5 / p; //corrected typo in paper (1/2k -> 1/2p)
-                    ellke(q);
-                    lambdad[i] = 1.0 / 3.0 + 16.0 * p / 9.0 / PI * (2.0 * p2 - 1.0) * ek - (32.0 * p2 * p2 - 20.0 * p2 + 3.0) / 9.0 / PI / p * kk;
+                    m1 = 1.0 - q * q;
+                    logm1 = Math.log(m1);
+                    lambdad = 1.0 / 3.0 + 16.0 * p / 9.0 / PI * (2.0 * p2 - 1.0) * ellkeE(m1, logm1) - (32.0 * p2 * p2 - 20.0 * p2 + 3.0) / 9.0 / PI / p * ellkeK(m1, logm1);
                     // etad = eta_1 already
                 } else {
                     // Case 6
-                    lambdad[i] = 1.0 / 3.0 - 4.0 / PI / 9.0;
-                    etad[i] = 3.0 / 32.0;
+                    lambdad = 1.0 / 3.0 - 4.0 / PI / 9.0;
+                    etad = 3.0 / 32.0;
                 }
-                continue;
-            }
-
-            // Case 2, Case 8 - ingress/egress (with limb darkening)
-            if ((z > 0.5 + abs(p - 0.5) && z < 1.0 + p) || (p > 0.5 && z > abs(1.0 - p) && z < p)) {
+            } else if ((z > 0.5 + abs(p - 0.5) && z < 1.0 + p) || (p > 0.5 && z > abs(1.0 - p) && z < p)) {
+                // Case 2, Case 8 - ingress/egress (with limb darkening)
                 q = sqrt((1.0 - x1) / (x2 - x1));
-                ellke(q);
+                m1 = 1.0 - q * q;
+                logm1 = Math.log(m1);
                 n = 1.0 / x1 - 1.0;
 
                 // lambda_1:
-                lambdad[i] = 2.0 / 9.0 / PI / sqrt(x2 - x1) * (((1.0 - x2) * (2.0 * x2 + x1 - 3.0) - 3.0 * x3 * (x2 - 2.0)) * kk + (x2 - x1) *
-                        (z2 + 7.0 * p2 - 4.0) * ek - 3.0 * x3 / x1 * ellpic_bulirsch(n, q));
-                continue;
-            }
-
-            // Case 3, 4, 9, 10 - planet completely inside star
-            if (p < 1.0 && z <= (1.0 - p)) {
+                lambdad = 2.0 / 9.0 / PI / sqrt(x2 - x1) * (((1.0 - x2) * (2.0 * x2 + x1 - 3.0) - 3.0 * x3 * (x2 - 2.0)) * ellkeK(m1, logm1) + (x2 - x1) *
+                        (z2 + 7.0 * p2 - 4.0) * ellkeE(m1, logm1) - 3.0 * x3 / x1 * ellpic_bulirsch(n, q));
+            } else if (p < 1.0 && z <= (1.0 - p)) {
+                // Case 3, 4, 9, 10 - planet completely inside star
                 // eta_2
-                etad[i] = p2 / 2.0 * (p2 + 2.0 * z2);
+                etad = p2 / 2.0 * (p2 + 2.0 * z2);
 
                 // uniform disk
-                lambdae[i] = p2;
+                lambdae = p2;
 
                 // Case 4 - edge of planet hits edge of star
                 if (z == 1.0 - p) {
                     // lambda_5
-                    lambdad[i] = 2.0 / 3.0 / PI * acos(1.0 - 2.0 * p) - 4.0 / 9.0 / PI * sqrt(p * (1.0 - p)) * (3.0 + 2.0 * p - 8.0 * p2) - 2.0 / 3.0 * (p > 0.5 ? 1 : 0);
+                    lambdad = 2.0 / 3.0 / PI * acos(1.0 - 2.0 * p) - 4.0 / 9.0 / PI * sqrt(p * (1.0 - p)) * (3.0 + 2.0 * p - 8.0 * p2) - 2.0 / 3.0 * (p > 0.5 ? 1 : 0);
                 }
 
                 // Case 10 - origin of planet hits origin of star
                 else if (z == 0) {
                     // lambda_6
-                    lambdad[i] = -2.0 / 3.0 * pow((1.0 - p2), 1.5);
+                    lambdad = -2.0 / 3.0 * pow((1.0 - p2), 1.5);
                 } else {
                     q = sqrt((x2 - x1) / (1.0 - x1));
                     n = x2 / x1 - 1.0;
-                    ellke(q);
+                    m1 = 1.0 - q * q;
+                    logm1 = Math.log(m1);
 
                     // Case 3, Case 9 - anywhere in between
                     // lambda_2
-                    lambdad[i] = 2.0 / 9.0 / PI / sqrt(1.0 - x1) * ((1.0 - 5.0 * z2 + p2 + x3 * x3) * kk + (1.0 - x1) * (z2 + 7.0 * p2 - 4.0) * ek - 3.0 * x3 / x1 * ellpic_bulirsch(n, q));
+                    lambdad = 2.0 / 9.0 / PI / sqrt(1.0 - x1) * ((1.0 - 5.0 * z2 + p2 + x3 * x3) * ellkeK(m1, logm1) + (1.0 - x1) * (z2 + 7.0 * p2 - 4.0) * ellkeE(m1, logm1) - 3.0 * x3 / x1 * ellpic_bulirsch(n, q));
                 }
-                continue;
             }
 //            IJ.log("transitModel: Undefined case -- please report to Karen Collins at the AIJ support forum.");
 //            IJ.log("transitModel: the impact parameter z = "+z+" does not fit any condition handled by the code.");
         }
 
-//        var priStart = tc - P * getTcPhase(e, omega, TransitLocation.L4);
-//        var priEnd = tc + P * getTcPhase(e, omega, TransitLocation.L5);
-        for (int i = 0; i < nz; i++) {
+        // avoid Lutz-Kelker bias (negative values of p0 allowed)
+        if (p0 > 0) {
+            // limb darkened flux
+            return (1.0 - ((1.0 - u1 - 2.0 * u2) * lambdae + (u1 + 2.0 * u2) * (lambdad + 2.0 / 3.0 * (p > z ? 1 : 0)) + u2 * etad) / (1.0 - u1 / 3.0 - u2 / 6.0)) * f0;
+            // uniform disk
+//            mu0[i]=1.0-lambdae[i];
 
-            if (fitPrimary && bzArray[i][1] <= 0.0 || !fitPrimary && bzArray[i][1] > 0) {
-                // Only consider the part of the orbit where a primary or secondary could occur, depending on which is being modeled.
-                //(When z > 0, the planet is closer to the observer than the star.)
-                // Otherwise, the overall model returned will include identical transits at both the primary and secondary times of transit,
-                // which would cause a problem when fitting full-phase data, such as TESS or Kepler space-based data.
-                // To calculate both a primary and secondary transit model for full phase data, the model must be calculated twice using the different set
-                // of transit and eclipse shape parameters and combined separately from this function.
-                muo1[i] = f0;
-                continue;
-            }
-
-            // avoid Lutz-Kelker bias (negative values of p0 allowed)
-            if (p0 > 0) {
-                // limb darkened flux
-                muo1[i] = (1.0 - ((1.0 - u1 - 2.0 * u2) * lambdae[i] + (u1 + 2.0 * u2) * (lambdad[i] + 2.0 / 3.0 * (p > bzArray[i][0] ? 1 : 0)) + u2 * etad[i]) / (1.0 - u1 / 3.0 - u2 / 6.0)) * f0;
-//                IJ.log("yModel["+i+"]="+muo1[i]);
-                // uniform disk
-//                mu0[i]=1.0-lambdae[i];
-
-                // coeffs for quadratic limb darkening fit
-//                if arg_present(d) then $
-//                d = transpose([[1.d0-lambdae],$
-//                                [2d0/3d0*(lambdae - (p gt z)) - lambdad],$
-//                                [lambdae/2d0 - etad]])
-            } else {
-                // limb darkened flux
-                muo1[i] = (1.0 + ((1.0 - u1 - 2.0 * u2) * lambdae[i] + (u1 + 2.0 * u2) * (lambdad[i] + 2.0 / 3.0 * (p > bzArray[i][0] ? 1 : 0)) + u2 * etad[i]) / (1.0 - u1 / 3.0 - u2 / 6.0)) * f0;
-//                IJ.log("yModel["+i+"]="+muo1[i]);
-                // uniform disk
-//                mu0[i]=1.0+lambdae[i];
+            // coeffs for quadratic limb darkening fit
+//            if arg_present(d) then $
+//            d = transpose([[1.d0-lambdae],$
+//                            [2d0/3d0*(lambdae - (p gt z)) - lambdad],$
+//                            [lambdae/2d0 - etad]])
+        } else {
+            // limb darkened flux
+            return (1.0 + ((1.0 - u1 - 2.0 * u2) * lambdae + (u1 + 2.0 * u2) * (lambdad + 2.0 / 3.0 * (p > z ? 1 : 0)) + u2 * etad) / (1.0 - u1 / 3.0 - u2 / 6.0)) * f0;
+            // uniform disk
+//            mu0[i]=1.0+lambdae[i];
 
-                // coeffs for quadratic limb darkening fit
-//                if arg_present(d) then $
-//                d = transpose([[1.d0+lambdae],$
-//                                [2d0/3d0*((p gt z) - lambdae) + lambdad],$
-//                                [etad - lambdae/2d0]])
-            }
-//            IJ.log("z["+i+"]="+zArray[i]+" => y[i]="+muo1[i]); 
+            // coeffs for quadratic limb darkening fit
+//            if arg_present(d) then $
+//            d = transpose([[1.d0+lambdae],$
+//                            [2d0/3d0*((p gt z) - lambdae) + lambdad],$
+//                            [etad - lambdae/2d0]])
         }
-        return muo1;
     }
 
     public static double getTcPhase(double e, double omega) {
@@ -1742,44 +1732,53 @@ public class IJU {
 
         int len = bjd.length;
         double[][] b = new double[len][2];
-        double trueanom = 0.0;
-        double meananom;
-        double x, y, r, z, tmp, xold, yold, eccanom;
 
         for (int i = 0; i < len; i++) {
-            meananom = (2.0 * PI * (1.0 + (bjd[i] - tp) / P)) % (2.0 * PI);
+            skyPosition(bjd[i], inclination, ar, tp, P, e, omega, useLonAscNode, lonAscNode, b[i]);
+        }
 
-            //if eccentricity is given, integrate the orbit
-            if (e != 0.0) {
-                eccanom = solveKeplerEq(meananom, e);
-                trueanom = 2.0 * atan(sqrt((1.0 + e) / (1.0 - e)) * tan(0.5 * eccanom));
-            } else {
-                trueanom = meananom;
-            }
+        return b;
+    }
 
-            // calculate the corresponding (x,y) coordinates of planet
-            r = ar * (1.0 - e * e) / (1.0 + e * cos(trueanom));
-
-            //as seen from observer
-            x = -r * cos(trueanom + omega);
-            tmp = r * sin(trueanom + omega);
-            y = -tmp * cos(inclination);
-            z =  tmp*sin(inclination);
-
-            //Rotate by the Longitude of Ascending Node
-//            // For transits, it is not constrained, so we assume Omega=PI)
-            if (useLonAscNode) {
-                xold = x;
-                yold = y;
-                x = -xold * cos(lonAscNode) + yold * sin(lonAscNode);
-                y = -xold * sin(lonAscNode) - yold * cos(lonAscNode);
-            }
+    /**
+     * Computes the impact parameter of {@link IJU#impactParameter} for a single time.
+     *
+     * @param bz receives the impact parameter in units of R_* and the distance toward the observer.
+     */
+    private static void skyPosition(double bjd, double inclination, double ar, double tp, double P, double e, double omega,
+                                    boolean useLonAscNode, double lonAscNode, double[] bz) {
+        double trueanom;
+        double meananom = (2.0 * PI * (1.0 + (bjd - tp) / P)) % (2.0 * PI);
+        double x, y, r, z, tmp, xold, yold, eccanom;
 
-            b[i][0] = sqrt(x * x + y * y);
-            b[i][1] = z;
+        //if eccentricity is given, integrate the orbit
+        if (e != 0.0) {
+            eccanom = solveKeplerEq(meananom, e);
+            trueanom = 2.0 * atan(sqrt((1.0 + e) / (1.0 - e)) * tan(0.5 * eccanom));
+        } else {
+            trueanom = meananom;
         }
 
-        return b;
+        // calculate the corresponding (x,y) coordinates of planet
+        r = ar * (1.0 - e * e) / (1.0 + e * cos(trueanom));
+
+        //as seen from observer
+        x = -r * cos(trueanom + omega);
+        tmp = r * sin(trueanom + omega);
+        y = -tmp * cos(inclination);
+        z =  tmp*sin(inclination);
+
+        //Rotate by the Longitude of Ascending Node
+//        // For transits, it is not constrained, so we assume Omega=PI)
+        if (useLonAscNode) {
+            xold = x;
+            yold = y;
+            x = -xold * cos(lonAscNode) + yold * sin(lonAscNode);
+            y = -xold * sin(lonAscNode) - yold * cos(lonAscNode);
+        }
+
+        bz[0] = sqrt(x * x + y * y);
+        bz[1] = z;
     }
 
     public static double solveKeplerEq(double m, double ecc) {
@@ -1958,13 +1957,32 @@ public class IJU {
         double m1 = 1.0 - k * k;
         double logm1 = Math.log(m1);
 
+        ek = ellkeE(m1, logm1);
+        kk = ellkeK(m1, logm1);
+    }
+
+    /**
+     * {@link IJU#ek} of {@link IJU#ellke(double)}, without writing the shared field.
+     *
+     * @param m1 1 - k^2
+     * @param logm1 the natural log of {@code m1}
+     */
+    private static double ellkeE(double m1, double logm1) {
         double ee1 = 1.0 + m1 * (a1 + m1 * (a2 + m1 * (a3 + m1 * a4)));
         double ee2 = m1 * (b1 + m1 * (b2 + m1 * (b3 + m1 * b4))) * (-logm1);
-        ek = ee1 + ee2;
+        return ee1 + ee2;
+    }
 
+    /**
+     * {@link IJU#kk} of {@link IJU#ellke(double)}, without writing the shared field.
+     *
+     * @param m1 1 - k^2
+     * @param logm1 the natural log of {@code m1}
+     */
+    private static double ellkeK(double m1, double logm1) {
         double ek1 = aa0 + m1 * (aa1 + m1 * (aa2 + m1 * (aa3 + m1 * aa4)));
         double ek2 = (bb0 + m1 * (bb1 + m1 * (bb2 + m1 * (bb3 + m1 * bb4)))) * logm1;
-        kk = ek1 - ek2;
+        return ek1 - ek2;
     }
 
     /**
@@ -11,12 +11,16 @@ import ij.text.TextWindow;
 import ij.util.Tools;
 
 import java.awt.*;
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Vector;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
 
 
 /**
@@ -35,6 +39,8 @@ public class MeasurementTable extends ResultsTable
 	public static int DEFAULT_DECIMALS = 6;
     protected String filePath = "";
     private HashSet<Runnable> listeners = new HashSet<>();
+    private FileLayout fileLayout = null;
+    private static final int CHUNK_ROWS = 1024;
 
 	/**
 	 * Creates an empty default MeasurementTable.
@@ -187,12 +193,12 @@ IJ.log(heading+" "+val);
 	 */
 	public static MeasurementTable getTableFromFile (String filename)
 		{
-		BufferedReader in = null;
 		MeasurementTable table = null;
 
 		try	{
-			in = new BufferedReader(new FileReader(filename));
             File file = new File(filename);
+            byte[] buf = Files.readAllBytes(file.toPath());
+            LineScanner in = new LineScanner(buf, 0, buf.length);
 
 			// READ HEADER LINE
 
@@ -200,7 +206,6 @@ IJ.log(heading+" "+val);
 			if (line == null)
 				{
 				IJ.error("MeasurementTable: cannot read header line!");
-				in.close();
 				return null;
 				}
 // IJ.showMessage("header:"+line);
@@ -352,39 +357,14 @@ IJ.log(heading+" "+val);
                     }
                 }
 
-			double d = 0.0;
-
             line = previousLine==null ? in.readLine() : line;  //get a new line if the last line read was used as column headers
+            int dataStart = line == null ? buf.length : in.lineStart;
 
-			while (line != null)
-				{
-                if (!line.startsWith("#") && (line.trim().length() > 0))
-                    {
-                    table.incrementCounter();
-                    String[] words = line.split(delimiter);
-                    if (shift == 0) table.addLabel(header[1],words[1]);
-                    else if (shift == 1) table.addLabel(header[1],hasImageLabel?words[0]:"Row_" + (row + 1));
-                    else if (shift == 2) table.addLabel(header[1], "Row_" + (row + 1));
-
-                    for (int col=(2-shift); col < h - shift; col++)
-                        {
-                        if (col>=words.length)
-                            d = Double.NaN;
-                        else if (words[col] == null)
-                            d = Double.NaN;
-                        else if (words[col].trim().equals("") || words[col].trim().equals("-"))
-                            d = Double.NaN;
-                        else if (isHMS(words[col]))
-                            d = hms(words[col]);
-                        else
-                            d = Tools.parseDouble(words[col]);
-                        table.addValue(header[col+shift],d);
-                        }
-                    row++;
-                    }
-                line = in.readLine();
-				}
-			in.close();
+            var layout = new FileLayout(filename, Delimiter.of(delimiter), header, shift, hasImageLabel,
+                                        dataStart, checksum(buf, 0, dataStart));
+            layout.row = row;
+            table.fileLayout = layout;
+            table.appendRows(buf, dataStart, buf.length, 0, false, layout);
 			}
 		catch (IOException e)
 			{
@@ -398,10 +378,347 @@ IJ.log(heading+" "+val);
 			IJ.error("MeasurementTable: "+nfe.getMessage());
 			table = null;
 			}
-		try { in.close(); } catch(Exception exc) {}
 		return table;
 		}
     
+	/**
+	 * Reads the lines appended to the file this table was loaded from by {@link #getTableFromFile(String)}
+	 * since it was last read, so that following a growing file only costs the new rows.
+	 *
+	 * Only lines ending in a line break are added; a last line still being written is left pending
+	 * and read once it is complete. If the file ended without a line break when it was loaded, the
+	 * row read from that last line is updated in place once the line is complete.
+	 *
+	 * @return the number of rows added or updated, or -1 if the table was not loaded from a file, or
+	 * the file was truncated or rewritten and must be loaded again with {@link #getTableFromFile(String)}.
+	 */
+	public synchronized int appendRowsFromFile() throws IOException
+		{
+		FileLayout layout = fileLayout;
+		if (layout == null) return -1;
+		try (RandomAccessFile raf = new RandomAccessFile(layout.path, "r"))
+			{
+			long length = raf.length();
+			if (length < layout.offset) return -1;
+
+			byte[] head = new byte[layout.headerLength];
+			raf.readFully(head);
+			if (checksum(head, 0, head.length) != layout.headerChecksum) return -1;
+			if (length == layout.offset) return 0;
+			if (length - layout.offset > Integer.MAX_VALUE) return -1;
+
+			byte[] buf = new byte[(int)(length - layout.offset)];
+			raf.seek(layout.offset);
+			raf.readFully(buf);
+			int from = 0;
+			int updated = 0;
+			if (layout.pendingRow >= 0)
+				{
+				if (layout.pendingRow >= size()) return -1;
+				LineScanner scanner = new LineScanner(buf, 0, buf.length);
+				scanner.next();
+				if (!scanner.terminated) return 0;
+				updateRow(layout.pendingRow, parseRows(buf, new int[]{scanner.lineStart},
+						new int[]{scanner.lineEnd}, 0, 1, layout), layout);
+				layout.pendingRow = -1;
+				layout.offset += scanner.pos;
+				from = scanner.pos;
+				updated = 1;
+				}
+			int rowsBefore = size();
+			appendRows(buf, from, buf.length, layout.offset - from, true, layout);
+			return updated + size() - rowsBefore;
+			}
+		}
+
+	/**
+	 * Parses the data lines in buf[from, to), which starts at position base of the file, and appends
+	 * them as rows. Rows are split and parsed in parallel, and added in file order.
+	 *
+	 * @param holdPartial if a last line without a line break is left to be read when complete,
+	 *                    rather than read as the last row of the file.
+	 */
+	private void appendRows(byte[] buf, int from, int to, long base, boolean holdPartial, FileLayout layout)
+		{
+		LineScanner scanner = new LineScanner(buf, from, to);
+		IntArray starts = new IntArray();
+		IntArray ends = new IntArray();
+		int consumed = from;
+		boolean partialRow = false;
+		while (scanner.next())
+			{
+			if (!scanner.terminated)
+				{
+				partialRow = scanner.isData();
+				if (partialRow && !holdPartial)
+					{
+					starts.add(scanner.lineStart);
+					ends.add(scanner.lineEnd);
+					}
+				break;
+				}
+			consumed = scanner.pos;
+			if (scanner.isData())
+				{
+				starts.add(scanner.lineStart);
+				ends.add(scanner.lineEnd);
+				}
+			}
+		layout.offset = base + consumed;
+
+		int nRows = starts.size;
+		int nChunks = (nRows + CHUNK_ROWS - 1) / CHUNK_ROWS;
+		int batch = Math.max(1, 4 * Runtime.getRuntime().availableProcessors());
+		for (int b = 0; b < nChunks; b += batch)
+			{
+			ParsedRows[] parsed = IntStream.range(b, Math.min(nChunks, b + batch)).parallel()
+					.mapToObj(c -> parseRows(buf, starts.values, ends.values, c * CHUNK_ROWS,
+											 Math.min(nRows, (c + 1) * CHUNK_ROWS), layout))
+					.toArray(ParsedRows[]::new);
+			for (ParsedRows rows : parsed)
+				addRows(rows, layout);
+			}
+		if (partialRow && !holdPartial) layout.pendingRow = size() - 1;
+		}
+
+	private static ParsedRows parseRows(byte[] buf, int[] starts, int[] ends, int first, int last, FileLayout layout)
+		{
+		int nCols = layout.header.length - 2;
+		int n = last - first;
+		double[] values = new double[n * nCols];
+		String[] labels = layout.shift == 2 || (layout.shift == 1 && !layout.hasImageLabel) ? null : new String[n];
+		ArrayList<String> words = new ArrayList<>(nCols + 2);
+		for (int r = 0; r < n; r++)
+			{
+			String line = new String(buf, starts[first + r], ends[first + r] - starts[first + r], layout.charset);
+			layout.delimiter.split(line, words);
+			if (layout.shift == 0) labels[r] = words.get(1);
+			else if (labels != null) labels[r] = words.get(0);
+			int offset = r * nCols;
+			for (int col = (2 - layout.shift); col < layout.header.length - layout.shift; col++)
+				values[offset++] = col >= words.size() ? Double.NaN : parseCell(words.get(col));
+			}
+		return new ParsedRows(n, values, labels);
+		}
+
+	/**
+	 * Adds the rows, looking up the table columns of the file columns from the headings on the first row.
+	 */
+	private void addRows(ParsedRows rows, FileLayout layout)
+		{
+		String[] header = layout.header;
+		int nCols = header.length - 2;
+		for (int r = 0; r < rows.count; r++)
+			{
+			incrementCounter();
+			addLabel(header[1], rows.labels != null ? rows.labels[r] : "Row_" + (layout.row + 1));
+			int offset = r * nCols;
+			if (layout.index == null)
+				{
+				layout.index = new int[nCols];
+				for (int c = 0; c < nCols; c++)
+					{
+					addValue(header[c + 2], rows.values[offset + c]);
+					layout.index[c] = getColumnIndex(header[c + 2]);
+					}
+				}
+			else
+				{
+				for (int c = 0; c < nCols; c++)
+					addValue(layout.index[c], rows.values[offset + c]);
+				}
+			layout.row++;
+			}
+		}
+
+	/**
+	 * Replaces the values of a row added by {@link #addRows(ParsedRows, FileLayout)} with a single parsed row.
+	 */
+	private void updateRow(int row, ParsedRows parsed, FileLayout layout)
+		{
+		if (parsed.labels != null) setLabel(parsed.labels[0], row);
+		for (int c = 0; c < layout.index.length; c++)
+			setValue(layout.index[c], row, parsed.values[c]);
+		}
+
+	static double parseCell(String word)
+		{
+		String trimmed = word.trim();
+		if (trimmed.isEmpty() || trimmed.equals("-"))
+			return Double.NaN;
+		else if (word.indexOf(':') >= 0 && isHMS(word))
+			return hms(word);
+		else
+			return Tools.parseDouble(word);
+		}
+
+	private static long checksum(byte[] buf, int from, int to)
+		{
+		CRC32 crc = new CRC32();
+		crc.update(buf, from, to - from);
+		return crc.getValue();
+		}
+
+	/**
+	 * The column delimiters of table files, split by hand with the semantics of {@link String#split(String)}.
+	 */
+	enum Delimiter
+		{
+		TAB("\t"), COMMA(","), SPACES(" +"), WHITESPACE("\\s+");
+
+		final String regex;
+
+		Delimiter(String regex)
+			{
+			this.regex = regex;
+			}
+
+		static Delimiter of(String regex)
+			{
+			for (Delimiter d : values())
+				if (d.regex.equals(regex)) return d;
+			throw new IllegalArgumentException("Unknown delimiter " + regex);
+			}
+
+		private boolean matches(char c)
+			{
+			return switch (this)
+				{
+				case TAB -> c == '\t';
+				case COMMA -> c == ',';
+				case SPACES -> c == ' ';
+				case WHITESPACE -> c == ' ' || c == '\t' || c == '\n' || c == 0x0B || c == '\f' || c == '\r';
+				};
+			}
+
+		/**
+		 * Splits {@code line} into {@code words}, dropping trailing empty words like {@link String#split(String)}.
+		 */
+		void split(String line, ArrayList<String> words)
+			{
+			words.clear();
+			boolean runs = this == SPACES || this == WHITESPACE;
+			int n = line.length();
+			int start = 0;
+			int lastNonEmpty = 0;
+			int i = 0;
+			while (i < n)
+				{
+				if (matches(line.charAt(i)))
+					{
+					words.add(line.substring(start, i));
+					if (i > start) lastNonEmpty = words.size();
+					i++;
+					if (runs)
+						while (i < n && matches(line.charAt(i))) i++;
+					start = i;
+					}
+				else
+					i++;
+				}
+			if (words.isEmpty())
+				{
+				words.add(line);
+				return;
+				}
+			words.add(line.substring(start));
+			if (n > start) lastNonEmpty = words.size();
+			while (words.size() > lastNonEmpty) words.remove(words.size() - 1);
+			}
+		}
+
+	/**
+	 * Returns the lines of a byte buffer, ending at a line feed, a carriage return, or both, like
+	 * {@link java.io.BufferedReader#readLine()}.
+	 */
+	private static class LineScanner
+		{
+		private final byte[] buf;
+		private final int to;
+		private int pos;
+		int lineStart, lineEnd;
+		boolean terminated;
+
+		LineScanner(byte[] buf, int from, int to)
+			{
+			this.buf = buf;
+			this.pos = from;
+			this.to = to;
+			}
+
+		boolean next()
+			{
+			if (pos >= to) return false;
+			lineStart = pos;
+			while (pos < to && buf[pos] != '\n' && buf[pos] != '\r') pos++;
+			lineEnd = pos;
+			terminated = pos < to;
+			if (pos < to && buf[pos++] == '\r' && pos < to && buf[pos] == '\n') pos++;
+			return true;
+			}
+
+		String readLine()
+			{
+			return next() ? new String(buf, lineStart, lineEnd - lineStart, Charset.defaultCharset()) : null;
+			}
+
+		/**
+		 * @return if the current line is neither a comment nor blank.
+		 */
+		boolean isData()
+			{
+			if (lineEnd > lineStart && buf[lineStart] == '#') return false;
+			for (int i = lineStart; i < lineEnd; i++)
+				if ((buf[i] & 0xFF) > ' ') return true;
+			return false;
+			}
+		}
+
+	private static class IntArray
+		{
+		int[] values = new int[1024];
+		int size;
+
+		void add(int value)
+			{
+			if (size == values.length) values = java.util.Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+			}
+		}
+
+	private record ParsedRows(int count, double[] values, String[] labels) {}
+
+	/**
+	 * The layout of the file a table was loaded from and how much of it has been read.
+	 */
+	private static class FileLayout
+		{
+		final String path;
+		final Charset charset = Charset.defaultCharset();
+		final Delimiter delimiter;
+		final String[] header;
+		final int shift;
+		final boolean hasImageLabel;
+		final int headerLength;
+		final long headerChecksum;
+		int[] index;
+		long offset;
+		int pendingRow = -1;
+		int row;
+
+		FileLayout(String path, Delimiter delimiter, String[] header, int shift, boolean hasImageLabel,
+				   int headerLength, long headerChecksum)
+			{
+			this.path = path;
+			this.delimiter = delimiter;
+			this.header = header;
+			this.shift = shift;
+			this.hasImageLabel = hasImageLabel;
+			this.headerLength = headerLength;
+			this.headerChecksum = headerChecksum;
+			}
+		}
+
 	/**
 	 * Returns an existing MeasurementTable reconstructed from the TextWindow with the appropriate name.
 	 */
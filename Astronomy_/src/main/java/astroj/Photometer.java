@@ -3,12 +3,15 @@
 package astroj;
 
 import ij.ImagePlus;
-import ij.Prefs;
 import ij.measure.Calibration;
 import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
 
 import java.awt.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 
 /**
  * Simple aperture photometer using a circular aperture and a background annulus with
@@ -101,11 +104,27 @@ public class Photometer
 
     	/** Debug flag */
 	protected boolean debug = false;
+	private PhotometrySettings settings;
     
     protected FittedPlane plane = null;
     protected boolean usePlane = false;
     protected OverlayCanvas ocanvas;
 
+    /** Copy of the pixels in the current aperture box, row-major with a row length of boxWidth. */
+    private float[] boxPixels = new float[0];
+    private int boxWidth;
+    /**
+     * Overlap fractions of the box pixels with the source aperture and background radii, shared by all
+     * photometers. The box starts at the integer part of the aperture edge, so the key is in effect the
+     * sub-pixel offset of the center plus the radii; every star measured with the same apertures and the
+     * same offset reuses the same entry. The cache is bounded by the memory its arrays take rather than
+     * by the number of entries, so fields with hundreds of apertures do not evict each other.
+     */
+    private static final long MAX_CACHED_WEIGHT_BYTES = 64L << 20;
+    private static long cachedWeightBytes = 0;
+    private static final LinkedHashMap<ApertureGeometry, ApertureWeights> weightCache =
+            new LinkedHashMap<>(16, 0.75f, true);
+
 	/**
 	 * Initializes Photometer without the client's Calibration.
 	 */
@@ -153,7 +172,7 @@ public class Photometer
         hasBack = !Double.isNaN(rBack1) && !Double.isNaN(rBack2) && (rBack2 > rBack1);
         boolean usePlaneLocal = usePlane && hasBack;
 		
-		debug = Prefs.get ("astroj.debug",false);
+		debug = (settings != null ? settings : PhotometrySettings.current()).debug();
 
 		if (Double.isNaN(radius)) return;
         if (ip.getBitDepth()==24)
@@ -230,7 +249,13 @@ public class Photometer
         back2 = 0;
         boolean fitPlaneError = false;
         
-		if (usePlaneLocal) plane = new FittedPlane ((i2-i1+1)*(j2-j1+1));
+        int boxSize = (i2-i1+1)*(j2-j1+1);
+		if (usePlaneLocal) resetPlane(boxSize);
+
+        float[] pixels = loadBox(ip, i1, i2, j1, j2);
+        ApertureWeights weights = exact ? apertureWeights(xpix, ypix, i1, i2, j1, j2,
+                hasBack && !removeBackStars && !usePlaneLocal) : null;
+        int k;
 
 		peak = Float.NEGATIVE_INFINITY;
         if (exact)
@@ -238,14 +263,15 @@ public class Photometer
             for (int j=j1; j <= j2; j++)
                 {
                 dj=(double)j+Centroid.PIXELCENTER-ypix;		// pixel center
-                for (int i=i1; i <= i2; i++)
+                k = (j-j1)*boxWidth;
+                for (int i=i1; i <= i2; i++, k++)
                     {
                     di=(double)i+Centroid.PIXELCENTER-xpix;	// pixel center
                     r2=di*di+dj*dj;                         // radius to pixel center
-                    d = ip.getPixelValue(i,j);
+                    d = pixels[k];
                     if (!Float.isNaN(d))
                         {
-                        fraction = intarea(xpix, ypix, radius, (double)i, (double)(i+1), (double)j, (double)(j+1));
+                        fraction = weights.source[k];
                         source += fraction*d;
                         //addPixelRoi(imp,i,j);
                         dSourceCount += fraction;
@@ -254,10 +280,10 @@ public class Photometer
                             {
                             if (!removeBackStars && !usePlaneLocal)
                                 {
-                                fraction = intarea(xpix, ypix, rBack1, (double)i, (double)(i+1), (double)j, (double)(j+1));
+                                fraction = weights.back1[k];
                                 back -= fraction*d;
                                 dBackCount -= fraction;
-                                fraction = intarea(xpix, ypix, rBack2, (double)i, (double)(i+1), (double)j, (double)(j+1));
+                                fraction = weights.back2[k];
                                 back += fraction*d;
                                 dBackCount += fraction;
                                 }
@@ -281,11 +307,12 @@ public class Photometer
             for (int j=j1; j <= j2; j++)
                 {
                 dj=(double)j+Centroid.PIXELCENTER-ypix;		// Center;
-                for (int i=i1; i <= i2; i++)
+                k = (j-j1)*boxWidth;
+                for (int i=i1; i <= i2; i++, k++)
                     {
                     di=(double)i+Centroid.PIXELCENTER-xpix;	// Center;
                     r2=di*di+dj*dj;
-                    d = ip.getPixelValue(i,j);
+                    d = pixels[k];
                     if (!Float.isNaN(d))
                         {
                         if (r2 < r2ap)  // SOURCE APERTURE
@@ -337,7 +364,7 @@ public class Photometer
                 back = 0.0;
                 back2 = 0.0;
                 backCount = 0;
-                if (usePlaneLocal) plane = new FittedPlane ((i2-i1+1)*(j2-j1+1));
+                if (usePlaneLocal) resetPlane(boxSize);
                 if (markRemovedPixels) 
                     {
                     ocanvas.removePixelRois();
@@ -347,11 +374,12 @@ public class Photometer
                 for (int j=j1; j <= j2; j++)   // REMOVE STARS FROM BACKGROUND
                     {
                     dj=(double)j-ypix+Centroid.PIXELCENTER;		// Center
-                    for (int i=i1; i <= i2; i++)
+                    k = (j-j1)*boxWidth;
+                    for (int i=i1; i <= i2; i++, k++)
                         {
                         di=(double)i-xpix+Centroid.PIXELCENTER;	// Center
                         r2=di*di+dj*dj;
-                        d = ip.getPixelValue(i,j);
+                        d = pixels[k];
                         if (r2 >= r2b1 && r2 <= r2b2)
                             {
                             if (!Float.isNaN(d) && (d <= backMean + 2.0*backstdev) && (d >= backMean - 2.0*backstdev))
@@ -413,13 +441,14 @@ public class Photometer
                 for (int j=j1; j <= j2; j++)
                     {
                     dj=(double)j+Centroid.PIXELCENTER-ypix;		// Center;
-                    for (int i=i1; i <= i2; i++)
+                    k = (j-j1)*boxWidth;
+                    for (int i=i1; i <= i2; i++, k++)
                         {
                         di=(double)i+Centroid.PIXELCENTER-xpix;	// Center;
-                        d = ip.getPixelValue(i,j);
+                        d = pixels[k];
                         if (!Float.isNaN(d))
                             {
-                            fraction = intarea(xpix, ypix, radius, (double)i, (double)(i+1), (double)j, (double)(j+1));
+                            fraction = weights.source[k];
                             //addPixelRoi(imp,i,j);
                             dSourceCount += fraction;
                             b = plane.valueAt(di, dj);
@@ -442,13 +471,14 @@ public class Photometer
                 for (int j=j1; j <= j2; j++)
                     {
                     dj=(double)j+Centroid.PIXELCENTER-ypix;		// Center;
-                    for (int i=i1; i <= i2; i++)
+                    k = (j-j1)*boxWidth;
+                    for (int i=i1; i <= i2; i++, k++)
                         {
                         di=(double)i+Centroid.PIXELCENTER-xpix;	// Center;
                         r2=di*di+dj*dj;
                         if (r2 < r2ap)  // SOURCE APERTURE
                             {
-                            d = ip.getPixelValue(i,j);
+                            d = pixels[k];
                             if (!Float.isNaN(d))
                                 {
                                 srcCount++;
@@ -503,6 +533,135 @@ public class Photometer
 		}
     
     
+    /**
+     * Copies the pixel values of the box [i1,i2]x[j1,j2] into a reused row-major buffer so the
+     * measurement loops, including the background star-rejection iterations, avoid per-pixel
+     * ImageProcessor calls. Float and uncalibrated short images are read straight from their
+     * pixel arrays; other types go through getPixelValue() so the values are unchanged.
+     */
+    private float[] loadBox (ImageProcessor ip, int i1, int i2, int j1, int j2)
+        {
+        boxWidth = i2-i1+1;
+        int n = boxWidth*(j2-j1+1);
+        if (boxPixels.length < n) boxPixels = new float[n];
+        int width = ip.getWidth();
+        int k = 0;
+        if (ip instanceof FloatProcessor)
+            {
+            float[] src = (float[])ip.getPixels();
+            for (int j=j1; j <= j2; j++, k += boxWidth)
+                System.arraycopy(src, j*width+i1, boxPixels, k, boxWidth);
+            }
+        else if (ip instanceof ShortProcessor && ip.getCalibrationTable() == null)
+            {
+            short[] src = (short[])ip.getPixels();
+            for (int j=j1; j <= j2; j++)
+                {
+                int offset = j*width;
+                for (int i=i1; i <= i2; i++)
+                    boxPixels[k++] = src[offset+i]&0xffff;
+                }
+            }
+        else
+            {
+            for (int j=j1; j <= j2; j++)
+                for (int i=i1; i <= i2; i++)
+                    boxPixels[k++] = ip.getPixelValue(i,j);
+            }
+        return boxPixels;
+        }
+
+    /**
+     * Returns the fraction of each box pixel that lies inside the source aperture and, if {@code annulus}
+     * is set, inside the background annulus. The fractions only depend on the aperture position relative
+     * to the box, so they are taken from the cache when another aperture had the same geometry.
+     */
+    private ApertureWeights apertureWeights (double xpix, double ypix, int i1, int i2, int j1, int j2, boolean annulus)
+        {
+        int w = i2-i1+1;
+        int h = j2-j1+1;
+        double xc = xpix-i1;
+        double yc = ypix-j1;
+        ApertureGeometry geometry = new ApertureGeometry(xc, yc, radius, annulus ? rBack1 : Double.NaN,
+                annulus ? rBack2 : Double.NaN, w, h);
+        ApertureWeights weights;
+        synchronized (weightCache)
+            {
+            weights = weightCache.get(geometry);
+            }
+        if (weights != null) return weights;
+
+        double[] source = new double[w*h];
+        double[] back1 = annulus ? new double[w*h] : null;
+        double[] back2 = annulus ? new double[w*h] : null;
+        int k = 0;
+        for (int j=0; j < h; j++)
+            {
+            for (int i=0; i < w; i++, k++)
+                {
+                source[k] = intarea(xc, yc, radius, (double)i, (double)(i+1), (double)j, (double)(j+1));
+                if (annulus)
+                    {
+                    back1[k] = intarea(xc, yc, rBack1, (double)i, (double)(i+1), (double)j, (double)(j+1));
+                    back2[k] = intarea(xc, yc, rBack2, (double)i, (double)(i+1), (double)j, (double)(j+1));
+                    }
+                }
+            }
+        weights = new ApertureWeights(source, back1, back2);
+        synchronized (weightCache)
+            {
+            ApertureWeights previous = weightCache.put(geometry, weights);
+            if (previous != null) cachedWeightBytes -= previous.bytes();
+            cachedWeightBytes += weights.bytes();
+            Iterator<ApertureWeights> eldest = weightCache.values().iterator();
+            while (cachedWeightBytes > MAX_CACHED_WEIGHT_BYTES && weightCache.size() > 1)
+                {
+                cachedWeightBytes -= eldest.next().bytes();
+                eldest.remove();
+                }
+            }
+        return weights;
+        }
+
+    /** Drops all cached overlap fractions; used by the benchmark to measure the uncached path. */
+    static void clearWeightCache ()
+        {
+        synchronized (weightCache)
+            {
+            weightCache.clear();
+            cachedWeightBytes = 0;
+            }
+        }
+
+    /**
+     * The aperture center relative to the box origin, the radii and the box size. Since the box origin is
+     * the integer part of the aperture edge, the center only differs between apertures in its sub-pixel
+     * offset unless the box was clipped at the image border.
+     */
+    private record ApertureGeometry (double xc, double yc, double radius, double rBack1, double rBack2,
+                                     int width, int height) {}
+
+    /**
+     * Overlap fractions of the box pixels with the source aperture and the inner and outer background
+     * radii, row-major. The background fractions are kept apart so the annulus is summed in the same
+     * order as before; they are null when they were not needed.
+     */
+    private record ApertureWeights (double[] source, double[] back1, double[] back2)
+        {
+        long bytes ()
+            {
+            return 8L*source.length*(back1 == null ? 1 : 3);
+            }
+        }
+
+    private void resetPlane (int n)
+        {
+        if (plane == null)
+            plane = new FittedPlane (n);
+        else
+            plane.reset (n);
+        }
+
 /* Compute the area of overlap between a circle and a rectangle. */
 
 double intarea(double xc, double yc, double r, double xin0, double xin1, double yin0, double yin1)
@@ -649,6 +808,14 @@ double chord(double x, double y0, double y1)
         removeBackStars = removeStars;
         }
 
+    /**
+     * Uses the given preferences instead of the current ones, or the current ones again if {@code null}.
+     */
+    public void setSettings (PhotometrySettings settings)
+        {
+        this.settings = settings;
+        }
+
     public void setMarkRemovedPixels (boolean markPixels)
         {
         markRemovedPixels = markPixels;
@@ -0,0 +1,40 @@
+package astroj;
+
+import ij.astro.io.prefs.Property;
+import ij.astro.io.prefs.PropertyKey;
+
+/**
+ * The preferences read while measuring apertures, parsed once.
+ * <p>
+ * {@link #current()} is kept up to date by listeners on the backing properties, so it can be called for every
+ * aperture without looking up or parsing the preferences. A run that should not see changes made while it is in
+ * progress can take one snapshot and pass it to {@link Centroid#setSettings(PhotometrySettings)} and
+ * {@link Photometer#setSettings(PhotometrySettings)}.
+ *
+ * @param debug                   {@code astroj.debug}
+ * @param useHowellCentroidMethod {@code aperture.useHowellCentroidMethod}
+ */
+public record PhotometrySettings(boolean debug, boolean useHowellCentroidMethod) {
+    @PropertyKey(value = "astroj.debug", ignoreAffixes = true)
+    private static final Property<Boolean> DEBUG = new Property<>(false, PhotometrySettings.class);
+    @PropertyKey(value = "aperture.useHowellCentroidMethod", ignoreAffixes = true)
+    private static final Property<Boolean> USE_HOWELL_CENTROID_METHOD = new Property<>(true, PhotometrySettings.class);
+    private static volatile PhotometrySettings current;
+
+    static {
+        DEBUG.addListener(($, v) -> refresh());
+        USE_HOWELL_CENTROID_METHOD.addListener(($, v) -> refresh());
+    }
+
+    /**
+     * @return the settings as currently saved in the preferences.
+     */
+    public static PhotometrySettings current() {
+        var settings = current;
+        return settings != null ? settings : refresh();
+    }
+
+    private static synchronized PhotometrySettings refresh() {
+        return current = new PhotometrySettings(DEBUG.get(), USE_HOWELL_CENTROID_METHOD.get());
+    }
+}
@@ -3,13 +3,13 @@ package astroj;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.astro.logging.AIJLogger;
-import ij.plugin.Duplicator;
+import ij.plugin.filter.RankFilters;
 import ij.process.ImageProcessor;
 
 import java.awt.*;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.TreeSet;
+import java.util.*;
+import java.util.List;
+import java.util.stream.IntStream;
 
 public class StarFinder {
     private static final int[] EDGE_DETECTION_KERNEL_1 = new int[]{1, 0, -1, 0, 0, 0, -1, 0, 1};
@@ -83,81 +83,193 @@ public class StarFinder {
     // Does not work on a ROI, but the whole image
     //todo make astrometry use this
     public static ProcessingMaxima findLocalMaxima(ImagePlus imp, double thresholdLower, double thresholdUpper, int border, double gaussRadius) {
-        var imp2 = (new Duplicator()).crop(imp);
-
-        if (gaussRadius != 1) IJ.run(imp2, "Median...", "radius=" + gaussRadius);
+        return findLocalMaxima(imp, thresholdLower, thresholdUpper, border, gaussRadius, Integer.MAX_VALUE);
+    }
 
-        var ip = imp2.getProcessor().duplicate();
-        var coordinates = new HashSet<CoordinateMaxima>();
+    /**
+     * Finds the pixels that no 8-connected neighbor exceeds, reading the image row by row in parallel strips.
+     * The image is only copied when it is median filtered.
+     *
+     * @param maxPeaks the number of brightest maxima to keep. Maxima of equal value count separately toward this,
+     *                 but only one of them is in the returned set.
+     * @see #findLocalMaxima(ImagePlus, double, double, int, double)
+     */
+    public static ProcessingMaxima findLocalMaxima(ImagePlus imp, double thresholdLower, double thresholdUpper,
+                                                   int border, double gaussRadius, int maxPeaks) {
+        var ip = imp.getProcessor();
+        if (gaussRadius != 1) {
+            ip = ip.duplicate();
+            ip.resetRoi();
+            new RankFilters().rank(ip, gaussRadius, RankFilters.MEDIAN);
+        }
 
+        final var source = ip;
+        final var width = ip.getWidth();
+        final var height = ip.getHeight();
+        final var displayMax = ip.getMax();
         final var doLowerThresholdCheck = thresholdLower != ImageProcessor.NO_THRESHOLD;
         final var doUpperThresholdCheck = thresholdUpper != Double.MAX_VALUE;
-
-        ip.resetRoi();
-
-        for (int x = border; x < ip.getWidth() - border; x++) {
-            for (int y = border; y < ip.getHeight() - border; y++) {
-                var v = ip.getValue(x, y);
-                if (Double.isNaN(v)) continue;
-                if (doLowerThresholdCheck && v < thresholdLower) continue;
-                if (doUpperThresholdCheck && v > thresholdUpper) continue;
-                if (v == ip.getMax()) coordinates.add(new CoordinateMaxima(v, x, y));
-                boolean isInner = (y != 0 && y != ip.getHeight() - 1) && (x != 0 && x != ip.getWidth() - 1);
-
-                var isMax = true;
-                for (int d = 0; d < 8; d++) { // Compare with the 8 neighbor pixels
-                    if (isInner || isWithin(ip, x, y, d)) {//todo can't some positions be skipped?
-                        float vNeighbor = ip.getPixelValue(x + DIR_X_OFFSET[d], y + DIR_Y_OFFSET[d]);
-                        if (vNeighbor > v) {
-                            isMax = false;
-                            break;
-                        }
-                    }
-                }
-                if (isMax) {
-                    coordinates.add(new CoordinateMaxima(v, x, y));
-
-                    if (DEBUG_DISPLAY) {
-                        var roi = new AnnotateRoi(true, false, true, false, x, y, 0.6, "test", Color.BLUE);
-                        roi.setImage(imp);
-                        OverlayCanvas.getOverlayCanvas(imp).add(roi);
-                        AIJLogger.multiLog("Found maxima: ", x, y);
+        final var y0 = Math.max(border, 0);
+        final var y1 = height - border;
+        final var x0 = Math.max(border, 0);
+        final var x1 = width - border;
+
+        var strips = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() * 4, (y1 - y0) / 64));
+        var found = IntStream.range(0, y1 > y0 && x1 > x0 ? strips : 0).parallel().mapToObj(strip -> {
+            var peaks = new Peaks(maxPeaks);
+            var above = new float[width];
+            var row = new float[width];
+            var below = new float[width];
+            var start = y0 + (int) ((long) (y1 - y0) * strip / strips);
+            var end = y0 + (int) ((long) (y1 - y0) * (strip + 1) / strips);
+            if (start > 0) readRow(source, start - 1, above);
+            readRow(source, start, row);
+            for (int y = start; y < end; y++) {
+                if (y + 1 < height) readRow(source, y + 1, below);
+                for (int x = x0; x < x1; x++) {
+                    var v = row[x];
+                    if (Float.isNaN(v)) continue;
+                    if (doLowerThresholdCheck && v < thresholdLower) continue;
+                    if (doUpperThresholdCheck && v > thresholdUpper) continue;
+                    if (v == displayMax || isMax(v, x, y, width, height, above, row, below)) {
+                        peaks.add(v, x, y);
                     }
                 }
+                var t = above;
+                above = row;
+                row = below;
+                below = t;
+            }
+            return peaks;
+        }).reduce((a, b) -> {
+            a.addAll(b);
+            return a;
+        }).orElseGet(() -> new Peaks(maxPeaks));
+
+        var coordinates = new TreeSet<CoordinateMaxima>();
+        for (int i = 0; i < found.size; i++) {
+            coordinates.add(new CoordinateMaxima(found.values[i], found.xs[i], found.ys[i]));
+            if (DEBUG_DISPLAY) {
+                var roi = new AnnotateRoi(true, false, true, false, found.xs[i], found.ys[i], 0.6, "test", Color.BLUE);
+                roi.setImage(imp);
+                OverlayCanvas.getOverlayCanvas(imp).add(roi);
+                AIJLogger.multiLog("Found maxima: ", found.xs[i], found.ys[i]);
             }
         }
 
-        return new ProcessingMaxima(new TreeSet<>(coordinates), ip); // Returns set sorted on local maxima value
+        return new ProcessingMaxima(coordinates, ip); // Returns set sorted on local maxima value
     }
 
-    //ip.drawEdges, sharpen, smooth seem useful for removing noise and enhancing stars
+    private static boolean isMax(float v, int x, int y, int width, int height, float[] above, float[] row, float[] below) {
+        var hasLeft = x > 0;
+        var hasRight = x < width - 1;
+        if (y > 0) {
+            if (above[x] > v || (hasLeft && above[x - 1] > v) || (hasRight && above[x + 1] > v)) return false;
+        }
+        if ((hasLeft && row[x - 1] > v) || (hasRight && row[x + 1] > v)) return false;
+        if (y < height - 1) {
+            return !(below[x] > v || (hasLeft && below[x - 1] > v) || (hasRight && below[x + 1] > v));
+        }
+        return true;
+    }
 
     /**
-     * returns whether the neighbor in a given direction is within the image
-     * NOTE: it is assumed that the pixel x,y itself is within the image!
-     * Uses class variables width, height: dimensions of the image
-     *
-     * @param x         x-coordinate of the pixel that has a neighbor in the given direction
-     * @param y         y-coordinate of the pixel that has a neighbor in the given direction
-     * @param direction the direction from the pixel towards the neighbor (see makeDirectionOffsets)
-     * @return true if the neighbor is within the image (provided that x, y is within)
+     * Reads the calibrated values of a row, as {@link ImageProcessor#getPixelValue(int, int)} returns them.
      */
-    private static boolean isWithin(ImageProcessor ip, int x, int y, int direction) {
-        int xmax = ip.getWidth() - 1;
-        int ymax = ip.getHeight() - 1;
-        return switch (direction) {
-            case 0 -> (y > 0);
-            case 1 -> (x < xmax && y > 0);
-            case 2 -> (x < xmax);
-            case 3 -> (x < xmax && y < ymax);
-            case 4 -> (y < ymax);
-            case 5 -> (x > 0 && y < ymax);
-            case 6 -> (x > 0);
-            case 7 -> (x > 0 && y > 0);
-            default -> false;
-        };
+    private static void readRow(ImageProcessor ip, int y, float[] out) {
+        var width = out.length;
+        var offset = y * width;
+        var cTable = ip.getCalibrationTable();
+        var pixels = ip.getPixels();
+        if (pixels instanceof float[] p) {
+            System.arraycopy(p, offset, out, 0, width);
+        } else if (pixels instanceof short[] p) {
+            for (int x = 0; x < width; x++) {
+                var raw = p[offset + x] & 0xffff;
+                out[x] = cTable == null ? raw : cTable[raw];
+            }
+        } else if (pixels instanceof byte[] p) {
+            for (int x = 0; x < width; x++) {
+                var raw = p[offset + x] & 0xff;
+                out[x] = cTable == null ? raw : cTable[raw];
+            }
+        } else {
+            for (int x = 0; x < width; x++) {
+                out[x] = ip.getPixelValue(x, y);
+            }
+        }
+    }
+
+    /**
+     * Maxima in primitive arrays. Once {@code capacity} are held, the arrays form a min-heap on value so the faintest
+     * is replaced by brighter ones.
+     */
+    private static final class Peaks {
+        private final int capacity;
+        float[] values = new float[64];
+        int[] xs = new int[64];
+        int[] ys = new int[64];
+        int size;
+
+        Peaks(int capacity) {
+            this.capacity = Math.max(0, capacity);
+        }
+
+        void add(float v, int x, int y) {
+            if (size < capacity) {
+                if (size == values.length) {
+                    var n = (int) Math.min(capacity, 2L * size);
+                    values = Arrays.copyOf(values, n);
+                    xs = Arrays.copyOf(xs, n);
+                    ys = Arrays.copyOf(ys, n);
+                }
+                values[size] = v;
+                xs[size] = x;
+                ys[size] = y;
+                size++;
+                if (size == capacity) {
+                    for (int i = size / 2 - 1; i >= 0; i--) siftDown(i);
+                }
+            } else if (capacity > 0 && v > values[0]) {
+                values[0] = v;
+                xs[0] = x;
+                ys[0] = y;
+                siftDown(0);
+            }
+        }
+
+        void addAll(Peaks other) {
+            for (int i = 0; i < other.size; i++) add(other.values[i], other.xs[i], other.ys[i]);
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                var smallest = i;
+                var l = 2 * i + 1;
+                var r = l + 1;
+                if (l < size && values[l] < values[smallest]) smallest = l;
+                if (r < size && values[r] < values[smallest]) smallest = r;
+                if (smallest == i) return;
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(int i, int j) {
+            var v = values[i];
+            values[i] = values[j];
+            values[j] = v;
+            var t = xs[i];
+            xs[i] = xs[j];
+            xs[j] = t;
+            t = ys[i];
+            ys[i] = ys[j];
+            ys[j] = t;
+        }
     }
 
+    //ip.drawEdges, sharpen, smooth seem useful for removing noise and enhancing stars
+
     public record CoordinateMaxima(double value, double x, double y) implements Comparable<CoordinateMaxima> {
         public CoordinateMaxima(CoordinateMaxima c, double newVal) {
             this(newVal, c.x(), c.y());
@@ -191,6 +303,65 @@ public class StarFinder {
         }
     }
 
+    /**
+     * A uniform grid over maxima for finding those within a radius of a point without comparing against all of them.
+     * Queries touch the cells overlapping the search circle, so with a cell size near the search radius each query
+     * costs about the number of maxima close to the point.
+     */
+    public static final class MaximaGrid {
+        private final double cellSize;
+        private final HashMap<Long, ArrayList<CoordinateMaxima>> cells = new HashMap<>();
+
+        public MaximaGrid(Collection<CoordinateMaxima> maxima, double cellSize) {
+            this.cellSize = cellSize > 0 ? cellSize : 1;
+            maxima.forEach(this::add);
+        }
+
+        public void add(CoordinateMaxima maxima) {
+            cells.computeIfAbsent(key(cell(maxima.x()), cell(maxima.y())), $ -> new ArrayList<>()).add(maxima);
+        }
+
+        /**
+         * @return the maxima with a squared distance to {@code x, y} of at most {@code radius2}, in no particular order.
+         */
+        public List<CoordinateMaxima> within(double x, double y, double radius2) {
+            var out = new ArrayList<CoordinateMaxima>();
+            var r = Math.sqrt(radius2);
+            for (int cy = cell(y - r); cy <= cell(y + r); cy++) {
+                for (int cx = cell(x - r); cx <= cell(x + r); cx++) {
+                    var cell = cells.get(key(cx, cy));
+                    if (cell == null) continue;
+                    for (CoordinateMaxima c : cell) {
+                        if (c.squaredDistanceTo(x, y) <= radius2) out.add(c);
+                    }
+                }
+            }
+            return out;
+        }
+
+        public boolean anyWithin(double x, double y, double radius2) {
+            var r = Math.sqrt(radius2);
+            for (int cy = cell(y - r); cy <= cell(y + r); cy++) {
+                for (int cx = cell(x - r); cx <= cell(x + r); cx++) {
+                    var cell = cells.get(key(cx, cy));
+                    if (cell == null) continue;
+                    for (CoordinateMaxima c : cell) {
+                        if (c.squaredDistanceTo(x, y) <= radius2) return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private int cell(double v) {
+            return (int) Math.floor(v / cellSize);
+        }
+
+        private static long key(int cx, int cy) {
+            return ((long) cx << 32) | (cy & 0xffffffffL);
+        }
+    }
+
     public record ProcessingMaxima(TreeSet<CoordinateMaxima> coordinateMaximas, ImageProcessor ip) {}
 
     /**
@@ -0,0 +1,313 @@
+package astroj;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Draws large 16 and 32-bit images by converting only the tiles in view to 8-bit, instead of the whole frame as
+ * {@link ImagePlus#getImage()} does.
+ * <p>
+ * Tiles are converted in parallel on background threads and kept until the display range or LUT changes. Zoomed out
+ * views are drawn from a pyramid of block averaged images, so that their tiles hold about as many pixels as are shown.
+ * A paint waits briefly for missing tiles, then draws the tiles it has, including outdated ones, and repaints once the
+ * remaining tiles are ready.
+ */
+class TiledImageRenderer {
+    static final int TILE_SIZE = 512;
+    /**
+     * Smaller images are converted as a whole, which is fast enough.
+     */
+    static final long MIN_PIXELS = 4096L * 4096L;
+    private static final int MAX_TILES = 256;
+    private static final long PAINT_WAIT_MILLIS = 40;
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ExecutorService renderPool =
+            Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() - 1), r -> {
+                var t = new Thread(r, "Tile Renderer " + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+
+    private final Component component;
+    private final LinkedHashMap<Long, Tile> tiles = new LinkedHashMap<>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Tile> eldest) {
+            return size() > MAX_TILES;
+        }
+    };
+    private final HashMap<Long, Pending> pending = new HashMap<>();
+    private Pyramid pyramid;
+    private int generation;
+
+    /**
+     * @param component repainted when tiles that were missing from a paint are ready.
+     */
+    TiledImageRenderer(Component component) {
+        this.component = component;
+    }
+
+    /**
+     * @return whether {@code imp} is drawn by this renderer rather than from {@link ImagePlus#getImage()}.
+     */
+    static boolean canRender(ImagePlus imp) {
+        if (imp == null || imp.isComposite()) return false;
+        ImageProcessor ip = imp.getProcessor();
+        return (ip instanceof FloatProcessor || ip instanceof ShortProcessor) &&
+                (long) ip.getWidth() * ip.getHeight() >= MIN_PIXELS &&
+                ip.getMinThreshold() == ImageProcessor.NO_THRESHOLD &&
+                ip.getColorModel() instanceof IndexColorModel;
+    }
+
+    /**
+     * Marks the tiles as outdated, for when the pixel values may have changed. Outdated tiles are still drawn until
+     * they are replaced.
+     */
+    synchronized void invalidate() {
+        generation++;
+        pyramid = null;
+    }
+
+    /**
+     * Draws the area {@code sx1, sy1, sx2, sy2} of {@code ip} into the area {@code dx1, dy1, dx2, dy2} of {@code g},
+     * as {@link Graphics#drawImage(Image, int, int, int, int, int, int, int, int, ImageObserver)} does.
+     */
+    void draw(Graphics g, ImageProcessor ip, int dx1, int dy1, int dx2, int dy2, int sx1, int sy1, int sx2, int sy2) {
+        if (sx2 <= sx1 || sy2 <= sy1) return;
+        double scaleX = (dx2 - dx1) / (double) (sx2 - sx1);
+        double scaleY = (dy2 - dy1) / (double) (sy2 - sy1);
+        var display = new Display(ip.getMin(), ip.getMax(), (IndexColorModel) ip.getColorModel());
+
+        var keys = new ArrayList<Long>();
+        var futures = new ArrayList<CompletableFuture<?>>();
+        boolean stale = false;
+        int level;
+        synchronized (this) {
+            if (pyramid == null || pyramid.ip != ip || pyramid.pixels != ip.getPixels()) {
+                if (pyramid != null) generation++;
+                pyramid = new Pyramid(ip, generation);
+            }
+            level = pyramid.levelFor(Math.min(scaleX, scaleY));
+            int span = TILE_SIZE << level;
+            for (int ty = sy1 / span; ty <= (sy2 - 1) / span; ty++) {
+                for (int tx = sx1 / span; tx <= (sx2 - 1) / span; tx++) {
+                    long key = key(level, tx, ty);
+                    keys.add(key);
+                    var tile = tiles.get(key);
+                    if (tile != null && tile.generation == generation && tile.display.equals(display)) continue;
+                    // A tile still rendering an earlier state is scheduled again by the repaint after it
+                    var inFlight = pending.get(key);
+                    if (inFlight == null) {
+                        futures.add(schedule(pyramid, display, key, level, tx, ty));
+                    } else {
+                        futures.add(inFlight.future);
+                        stale |= inFlight.generation != generation || !inFlight.display.equals(display);
+                    }
+                }
+            }
+        }
+
+        if (!futures.isEmpty()) {
+            var all = CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]));
+            try {
+                all.get(PAINT_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                if (stale) component.repaint();
+            } catch (TimeoutException e) {
+                all.whenComplete((v, t) -> component.repaint());
+            } catch (InterruptedException | ExecutionException ignored) {
+            }
+        }
+
+        Graphics clipped = g.create();
+        try {
+            clipped.clipRect(dx1, dy1, dx2 - dx1, dy2 - dy1);
+            for (long key : keys) {
+                Tile tile;
+                synchronized (this) {
+                    tile = tiles.get(key);
+                }
+                if (tile == null) continue;
+                int tx = (int) (key & 0xffffff), ty = (int) ((key >> 24) & 0xffffff);
+                int x0 = tx * TILE_SIZE << level, y0 = ty * TILE_SIZE << level;
+                int x1 = x0 + (tile.image.getWidth() << level), y1 = y0 + (tile.image.getHeight() << level);
+                clipped.drawImage(tile.image,
+                        (int) Math.round(dx1 + (x0 - sx1) * scaleX), (int) Math.round(dy1 + (y0 - sy1) * scaleY),
+                        (int) Math.round(dx1 + (x1 - sx1) * scaleX), (int) Math.round(dy1 + (y1 - sy1) * scaleY),
+                        0, 0, tile.image.getWidth(), tile.image.getHeight(), null);
+            }
+        } finally {
+            clipped.dispose();
+        }
+    }
+
+    private CompletableFuture<Void> schedule(Pyramid source, Display display, long key, int level, int tx, int ty) {
+        var future = new CompletableFuture<Void>();
+        pending.put(key, new Pending(future, source.generation, display));
+        renderPool.execute(() -> {
+            try {
+                var image = source.render(level, tx, ty, display);
+                synchronized (this) {
+                    var old = tiles.get(key);
+                    // A slower render of an older state must not replace a newer tile
+                    if (old == null || old.generation <= source.generation) {
+                        tiles.put(key, new Tile(image, source.generation, display));
+                    }
+                }
+            } catch (Throwable ignored) {
+                // The tile is tried again on the next paint
+            } finally {
+                synchronized (this) {
+                    pending.remove(key);
+                }
+                future.complete(null);
+            }
+        });
+        return future;
+    }
+
+    private static long key(int level, int tx, int ty) {
+        return ((long) level << 48) | ((long) ty << 24) | tx;
+    }
+
+    private record Display(double min, double max, IndexColorModel cm) {}
+
+    private record Tile(BufferedImage image, int generation, Display display) {}
+
+    private record Pending(CompletableFuture<Void> future, int generation, Display display) {}
+
+    /**
+     * The pixels of one image at successively halved resolutions. Level 0 is the image itself and level 1 is averaged
+     * when its tiles are rendered. Levels 2 and up are averaged once and kept, so zoomed out views do not read the
+     * full image again when the display range changes.
+     */
+    private static class Pyramid {
+        final ImageProcessor ip;
+        final Object pixels;
+        final int generation;
+        final int width, height;
+        private final HashMap<Integer, float[]> levels = new HashMap<>();
+
+        Pyramid(ImageProcessor ip, int generation) {
+            this.ip = ip;
+            this.pixels = ip.getPixels();
+            this.generation = generation;
+            width = ip.getWidth();
+            height = ip.getHeight();
+        }
+
+        /**
+         * @return the coarsest level that still has at least one pixel per screen pixel.
+         */
+        int levelFor(double magnification) {
+            int level = 0;
+            while (magnification * (2 << level) <= 1 && (Math.max(width, height) >> (level + 1)) > 0) level++;
+            return level;
+        }
+
+        BufferedImage render(int level, int tx, int ty, Display display) {
+            int levelWidth = levelSize(width, level), levelHeight = levelSize(height, level);
+            int x0 = tx * TILE_SIZE, y0 = ty * TILE_SIZE;
+            int w = Math.min(TILE_SIZE, levelWidth - x0), h = Math.min(TILE_SIZE, levelHeight - y0);
+            var out = new byte[w * h];
+
+            // The scaling of FloatProcessor and ShortProcessor.create8BitImage()
+            boolean isFloat = pixels instanceof float[];
+            double min = isFloat ? display.min : (int) display.min;
+            double scale = isFloat ? 255.0 / (display.max - display.min) :
+                    256.0 / ((int) display.max - (int) display.min + 1);
+
+            float[] source = level >= 2 ? level(level) : null;
+            for (int y = 0; y < h; y++) {
+                for (int x = 0; x < w; x++) {
+                    double v;
+                    if (level == 0) {
+                        v = value((y0 + y) * width + x0 + x);
+                    } else if (level == 1) {
+                        v = mean(2 * (x0 + x), 2 * (y0 + y), 2);
+                    } else {
+                        v = source[(y0 + y) * levelWidth + x0 + x];
+                    }
+                    v -= min;
+                    if (v < 0) v = 0;
+                    int iv = (int) (v * scale + 0.5);
+                    out[y * w + x] = (byte) Math.min(iv, 255);
+                }
+            }
+
+            var raster = Raster.createInterleavedRaster(new DataBufferByte(out, out.length), w, h, w, 1,
+                    new int[]{0}, null);
+            return new BufferedImage(display.cm, raster, false, null);
+        }
+
+        private synchronized float[] level(int level) {
+            var data = levels.get(level);
+            if (data != null) return data;
+
+            int w = levelSize(width, level), h = levelSize(height, level);
+            var out = new float[w * h];
+            if (level == 2) {
+                IntStream.range(0, h).parallel().forEach(y -> {
+                    for (int x = 0; x < w; x++) out[y * w + x] = (float) mean(4 * x, 4 * y, 4);
+                });
+            } else {
+                var finer = level(level - 1);
+                int fw = levelSize(width, level - 1), fh = levelSize(height, level - 1);
+                IntStream.range(0, h).parallel().forEach(y -> {
+                    for (int x = 0; x < w; x++) {
+                        double sum = 0;
+                        int n = 0;
+                        for (int j = 2 * y; j < Math.min(2 * y + 2, fh); j++) {
+                            for (int i = 2 * x; i < Math.min(2 * x + 2, fw); i++) {
+                                float v = finer[j * fw + i];
+                                if (!Float.isNaN(v)) {
+                                    sum += v;
+                                    n++;
+                                }
+                            }
+                        }
+                        out[y * w + x] = n == 0 ? Float.NaN : (float) (sum / n);
+                    }
+                });
+            }
+            levels.put(level, out);
+            return out;
+        }
+
+        /**
+         * @return the mean of the pixels of the block at {@code x, y} of the full image, ignoring NaN pixels.
+         */
+        private double mean(int x, int y, int size) {
+            double sum = 0;
+            int n = 0;
+            for (int j = y; j < Math.min(y + size, height); j++) {
+                for (int i = x; i < Math.min(x + size, width); i++) {
+                    double v = value(j * width + i);
+                    if (!Double.isNaN(v)) {
+                        sum += v;
+                        n++;
+                    }
+                }
+            }
+            return n == 0 ? Double.NaN : sum / n;
+        }
+
+        private double value(int i) {
+            return pixels instanceof float[] f ? f[i] : ((short[]) pixels)[i] & 0xffff;
+        }
+
+        private static int levelSize(int size, int level) {
+            return (size + (1 << level) - 1) >> level;
+        }
+    }
+}
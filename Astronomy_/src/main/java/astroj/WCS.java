@@ -93,6 +93,7 @@ public class WCS
     public boolean hasScale = false;
 
 	boolean enoughInfo=false;
+	volatile WCSTransform transform = null;
 	public String logInfo = new String("");
     DecimalFormat threeToLeft = new DecimalFormat("000");
 
@@ -136,9 +137,9 @@ public class WCS
 	public WCS (ImagePlus img)
 		{
 		NAXIS=2;
-		String[] hdr = FitsJ.getHeader (img);
-		if (hdr == null) return;
-		process(img.getShortTitle(),img.getWidth(),img.getHeight(),img.getStackSize(),hdr);
+		FitsHeader header = FitsHeader.of (img);
+		if (header == null) return;
+		process(img.getShortTitle(),img.getWidth(),img.getHeight(),img.getStackSize(),header);
 		}
 
 	public WCS (String[] hdr)
@@ -148,12 +149,25 @@ public class WCS
 		process(null,-1,-1,-1, hdr);
 		}
 
+	public WCS (FitsHeader header)
+		{
+		NAXIS=2;
+		if (header == null) return;
+		process(null,-1,-1,-1, header);
+		}
+
 	protected void process (String title, int nx, int ny, int nz, String[] hdr)
 		{
+		process(title, nx, ny, nz, new FitsHeader(hdr));
+		}
+
+	protected void process (String title, int nx, int ny, int nz, FitsHeader header)
+		{
+		String[] hdr = header.cards;
 		// FITS HEADER PRESENT?
 
-		int icard = FitsJ.findCardWithKey ("SIMPLE",hdr);
-		int jcard = FitsJ.findCardWithKey ("END",hdr);
+		int icard = header.indexOf("SIMPLE");
+		int jcard = header.indexOf("END");
 		if (icard < 0 || jcard < 0) return;
 
 //		int naxis=-1;
@@ -162,7 +176,7 @@ public class WCS
 		// GET NUMBER OF AXES
         
         int nax = -1;
-		icard = FitsJ.findCardWithKey ("NAXIS",hdr);  
+		icard = header.indexOf("NAXIS");  
 		if (icard >= 0)
 			nax = FitsJ.getCardIntValue (hdr[icard]);
 		if (nax <= 0)
@@ -175,7 +189,7 @@ public class WCS
         WCSAXES = NAXIS;
 		// CHECK IF THE NUMBER OF WCS AXES IS KNOWN AND DIFFERENT
 
-		icard = FitsJ.findCardWithKey ("WCSAXES",hdr);
+		icard = header.indexOf("WCSAXES");
 		if (icard >= 0)
 			{
 			WCSAXES = FitsJ.getCardIntValue (hdr[icard]);  //retain to create CD/PC matrix subscripts for WCSAXES > AIJ AXES (NAXIS)
@@ -195,7 +209,7 @@ public class WCS
 
 //		for (int j=1; j <= NAXIS; j++)
 //			{
-//			icard = FitsJ.findCardWithKey ("NAXIS"+j, hdr);
+//			icard = header.indexOf("NAXIS"+j);
 //			if (icard < 0)
 //				{
 //				logInfo += "Cannot find keyword NAXIS"+j+" in FITS header of "+title+"\n";
@@ -207,10 +221,10 @@ public class WCS
         
         // GET SIZES OF AXES
         
-        icard = FitsJ.findCardWithKey ("IMAGEW", hdr);
+        icard = header.indexOf("IMAGEW");
         if (icard < 0)
             {
-            icard = FitsJ.findCardWithKey ("NAXIS1", hdr);
+            icard = header.indexOf("NAXIS1");
             if (icard < 0)
                 {            
                 logInfo += "Cannot find keyword IMAGEW or NAXIS1 in FITS header of "+title+"\n";
@@ -220,10 +234,10 @@ public class WCS
             }
         NAXES[0] = FitsJ.getCardIntValue (hdr[icard]);  
         
-        icard = FitsJ.findCardWithKey ("IMAGEH", hdr);
+        icard = header.indexOf("IMAGEH");
         if (icard < 0)
             {
-            icard = FitsJ.findCardWithKey ("NAXIS2", hdr);
+            icard = header.indexOf("NAXIS2");
             if (icard < 0)
                 {            
                 logInfo += "Cannot find keyword IMAGEH or NAXIS2 in FITS header of "+title+"\n";
@@ -265,7 +279,7 @@ public class WCS
 						"N","O","P","Q","R","S","T","U","V","W","X","Y","Z" };
 		for (int k=0; k < abc.length; k++)
 			{
-			icard = FitsJ.findCardWithKey ("CTYPE1"+abc[k], hdr);
+			icard = header.indexOf("CTYPE1"+abc[k]);
 			if (icard > 0)
 				{
 				typ = FitsJ.getCardStringValue(hdr[icard]);
@@ -288,7 +302,7 @@ public class WCS
             {
             for (int k=2; k <= NAXIS; k++)
                 {
-                icard = FitsJ.findCardWithKey ("CTYPE"+k+prefix, hdr);
+                icard = header.indexOf("CTYPE"+k+prefix);
                 if (icard > 0)
                     CTYPE[k-1] = FitsJ.getCardStringValue(hdr[icard]);
                 }
@@ -303,29 +317,29 @@ public class WCS
         for (int k=1; k <= NAXIS; k++)
             {
             CRPIX[k-1] = NAXES[k-1]/2f;
-            icard = FitsJ.findCardWithKey ("CDELT"+k+prefix, hdr);
+            icard = header.indexOf("CDELT"+k+prefix);
             if (icard > 0)
                 {
                 CDELT[k-1] = FitsJ.getCardDoubleValue(hdr[icard]);
                 if (!Double.isNaN(CDELT[k-1])) hasCDELT[k-1] = true;
                 }
-            icard = FitsJ.findCardWithKey ("CROTA"+k+prefix, hdr);
+            icard = header.indexOf("CROTA"+k+prefix);
             if (icard > 0)
                 {
                 CROTA[k-1] = FitsJ.getCardDoubleValue(hdr[icard]);
                 if (!Double.isNaN(CROTA[k-1])) hasCROTA[k-1] = true;
                 }            
-            icard = FitsJ.findCardWithKey ("CRPIX"+k+prefix, hdr);
+            icard = header.indexOf("CRPIX"+k+prefix);
             if (icard > 0)
                 CRPIX[k-1] = FitsJ.getCardDoubleValue(hdr[icard]);
-            icard = FitsJ.findCardWithKey ("CRVAL"+k+prefix, hdr);
+            icard = header.indexOf("CRVAL"+k+prefix);
             if (icard > 0)
                 CRVAL[k-1] = FitsJ.getCardDoubleValue(hdr[icard]);
             else
                 {
                 if (k==1)
                     {
-                    icard = FitsJ.findCardWithKey ("RA", hdr);
+                    icard = header.indexOf("RA");
                     if (icard > 0)
                         {
                         double val = 15 * FitsJ.getCardDoubleValueFromSexagesimal(hdr[icard], 24);  
@@ -338,7 +352,7 @@ public class WCS
                     }
                 else if (k==2)
                     {
-                    icard = FitsJ.findCardWithKey ("DEC", hdr);
+                    icard = header.indexOf("DEC");
                     if (icard > 0)
                         {
                         double val = FitsJ.getCardDoubleValueFromSexagesimal(hdr[icard], 90);  
@@ -354,7 +368,7 @@ public class WCS
 		
         if (hasRA && hasDEC) hasRADEC = true;
 
-        icard = FitsJ.findCardWithKey ("EPOCH"+prefix, hdr);
+        icard = header.indexOf("EPOCH"+prefix);
         if (icard > 0)
             {
             double EPOCH = FitsJ.getCardDoubleValue(hdr[icard]);
@@ -364,13 +378,13 @@ public class WCS
                 }
             }
         
-//        icard = FitsJ.findCardWithKey ("FFIINDEX", hdr);
+//        icard = header.indexOf("FFIINDEX");
 //        if (icard > 0)
 //            {
 //            FFIScale=0.35;
 //            }
 //        
-//        icard = FitsJ.findCardWithKey ("WCS_MSEP", hdr);
+//        icard = header.indexOf("WCS_MSEP");
 //        if (icard > 0)
 //            {
 //            String comment = FitsJ.getCardComment (hdr[icard]);
@@ -384,7 +398,7 @@ public class WCS
 				{
 				for (int i=1; i <= NAXIS; i++)
 					{
-					icard = FitsJ.findCardWithKey ("CD"+i+"_"+k+prefix, hdr);
+					icard = header.indexOf("CD"+i+"_"+k+prefix);
 					if (icard > 0)
 						{
 						hasCD=true;
@@ -392,7 +406,7 @@ public class WCS
 						} 
                     if (!hasCD)
                         {
-                        icard = FitsJ.findCardWithKey ("PC"+i+"_"+k+prefix, hdr);
+                        icard = header.indexOf("PC"+i+"_"+k+prefix);
                         if (icard > 0)
                             {
                             hasPC=true;
@@ -400,7 +414,7 @@ public class WCS
                             }
                         if (!hasPC)
                             {
-                            icard = FitsJ.findCardWithKey ("PC"+threeToLeft.format(i-1)+threeToLeft.format(k-1)+prefix, hdr);
+                            icard = header.indexOf("PC"+threeToLeft.format(i-1)+threeToLeft.format(k-1)+prefix);
                             if (icard > 0)
                                 {
                                 hasOldPC=true;
@@ -433,7 +447,7 @@ public class WCS
 				if (NAXIS > 1)
 					{
 					A_ORDER = -1;
-					icard = FitsJ.findCardWithKey ("A_ORDER",hdr);
+					icard = header.indexOf("A_ORDER");
 					if (icard >= 0)
 						{
 						A_ORDER = FitsJ.getCardIntValue (hdr[icard]);
@@ -447,7 +461,7 @@ public class WCS
 						logInfo += "SIP A_ORDER not found in FITS header!\n";
 
 					B_ORDER = -1;
-					icard = FitsJ.findCardWithKey ("B_ORDER",hdr);
+					icard = header.indexOf("B_ORDER");
 					if (icard >= 0)
 						{
 						B_ORDER = FitsJ.getCardIntValue (hdr[icard]);
@@ -461,7 +475,7 @@ public class WCS
 						logInfo += "SIP B_ORDER not found in FITS header!\n";
                     
 					AP_ORDER = A_ORDER; //in case there is no AP_ORDER (e.g. TICA FFIs)
-					icard = FitsJ.findCardWithKey ("AP_ORDER",hdr);
+					icard = header.indexOf("AP_ORDER");
 					if (icard >= 0)
 						{
 						AP_ORDER = FitsJ.getCardIntValue (hdr[icard]);
@@ -475,7 +489,7 @@ public class WCS
 						logInfo += "SIP AP_ORDER not found in FITS header!\n";
 
 					BP_ORDER = B_ORDER; //in case there is no BP_ORDER (e.g. TICA FFIs)
-					icard = FitsJ.findCardWithKey ("BP_ORDER",hdr);
+					icard = header.indexOf("BP_ORDER");
 					if (icard >= 0)
 						{
 						BP_ORDER = FitsJ.getCardIntValue (hdr[icard]);
@@ -557,7 +571,7 @@ public class WCS
 							{
 							if (q + p <= A_ORDER)
 								{
-								icard = FitsJ.findCardWithKey ("A_"+p+"_"+q+prefix, hdr);
+								icard = header.indexOf("A_"+p+"_"+q+prefix);
 								if (icard > 0)
 									{
 									A[p][q] = FitsJ.getCardDoubleValue(hdr[icard]);
@@ -586,7 +600,7 @@ public class WCS
 							{
 							if (q + p <= B_ORDER)
 								{
-								icard = FitsJ.findCardWithKey ("B_"+p+"_"+q+prefix, hdr);
+								icard = header.indexOf("B_"+p+"_"+q+prefix);
 								if (icard > 0)
 									{
 									B[p][q] = FitsJ.getCardDoubleValue(hdr[icard]);
@@ -617,7 +631,7 @@ public class WCS
 							{
 							if (q + p <= AP_ORDER)
 								{
-								icard = FitsJ.findCardWithKey ("AP_"+p+"_"+q+prefix, hdr);
+								icard = header.indexOf("AP_"+p+"_"+q+prefix);
 								if (icard > 0)
 									{
 									AP[p][q] = FitsJ.getCardDoubleValue(hdr[icard]);
@@ -646,7 +660,7 @@ public class WCS
 							{
 							if (q + p <= BP_ORDER)
 								{
-								icard = FitsJ.findCardWithKey ("BP_"+p+"_"+q+prefix, hdr);
+								icard = header.indexOf("BP_"+p+"_"+q+prefix);
 								if (icard > 0)
 									{
 									BP[p][q] = FitsJ.getCardDoubleValue(hdr[icard]);
@@ -668,14 +682,14 @@ public class WCS
         
         if (projection.equals("SIN")) 
             {
-            icard = FitsJ.findCardWithKey ("PV2_1"+prefix, hdr);
+            icard = header.indexOf("PV2_1"+prefix);
             if (icard > 0) PV[1][1] = FitsJ.getCardDoubleValue(hdr[icard]);
-            icard = FitsJ.findCardWithKey ("PV2_2"+prefix, hdr);
+            icard = header.indexOf("PV2_2"+prefix);
             if (icard > 0) PV[1][2] = FitsJ.getCardDoubleValue(hdr[icard]);           
             }
         
 		LONPOLE = 180.0;// DEGS
-		icard = FitsJ.findCardWithKey ("LONPOLE"+prefix, hdr);
+		icard = header.indexOf("LONPOLE"+prefix);
 		if (icard > 0)
 			LONPOLE = FitsJ.getCardDoubleValue(hdr[icard]);
 
@@ -705,7 +719,7 @@ public class WCS
                 {
                 if (!hasCROTA[1])
                     {
-                    icard = FitsJ.findCardWithKey ("BPA", hdr);
+                    icard = header.indexOf("BPA");
                     if (icard > 0)
                         {
                         CROTA[1] = FitsJ.getCardDoubleValue(hdr[icard]);
@@ -713,7 +727,7 @@ public class WCS
                         }
                     if (!hasPAkeyword)
                         {
-                        icard = FitsJ.findCardWithKey ("PA", hdr);
+                        icard = header.indexOf("PA");
                         if (icard > 0)
                             {
                             CROTA[1] = -FitsJ.getCardDoubleValue(hdr[icard])+180.0;
@@ -730,13 +744,13 @@ public class WCS
                         }
                     else
                         {
-                        icard = FitsJ.findCardWithKey ("XPIXSZ", hdr);
+                        icard = header.indexOf("XPIXSZ");
                         if (icard > 0)
                             {
                             PIXSZ[0] = FitsJ.getCardDoubleValue(hdr[icard]);
                             if (!Double.isNaN(PIXSZ[0])) hasPIXSZ[0] = true;
                             }
-                        icard = FitsJ.findCardWithKey ("YPIXSZ", hdr);
+                        icard = header.indexOf("YPIXSZ");
                         if (icard > 0)
                             {
                             PIXSZ[1] = FitsJ.getCardDoubleValue(hdr[icard]);
@@ -744,7 +758,7 @@ public class WCS
                             }   
                         if (hasPIXSZ[0] && !hasPIXSZ[1]) PIXSZ[1] = PIXSZ[0];
                         else if (hasPIXSZ[1] && !hasPIXSZ[0]) PIXSZ[0] = PIXSZ[1];
-                        icard = FitsJ.findCardWithKey ("FOCALLEN", hdr);
+                        icard = header.indexOf("FOCALLEN");
                         if (icard > 0)
                             {
                             FOCALLEN = FitsJ.getCardDoubleValue(hdr[icard]);
@@ -1408,6 +1422,7 @@ public class WCS
 
 	public void initialize (int naxis)
 		{
+		transform = null;
 		NAXIS = naxis;
         WCSAXES=naxis;
 		if (naxis == 0) return;
@@ -1664,8 +1679,23 @@ public class WCS
     public void setUseSIPAlways(boolean useSIP)
         {
         useSIPAlways = useSIP;
+        transform = null;
         }
 
+	/**
+	 * Returns this WCS prepared for converting many coordinates without allocating, see {@link WCSTransform}.
+	 * It is built on first use and kept until the WCS changes.
+	 *
+	 * @return the transform, or {@code null} if there is not enough information for a WCS.
+	 */
+	public WCSTransform getTransform ()
+		{
+		if (!enoughInfo || NAXIS != 2) return null;
+		WCSTransform t = transform;
+		if (t == null) transform = t = new WCSTransform(this);
+		return t;
+		}
+
 	public void repair (ImagePlus img, double[] crpix, double[][] cd)
 		{
 		NAXIS=0;
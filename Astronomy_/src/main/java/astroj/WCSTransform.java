@@ -0,0 +1,409 @@
+package astroj;
+
+import Jama.Matrix;
+
+/**
+ * A {@link WCS} prepared for converting many coordinates.
+ * <p>
+ * Everything that {@link WCS#pixels2wcs(double[])} and {@link WCS#wcs2pixels(double[])} work out on each call is
+ * done once here: the header values are read into fields, the SIP polynomials are laid out for Horner evaluation and
+ * the Euler angles of the projection are turned into a rotation matrix between native and celestial unit vectors,
+ * so the zenithal projections need no trigonometry beyond one {@code atan2} pair per point. Converting a point
+ * allocates nothing, and an instance is immutable, so it may be shared between threads.
+ * <p>
+ * Headers with a forward SIP distortion but no inverse, such as TICA full frame images without {@code AP_ORDER},
+ * get an inverse polynomial fitted over the image, where {@link WCS} leaves the distortion uncorrected.
+ * <p>
+ * Coordinates of an {@code EPOCH} other than 2000 are still converted point by point with {@link SkyAlgorithms}, as
+ * the conversion includes nutation, aberration or the FK4 E-terms and is not a rotation. For projections other than
+ * TAN and SIN the linear fallback of {@link WCS} is used, with {@code CRVAL} also removed when converting to pixels
+ * so that the two directions agree.
+ */
+public final class WCSTransform {
+    private static final double R2D = WCS.R2D;
+    private static final int TAN = 0, SIN = 1, LINEAR = 2;
+    /**
+     * Grid points per axis over which a missing inverse SIP polynomial is fitted.
+     */
+    private static final int INVERSE_FIT_GRID = 40;
+
+    private final boolean hasRaDec;
+    private final int projection;
+    private final double epoch;
+    private final double uOffset, vOffset;
+    private final double cd00, cd01, cd10, cd11;
+    private final double cdi00, cdi01, cdi10, cdi11;
+    private final double crval0, crval1;
+    private final double pv1, pv2;
+    private final double lngPole, phiPole;
+    private final double m00, m01, m02, m10, m11, m20, m21, m22;
+    private final Sip sipA, sipB, sipAP, sipBP;
+    private final boolean fittedInverse;
+
+    WCSTransform(WCS wcs) {
+        hasRaDec = wcs.hasRADEC;
+        projection = "TAN".equals(wcs.projection) ? TAN : "SIN".equals(wcs.projection) ? SIN : LINEAR;
+        epoch = wcs.epoch;
+        uOffset = 1.0 - Centroid.PIXELCENTER - wcs.CRPIX[0];
+        vOffset = wcs.NAXES[1] + Centroid.PIXELCENTER - wcs.CRPIX[1];
+        cd00 = wcs.CD[0][0];
+        cd01 = wcs.CD[0][1];
+        cd10 = wcs.CD[1][0];
+        cd11 = wcs.CD[1][1];
+        cdi00 = wcs.CDinv[0][0];
+        cdi01 = wcs.CDinv[0][1];
+        cdi10 = wcs.CDinv[1][0];
+        cdi11 = wcs.CDinv[1][1];
+        crval0 = wcs.CRVAL[0];
+        crval1 = wcs.CRVAL[1];
+        pv1 = wcs.PV[1][1];
+        pv2 = wcs.PV[1][2];
+
+        // Rows take a native unit vector to (cos(lat) cos(dlng), cos(lat) sin(dlng), sin(lat)), where dlng is
+        // measured from the celestial longitude of the native pole, following Calabretta & Greisen 2002 eqn. 2
+        lngPole = wcs.eul[0];
+        phiPole = wcs.eul[2];
+        var sinDecPole = wcs.eul[3];
+        var cosDecPole = wcs.eul[4];
+        var cosPhiPole = wcs.cosdeg(wcs.eul[2]);
+        var sinPhiPole = wcs.sindeg(wcs.eul[2]);
+        m00 = -sinDecPole * cosPhiPole;
+        m01 = -sinDecPole * sinPhiPole;
+        m02 = cosDecPole;
+        m10 = sinPhiPole;
+        m11 = -cosPhiPole;
+        m20 = cosDecPole * cosPhiPole;
+        m21 = cosDecPole * sinPhiPole;
+        m22 = sinDecPole;
+
+        var sipApplies = wcs.useSIPAlways || projection == TAN;
+        sipA = sipApplies && wcs.hasSIP[0] ? Sip.of(wcs.A, wcs.A_ORDER) : null;
+        sipB = sipApplies && wcs.hasSIP[1] ? Sip.of(wcs.B, wcs.B_ORDER) : null;
+        var sipAP = sipApplies && wcs.hasSIPinv[0] ? Sip.of(wcs.AP, wcs.AP_ORDER) : null;
+        var sipBP = sipApplies && wcs.hasSIPinv[1] ? Sip.of(wcs.BP, wcs.BP_ORDER) : null;
+        if ((sipA != null && sipAP == null) || (sipB != null && sipBP == null)) {
+            var fit = fitInverse(wcs.NAXES[0], wcs.NAXES[1]);
+            if (fit != null) {
+                sipAP = fit[0];
+                sipBP = fit[1];
+            }
+            fittedInverse = fit != null;
+        } else {
+            fittedInverse = false;
+        }
+        this.sipAP = sipAP;
+        this.sipBP = sipBP;
+    }
+
+    public boolean hasRaDec() {
+        return hasRaDec;
+    }
+
+    /**
+     * @return {@code true} if the inverse SIP polynomials were fitted because the header has none.
+     */
+    public boolean hasFittedInverse() {
+        return fittedInverse;
+    }
+
+    /**
+     * Converts an ImageJ pixel position to RA and Dec in degrees, as {@link WCS#pixels2wcs(double[])} does.
+     *
+     * @param radec receives RA in element 0 and Dec in element 1.
+     */
+    public void pixels2wcs(double x, double y, double[] radec) {
+        pixels2wcs(x, y, radec, 0, radec, 1);
+    }
+
+    /**
+     * Converts {@code count} ImageJ pixel positions to RA and Dec in degrees. The output arrays may be the input
+     * arrays.
+     */
+    public void pixels2wcs(double[] x, double[] y, double[] ra, double[] dec, int count) {
+        for (int i = 0; i < count; i++) {
+            pixels2wcs(x[i], y[i], ra, i, dec, i);
+        }
+    }
+
+    /**
+     * Converts RA and Dec in degrees to an ImageJ pixel position, as {@link WCS#wcs2pixels(double[])} does.
+     *
+     * @param xy receives x in element 0 and y in element 1.
+     */
+    public void wcs2pixels(double ra, double dec, double[] xy) {
+        wcs2pixels(ra, dec, xy, 0, xy, 1);
+    }
+
+    /**
+     * Converts {@code count} RA and Dec pairs in degrees to ImageJ pixel positions. The output arrays may be the
+     * input arrays.
+     */
+    public void wcs2pixels(double[] ra, double[] dec, double[] x, double[] y, int count) {
+        for (int i = 0; i < count; i++) {
+            wcs2pixels(ra[i], dec[i], x, i, y, i);
+        }
+    }
+
+    private void pixels2wcs(double x, double y, double[] ra, int raIndex, double[] dec, int decIndex) {
+        if (!hasRaDec) {
+            ra[raIndex] = 0;
+            dec[decIndex] = 0;
+            return;
+        }
+
+        // FITS pixel offsets from the reference pixel, corrected for distortion
+        var u = x + uOffset;
+        var v = vOffset - y;
+        var uc = sipA == null ? u : u + sipA.evaluate(u, v);
+        var vc = sipB == null ? v : v + sipB.evaluate(u, v);
+
+        // Projection plane coordinates, in degrees
+        var px = cd00 * uc + cd01 * vc;
+        var py = cd10 * uc + cd11 * vc;
+
+        double lng, lat;
+        if (projection == LINEAR) {
+            lng = px + crval0;
+            lat = py + crval1;
+        } else {
+            // Native unit vector (cos(theta) cos(phi), cos(theta) sin(phi), sin(theta))
+            double n0, n1, n2;
+            if (projection == TAN) {
+                var norm = Math.sqrt(px * px + py * py + R2D * R2D);
+                n0 = -py / norm;
+                n1 = px / norm;
+                n2 = R2D / norm;
+            } else if (pv1 == 0 && pv2 == 0) {
+                // Orthographic
+                var x0 = px / R2D;
+                var y0 = py / R2D;
+                var r2 = x0 * x0 + y0 * y0;
+                n0 = -y0;
+                n1 = x0;
+                n2 = r2 <= 1.0 ? Math.sqrt(1.0 - r2) : Double.NaN;
+            } else {
+                var theta = sinSynthesisTheta(px / R2D, py / R2D);
+                var z = 1.0 - Math.sin(theta);
+                var xp = -py / R2D + pv2 * z;
+                var yp = px / R2D - pv1 * z;
+                var phi = xp == 0.0 && yp == 0.0 ? 0.0 : Math.atan2(yp, xp);
+                n0 = Math.cos(theta) * Math.cos(phi);
+                n1 = Math.cos(theta) * Math.sin(phi);
+                n2 = Math.sin(theta);
+            }
+
+            var xx = m00 * n0 + m01 * n1 + m02 * n2;
+            var yy = m10 * n0 + m11 * n1;
+            var zz = m20 * n0 + m21 * n1 + m22 * n2;
+            double dlng;
+            if (xx != 0.0 || yy != 0.0) {
+                dlng = Math.toDegrees(Math.atan2(yy, xx));
+            } else {
+                // At the celestial pole, where any longitude will do
+                dlng = Math.toDegrees(Math.atan2(n1, n0)) - phiPole + 180.0;
+            }
+            lng = lngPole + dlng;
+            if (lngPole >= 0.0) {
+                if (lng < 0.0) lng += 360.0;
+            } else {
+                if (lng > 0.0) lng -= 360.0;
+            }
+            if (lng > 360.0) {
+                lng -= 360.0;
+            } else if (lng < -360.0) {
+                lng += 360.0;
+            }
+            lat = Math.toDegrees(Math.atan2(zz, Math.sqrt(xx * xx + yy * yy)));
+        }
+
+        if (epoch != 2000.0) {
+            double[] radecJ2000;
+            if (epoch == 1950) {
+                radecJ2000 = SkyAlgorithms.B1950toJ2000(lng / 15.0, lat, 0, 0, false);
+            } else {
+                radecJ2000 = SkyAlgorithms.Convert(2000.0, SkyAlgorithms.CalcJD((int) epoch, 1, 1, 0), lng / 15.0, lat,
+                        0, 0, 32, false, false, true, true, true);
+            }
+            lng = radecJ2000[0] * 15.0;
+            lat = radecJ2000[1];
+        }
+        ra[raIndex] = lng;
+        dec[decIndex] = lat;
+    }
+
+    private void wcs2pixels(double ra, double dec, double[] x, int xIndex, double[] y, int yIndex) {
+        if (!hasRaDec) {
+            x[xIndex] = 0;
+            y[yIndex] = 0;
+            return;
+        }
+
+        if (epoch != 2000.0) {
+            double[] radec;
+            if (epoch == 1950.0) {
+                radec = SkyAlgorithms.J2000toB1950(ra / 15.0, dec, 0, 0, false);
+            } else {
+                radec = SkyAlgorithms.Convert(2000.0, SkyAlgorithms.CalcJD((int) epoch, 1, 1, 0), ra / 15.0, dec,
+                        0, 0, 32, true, false, true, true, true);
+            }
+            ra = radec[0] * 15.0;
+            dec = radec[1];
+        }
+
+        // Projection plane coordinates, in degrees
+        double px, py;
+        if (projection == LINEAR) {
+            px = ra - crval0;
+            py = dec - crval1;
+        } else {
+            var dlng = Math.toRadians(ra - lngPole);
+            var latRad = Math.toRadians(dec);
+            var cosLat = Math.cos(latRad);
+            var xx = cosLat * Math.cos(dlng);
+            var yy = cosLat * Math.sin(dlng);
+            var zz = Math.sin(latRad);
+            var n0 = m00 * xx + m10 * yy + m20 * zz;
+            var n1 = m01 * xx + m11 * yy + m21 * zz;
+            var n2 = m02 * xx + m22 * zz;
+            if (projection == TAN) {
+                px = R2D * n1 / n2;
+                py = -R2D * n0 / n2;
+            } else {
+                px = R2D * (n1 + pv1 * (1.0 - n2));
+                py = -R2D * (n0 - pv2 * (1.0 - n2));
+            }
+        }
+
+        // FITS pixel offsets from the reference pixel, corrected for distortion
+        var uc = cdi00 * px + cdi01 * py;
+        var vc = cdi10 * px + cdi11 * py;
+        var u = sipAP == null ? uc : uc + sipAP.evaluate(uc, vc);
+        var v = sipBP == null ? vc : vc + sipBP.evaluate(uc, vc);
+
+        x[xIndex] = u - uOffset;
+        y[yIndex] = vOffset - v;
+    }
+
+    /**
+     * @return the native latitude, in radians, of the slant orthographic projection with parameters {@code pv1} and
+     * {@code pv2}, transcoded from WCSTools as in {@link WCS#pixels2wcs(double[])}.
+     */
+    private double sinSynthesisTheta(double x0, double y0) {
+        var tol = 1.0e-13;
+        var r2 = x0 * x0 + y0 * y0;
+        var w1 = pv1 * pv1 + pv2 * pv2;
+        var sxy = x0 * pv1 + y0 * pv2;
+        if (r2 < 1.0e-10) {
+            return Math.PI / 2 - Math.sqrt(r2 / (1.0 + sxy));
+        }
+        var a = w1 + 1.0;
+        var b = sxy - w1;
+        var c = r2 - sxy - sxy + w1 - 1.0;
+        var d = b * b - a * c;
+        if (d < 0.0) return Double.NaN;
+        d = Math.sqrt(d);
+
+        // Choose the solution closest to the pole
+        var sth1 = (-b + d) / a;
+        var sth2 = (-b - d) / a;
+        var sthe = Math.max(sth1, sth2);
+        if (sthe > 1.0) {
+            sthe = sthe - 1.0 < tol ? 1.0 : Math.min(sth1, sth2);
+        }
+        if (sthe < -1.0 && sthe + 1.0 > -tol) sthe = -1.0;
+        return sthe > 1.0 || sthe < -1.0 ? Double.NaN : Math.asin(sthe);
+    }
+
+    /**
+     * Fits inverse SIP polynomials of one order higher than the forward ones to the forward distortion sampled over
+     * the image, by least squares.
+     *
+     * @return the AP and BP polynomials, or {@code null} if the fit is degenerate.
+     */
+    private Sip[] fitInverse(int width, int height) {
+        if (width <= 0 || height <= 0) return null;
+        var order = Math.min(9, Math.max(sipA == null ? 0 : sipA.order, sipB == null ? 0 : sipB.order) + 1);
+        var terms = (order + 1) * (order + 2) / 2;
+        var n = INVERSE_FIT_GRID * INVERSE_FIT_GRID;
+        var corrected = new double[n][2];
+        var du = new double[n][1];
+        var dv = new double[n][1];
+        var scale = 0.0;
+        for (int j = 0; j < INVERSE_FIT_GRID; j++) {
+            for (int i = 0; i < INVERSE_FIT_GRID; i++) {
+                var k = j * INVERSE_FIT_GRID + i;
+                var u = (double) i * width / (INVERSE_FIT_GRID - 1) + uOffset;
+                var v = vOffset - (double) j * height / (INVERSE_FIT_GRID - 1);
+                var uc = sipA == null ? u : u + sipA.evaluate(u, v);
+                var vc = sipB == null ? v : v + sipB.evaluate(u, v);
+                corrected[k][0] = uc;
+                corrected[k][1] = vc;
+                du[k][0] = u - uc;
+                dv[k][0] = v - vc;
+                scale = Math.max(scale, Math.max(Math.abs(uc), Math.abs(vc)));
+            }
+        }
+        if (!(scale > 0) || !Double.isFinite(scale)) return null;
+
+        // Powers of coordinates scaled to within +/-1, to keep the design matrix well conditioned
+        var design = new double[n][terms];
+        for (int k = 0; k < n; k++) {
+            var t = 0;
+            for (int p = 0; p <= order; p++) {
+                for (int q = 0; q <= order - p; q++) {
+                    design[k][t++] = Math.pow(corrected[k][0] / scale, p) * Math.pow(corrected[k][1] / scale, q);
+                }
+            }
+        }
+        try {
+            var a = new Matrix(design);
+            var ap = a.solve(new Matrix(du)).getColumnPackedCopy();
+            var bp = a.solve(new Matrix(dv)).getColumnPackedCopy();
+            return new Sip[]{Sip.fromTerms(ap, order, scale), Sip.fromTerms(bp, order, scale)};
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A SIP polynomial {@code sum c[p][q] u^p v^q} over {@code p + q <= order}, stored by rows of equal {@code p}.
+     */
+    private record Sip(double[] c, int order) {
+        static Sip of(double[][] coefficients, int order) {
+            var c = new double[(order + 1) * (order + 1)];
+            for (int p = 0; p <= order; p++) {
+                for (int q = 0; q <= order - p; q++) {
+                    c[p * (order + 1) + q] = coefficients[p][q];
+                }
+            }
+            return new Sip(c, order);
+        }
+
+        /**
+         * @param terms coefficients of {@code (u/scale)^p (v/scale)^q}, in increasing {@code q} then {@code p}.
+         */
+        static Sip fromTerms(double[] terms, int order, double scale) {
+            var c = new double[(order + 1) * (order + 1)];
+            var t = 0;
+            for (int p = 0; p <= order; p++) {
+                for (int q = 0; q <= order - p; q++) {
+                    c[p * (order + 1) + q] = terms[t++] / Math.pow(scale, p + q);
+                }
+            }
+            return new Sip(c, order);
+        }
+
+        double evaluate(double u, double v) {
+            var sum = 0.0;
+            for (int p = order; p >= 0; p--) {
+                var base = p * (order + 1);
+                var column = 0.0;
+                for (int q = order - p; q >= 0; q--) {
+                    column = column * v + c[base + q];
+                }
+                sum = sum * u + column;
+            }
+            return sum;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * An in-memory index of the files in one directory, kept current by a {@link WatchService} rather than by listing the
+ * directory again.
+ * <p>
+ * The last change seen for each file is recorded, so a file still being written can be recognized without waiting
+ * on it. If the directory cannot be watched, the index is rebuilt from a listing whenever it is read.
+ * <p>
+ * The watch service does not see files written by other hosts to network file systems, and on some platforms it
+ * polls every few seconds, so pollers should still call {@link #rescan()} from time to time.
+ */
+public class DirectoryWatcher implements Closeable {
+    private final File directory;
+    private final ConcurrentHashMap<String, FileState> files = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private final WatchService watchService;
+    private volatile Consumer<String> listener;
+    private volatile boolean valid;
+    private volatile SortedNames sortedNames;
+
+    public DirectoryWatcher(File directory) {
+        this.directory = directory;
+        WatchService service = null;
+        try {
+            service = FileSystems.getDefault().newWatchService();
+            directory.toPath().register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+            valid = true;
+        } catch (IOException | UnsupportedOperationException | InvalidPathException e) {
+            if (service != null) {
+                try {
+                    service.close();
+                } catch (IOException ignored) {
+                }
+            }
+            service = null;
+        }
+        watchService = service;
+        rescan();
+
+        if (watchService != null) {
+            var thread = new Thread(this::watch, "Directory Watcher " + directory.getName());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param listener called on the watching thread with the name of each file that is created or modified.
+     */
+    public void setListener(Consumer<String> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return the names of the files in the directory, sorted.
+     */
+    public String[] fileNames() {
+        var v = version();
+        var cached = sortedNames;
+        if (cached == null || cached.version != v) {
+            var names = files.keySet().toArray(new String[0]);
+            Arrays.sort(names);
+            sortedNames = cached = new SortedNames(v, names);
+        }
+        return cached.names.clone();
+    }
+
+    /**
+     * @return a number that changes whenever a file is added or removed, for caching values derived from
+     * {@link #fileNames()}.
+     */
+    public long version() {
+        if (!valid) rescan();
+        return version.get();
+    }
+
+    /**
+     * @return {@code true} if {@code name} has not changed size and no change to it has been seen for
+     * {@code quietMillis}.
+     */
+    public boolean isSettled(String name, long quietMillis) {
+        var state = files.get(name);
+        var length = new File(directory, name).length();
+        if (state == null || state.length != length) {
+            files.put(name, new FileState(System.nanoTime(), length));
+            return false;
+        }
+        return System.nanoTime() - state.lastChange >= quietMillis * 1_000_000L;
+    }
+
+    @Override
+    public void close() {
+        valid = false;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = watchService.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    rescan();
+                    continue;
+                }
+
+                var name = event.context().toString();
+                if (event.kind() == ENTRY_DELETE) {
+                    if (files.remove(name) != null) version.incrementAndGet();
+                    continue;
+                }
+
+                var previous = files.put(name, new FileState(System.nanoTime(), new File(directory, name).length()));
+                if (previous == null) version.incrementAndGet();
+                var l = listener;
+                if (l != null) l.accept(name);
+            }
+
+            if (!key.reset()) {
+                // The directory is gone, fall back to listing it
+                valid = false;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Lists the directory again, picking up any change the watch service did not report. Files already indexed keep
+     * the last change seen for them.
+     */
+    public synchronized void rescan() {
+        var listed = directory.listFiles();
+        var names = new HashSet<String>();
+        var changed = false;
+        var now = System.nanoTime();
+        var nowMillis = System.currentTimeMillis();
+        if (listed != null) {
+            for (File file : listed) {
+                names.add(file.getName());
+                if (!files.containsKey(file.getName())) {
+                    // Date files found by listing from their modification time, so those already written are settled
+                    var age = Math.max(0, nowMillis - file.lastModified());
+                    changed |= files.putIfAbsent(file.getName(),
+                            new FileState(now - age * 1_000_000L, file.length())) == null;
+                }
+            }
+        }
+        changed |= files.keySet().retainAll(names);
+        if (changed) version.incrementAndGet();
+    }
+
+    /**
+     * @param lastChange {@link System#nanoTime()} of the last change seen, or the modification time of files found by
+     *                   listing the directory.
+     */
+    private record FileState(long lastChange, long length) {}
+
+    private record SortedNames(long version, String[] names) {}
+}
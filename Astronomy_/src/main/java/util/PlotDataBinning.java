@@ -1,11 +1,9 @@
 package util;
 
-import flanagan.analysis.Stat;
 import flanagan.math.ArrayMaths;
 import ij.astro.types.Pair;
 
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.stream.IntStream;
 
 public class PlotDataBinning {
@@ -44,106 +42,119 @@ public class PlotDataBinning {
 
             if (nBins == 0) nBins = x.length;
 
-            var binBounds = new double[nBins + 1];
-            double finalBinWidth = binWidth;
-            Arrays.setAll(binBounds, i -> (i * finalBinWidth) + xMin);
-
-            var bins = new DataBin[nBins];
-            Arrays.setAll(bins, i -> new DataBin(x.length, i));
-
+            var binner = new Binner(xMin, binWidth, nBins);
             for (int i = 0; i < x.length; i++) {
-                var p = 0;
-                var accepted = false;
-                while (!accepted) {
-                    accepted = bins[p].accept(binBounds, x[i], y[i], err[i]);
-                    p++;
-                    if (p == bins.length) break;
-                }
-
-                if (!accepted) throw new RuntimeException("data did not fit into a bin");
+                binner.add(x[i], y[i], err[i]);
             }
 
-            var binCompleted = Arrays.asList(Arrays.stream(bins).parallel().filter(DataBin::hasData)
-                    // Converts to array first as Stream#toList returns unmodifiable list, and we need to sort it
-                    .map(withErr ? DataBin::binnedDatumErr : DataBin::binnedDatum).toArray(DoubleTriple[]::new));
-            var outX = new double[binCompleted.size()];
-            var outY = new double[binCompleted.size()];
-            var outErr = new double[binCompleted.size()];
-
-            // Order the elements by time
-            binCompleted.sort(Comparator.comparingDouble(c -> c.x));
-            for (int i = 0; i < binCompleted.size(); i++) {
-                outX[i] = binCompleted.get(i).x();
-                outY[i] = binCompleted.get(i).y();
-                outErr[i] = binCompleted.get(i).err();
-            }
-
-            return new Pair.GenericPair<>(new DoubleArrayTriple(outX, outY, outErr), binWidth);
+            var binned = binner.binnedData(withErr);
+            return new Pair.GenericPair<>(binned, binWidth);
         } catch (Exception e) {
             e.printStackTrace();
             return null;
         }
     }
 
-    private record DataBin(double[] x, double[] y, double[] err, Holder lastIndex, int binIndex) {
-        public DataBin(int maximumSize, int binIndex) {
-            this(new double[maximumSize], new double[maximumSize], new double[maximumSize], new Holder(), binIndex);
+    /**
+     * Sums the data of each bin as it is added, so rows can be appended to a light curve that is already binned.
+     * Bin {@code i} covers {@code [origin + i * binWidth, origin + (i + 1) * binWidth]}, and a point on the edge
+     * of two bins belongs to the lower one.
+     */
+    public static class Binner {
+        private final double origin;
+        private final double binWidth;
+        private int[] count;
+        private double[] sumX, sumY, sumInvErr2, sumXInvErr2, sumYInvErr2;
+
+        public Binner(double origin, double binWidth) {
+            this(origin, binWidth, 16);
         }
 
-        public void addData(double xDatum, double yDatum, double errDatum) {
-            x[lastIndex.val] = xDatum;
-            y[lastIndex.val] = yDatum;
-            err[lastIndex.val] = errDatum;
-            lastIndex.val++;
+        Binner(double origin, double binWidth, int expectedBins) {
+            if (!(binWidth > 0)) throw new IllegalArgumentException("bin width must be positive");
+            this.origin = origin;
+            this.binWidth = binWidth;
+            var n = Math.max(1, expectedBins);
+            count = new int[n];
+            sumX = new double[n];
+            sumY = new double[n];
+            sumInvErr2 = new double[n];
+            sumXInvErr2 = new double[n];
+            sumYInvErr2 = new double[n];
         }
 
-        public boolean hasData() {
-            return lastIndex.val > 0;
+        public void add(double x, double y) {
+            add(x, y, 0);
         }
 
-        public DoubleTriple binnedDatum() {
-            return new DoubleTriple(Stat.mean(Arrays.copyOf(x, lastIndex.val)), Stat.mean(Arrays.copyOf(y, lastIndex.val)), 0);
+        public void add(double x, double y, double err) {
+            var bin = binIndex(x);
+            if (bin >= count.length) grow(bin + 1);
+
+            var err2 = err * err;
+            count[bin]++;
+            sumX[bin] += x;
+            sumY[bin] += y;
+            sumInvErr2[bin] += err2 != 0 ? 1 / err2 : 0;
+            sumXInvErr2[bin] += x / err2;
+            sumYInvErr2[bin] += y / err2;
         }
 
-        public DoubleTriple binnedDatumErr() {
-            var err = Arrays.copyOf(this.err, lastIndex.val);
-            var totalErr = Arrays.stream(err).sum();
-            var totalErr2 = totalErr * totalErr;
-            var err2 = Arrays.stream(err).map(d -> d*d).toArray();
-            var invErr2 = Arrays.stream(err2).map(d -> d != 0 ? 1/d : 0).toArray();
-            var totInvErr2 = Arrays.stream(invErr2).sum();
-
-            var totX = IntStream.range(0, lastIndex.val).mapToDouble(i -> x[i]/err2[i]).sum();
-            var binX = totX / totInvErr2;
-
-            var totY = IntStream.range(0, lastIndex.val).mapToDouble(i -> y[i]/err2[i]).sum();
-            var binY = totY / totInvErr2;
-
-            var binErr = 1/Math.sqrt(totInvErr2);
+        /**
+         * @param withErr if the points are weighted by their inverse variance and the bins given an error,
+         *                otherwise the bins are plain means with zero error.
+         * @return the bins with data, in order.
+         */
+        public DoubleArrayTriple binnedData(boolean withErr) {
+            var n = 0;
+            for (int c : count) {
+                if (c > 0) n++;
+            }
 
-            return new DoubleTriple(binX, binY, binErr);
-        }
+            var outX = new double[n];
+            var outY = new double[n];
+            var outErr = new double[n];
+            for (int bin = 0, i = 0; bin < count.length; bin++) {
+                if (count[bin] == 0) continue;
+                if (withErr) {
+                    outX[i] = sumXInvErr2[bin] / sumInvErr2[bin];
+                    outY[i] = sumYInvErr2[bin] / sumInvErr2[bin];
+                    outErr[i] = 1 / Math.sqrt(sumInvErr2[bin]);
+                } else {
+                    outX[i] = sumX[bin] / count[bin];
+                    outY[i] = sumY[bin] / count[bin];
+                }
+                i++;
+            }
 
-        public boolean accept(double[] binBounds, double x, double y) {
-            return accept(binBounds, x, y, 0);
+            return new DoubleArrayTriple(outX, outY, outErr);
         }
 
-        public boolean accept(double[] binBounds, double x, double y, double err) {
-            // As the bins are populated in order, the upper bound can be <=
-            if (x>=binBounds[binIndex] && x<=binBounds[binIndex+1]) {
-                addData(x, y, err);
-                return true;
+        private int binIndex(double x) {
+            var bin = (int) Math.max(0, Math.min((x - origin) / binWidth, Integer.MAX_VALUE - 2));
+            // Correct for rounding so the bin matches its bounds exactly
+            while (bin > 0 && x <= bound(bin)) bin--;
+            while (bin < Integer.MAX_VALUE - 2 && x > bound(bin + 1)) bin++;
+            if (!(x >= bound(bin) && x <= bound(bin + 1))) {
+                throw new IllegalArgumentException("data did not fit into a bin");
             }
+            return bin;
+        }
 
-            return false;
+        private double bound(int bin) {
+            return (bin * binWidth) + origin;
         }
 
-        static class Holder {
-            public int val = 0;
+        private void grow(int minBins) {
+            var n = Math.max(minBins, 2 * count.length);
+            count = Arrays.copyOf(count, n);
+            sumX = Arrays.copyOf(sumX, n);
+            sumY = Arrays.copyOf(sumY, n);
+            sumInvErr2 = Arrays.copyOf(sumInvErr2, n);
+            sumXInvErr2 = Arrays.copyOf(sumXInvErr2, n);
+            sumYInvErr2 = Arrays.copyOf(sumYInvErr2, n);
         }
     }
 
-    private record DoubleTriple(double x, double y, double err) {}
-
     public record DoubleArrayTriple(double[] x, double[] y, double[] err) {}
 }
@@ -0,0 +1,88 @@
+package astroj;
+
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import org.openjdk.jmh.Main;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.RunnerException;
+
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Measures exact aperture photometry of a field of stars with the overlap fractions taken from the shared
+ * cache against computing them for every aperture, which is what {@link Photometer#measure} did before the
+ * cache. Both paths must give identical results; {@link #setup()} refuses to run otherwise.
+ */
+@State(Scope.Benchmark)
+public class PhotometerBenchmark {
+
+    /** Number of stars in the field; more than fit in a count-limited cache. */
+    @Param({"10", "200", "1000"})
+    int stars;
+
+    /** Whether the stars share their sub-pixel offset, as when measuring on an aligned stack. */
+    @Param({"false", "true"})
+    boolean aligned;
+
+    ImagePlus imp;
+    double[] x, y;
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        Main.main(args);
+    }
+
+    @Setup
+    public void setup() {
+        Random random = new Random(1);
+        FloatProcessor fp = new FloatProcessor(2048, 2048);
+        for (int i = 0; i < fp.getPixelCount(); i++) {
+            fp.setf(i, (float) (100 + 10 * random.nextGaussian()));
+        }
+        imp = new ImagePlus("field", fp);
+        x = new double[stars];
+        y = new double[stars];
+        for (int n = 0; n < stars; n++) {
+            x[n] = 30 + random.nextInt(1980) + (aligned ? 0.37 : random.nextDouble());
+            y[n] = 30 + random.nextInt(1980) + (aligned ? 0.81 : random.nextDouble());
+        }
+
+        Photometer cached = new Photometer();
+        Photometer uncached = new Photometer();
+        for (int n = 0; n < stars; n++) {
+            cached.measure(imp, true, x[n], y[n], 8, 12, 20);
+            cached.measure(imp, true, x[n], y[n], 8, 12, 20);
+            Photometer.clearWeightCache();
+            uncached.measure(imp, true, x[n], y[n], 8, 12, 20);
+            if (cached.sourceBrightness() != uncached.sourceBrightness() ||
+                    cached.backgroundBrightness() != uncached.backgroundBrightness() ||
+                    cached.sourceError() != uncached.sourceError()) {
+                throw new IllegalStateException("Cached and uncached photometry differ at " + x[n] + ", " + y[n]);
+            }
+        }
+    }
+
+    @Benchmark
+    public void cachedWeights(Blackhole blackhole) {
+        Photometer photometer = new Photometer();
+        for (int n = 0; n < stars; n++) {
+            photometer.measure(imp, true, x[n], y[n], 8, 12, 20);
+            blackhole.consume(photometer.sourceBrightness());
+        }
+    }
+
+    @Benchmark
+    public void uncachedWeights(Blackhole blackhole) {
+        Photometer photometer = new Photometer();
+        for (int n = 0; n < stars; n++) {
+            Photometer.clearWeightCache();
+            photometer.measure(imp, true, x[n], y[n], 8, 12, 20);
+            blackhole.consume(photometer.sourceBrightness());
+        }
+    }
+}
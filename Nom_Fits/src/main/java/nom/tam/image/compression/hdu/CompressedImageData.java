@@ -36,7 +36,9 @@ import nom.tam.fits.FitsException;
 import nom.tam.fits.Header;
 import nom.tam.fits.HeaderCard;
 import nom.tam.fits.compression.algorithm.api.ICompressOption;
+import nom.tam.image.compression.tile.ITileConsumer;
 import nom.tam.image.compression.tile.TiledImageCompressionOperation;
+import nom.tam.image.tile.operation.TileArea;
 import nom.tam.util.ArrayFuncs;
 
 import java.nio.Buffer;
@@ -92,6 +94,15 @@ public class CompressedImageData extends BinaryTable {
         }
     }
 
+    protected void decompress(Header hdr, TileArea region, ITileConsumer consumer) throws FitsException {
+        try {
+            this.tiledImageOperation = new TiledImageCompressionOperation(this).read(hdr);
+            this.tiledImageOperation.decompress(region, consumer);
+        } finally {
+            this.tiledImageOperation = null;
+        }
+    }
+
     protected void prepareUncompressedData(Object data, Header header) throws FitsException {
         tiledImageOperation().readPrimaryHeaders(header);
         Buffer source = tiledImageOperation().getBaseType().newBuffer(this.tiledImageOperation.getBufferSize());
@@ -36,6 +36,8 @@ import nom.tam.fits.compression.algorithm.api.ICompressOption;
 import nom.tam.fits.header.Compression;
 import nom.tam.fits.header.GenericKey;
 import nom.tam.fits.header.IFitsHeader;
+import nom.tam.image.compression.tile.ITileConsumer;
+import nom.tam.image.tile.operation.TileArea;
 import nom.tam.util.Cursor;
 
 import java.nio.Buffer;
@@ -133,6 +135,20 @@ public class CompressedImageHDU extends BinaryTableHDU {
     }
 
     public ImageHDU asImageHDU() throws FitsException {
+        Header header = getImageHeader();
+        ImageData data = (ImageData) ImageHDU.manufactureData(header);
+        ImageHDU imageHDU = new ImageHDU(header, data);
+        data.setBuffer(getUncompressedData());
+        return imageHDU;
+    }
+
+    /**
+     * @return the header of the uncompressed image, as in {@link #asImageHDU()},
+     *         without decompressing anything.
+     * @throws FitsException
+     *             if a header card could not be restored
+     */
+    public Header getImageHeader() throws FitsException {
         Header header = new Header();
         Cursor<String, HeaderCard> imageIterator = header.iterator();
         Cursor<String, HeaderCard> iterator = getHeader().iterator();
@@ -142,10 +158,24 @@ public class CompressedImageHDU extends BinaryTableHDU {
                 BackupRestoreUnCompressedHeaderCard.backup(card, imageIterator);
             }
         }
-        ImageData data = (ImageData) ImageHDU.manufactureData(header);
-        ImageHDU imageHDU = new ImageHDU(header, data);
-        data.setBuffer(getUncompressedData());
-        return imageHDU;
+        return header;
+    }
+
+    /**
+     * Decompress the tiles of a 2D image that overlap a region, handing each
+     * tile to the consumer as soon as it is ready rather than assembling the
+     * whole image.
+     *
+     * @param region
+     *            the area of the image needed, or null for the whole image
+     * @param consumer
+     *            receives the pixels of each tile, from the decompressing
+     *            threads
+     * @throws FitsException
+     *             if the compressed data could not be read
+     */
+    public void decompress(TileArea region, ITileConsumer consumer) throws FitsException {
+        getData().decompress(getHeader(), region, consumer);
     }
 
     public void compress() throws FitsException {
@@ -0,0 +1,58 @@
+package nom.tam.image.compression.tile;
+
+/*
+ * #%L
+ * nom.tam FITS library
+ * %%
+ * Copyright (C) 1996 - 2021 nom-tam-fits
+ * %%
+ * This is free and unencumbered software released into the public domain.
+ * 
+ * Anyone is free to copy, modify, publish, use, compile, sell, or
+ * distribute this software, either in source code form or as a compiled
+ * binary, for any purpose, commercial or non-commercial, and by any
+ * means.
+ * 
+ * In jurisdictions that recognize copyright laws, the author or authors
+ * of this software dedicate any and all copyright interest in the
+ * software to the public domain. We make this dedication for the benefit
+ * of the public at large and to the detriment of our heirs and
+ * successors. We intend this dedication to be an overt act of
+ * relinquishment in perpetuity of all present and future rights to this
+ * software under copyright law.
+ * 
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.
+ * IN NO EVENT SHALL THE AUTHORS BE LIABLE FOR ANY CLAIM, DAMAGES OR
+ * OTHER LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE,
+ * ARISING FROM, OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR
+ * OTHER DEALINGS IN THE SOFTWARE.
+ * #L%
+ */
+
+import java.nio.Buffer;
+
+/**
+ * Receives the pixels of decompressed tiles of a 2D image. It is called from
+ * the decompressing threads as soon as each tile is ready, so tiles arrive in
+ * no particular order and possibly concurrently.
+ */
+@FunctionalInterface
+public interface ITileConsumer {
+
+    /**
+     * @param x
+     *            the column of the first pixel of the tile in the image
+     * @param y
+     *            the row of the first pixel of the tile in the image
+     * @param width
+     *            the width of the tile
+     * @param height
+     *            the height of the tile
+     * @param tile
+     *            the pixels of the tile row after row, starting at index 0.
+     *            Only valid for the duration of the call.
+     */
+    void accept(int x, int y, int width, int height, Buffer tile);
+}
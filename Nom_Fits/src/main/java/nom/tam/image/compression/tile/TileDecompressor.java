@@ -47,14 +47,41 @@ public class TileDecompressor extends TileCompressionOperation {
 
     private NullPixelMaskRestorer nullPixelMaskRestorer;
 
+    private ITileConsumer consumer;
+
     protected TileDecompressor(TiledImageCompressionOperation array, int tileIndex, TileArea area) {
         super(array, tileIndex, area);
     }
 
     @Override
     public void run() {
-        decompress();
-        getTileBuffer().finish();
+        if (this.consumer == null) {
+            decompress();
+            getTileBuffer().finish();
+            return;
+        }
+
+        // Decompress into a buffer of the tile's own, and hand it over instead
+        // of copying it into the whole image
+        Buffer tileData = getBaseType().newBuffer(getPixelSize());
+        getTileBuffer().setTileData(tileData);
+        try {
+            decompress();
+            tileData.rewind();
+            this.consumer.accept(getArea().getStart(0), getArea().getStart(1), //
+                    getTileBuffer().getWidth(), getTileBuffer().getHeight(), tileData);
+        } finally {
+            getTileBuffer().setTileData(null);
+        }
+    }
+
+    /**
+     * @param consumer
+     *            receives the tile once it is decompressed instead of it being
+     *            copied into the whole image buffer, or null.
+     */
+    void setConsumer(ITileConsumer consumer) {
+        this.consumer = consumer;
     }
 
     private void decompress() {
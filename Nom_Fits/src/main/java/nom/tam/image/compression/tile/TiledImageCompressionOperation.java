@@ -45,6 +45,8 @@ import nom.tam.util.type.ElementType;
 import java.lang.reflect.Array;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 
 import static nom.tam.fits.header.Compression.*;
@@ -132,6 +134,34 @@ public class TiledImageCompressionOperation extends AbstractTiledImageOperation<
         return decompressedWholeArea;
     }
 
+    /**
+     * Decompress the tiles of a 2D image that overlap a region, handing each to
+     * the consumer from the thread that decompressed it. Nothing is
+     * decompressed into a buffer for the whole image.
+     *
+     * @param region
+     *            the area of the image needed, or null for the whole image
+     * @param consumer
+     *            receives the pixels of each tile
+     */
+    public void decompress(TileArea region, ITileConsumer consumer) {
+        if (getNAxes() != 2) {
+            throw new IllegalStateException("Tiles can only be handed over for 2D images, but NAXIS=" + getNAxes());
+        }
+        ExecutorService threadPool = FitsFactory.threadPool();
+        List<TileCompressionOperation> selected = new ArrayList<>();
+        for (TileCompressionOperation tileOperation : getTileOperations()) {
+            if (region == null || tileOperation.getArea().intersects(region)) {
+                ((TileDecompressor) tileOperation).setConsumer(consumer);
+                tileOperation.execute(threadPool);
+                selected.add(tileOperation);
+            }
+        }
+        for (TileCompressionOperation tileOperation : selected) {
+            tileOperation.waitForResult();
+        }
+    }
+
     public void forceNoLoss(int x, int y, int width, int heigth) {
         TileArea tileArea = new TileArea().start(x, y).end(x + width, y + heigth);
         for (TileCompressionOperation operation : getTileOperations()) {
@@ -58,6 +58,24 @@ public class TileArea {
     public int dimension() {
         return startPoint == null ? 0 : startPoint.length;
     }
+
+    /**
+     * @param axis
+     *            the axis, x first
+     * @return the first index of the area along the axis
+     */
+    public int getStart(int axis) {
+        return startPoint[axis];
+    }
+
+    /**
+     * @param axis
+     *            the axis, x first
+     * @return the index just past the area along the axis
+     */
+    public int getEnd(int axis) {
+        return endPoint[axis];
+    }
     
     /**
      * @param other
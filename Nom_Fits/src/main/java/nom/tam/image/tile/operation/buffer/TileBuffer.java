@@ -43,6 +43,8 @@ public abstract class TileBuffer {
 
     private Buffer imageBuffer;
 
+    private Buffer tileData;
+
     private final int height;
 
     private final int offset;
@@ -99,4 +101,26 @@ public abstract class TileBuffer {
         return this.imageBuffer;
     }
 
+    /**
+     * @return the buffer set by {@link #setTileData(Buffer)}, or null if the
+     *         tile uses the whole image buffer.
+     */
+    public Buffer getTileData() {
+        return this.tileData;
+    }
+
+    /**
+     * Use a buffer holding only the pixels of this tile, row after row,
+     * instead of the whole image buffer. The tile is then not copied into the
+     * whole image when it is finished.
+     *
+     * @param value
+     *            the tile pixels, or null to use the whole image buffer again.
+     * @return this
+     */
+    public TileBuffer setTileData(Buffer value) {
+        this.tileData = value;
+        return this;
+    }
+
 }
@@ -64,11 +64,17 @@ class TileBufferColumnBased extends TileBuffer {
 
     @Override
     public void finish() {
+        if (getTileData() != null) {
+            return;
+        }
         desolveGapLessBuffer();
     }
 
     @Override
     public Buffer getBuffer() {
+        if (getTileData() != null) {
+            return getTileData();
+        }
         if (packed == null) {
             createPackedBuffer();
         }
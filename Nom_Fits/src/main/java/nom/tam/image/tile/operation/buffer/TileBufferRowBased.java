@@ -43,6 +43,9 @@ public class TileBufferRowBased extends TileBuffer {
 
     @Override
     public Buffer getBuffer() {
+        if (getTileData() != null) {
+            return getTileData();
+        }
         return getImageBuffer();
     }
 
@@ -9,6 +9,7 @@ import nom.tam.fits.header.Standard;
 import nom.tam.fits.util.BlackBoxImages;
 import nom.tam.image.StandardImageTiler;
 import nom.tam.image.compression.hdu.CompressedImageHDU;
+import nom.tam.image.tile.operation.TileArea;
 import nom.tam.util.ArrayFuncs;
 import nom.tam.util.FitsOutputStream;
 import nom.tam.util.SafeClose;
@@ -25,6 +26,7 @@ import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.ShortBuffer;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 
@@ -646,6 +648,61 @@ public class ReadWriteProvidedCompressedImageTest {
         }
     }
 
+    @Test
+    public void testDecompressTilesInRegion() throws Exception {
+        short[][] array = new short[300][300];
+        Random random = new Random(42);
+        for (short[] row : array) {
+            for (int x = 0; x < row.length; x++) {
+                row[x] = (short) random.nextInt(10000);
+            }
+        }
+        Fits f = null;
+        try {
+            f = new Fits();
+            ImageHDU image = (ImageHDU) Fits.makeHDU(array);
+            CompressedImageHDU compressedHdu = CompressedImageHDU.fromImageHDU(image, 64, 48);
+            compressedHdu.setCompressAlgorithm(Compression.ZCMPTYPE_RICE_1);
+            compressedHdu.compress();
+            f.addHDU(compressedHdu);
+            FitsOutputStream bdos = null;
+            try {
+                bdos = new FitsOutputStream(new FileOutputStream("target/decompress_region.fits.fz"));
+                f.write(bdos);
+            } finally {
+                SafeClose.close(bdos);
+            }
+        } finally {
+            SafeClose.close(f);
+        }
+        try {
+            f = new Fits("target/decompress_region.fits.fz");
+            f.readHDU(); // the primary
+            CompressedImageHDU hdu = (CompressedImageHDU) f.readHDU();
+            short[][] actual = new short[300][300];
+            AtomicInteger tiles = new AtomicInteger();
+            hdu.decompress(new TileArea().start(70, 50).end(130, 100), (x, y, width, height, tile) -> {
+                tiles.incrementAndGet();
+                ShortBuffer buffer = (ShortBuffer) tile;
+                for (int j = 0; j < height; j++) {
+                    for (int i = 0; i < width; i++) {
+                        actual[y + j][x + i] = buffer.get(j * width + i);
+                    }
+                }
+            });
+            // Only the 2x2 tiles overlapping the region are decompressed
+            assertEquals(4, tiles.get());
+            for (int y = 48; y < 144; y++) {
+                for (int x = 64; x < 192; x++) {
+                    assertEquals(array[y][x], actual[y][x]);
+                }
+            }
+            assertEquals(0, actual[0][0]);
+        } finally {
+            SafeClose.close(f);
+        }
+    }
+
     @Test
     public void testSomeBlanksInCompressedFloatImage() throws Exception {
         double[][] data = newTestImageWithSomeBlanks("");
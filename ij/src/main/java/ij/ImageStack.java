@@ -1,6 +1,7 @@
 package ij;
 import java.awt.*;
 import java.awt.image.*;
+import ij.astro.AstroImageJ;
 import ij.process.*;
 
 /**
@@ -301,6 +302,15 @@ public class ImageStack {
 		this.label[n-1] = label;
 	}
 	
+	/** Returns an ImageProcessor for the specified slice, for callers
+		that only read its pixels. Virtual stacks may then return a cached
+		slice without copying it, so its pixels must not be modified.
+	*/
+	@AstroImageJ(reason = "Avoid copying cached virtual stack slices that are only read")
+	public ImageProcessor getReadOnlyProcessor(int n) {
+		return getProcessor(n);
+	}
+
 	/** Returns an ImageProcessor for the specified slice,
 		were 1<=n<=nslices. Returns null if the stack is empty.
 	*/
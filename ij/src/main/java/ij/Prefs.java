@@ -1,6 +1,7 @@
 package ij;
 
 import ij.astro.AstroImageJ;
+import ij.astro.io.prefs.Property;
 import ij.gui.*;
 import ij.io.FileSaver;
 import ij.io.ImportDialog;
@@ -217,6 +218,7 @@ public class Prefs {
 	 * retrieved using the appropriate <code>get()</code> method.
 	 * @see #get(String,String)
 	*/
+	@AstroImageJ(reason = "Notify typed properties of the change", modified = true)
 	public static void set(String key, String text) {
 		if (key.indexOf('.')<1)
 			throw new IllegalArgumentException("Key must have a prefix");
@@ -224,6 +226,7 @@ public class Prefs {
 			ijPrefs.remove(KEY_PREFIX+key);
 		else
 			ijPrefs.put(KEY_PREFIX+key, text);
+		Property.prefChanged(key);
 	}
 
 	/** Saves the value of the integer <code>value</code> in the preferences
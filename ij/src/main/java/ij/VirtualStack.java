@@ -1,6 +1,7 @@
 package ij;
 
 import ij.astro.AstroImageJ;
+import ij.astro.util.SliceCache;
 import ij.io.Opener;
 import ij.plugin.FolderOpener;
 import ij.process.*;
@@ -24,6 +25,14 @@ public class VirtualStack extends ImageStack {
 	private Properties  properties;
 	private boolean generateData;
 	private int[] indexes;  // used to translate non-CZT hyperstack slice numbers
+	@AstroImageJ(reason = "Cache decoded slices and read ahead when stepping through the stack")
+	private SliceCache<Slice> cache;
+	@AstroImageJ(reason = "Cache decoded slices and read ahead when stepping through the stack")
+	private boolean cacheDisabled;
+	@AstroImageJ(reason = "Cache decoded slices and read ahead when stepping through the stack")
+	public static final String CACHE_MB_PREF = ".aij.virtualStack.cacheMB";
+	@AstroImageJ(reason = "Cache decoded slices and read ahead when stepping through the stack")
+	public static final String PREFETCH_PREF = ".aij.virtualStack.prefetch";
 
 	
 	/** Default constructor. */
@@ -118,6 +127,8 @@ public class VirtualStack extends ImageStack {
 			names[i-1] = names[i];
 		names[nSlices-1] = null;
 		nSlices--;
+		if (cache!=null)
+			cache.invalidate();
 	}
 	
 	/** Deletes the last slice in the stack. */
@@ -144,7 +155,20 @@ public class VirtualStack extends ImageStack {
    /** Returns an ImageProcessor for the specified slice,
 		were 1<=n<=nslices. Returns null if the stack is empty.
 	*/
+	@AstroImageJ(reason = "Cache decoded slices and read ahead when stepping through the stack", modified = true)
 	public ImageProcessor getProcessor(int n) {
+		return getProcessor(n, true);
+	}
+
+	/** Returns the processor of the specified slice without copying it
+		out of the slice cache. Its pixels must not be modified. */
+	@AstroImageJ(reason = "Cache decoded slices and read ahead when stepping through the stack")
+	public ImageProcessor getReadOnlyProcessor(int n) {
+		return getProcessor(n, false);
+	}
+
+	@AstroImageJ(reason = "Cache decoded slices and read ahead when stepping through the stack")
+	private ImageProcessor getProcessor(int n, boolean copy) {
 		if (path==null) {  //Help>Examples?JavaScript>Terabyte VirtualStack
 			ImageProcessor ip = null;
 			int w=getWidth(), h=getHeight();
@@ -176,13 +200,39 @@ public class VirtualStack extends ImageStack {
 				IJ.wait(delay);
 			return ip;
 		}
+		SliceCache<Slice> cache = getCache();
+		Slice slice;
+		IJ.redirectErrorMessages(true);
+		try {
+			slice = cache!=null?cache.get(n, nSlices):null;
+			if (slice==null)
+				slice = openSlice(n);
+		} finally {
+			IJ.redirectErrorMessages(false);
+		}
+		if (slice.label!=null)
+			labels[translate(n)-1] = slice.label;
+		properties = slice.properties;
+		if (!copy || cache==null || !cache.isCached(n, slice))
+			return slice.ip;
+		// The caller may modify the pixels, so a cached slice is only handed out as a copy
+		ImageProcessor ip = slice.ip.duplicate();
+		ip.setOverlay(slice.ip.getOverlay());
+		return ip;
+	 }
+
+	/** Decodes slice n. This runs on the prefetch thread as well, so the
+		slice label is returned rather than stored and error redirection
+		is left to getProcessor(). */
+	@AstroImageJ(reason = "Cache decoded slices and read ahead when stepping through the stack")
+	private Slice openSlice(int n) {
 		n = translate(n);  // update n for hyperstacks not in the default CZT order
 		Opener opener = new Opener();
 		opener.setSilentMode(true);
-		IJ.redirectErrorMessages(true);
 		ImagePlus imp = opener.openImage(path+names[n-1]);
-		IJ.redirectErrorMessages(false);
 		ImageProcessor ip = null;
+		Properties properties = null;
+		String label = null;
 		int depthThisImage = 0;
 		if (imp!=null) {
 			int w = imp.getWidth();
@@ -192,11 +242,11 @@ public class VirtualStack extends ImageStack {
 			String info = (String)imp.getProperty("Info");
 			if (info!=null) {
 				if (FolderOpener.useInfo(info))
-					labels[n-1] = info;
+					label = info;
 			} else {
 				String sliceLabel = imp.getStack().getSliceLabel(1);
 				if (FolderOpener.useInfo(sliceLabel))
-					labels[n-1] = "Label: "+sliceLabel;
+					label = "Label: "+sliceLabel;
 			}
 			depthThisImage = imp.getBitDepth();
 			ip = imp.getProcessor();
@@ -223,8 +273,43 @@ public class VirtualStack extends ImageStack {
 			ip2.insert(ip, 0, 0);
 			ip = ip2;
 		}
-		return ip;
+		return new Slice(ip, properties, label);
 	 }
+
+	/** Returns the slice cache, creating it on first use, or null if caching is disabled. */
+	@AstroImageJ(reason = "Cache decoded slices and read ahead when stepping through the stack")
+	private synchronized SliceCache<Slice> getCache() {
+		if (cache==null && !cacheDisabled) {
+			long maxBytes = (long)Prefs.getInt(CACHE_MB_PREF, (int)(Runtime.getRuntime().maxMemory()/8/1048576))*1048576;
+			if (maxBytes<=0) {
+				cacheDisabled = true;
+				return null;
+			}
+			cache = new SliceCache<>(this::openSlice, Slice::bytes, maxBytes, Prefs.getInt(PREFETCH_PREF, 4));
+		}
+		return cache;
+	}
+
+	/** Sets the memory used to cache decoded slices and the number of slices
+		read ahead of the current one. A size of 0 disables the cache. */
+	@AstroImageJ(reason = "Cache decoded slices and read ahead when stepping through the stack")
+	public synchronized void setCacheLimits(long maxBytes, int prefetch) {
+		cacheDisabled = maxBytes<=0;
+		if (cacheDisabled) {
+			if (cache!=null)
+				cache.invalidate();
+			cache = null;
+		} else if (cache==null)
+			cache = new SliceCache<>(this::openSlice, Slice::bytes, maxBytes, prefetch);
+		else
+			cache.setLimits(maxBytes, prefetch);
+	}
+
+	/** Returns the hit, miss and latency counters of the slice cache, or null if it is disabled. */
+	@AstroImageJ(reason = "Cache decoded slices and read ahead when stepping through the stack")
+	public synchronized SliceCache.Stats getCacheStats() {
+		return cache!=null?cache.getStats():null;
+	}
 	 	 
 	 private void label(ImageProcessor ip, String msg, Color color) {
 		int size = getHeight()/20;
@@ -314,6 +399,8 @@ public class VirtualStack extends ImageStack {
 			names[i] = names2[slice-1];
 			labels[i] = info[slice-1];
 		}
+		if (cache!=null)
+			cache.invalidate();
 		return this;
 	}
 	
@@ -325,6 +412,8 @@ public class VirtualStack extends ImageStack {
 	/** Sets the table that translates slice numbers of hyperstacks not in default CZT order. */
 	public void setIndexes(int[] indexes) {
 		this.indexes = indexes;
+		if (cache!=null)
+			cache.invalidate();
 	}
 	
 	/** Translates slice numbers of hyperstacks not in default CZT order. */
@@ -334,5 +423,11 @@ public class VirtualStack extends ImageStack {
 		return n2;
 	}
 
-} 
+	@AstroImageJ(reason = "Cache decoded slices and read ahead when stepping through the stack")
+	private record Slice(ImageProcessor ip, Properties properties, String label) {
+		long bytes() {
+			return (long)ip.getPixelCount()*(ip.getBitDepth()==24?4:ip.getBitDepth()/8);
+		}
+	}
 
+}
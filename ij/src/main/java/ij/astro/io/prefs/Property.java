@@ -4,7 +4,8 @@ import ij.Prefs;
 
 import java.awt.*;
 import java.lang.reflect.Field;
-import java.util.HashSet;
+import java.util.*;
+import java.util.List;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
@@ -16,7 +17,7 @@ import java.util.function.Supplier;
 public class Property<T> {
     private final Object owner;
     private final Class<?> ownerClass;
-    private T value;
+    private volatile T value;
 
     private String propertyKey;
     private boolean hasBuiltKey = false;
@@ -26,6 +27,10 @@ public class Property<T> {
     private final Supplier<String> keyPrefix;
     private final Class<T> type;
     final HashSet<PropertyChangeListener<T>> listeners = new HashSet<>();
+    /**
+     * Loaded properties by key, so that values written directly with {@link Prefs#set(String, String)} reach them.
+     */
+    private static final HashMap<String, Set<Property<?>>> LOADED = new HashMap<>();
 
     public Property(T defaultValue, Object owner) {
         this(defaultValue, "", "", $ -> null, owner);
@@ -70,9 +75,11 @@ public class Property<T> {
     }
 
     public void set(T value) {
+        this.value = value;
+        hasLoaded = true;
+        register();
         updatePrefs(value);
         listeners.forEach(l -> l.valueChanged(getPropertyKey(), value));
-        this.value = value;
     }
 
     public String getPropertyKey() {
@@ -129,6 +136,43 @@ public class Property<T> {
             }
 
             hasLoaded = true;
+            register();
+        }
+    }
+
+    private void register() {
+        synchronized (LOADED) {
+            LOADED.computeIfAbsent(getPropertyKey(), $ -> Collections.newSetFromMap(new WeakHashMap<>())).add(this);
+        }
+    }
+
+    /**
+     * Reloads the properties with the given key and notifies their listeners if the value changed. Called by
+     * {@link Prefs#set(String, String)}.
+     */
+    public static void prefChanged(String key) {
+        List<Property<?>> properties;
+        synchronized (LOADED) {
+            var set = LOADED.get(key);
+            if (set == null) {
+                return;
+            }
+            properties = new ArrayList<>(set);
+        }
+        properties.forEach(Property::reload);
+    }
+
+    private void reload() {
+        var old = value;
+        try {
+            value = handleLoad();
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
+        if (!Objects.equals(old, value)) {
+            var v = value;
+            listeners.forEach(l -> l.valueChanged(getPropertyKey(), v));
         }
     }
 
@@ -1,7 +1,11 @@
 package ij.astro.util;
 
 import ij.process.*;
+import nom.tam.util.ArrayDataOutput;
 
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.*;
 import java.util.function.BiFunction;
 
 public enum ImageType {
@@ -27,6 +31,16 @@ public enum ImageType {
             throw new IllegalStateException("Incorrect raw data given to make an ImageProcessor");
         }
 
+        @Override
+        void processTileRow(Buffer tile, int from, Object pixels, int to, int length, double bzero, double bscale) {
+            final var pixelArray = (byte[]) pixels;
+            final var values = (ByteBuffer) tile;
+            for (int i = 0; i < length; i++) {
+                double pixelValue = bzero + bscale * Byte.toUnsignedInt(values.get(from + i));
+                pixelArray[to + i] = (byte) pixelValue;
+            }
+        }
+
         @Override
         public Object make2DArray(ImageProcessor ip, boolean useBZero) {
             var lip = ((ByteProcessor) ip);
@@ -35,15 +49,23 @@ public enum ImageType {
             var height = ip.getHeight();
             // y and x are inverted because of the implementations of ImageProcessor#getPixelValue
             var outArray = new byte[height][width];
-            for (int x = 0; x < width; x++) {
-                for (int y = 0; y < height; y++) {
-                    outArray[height - 1 - y][x] = (byte) (lip.get(x, y));
-                }
+            var pixels = (byte[]) lip.getPixels();
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(pixels, y * width, outArray[height - 1 - y], 0, width);
             }
 
             return outArray;
         }
 
+        @Override
+        public void writeImageData(ImageProcessor ip, boolean useBZero, ArrayDataOutput out) throws IOException {
+            var width = ip.getWidth();
+            var pixels = (byte[]) ip.getPixels();
+            for (int y = ip.getHeight() - 1; y >= 0; y--) {
+                out.write(pixels, y * width, width);
+            }
+        }
+
         @Override
         public double getBZero() {
             return -(double)Byte.MIN_VALUE; // Not really needed as java bytes are already unsigned
@@ -76,6 +98,16 @@ public enum ImageType {
             throw new IllegalStateException("Incorrect raw data given to make an ImageProcessor");
         }
 
+        @Override
+        void processTileRow(Buffer tile, int from, Object pixels, int to, int length, double bzero, double bscale) {
+            final var pixelArray = (short[]) pixels;
+            final var values = (ShortBuffer) tile;
+            for (int i = 0; i < length; i++) {
+                double pixelValue = bzero + bscale * values.get(from + i);
+                pixelArray[to + i] = (short) pixelValue;
+            }
+        }
+
         @Override
         public Object make2DArray(ImageProcessor ip, boolean useBZero) {//todo support 3d images? (write entire stack as one layered image, with option to disable?)
             var lip = ((ShortProcessor) ip);
@@ -84,15 +116,35 @@ public enum ImageType {
             var height = lip.getHeight();
             // y and x are inverted because of the implementations of ImageProcessor#getPixelValue
             var outArray = new short[height][width];
-            for (int x = 0; x < width; x++) {
-                for (int y = 0; y < height; y++) {
-                    outArray[height - 1 - y][x] = (short) (lip.get(x, y) + (useBZero ? Short.MIN_VALUE : 0)); // Subtract BZERO
-                }
+            var pixels = (short[]) lip.getPixels();
+            for (int y = 0; y < height; y++) {
+                copyRow(pixels, y * width, outArray[height - 1 - y], useBZero);
             }
 
             return outArray;
         }
 
+        @Override
+        public void writeImageData(ImageProcessor ip, boolean useBZero, ArrayDataOutput out) throws IOException {
+            var width = ip.getWidth();
+            var pixels = (short[]) ip.getPixels();
+            var row = new short[width];
+            for (int y = ip.getHeight() - 1; y >= 0; y--) {
+                copyRow(pixels, y * width, row, useBZero);
+                out.write(row, 0, width);
+            }
+        }
+
+        private static void copyRow(short[] pixels, int offset, short[] row, boolean useBZero) {
+            if (!useBZero) {
+                System.arraycopy(pixels, offset, row, 0, row.length);
+                return;
+            }
+            for (int x = 0; x < row.length; x++) {
+                row[x] = (short) (pixels[offset + x] + Short.MIN_VALUE); // Subtract BZERO
+            }
+        }
+
         @Override
         public double getBZero() {
             return -(double)Short.MIN_VALUE;
@@ -125,6 +177,16 @@ public enum ImageType {
             throw new IllegalStateException("Incorrect raw data given to make an ImageProcessor");
         }
 
+        @Override
+        void processTileRow(Buffer tile, int from, Object pixels, int to, int length, double bzero, double bscale) {
+            final var pixelArray = (float[]) pixels;
+            final var values = (IntBuffer) tile;
+            for (int i = 0; i < length; i++) {
+                double pixelValue = bzero + bscale * values.get(from + i);
+                pixelArray[to + i] = (float) pixelValue;
+            }
+        }
+
         @Override
         public Object make2DArray(ImageProcessor ip, boolean useBZero) {
             var lip = ((IntProcessor) ip);
@@ -133,15 +195,35 @@ public enum ImageType {
             var height = ip.getHeight();
             // y and x are inverted because of the implementations of ImageProcessor#getPixelValue
             var outArray = new int[height][width];
-            for (int x = 0; x < width; x++) {
-                for (int y = 0; y < height; y++) {
-                    outArray[height - 1 - y][x] = lip.get(x, y) + (useBZero ? Integer.MIN_VALUE : 0); // Subtract BZERO
-                }
+            var pixels = (int[]) lip.getPixels();
+            for (int y = 0; y < height; y++) {
+                copyRow(pixels, y * width, outArray[height - 1 - y], useBZero);
             }
 
             return outArray;
         }
 
+        @Override
+        public void writeImageData(ImageProcessor ip, boolean useBZero, ArrayDataOutput out) throws IOException {
+            var width = ip.getWidth();
+            var pixels = (int[]) ip.getPixels();
+            var row = new int[width];
+            for (int y = ip.getHeight() - 1; y >= 0; y--) {
+                copyRow(pixels, y * width, row, useBZero);
+                out.write(row, 0, width);
+            }
+        }
+
+        private static void copyRow(int[] pixels, int offset, int[] row, boolean useBZero) {
+            if (!useBZero) {
+                System.arraycopy(pixels, offset, row, 0, row.length);
+                return;
+            }
+            for (int x = 0; x < row.length; x++) {
+                row[x] = pixels[offset + x] + Integer.MIN_VALUE; // Subtract BZERO
+            }
+        }
+
         @Override
         public double getBZero() {
             return -(double)Integer.MIN_VALUE;
@@ -175,6 +257,16 @@ public enum ImageType {
             throw new IllegalStateException("Incorrect raw data given to make an ImageProcessor");
         }
 
+        @Override
+        void processTileRow(Buffer tile, int from, Object pixels, int to, int length, double bzero, double bscale) {
+            final var pixelArray = (float[]) pixels;
+            final var values = (LongBuffer) tile;
+            for (int i = 0; i < length; i++) {
+                double pixelValue = bzero + bscale * values.get(from + i);
+                pixelArray[to + i] = (float) pixelValue;
+            }
+        }
+
         @Override
         public Object make2DArray(ImageProcessor ip, boolean useBZero) {
             var lip = ((FloatProcessor) ip);
@@ -183,15 +275,33 @@ public enum ImageType {
             var height = ip.getHeight();
             // y and x are inverted because of the implementations of ImageProcessor#getPixelValue
             var outArray = new long[height][width];
-            for (int x = 0; x < width; x++) {
-                for (int y = 0; y < height; y++) {
-                    outArray[height - 1 - y][x] = lip.get(x, y) + (useBZero ? Long.MIN_VALUE : 0); // Subtract BZERO
-                }
+            var pixels = (float[]) lip.getPixels();
+            for (int y = 0; y < height; y++) {
+                copyRow(pixels, y * width, outArray[height - 1 - y], useBZero);
             }
 
             return outArray;//todo flag that this is a 32-bit conversion by way of floats
         }
 
+        @Override
+        public void writeImageData(ImageProcessor ip, boolean useBZero, ArrayDataOutput out) throws IOException {
+            var width = ip.getWidth();
+            var pixels = (float[]) ip.getPixels();
+            var row = new long[width];
+            for (int y = ip.getHeight() - 1; y >= 0; y--) {
+                copyRow(pixels, y * width, row, useBZero);
+                out.write(row, 0, width);
+            }
+        }
+
+        // Matches FloatProcessor#get, which returns the bits of the float
+        private static void copyRow(float[] pixels, int offset, long[] row, boolean useBZero) {
+            var bZero = useBZero ? Long.MIN_VALUE : 0;
+            for (int x = 0; x < row.length; x++) {
+                row[x] = Float.floatToIntBits(pixels[offset + x]) + bZero; // Subtract BZERO
+            }
+        }
+
         @Override
         public double getBZero() {
             return -(double)Long.MIN_VALUE;
@@ -224,6 +334,16 @@ public enum ImageType {
             throw new IllegalStateException("Incorrect raw data given to make an ImageProcessor");
         }
 
+        @Override
+        void processTileRow(Buffer tile, int from, Object pixels, int to, int length, double bzero, double bscale) {
+            final var pixelArray = (float[]) pixels;
+            final var values = (FloatBuffer) tile;
+            for (int i = 0; i < length; i++) {
+                double pixelValue = bzero + bscale * values.get(from + i);
+                pixelArray[to + i] = (float) pixelValue;
+            }
+        }
+
         @Override
         public Object make2DArray(ImageProcessor ip, boolean useBZero) {
             var lip = ((FloatProcessor) ip);
@@ -232,14 +352,22 @@ public enum ImageType {
             var height = ip.getHeight();
             // y and x are inverted because of the implementations of ImageProcessor#getPixelValue
             var outArray = new float[height][width];
-            for (int x = 0; x < width; x++) {
-                for (int y = 0; y < height; y++) {
-                    outArray[height - 1 - y][x] = lip.getf(x, y);
-                }
+            var pixels = (float[]) lip.getPixels();
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(pixels, y * width, outArray[height - 1 - y], 0, width);
             }
             return outArray;
         }
 
+        @Override
+        public void writeImageData(ImageProcessor ip, boolean useBZero, ArrayDataOutput out) throws IOException {
+            var width = ip.getWidth();
+            var pixels = (float[]) ip.getPixels();
+            for (int y = ip.getHeight() - 1; y >= 0; y--) {
+                out.write(pixels, y * width, width);
+            }
+        }
+
         @Override
         public boolean isFloatingPoint() {
             return true;
@@ -273,6 +401,16 @@ public enum ImageType {
             throw new IllegalStateException("Incorrect raw data given to make an ImageProcessor");
         }
 
+        @Override
+        void processTileRow(Buffer tile, int from, Object pixels, int to, int length, double bzero, double bscale) {
+            final var pixelArray = (float[]) pixels;
+            final var values = (DoubleBuffer) tile;
+            for (int i = 0; i < length; i++) {
+                float pixelValue = (float) (bzero + bscale * values.get(from + i));
+                pixelArray[to + i] = pixelValue;
+            }
+        }
+
         @Override
         public Object make2DArray(ImageProcessor ip, boolean useBZero) {
             var lip = ((FloatProcessor) ip);
@@ -281,15 +419,27 @@ public enum ImageType {
             var height = ip.getHeight();
             // y and x are inverted because of the implementations of ImageProcessor#getPixelValue
             var outArray = new float[height][width];
-            for (int x = 0; x < width; x++) {
-                for (int y = 0; y < height; y++) {
-                    outArray[height - 1 - y][x] = lip.getf(x, y);
-                }
+            var pixels = (float[]) lip.getPixels();
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(pixels, y * width, outArray[height - 1 - y], 0, width);
             }
 
             return outArray;//todo flag that this is a 32-bit conversion
         }
 
+        @Override
+        public void writeImageData(ImageProcessor ip, boolean useBZero, ArrayDataOutput out) throws IOException {
+            var width = ip.getWidth();
+            var pixels = (float[]) ip.getPixels();
+            var row = new double[width];
+            for (int y = ip.getHeight() - 1; y >= 0; y--) {
+                for (int x = 0; x < width; x++) {
+                    row[x] = pixels[y * width + x];
+                }
+                out.write(row, 0, width);
+            }
+        }
+
         @Override
         public boolean isFloatingPoint() {
             return true;
@@ -316,6 +466,16 @@ public enum ImageType {
         throw new IllegalStateException("Tried to open image data that was not a numeric: " + rawData.getClass());
     }
 
+    /**
+     * @return the type FITS data with the given BITPIX is read as, or null if BITPIX is not valid.
+     */
+    public static ImageType getType(int bitpix) {
+        for (ImageType type : values()) {
+            if (type.getExpectedBitpix() == bitpix) return type;
+        }
+        return null;
+    }
+
     public static ImageType getType(ImageProcessor ip) {
         if (ip instanceof IntProcessor) {
             return INT;
@@ -341,8 +501,68 @@ public enum ImageType {
 
     public abstract Object processImageData(Object rawData, int width, int height, double bzero, double bscale);
 
+    /**
+     * Decode consecutive rows of big-endian FITS samples straight into the pixel array of an {@link ImageProcessor}
+     * holding the whole image, so that an image can be read and decoded a few rows at a time.
+     * <p>
+     * Unlike {@link ImageType#processImageData(Object, int, int, double, double)}, rows are written bottom-up so
+     * the result is already vertically flipped, and no intermediate 2D array is needed.
+     *
+     * @param rawData  the samples of the rows, positioned at the first sample.
+     * @param firstRow the first of the rows, in FITS pixel coordinates.
+     * @param pixels   the pixel array of a processor made by {@link ImageType#makeProcessor(int, int)}.
+     */
+    public void processRows(ByteBuffer rawData, int firstRow, int rows, Object pixels, int width, int height,
+                            double bzero, double bscale) {
+        Buffer samples = switch (this) {
+            case BYTE -> rawData.slice();
+            case SHORT -> rawData.asShortBuffer();
+            case INT -> rawData.asIntBuffer();
+            case LONG -> rawData.asLongBuffer();
+            case FLOAT -> rawData.asFloatBuffer();
+            case DOUBLE -> rawData.asDoubleBuffer();
+        };
+        processTile(samples, new Rectangle(0, firstRow, width, rows), pixels, new Rectangle(width, height),
+                bzero, bscale);
+    }
+
+    /**
+     * Decode a decompressed tile of a tile-compressed FITS image into the pixel array of an {@link ImageProcessor}
+     * holding a region of the image. Only the part of the tile inside the region is written, with rows flipped as in
+     * {@link ImageType#processRows(ByteBuffer, int, int, Object, int, int, double, double)}.
+     * <p>
+     * Tiles do not overlap, so different tiles of the same region can be decoded concurrently.
+     *
+     * @param tile     the samples of the tile, row after row.
+     * @param tileArea the position and size of the tile in the image, in FITS pixel coordinates.
+     * @param pixels   the pixel array of a processor made by {@link ImageType#makeProcessor(int, int)} for the region.
+     * @param region   the part of the image the processor holds, in FITS pixel coordinates.
+     */
+    public void processTile(Buffer tile, Rectangle tileArea, Object pixels, Rectangle region,
+                            double bzero, double bscale) {
+        var area = tileArea.intersection(region);
+        if (area.isEmpty()) return;
+
+        for (int y = area.y; y < area.y + area.height; y++) {
+            var from = (y - tileArea.y) * tileArea.width + (area.x - tileArea.x);
+            var to = (region.height - 1 - (y - region.y)) * region.width + (area.x - region.x);
+            processTileRow(tile, from, pixels, to, area.width, bzero, bscale);
+        }
+    }
+
+    abstract void processTileRow(Buffer tile, int from, Object pixels, int to, int length, double bzero, double bscale);
+
     public abstract Object make2DArray(ImageProcessor ip, boolean useBZero);
 
+    /**
+     * Write the pixels of an {@link ImageProcessor} as a FITS data segment, with BITPIX
+     * {@link ImageType#getExpectedBitpix()}.
+     * <p>
+     * The values match {@link ImageType#make2DArray(ImageProcessor, boolean)}, but rows are streamed bottom-up
+     * straight from the pixel array, so no intermediate 2D array is needed. The data is not padded.
+     */
+    public abstract void writeImageData(ImageProcessor ip, boolean useBZero, ArrayDataOutput out) throws IOException;
+
     public double getBZero() {
         return 0;
     }
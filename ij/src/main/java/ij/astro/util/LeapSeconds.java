@@ -51,22 +51,47 @@ public class LeapSeconds {
             }
             return false;
         }
-        if (jdEOI < leapSecJD[0]) {
+        double tabulated = tabulatedLeapSecs(jdEOI);
+        if (Double.isNaN(tabulated)) {
             estimateLeapSecs();
-            return true;
+        } else {
+            leapSec = tabulated;
+        }
+        return true;
+    }
+
+    /**
+     * Gives the number of leap seconds for the provided jd without changing the epoch of interest, so it may be
+     * called for many dates and from several threads. Uses the leap second table loaded by
+     * {@link #getTAIminusUTC()}, or the estimate when the table is not loaded.
+     */
+    public double leapSecondsAt(double jd) {
+        double tabulated = hasLeapSecTable() ? tabulatedLeapSecs(jd) : Double.NaN;
+        return Double.isNaN(tabulated) ? estimatedLeapSecs(SkyAlgorithmsTimeUtil.UTDateFromJD(jd)) : tabulated;
+    }
+
+    private boolean hasLeapSecTable() {
+        return leapSecJD != null && TAIminusUTC != null && baseMJD != null && baseMJDMultiplier != null &&
+                leapSecJD.length >= 2 && leapSecJD.length == TAIminusUTC.length &&
+                leapSecJD.length == baseMJD.length && leapSecJD.length == baseMJDMultiplier.length;
+    }
+
+    /**
+     * @return the leap seconds from the table, or NaN if {@code jd} is outside of it.
+     */
+    private double tabulatedLeapSecs(double jd) {
+        if (jd < leapSecJD[0]) {
+            return Double.NaN;
         }
         for (int i = 1; i < leapSecJD.length; i++) {
-            if (jdEOI >= leapSecJD[i - 1] && jdEOI < leapSecJD[i]) {
-                leapSec = TAIminusUTC[i - 1] + (jdEOI - 2400000 - baseMJD[i - 1]) * baseMJDMultiplier[i - 1];
-                return true;
+            if (jd >= leapSecJD[i - 1] && jd < leapSecJD[i]) {
+                return TAIminusUTC[i - 1] + (jd - 2400000 - baseMJD[i - 1]) * baseMJDMultiplier[i - 1];
             }
         }
-        if (jdEOI >= leapSecJD[leapSecJD.length - 1] && jdEOI <= jdNow + 365.0) {
-            leapSec = TAIminusUTC[TAIminusUTC.length - 1] + (jdEOI - 2400000 - baseMJD[TAIminusUTC.length - 1]) * baseMJDMultiplier[TAIminusUTC.length - 1];
-            return true;
+        if (jd >= leapSecJD[leapSecJD.length - 1] && jd <= jdNow + 365.0) {
+            return TAIminusUTC[TAIminusUTC.length - 1] + (jd - 2400000 - baseMJD[TAIminusUTC.length - 1]) * baseMJDMultiplier[TAIminusUTC.length - 1];
         }
-        estimateLeapSecs();
-        return true;
+        return Double.NaN;
     }
 
     protected void initDefaultLeapSecs() {
@@ -292,7 +317,16 @@ public class LeapSeconds {
     }
 
     protected void estimateLeapSecs() {
-        double y = utDateEOI[0] + (utDateEOI[1] - 0.5) / 12.0;
+        leapSec = estimatedLeapSecs(utDateEOI);
+    }
+
+    /**
+     * Estimates the leap seconds from the historical and predicted values of TT - UT.
+     *
+     * @param utDate the UT date as {year, month, day, hour}.
+     */
+    protected static double estimatedLeapSecs(double[] utDate) {
+        double y = utDate[0] + (utDate[1] - 0.5) / 12.0;
         double u;
         double dt;
         if (y < -1999) {
@@ -389,7 +423,7 @@ public class LeapSeconds {
             double u2 = u * u;
             dt = -20 + 32 * u2;
         }
-        leapSec = dt - 32.184;
+        return dt - 32.184;
     }
 
 }
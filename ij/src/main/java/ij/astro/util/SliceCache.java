@@ -0,0 +1,241 @@
+package ij.astro.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Memory bounded LRU cache of decoded stack slices.
+ * <p>
+ * Each request schedules the next slices in the direction the stack is being traversed to be loaded on a shared
+ * background thread, so that stepping through a stack overlaps decoding with the work done on each slice. A cache
+ * decodes one slice at a time, so its loader need not be thread safe, but different caches decode concurrently. The
+ * ImageJ openers behind the loaders keep their decoding state per call. The only process-wide state they change is
+ * the silent mode of {@link ij.io.FileOpener}, the last directory and name of {@link ij.io.OpenDialog}, and
+ * {@link ij.IJ#redirectErrorMessages()}, which decide whether progress and errors are shown, not what is read.
+ *
+ * @param <T> the decoded slice.
+ */
+public class SliceCache<T> {
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ExecutorService prefetchPool = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+        var t = new Thread(r, "Slice Prefetch " + threadCount.incrementAndGet());
+        t.setDaemon(true);
+        t.setPriority(Thread.NORM_PRIORITY - 1);
+        return t;
+    });
+    private final Object decodeLock = new Object();
+    private final IntFunction<T> loader;
+    private final ToLongFunction<T> weigher;
+    private final LinkedHashMap<Integer, T> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private final HashMap<Integer, CompletableFuture<T>> pending = new HashMap<>();
+    private long maxBytes;
+    private int prefetch;
+    private long bytes;
+    private int lastIndex;
+    private int direction = 1;
+    private int generation;
+    private long hits, misses, waits, prefetched, evictions, loads, loadNanos, waitNanos;
+
+    static {
+        ((ThreadPoolExecutor) prefetchPool).allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @param loader   decodes the slice with the given index, returning null on failure. It is called from the
+     *                 requesting thread and from the prefetch thread, but never concurrently for one cache, and must
+     *                 not change global state.
+     * @param weigher  the memory used by a slice, in bytes.
+     * @param maxBytes the memory the cached slices may use.
+     * @param prefetch the number of slices to read ahead.
+     */
+    public SliceCache(IntFunction<T> loader, ToLongFunction<T> weigher, long maxBytes, int prefetch) {
+        this.loader = loader;
+        this.weigher = weigher;
+        this.maxBytes = maxBytes;
+        this.prefetch = Math.max(0, prefetch);
+    }
+
+    /**
+     * Returns slice {@code n}, loading it on the calling thread if it is neither cached nor being prefetched.
+     *
+     * @param size the number of slices, prefetching stops at the ends of the stack.
+     */
+    public T get(int n, int size) {
+        CompletableFuture<T> inFlight;
+        int inFlightGen;
+        synchronized (this) {
+            if (n != lastIndex) direction = n < lastIndex ? -1 : 1;
+            lastIndex = n;
+            var slice = cache.get(n);
+            if (slice != null) {
+                hits++;
+                schedulePrefetch(n, size);
+                return slice;
+            }
+            inFlight = pending.get(n);
+            inFlightGen = generation;
+            if (inFlight == null) misses++;
+        }
+
+        T slice = null;
+        if (inFlight != null) {
+            var start = System.nanoTime();
+            slice = inFlight.join();
+            synchronized (this) {
+                waits++;
+                waitNanos += System.nanoTime() - start;
+                // Decoded with the numbering from before invalidate(), load it again
+                if (inFlightGen != generation) slice = null;
+            }
+        }
+        if (slice == null) {
+            int gen;
+            synchronized (this) {
+                gen = generation;
+            }
+            slice = load(n);
+            synchronized (this) {
+                if (slice != null && gen == generation) put(n, slice);
+            }
+        }
+
+        synchronized (this) {
+            schedulePrefetch(n, size);
+        }
+        return slice;
+    }
+
+    /**
+     * Drops all cached slices and abandons the prefetches in progress, for when the slice numbering changes.
+     * Requests waiting for an abandoned prefetch load the slice themselves.
+     */
+    public synchronized void invalidate() {
+        generation++;
+        cache.clear();
+        bytes = 0;
+        for (var future : pending.values()) {
+            future.complete(null);
+        }
+        pending.clear();
+    }
+
+    /**
+     * Changes the memory and read-ahead limits, evicting slices if needed.
+     */
+    public synchronized void setLimits(long maxBytes, int prefetch) {
+        this.maxBytes = maxBytes;
+        this.prefetch = Math.max(0, prefetch);
+        evict();
+    }
+
+    public synchronized Stats getStats() {
+        return new Stats(hits, misses, waits, prefetched, evictions, cache.size(), bytes,
+                loads == 0 ? 0 : loadNanos / 1e6 / loads, waits == 0 ? 0 : waitNanos / 1e6 / waits);
+    }
+
+    public synchronized void resetStats() {
+        hits = misses = waits = prefetched = evictions = loads = loadNanos = waitNanos = 0;
+    }
+
+    /**
+     * Returns whether {@code slice} is the one cached for index {@code n}, so the caller knows whether it must copy
+     * the slice before handing it out for modification.
+     */
+    public synchronized boolean isCached(int n, T slice) {
+        return slice != null && cache.get(n) == slice;
+    }
+
+    private T load(int n) {
+        T slice;
+        long time;
+        synchronized (decodeLock) {
+            var start = System.nanoTime();
+            slice = loader.apply(n);
+            time = System.nanoTime() - start;
+        }
+        synchronized (this) {
+            loads++;
+            loadNanos += time;
+        }
+        return slice;
+    }
+
+    private void schedulePrefetch(int n, int size) {
+        for (int i = 1; i <= prefetch; i++) {
+            int m = n + direction * i;
+            if (m < 1 || m > size) break;
+            if (cache.containsKey(m) || pending.containsKey(m)) continue;
+
+            var future = new CompletableFuture<T>();
+            pending.put(m, future);
+            int gen = generation;
+            prefetchPool.execute(() -> {
+                T slice = null;
+                try {
+                    // Skip slices the traversal has already moved away from
+                    boolean wanted;
+                    synchronized (this) {
+                        wanted = gen == generation && Math.abs(m - lastIndex) <= prefetch;
+                    }
+                    if (wanted) slice = load(m);
+                } catch (Throwable ignored) {
+                    // The requesting thread loads the slice itself and reports the error
+                } finally {
+                    synchronized (this) {
+                        pending.remove(m, future);
+                        if (slice != null && gen == generation) {
+                            prefetched++;
+                            put(m, slice);
+                        }
+                    }
+                    future.complete(slice);
+                }
+            });
+        }
+    }
+
+    private void put(int n, T slice) {
+        var old = cache.put(n, slice);
+        if (old != null) bytes -= weigher.applyAsLong(old);
+        bytes += weigher.applyAsLong(slice);
+        evict();
+    }
+
+    private void evict() {
+        Iterator<T> it = cache.values().iterator();
+        while (bytes > maxBytes && cache.size() > 1 && it.hasNext()) {
+            bytes -= weigher.applyAsLong(it.next());
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * @param hits             requests served from the cache.
+     * @param misses           requests decoded on the requesting thread.
+     * @param waits            requests that waited for a prefetch in progress.
+     * @param prefetched       slices decoded ahead of being requested.
+     * @param evictions        slices dropped to stay within the memory limit.
+     * @param cachedSlices     slices currently cached.
+     * @param cachedBytes      memory used by the cached slices.
+     * @param meanLoadMillis   mean time to decode a slice.
+     * @param meanWaitMillis   mean time requests waited for a prefetch in progress.
+     */
+    public record Stats(long hits, long misses, long waits, long prefetched, long evictions, int cachedSlices,
+                        long cachedBytes, double meanLoadMillis, double meanWaitMillis) {
+        public double hitRate() {
+            var requests = hits + misses + waits;
+            return requests == 0 ? 0 : hits / (double) requests;
+        }
+    }
+}
@@ -4,6 +4,7 @@ import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.Prefs;
+import ij.VirtualStack;
 import ij.astro.AstroImageJ;
 import ij.astro.logging.AIJLogger;
 import ij.astro.logging.Translation;
@@ -18,13 +19,21 @@ import ij.io.OpenDialog;
 import ij.measure.Calibration;
 import ij.process.ImageProcessor;
 import nom.tam.fits.*;
+import nom.tam.fits.compress.CompressionManager;
+import nom.tam.image.StandardImageTiler;
 import nom.tam.image.compression.hdu.CompressedImageHDU;
+import nom.tam.image.tile.operation.TileArea;
+import nom.tam.util.RandomAccess;
 
 import javax.swing.*;
+import java.awt.Rectangle;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 import java.time.LocalDateTime;
@@ -52,6 +61,10 @@ public class FITS_Reader extends ImagePlus implements PlugIn {
 	private String fileName;
 	private String fileBase;
 	private String fileType;
+	/**
+	 * The FITS file when it was opened for random access, in which case pixel data is only read when needed.
+	 */
+	private File randomAccessFile;
 	private int wi;
 	private int he;
 	private int de;
@@ -73,6 +86,14 @@ public class FITS_Reader extends ImagePlus implements PlugIn {
 	private interface TableWrapper { double valueAt(int x, int y); }
 
 	private static HeaderCardFilter filter = null;
+	/**
+	 * The size of the chunks uncompressed image data is read and decoded in.
+	 */
+	private static final int READ_CHUNK = 1 << 20;
+	/**
+	 * Reused by each thread to read uncompressed image data, one chunk at a time.
+	 */
+	private static final ThreadLocal<ByteBuffer> readBuffer = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(READ_CHUNK));
 
 	/**
 	 * Main processing method for the FITS_Reader object
@@ -159,6 +180,7 @@ public class FITS_Reader extends ImagePlus implements PlugIn {
 					displaySingleImage(displayHdu, imgData, hdus);
 				} catch (FitsException e) {
 					IJ.error("Failed to display single image: " + e.getMessage());
+					postFitsRead.close();
 					return;
 				}
 			} else {
@@ -338,9 +360,58 @@ public class FITS_Reader extends ImagePlus implements PlugIn {
 		he = hdu.getHeader().getIntValue("ZNAXIS2");
 		de = hdu.getHeader().getIntValue("ZNAXIS3", 1);
 
+		if (hdu.getHeader().getIntValue("ZNAXIS") == 2 && wi > 1 && he > 1) {
+			return new CompressedImageView(hdu);
+		}
 		return hdu.asImageHDU();
 	}
 
+	/**
+	 * Decompress a tile-compressed 2D image, or part of it, into an ImageProcessor. Only the tiles that overlap the
+	 * region are decompressed, and each is decoded into the processor's pixels by the thread that decompressed it.
+	 *
+	 * @param region the area to read in image coordinates, or null to read the whole image.
+	 */
+	public static ImageProcessor readCompressedImage(CompressedImageHDU hdu, Rectangle region) throws FitsException {
+		var header = hdu.getImageHeader();
+		return readCompressedImage(hdu, region, header.getDoubleValue(BZERO, 0), header.getDoubleValue(BSCALE, 1));
+	}
+
+	/**
+	 * @see FITS_Reader#readCompressedImage(CompressedImageHDU, Rectangle)
+	 */
+	private static ImageProcessor readCompressedImage(CompressedImageHDU hdu, Rectangle region,
+													  double bzero, double bscale) throws FitsException {
+		var header = hdu.getHeader();
+		if (header.getIntValue("ZNAXIS") != 2) {
+			throw new FitsException("Only 2D compressed images can be read by region");
+		}
+
+		var type = ImageType.getType(header.getIntValue("ZBITPIX"));
+		if (type == null) {
+			throw new FitsException("Invalid ZBITPIX: " + header.getIntValue("ZBITPIX"));
+		}
+
+		var width = header.getIntValue("ZNAXIS1");
+		var height = header.getIntValue("ZNAXIS2");
+		var bounds = new Rectangle(width, height);
+		var area = region == null ? bounds : region.intersection(bounds);
+		if (area.isEmpty()) {
+			throw new IllegalArgumentException("Region " + region + " is outside of the image");
+		}
+
+		// FITS rows run bottom-up
+		var fitsArea = new Rectangle(area.x, height - area.y - area.height, area.width, area.height);
+		var ip = type.makeProcessor(area.width, area.height);
+		var pixels = ip.getPixels();
+		hdu.decompress(new TileArea().start(fitsArea.x, fitsArea.y)
+						.end(fitsArea.x + fitsArea.width, fitsArea.y + fitsArea.height),
+				(x, y, w, h, tile) ->
+						type.processTile(tile, new Rectangle(x, y, w, h), pixels, fitsArea, bzero, bscale));
+		ip.resetMinAndMax();
+		return ip;
+	}
+
 	private void displayStackedImage() {
 		ImageStack stack = imagePlus.getStack();
 		for (int i = 1; i <= stack.getSize(); i++) {
@@ -380,7 +451,7 @@ public class FITS_Reader extends ImagePlus implements PlugIn {
 			imageProcessor = makeStackFromManyHDU(hdus);
 		} else if (hdu.getHeader().getIntValue(NAXIS) == 2) {
 			if (filter != null && !filter.matchesFilter(hdu.getHeader())) return;
-			imageProcessor = twoDimensionalImageData2Processor(imgData.getKernel());
+			imageProcessor = imageHDU2Processor(hdu);
 		} else if (hdu.getHeader().getIntValue(NAXIS) == 3) {
 			if (FolderOpener.virtualIntended) {
 				AIJLogger.log("Cannot open 3D images as a virtual stack.", false);
@@ -405,7 +476,7 @@ public class FITS_Reader extends ImagePlus implements PlugIn {
 				(Arrays.stream(hdus).skip(firstValidHdu)
 						// We only care about images
 						.allMatch(hdu -> (hdu instanceof ImageHDU || hdu instanceof CompressedImageHDU) &&
-								hdu.getKernel() != null));
+								hasData(hdu)));
 
 		var imagesAreSameSize = Arrays.stream(hdus)
 				.skip(hdus[0].getHeader().getIntValue(NAXIS) == 0 ? 1 : 0)
@@ -421,6 +492,13 @@ public class FITS_Reader extends ImagePlus implements PlugIn {
 		return isImages && imagesAreSameSize;
 	}
 
+	/**
+	 * Determine if an HDU has data without reading deferred data from the file.
+	 */
+	private boolean hasData(BasicHDU<?> hdu) {
+		return hdu.getData() != null && (hdu.getData().isDeferred() || hdu.getKernel() != null);
+	}
+
 	/**
 	 * Determine if a table is a TESS cut.
 	 */
@@ -674,6 +752,13 @@ public class FITS_Reader extends ImagePlus implements PlugIn {
 	 * Create a stack from a fits file that only contains multiple images
 	 */
 	private ImageProcessor makeStackFromManyHDU(BasicHDU<?>[] hdus) throws FitsException {
+		if (FolderOpener.virtualIntended) {
+			if (randomAccessFile != null && Arrays.stream(hdus).noneMatch(CompressedImageHDU.class::isInstance)) {
+				return makeVirtualStackFromManyHDU(hdus);
+			}
+			AIJLogger.log("Cannot open compressed or zipped multi-HDU images as a virtual stack.", false);
+		}
+
 		ImageProcessor ip = null;
 		ImageStack stack = new ImageStack();
 
@@ -704,7 +789,7 @@ public class FITS_Reader extends ImagePlus implements PlugIn {
 				header = baos.toString(utf8);
 			} catch (Exception ignored) {}
 
-			ip = twoDimensionalImageData2Processor(hdu.getKernel());
+			ip = imageHDU2Processor(hdu);
 			stack.addSlice(fileBase + "_" + (hdus.length<10000 ? fourDigits.format(i+1) : (i+1))
 					+ (fileType.length() > 0 ? "." + fileType : "") + "\n" + header, ip);
 			pm.setProgress(i);
@@ -715,6 +800,61 @@ public class FITS_Reader extends ImagePlus implements PlugIn {
 		return ip;
 	}
 
+	/**
+	 * Create a virtual stack from a fits file that only contains multiple uncompressed images. Only the first
+	 * image is read here, the others are read from their file offsets when their slice is displayed.
+	 */
+	private ImageProcessor makeVirtualStackFromManyHDU(BasicHDU<?>[] hdus) throws FitsException {
+		ImageProcessor ip = null;
+		FitsHduVirtualStack stack = null;
+
+		for (int i = 0; i < hdus.length; i++) {
+			var hdr = hdus[i].getHeader();
+
+			// Skip null header
+			if (hdr.getIntValue(NAXIS) == 0) continue;
+
+			if (filter != null && !filter.matchesFilter(hdr)) continue;
+
+			var header = "";
+			hdr.setSimple(true); // Needed for MA
+			final var baos = new ByteArrayOutputStream();
+			final var utf8 = StandardCharsets.UTF_8.name();
+			try (PrintStream ps = new PrintStream(baos, true, utf8)) {
+				hdr.dumpHeader(ps);
+				header = baos.toString(utf8);
+			} catch (Exception ignored) {}
+
+			if (stack == null) {
+				ip = imageHDU2Processor(hdus[i]);
+				stack = new FitsHduVirtualStack(randomAccessFile, ip, bzero, bscale);
+			}
+			stack.addHdu(hdus[i].getFileOffset(), fileBase + "_" + (hdus.length<10000 ? fourDigits.format(i+1) : (i+1))
+					+ (fileType.length() > 0 ? "." + fileType : "") + "\n" + header);
+		}
+
+		if (stack != null) {
+			setStack(fileName, stack);
+		}
+
+		return ip;
+	}
+
+	/**
+	 * Get the pixel data of an HDU. Deferred image data is read through the HDU's tiler so that it is not also
+	 * kept by the HDU once it has been converted.
+	 */
+	private static Object readKernel(BasicHDU<?> hdu) throws FitsException {
+		if (hdu instanceof ImageHDU imageHDU && imageHDU.getData().isDeferred()) {
+			try {
+				return imageHDU.getTiler().getCompleteImage();
+			} catch (IOException e) {
+				throw new FitsException("Failed to read image data: " + e.getMessage(), e);
+			}
+		}
+		return hdu.getKernel();
+	}
+
 	private ProgressMonitor makeMonitor(int size) {
 		return new ProgressMonitor(IJ.getInstance(), "Processing HDUs in FITS image.", null, 0, size - 1);
 	}
@@ -738,6 +878,80 @@ public class FITS_Reader extends ImagePlus implements PlugIn {
 	//
 	// Notice that again, the x index is the tighter loop.
 
+	/**
+	 * Convert a 2D image HDU into an ImageProcessor, reading its data straight from the file when possible.
+	 */
+	private ImageProcessor imageHDU2Processor(BasicHDU<?> hdu) throws FitsException {
+		ImageProcessor ip = imageHDU2Processor(randomAccessFile, hdu, wi, he, bzero, bscale);
+		this.setProcessor(fileName, ip);
+		return ip;
+	}
+
+	/**
+	 * @see FITS_Reader#imageHDU2Processor(BasicHDU)
+	 */
+	private static ImageProcessor imageHDU2Processor(File file, BasicHDU<?> hdu, int wi, int he,
+													 double bzero, double bscale) throws FitsException {
+		if (hdu instanceof CompressedImageView view) {
+			return readCompressedImage(view.source, null, bzero, bscale);
+		}
+		var ip = readUncompressedImage(file, hdu, wi, he, bzero, bscale);
+		return ip != null ? ip : twoDimensionalImageData2Processor(readKernel(hdu), wi, he, bzero, bscale);
+	}
+
+	/**
+	 * Read the data segment of a deferred 2D image HDU and decode it directly into the pixels of an
+	 * ImageProcessor, scaled and flipped in a single pass. This skips the intermediate 2D array and the copies
+	 * made by {@link FITS_Reader#conditionImageProcessor(Object, ImageProcessor, int, int)}.
+	 * <p>
+	 * The data is read and decoded a chunk of rows at a time through a small per-thread buffer, rather than memory
+	 * mapped, as a mapping keeps the file locked on Windows until it is garbage collected.
+	 *
+	 * @return null if the HDU can't be read this way, e.g. it is compressed, already in memory, or needs resizing.
+	 */
+	private static ImageProcessor readUncompressedImage(File file, BasicHDU<?> hdu, int wi, int he,
+														double bzero, double bscale) throws FitsException {
+		if (file == null || !(hdu instanceof ImageHDU) || !hdu.getData().isDeferred()) return null;
+
+		var header = hdu.getHeader();
+		if (header.getIntValue(NAXIS) != 2 || header.getIntValue(NAXIS1) != wi || header.getIntValue(NAXIS2) != he ||
+				wi <= 1 || he <= 1) {
+			return null;
+		}
+
+		var type = ImageType.getType(header.getIntValue(BITPIX));
+		if (type == null) return null;
+
+		var rowBytes = (long) wi * (Math.abs(type.getExpectedBitpix()) / 8);
+		if (rowBytes * he > Integer.MAX_VALUE) return null;
+
+		try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			var chunkRows = (int) Math.max(1, READ_CHUNK / rowBytes);
+			// Rows longer than a chunk are read one at a time into a buffer that is not kept
+			var data = rowBytes <= READ_CHUNK ? readBuffer.get() : ByteBuffer.allocateDirect((int) rowBytes);
+			var ip = type.makeProcessor(wi, he);
+			var pixels = ip.getPixels();
+			var position = hdu.getData().getFileOffset();
+			for (int y = 0; y < he; y += chunkRows) {
+				var rows = Math.min(chunkRows, he - y);
+				data.clear().limit((int) (rows * rowBytes));
+				while (data.hasRemaining()) {
+					var read = channel.read(data, position);
+					if (read < 0) {
+						throw new EOFException("Image data ends at byte " + position);
+					}
+					position += read;
+				}
+				data.flip();
+				type.processRows(data, y, rows, pixels, wi, he, bzero, bscale);
+			}
+			ip.resetMinAndMax();
+			return ip;
+		} catch (IOException e) {
+			throw new FitsException("Failed to read image data: " + e.getMessage(), e);
+		}
+	}
+
 	/**
 	 * Convert 2D image data into an ImageProcessor, scale image data
 	 * <p>
@@ -745,20 +959,27 @@ public class FITS_Reader extends ImagePlus implements PlugIn {
 	 * (see {@link ImageProcessor#getPixelValue(int, int)})
 	 */
 	private ImageProcessor twoDimensionalImageData2Processor(final Object imageData) {
-		ImageProcessor ip;
+		ImageProcessor ip = twoDimensionalImageData2Processor(imageData, wi, he, bzero, bscale);
+		this.setProcessor(fileName, ip);
+		return ip;
+	}
+
+	/**
+	 * @see FITS_Reader#twoDimensionalImageData2Processor(Object)
+	 */
+	private static ImageProcessor twoDimensionalImageData2Processor(final Object imageData, int wi, int he,
+																	double bzero, double bscale) {
 		var type = ImageType.getType(imageData);
 
 		var imgtmp = type.makeProcessor(wi, he);
 		var imgtab = type.processImageData(imageData, wi, he, bzero, bscale);
-		ip = conditionImageProcessor(imgtab, imgtmp);
-		this.setProcessor(fileName, ip);
-		return ip;
+		return conditionImageProcessor(imgtab, imgtmp, wi, he);
 	}
 
 	/**
 	 * Set pixel and scaling data of the ImageProcessor, flip the image vertically.
 	 */
-	private ImageProcessor conditionImageProcessor(Object imgtab, ImageProcessor imgtmp) {
+	private static ImageProcessor conditionImageProcessor(Object imgtab, ImageProcessor imgtmp, int wi, int he) {
 		ImageProcessor ip;
 		imgtmp.setPixels(imgtab);
 		imgtmp.resetMinAndMax();
@@ -791,15 +1012,13 @@ public class FITS_Reader extends ImagePlus implements PlugIn {
 
 		var fr = getFitsFile(path);
 		if (fr.hasErrored) return null;
-		Fits f = null;
 		try {
-			f = fr.fits;
-			var hdus = f.read();
-			fr.close();
+			// When opened for random access this only reads the headers, image data is read when first requested
+			var hdus = fr.fits.read();
 
-			return new PostFitsRead(f, hdus);
+			return new PostFitsRead(fr, hdus);
 		} catch (FitsException e) {
-			closeThing(f);
+			fr.close();
 			throw e;
 		}
 	}
@@ -809,6 +1028,7 @@ public class FITS_Reader extends ImagePlus implements PlugIn {
 	 */
 	private FitsRead getFitsFile(String path) {
 		Fits f = null;
+		randomAccessFile = null;
 		if (path.contains(".zip")) {
 			var s = path.split("\\.zip");
 
@@ -827,6 +1047,13 @@ public class FITS_Reader extends ImagePlus implements PlugIn {
 		}
 
 		try  {
+			var file = new File(path);
+			if (!CompressionManager.isCompressed(file)) {
+				f = new Fits(file, false);
+				randomAccessFile = file;
+				return new FitsRead(f, Optional.empty());
+			}
+
 			var m = new ProgressMonitorInputStream(IJ.getInstance(),
 					"Reading FITS image", Files.newInputStream(Path.of(path)));
 			f = new Fits(m);
@@ -855,9 +1082,90 @@ public class FITS_Reader extends ImagePlus implements PlugIn {
 		}
 	}
 
-	private record PostFitsRead(Fits fits, BasicHDU<?>[] hdus) {
+	private record PostFitsRead(FitsRead fitsRead, BasicHDU<?>[] hdus) {
 		public void close() {
-			closeThing(fits);
+			fitsRead.close();
+		}
+	}
+
+	/**
+	 * A virtual stack of the image HDUs of a FITS file. Only the offset of each HDU is kept, its pixel data is
+	 * read through a {@link StandardImageTiler} when the slice is requested.
+	 */
+	private static class FitsHduVirtualStack extends VirtualStack {
+		private final File file;
+		private final ImageProcessor template;
+		private final double bzero;
+		private final double bscale;
+		private final List<Long> offsets = new ArrayList<>();
+		private final List<String> labels = new ArrayList<>();
+
+		/**
+		 * @param template the processor of the first slice, used for the size and type of the stack.
+		 */
+		private FitsHduVirtualStack(File file, ImageProcessor template, double bzero, double bscale) {
+			super(template.getWidth(), template.getHeight());
+			this.file = file;
+			this.template = template;
+			this.bzero = bzero;
+			this.bscale = bscale;
+			path = file.getParent();
+			setBitDepth(template.getBitDepth());
+		}
+
+		private void addHdu(long offset, String label) {
+			offsets.add(offset);
+			labels.add(label);
+		}
+
+		@Override
+		public synchronized ImageProcessor getProcessor(int n) {
+			n = translate(n);
+			if (n < 1 || n > offsets.size()) {
+				throw new IllegalArgumentException("Argument out of range: " + n);
+			}
+
+			// Reopen the file for each slice, as AVI_Reader does, so that no handle is held open by the stack
+			try (var fits = new Fits(file, false)) {
+				((RandomAccess) fits.getStream()).seek(offsets.get(n - 1));
+				var hdu = fits.readHDU();
+				if (hdu == null) {
+					throw new FitsException("No HDU found for slice " + n);
+				}
+				return imageHDU2Processor(file, hdu, template.getWidth(), template.getHeight(), bzero, bscale);
+			} catch (FitsException | IOException e) {
+				AIJLogger.log("Failed to read slice " + n + " of " + file.getName() + ": " + e.getMessage());
+				return template.createProcessor(template.getWidth(), template.getHeight());
+			}
+		}
+
+		@Override
+		public int getSize() {
+			return offsets.size();
+		}
+
+		@Override
+		public String getSliceLabel(int n) {
+			return labels.get(n - 1);
+		}
+
+		@Override
+		public void setSliceLabel(String label, int n) {
+			labels.set(n - 1, label);
+		}
+
+		@Override
+		public String getFileName(int n) {
+			return file.getName();
+		}
+
+		@Override
+		public void deleteSlice(int n) {
+			if (n < 1 || n > offsets.size()) {
+				throw new IllegalArgumentException("Argument out of range: " + n);
+			}
+			offsets.remove(n - 1);
+			labels.remove(n - 1);
 		}
 	}
 
@@ -948,6 +1256,23 @@ public class FITS_Reader extends ImagePlus implements PlugIn {
 		flipImages = flip;
 	}
 
+	/**
+	 * The header of a tile-compressed 2D image, standing in for the image HDU until its pixels are decompressed
+	 * straight into an ImageProcessor by {@link FITS_Reader#readCompressedImage(CompressedImageHDU, Rectangle)}.
+	 */
+	private static final class CompressedImageView extends ImageHDU {
+		private final CompressedImageHDU source;
+
+		private CompressedImageView(CompressedImageHDU source) throws FitsException {
+			this(source.getImageHeader(), source);
+		}
+
+		private CompressedImageView(Header header, CompressedImageHDU source) throws FitsException {
+			super(header, (ImageData) ImageHDU.manufactureData(header));
+			this.source = source;
+		}
+	}
+
 }
 
 class FitsDecoder {
@@ -1074,5 +1399,4 @@ class FitsDecoder {
 	String getHeaderInfo() {
 		return new String(info);
 	}
-
 }
@@ -13,11 +13,9 @@ import ij.process.ByteProcessor;
 import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
 import ij.process.ShortProcessor;
-import nom.tam.fits.Fits;
-import nom.tam.fits.Header;
-import nom.tam.fits.HeaderCard;
-import nom.tam.fits.ImageHDU;
+import nom.tam.fits.*;
 import nom.tam.fits.compression.algorithm.hcompress.HCompressorOption;
+import nom.tam.fits.header.Bitpix;
 import nom.tam.fits.header.Compression;
 import nom.tam.image.compression.hdu.CompressedImageHDU;
 import nom.tam.util.FitsOutputStream;
@@ -209,8 +207,14 @@ public class FITS_Writer implements PlugIn {
 					}
 				}
 
-				var data = type.make2DArray(ip, useBZero);//todo handle color images
-				var hdu = Fits.makeHDU(data);
+				BasicHDU<?> hdu;
+				if (compressionModes.contains(FPACK)) {
+					// Compression needs the data in memory
+					hdu = Fits.makeHDU(type.make2DArray(ip, useBZero));//todo handle color images
+				} else {
+					// The data is streamed from the pixel array after the header is written
+					hdu = new ImageHDU(makeImageHeader(type, ip.getWidth(), ip.getHeight()), null);
+				}
 				var header = hdu.getHeader();
 
 				// Duplicate header for new image
@@ -236,7 +240,7 @@ public class FITS_Writer implements PlugIn {
 					header.deleteKey(BSCALE);
 				}
 
-				totalSize += hdu.getSize();
+				totalSize += hdu.getSize() + (compressionModes.contains(FPACK) ? 0 : header.getDataSize());
 
 				if (compressionModes.contains(FPACK)) {
 					if (maxImage > 1) IJ.showStatus("FPACKing: " + slice);
@@ -261,6 +265,10 @@ public class FITS_Writer implements PlugIn {
 
 				if (maxImage > 1) IJ.showStatus("Writing multiHDU FITS image: " + slice);
 				hdu.write(out);
+				if (!compressionModes.contains(FPACK)) {
+					type.writeImageData(ip, useBZero, out);
+					FitsUtil.pad(out, (long) ip.getWidth() * ip.getHeight() * Math.abs(type.getExpectedBitpix()) / 8);
+				}
 
 				if (specificSlice == -1) IJ.showProgress(slice / (float)maxImage);
 			}
@@ -277,6 +285,22 @@ public class FITS_Writer implements PlugIn {
 		IJ.showStatus("");
 	}
 
+	/**
+	 * Creates the header {@link Fits#makeHDU(Object)} would for the 2D array of an image, without needing the array.
+	 */
+	private static Header makeImageHeader(ImageType type, int width, int height) throws FitsException {
+		var header = new Header();
+		header.setSimple(true);
+		header.setBitpix(Bitpix.forValue(type.getExpectedBitpix()));
+		header.setNaxes(2);
+		header.setNaxis(1, width);
+		header.setNaxis(2, height);
+		header.addValue(EXTEND, true);
+		header.addValue(PCOUNT, 0);
+		header.addValue(GCOUNT, 1);
+		return header;
+	}
+
 //	/**
 //	 * Creates a FITS header for an image which doesn't have one already.
 //	 */	